@@ -0,0 +1,107 @@
+package cn.appdream.recorder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every {@link Nv21} kernel at the usual preview sizes; a frame takes 33 ms at 30 fps, so any
+ * kernel near that at 720p is a regression.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Nv21Benchmark {
+    @Param({"640x480", "1280x720", "1920x1080"})
+    public String size;
+
+    private int mWidth;
+    private int mHeight;
+    private byte[] mFrame;
+    private byte[] mOut;
+    private byte[] mScaled;
+    private int[] mArgb;
+    private Nv21Parallel mParallel;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        String[] parts = size.split("x");
+        mWidth = Integer.parseInt(parts[0]);
+        mHeight = Integer.parseInt(parts[1]);
+        mFrame = new byte[Nv21.size(mWidth, mHeight)];
+        new Random(1).nextBytes(mFrame);
+        mOut = new byte[mFrame.length];
+        mScaled = new byte[Nv21.size(Nv21.scaledSize(mWidth, 2), Nv21.scaledSize(mHeight, 2))];
+        mArgb = new int[mWidth * mHeight];
+        mParallel = new Nv21Parallel(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mParallel.release();
+    }
+
+    @Benchmark
+    public byte[] toI420() {
+        Nv21.toI420(mFrame, mWidth, mHeight, mOut);
+        return mOut;
+    }
+
+    @Benchmark
+    public byte[] toNv12() {
+        Nv21.toNv12(mFrame, mWidth, mHeight, mOut);
+        return mOut;
+    }
+
+    @Benchmark
+    public int[] toArgb() {
+        Nv21.toArgb(mFrame, mWidth, mHeight, mArgb);
+        return mArgb;
+    }
+
+    @Benchmark
+    public int[] toArgbParallel() {
+        mParallel.toArgb(mFrame, mWidth, mHeight, mArgb);
+        return mArgb;
+    }
+
+    @Benchmark
+    public byte[] rotate90() {
+        Nv21.rotate(mFrame, mWidth, mHeight, 90, mOut);
+        return mOut;
+    }
+
+    @Benchmark
+    public byte[] rotate90Parallel() {
+        mParallel.rotate(mFrame, mWidth, mHeight, 90, mOut);
+        return mOut;
+    }
+
+    @Benchmark
+    public byte[] downscale2() {
+        Nv21.downscale(mFrame, mWidth, mHeight, 2, mScaled);
+        return mScaled;
+    }
+
+    @Benchmark
+    public byte[] downscale2Parallel() {
+        mParallel.downscale(mFrame, mWidth, mHeight, 2, mScaled);
+        return mScaled;
+    }
+}
@@ -29,6 +29,32 @@ public class MainActivity extends Activity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
         mRecorderView = (VideoRecorderView) findViewById(R.id.recorder);
+        mRecorderView.addCallback(new VideoRecorderView.Callback() {
+            @Override
+            public void onCameraError(VideoRecorderView view) {
+                new AlertDialog.Builder(MainActivity.this)
+                        .setMessage("拍照功能需要您打开相机权限.")
+                        .setPositiveButton(android.R.string.ok,
+                                new DialogInterface.OnClickListener() {
+                                    @Override
+                                    public void onClick(DialogInterface dialog, int which) {
+                                        finish();
+                                    }
+                                })
+                        .show();
+            }
+
+            @Override
+            public void onRecordFailed(VideoRecorderView view, String file) {
+                isRecorder = false;
+            }
+
+            @Override
+            public void onRecordStopped(VideoRecorderView view, String file) {
+                isRecorder = false;
+                getVideoFileIntent(file);
+            }
+        });
         findViewById(R.id.imageButton).setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -38,7 +64,6 @@ public class MainActivity extends Activity {
                     mRecorderView.startRecord(file.getAbsolutePath());
                 } else {
                     mRecorderView.stopRecord();
-                    getVideoFileIntent(mRecorderView.getFile());
                 }
             }
         });
@@ -53,18 +78,7 @@ public class MainActivity extends Activity {
                 == PackageManager.PERMISSION_GRANTED
                 && ContextCompat.checkSelfPermission(this, Manifest.permission.WRITE_EXTERNAL_STORAGE)
                 == PackageManager.PERMISSION_GRANTED) {
-            if (!mRecorderView.startPreview()) {
-                new AlertDialog.Builder(this)
-                        .setMessage("拍照功能需要您打开相机权限.")
-                        .setPositiveButton(android.R.string.ok,
-                                new DialogInterface.OnClickListener() {
-                                    @Override
-                                    public void onClick(DialogInterface dialog, int which) {
-                                        finish();
-                                    }
-                                })
-                        .show();
-            }
+            mRecorderView.startPreview();
         } else if (ActivityCompat.shouldShowRequestPermissionRationale(this,
                 Manifest.permission.CAMERA)) {
 //            ConfirmationDialogFragment
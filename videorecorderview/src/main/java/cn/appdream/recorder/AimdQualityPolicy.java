@@ -0,0 +1,80 @@
+package cn.appdream.recorder;
+
+/**
+ * Default {@link QualityPolicy}: additive increase, multiplicative decrease of the video
+ * bitrate, like TCP congestion control.
+ * <p>
+ * An interval is congested when writing takes more than {@link #setMaxWriteLoad(float)} of it
+ * or the encoder falls below {@link #setMinFrameRatio(float)} of the frame rate, e.g. when the
+ * device throttles. Congestion cuts the bitrate by a quarter at once. If that does not help
+ * for a few intervals, the next recording gets a lower frame rate (slow encoder) or a smaller
+ * size (slow storage). Healthy intervals raise the bitrate step by step, and once it is back at
+ * the maximum, frame rate and size recover as well.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public class AimdQualityPolicy implements QualityPolicy {
+    private float mMaxWriteLoad = 0.7f;
+    private float mMinFrameRatio = 0.85f;
+    private int mIncreaseAfter = 3;
+    private int mDegradeAfter = 3;
+
+    private int mHealthy;
+    private int mCongested;
+
+    public void setMaxWriteLoad(float maxWriteLoad) {
+        mMaxWriteLoad = maxWriteLoad;
+    }
+
+    public void setMinFrameRatio(float minFrameRatio) {
+        mMinFrameRatio = minFrameRatio;
+    }
+
+    /**
+     * @param intervals healthy intervals before each bitrate increase
+     */
+    public void setIncreaseAfter(int intervals) {
+        mIncreaseAfter = intervals;
+    }
+
+    /**
+     * @param intervals congested intervals before frame rate or size go down
+     */
+    public void setDegradeAfter(int intervals) {
+        mDegradeAfter = intervals;
+    }
+
+    @Override
+    public void adjust(QualitySample sample, QualityDecision decision) {
+        boolean storageSlow = sample.writeLoad > mMaxWriteLoad;
+        boolean encoderSlow = sample.encodedFrameRate < sample.targetFrameRate * mMinFrameRatio;
+        if (storageSlow || encoderSlow) {
+            mHealthy = 0;
+            decision.setVideoBitRate(decision.getVideoBitRate() * 3 / 4);
+            if (++mCongested >= mDegradeAfter) {
+                mCongested = 0;
+                if (encoderSlow) {
+                    decision.setFrameRate(decision.getFrameRate() * 3 / 4);
+                } else {
+                    decision.setVideoScale(decision.getVideoScale() * 0.75f);
+                }
+            }
+            return;
+        }
+        mCongested = 0;
+        if (++mHealthy < mIncreaseAfter) {
+            return;
+        }
+        mHealthy = 0;
+        int bitRate = decision.getVideoBitRate();
+        if (bitRate < decision.getMaxVideoBitRate()) {
+            decision.setVideoBitRate(bitRate + Math.max(1, decision.getMaxVideoBitRate() / 10));
+        } else if (decision.getFrameRate() < decision.getMaxFrameRate()) {
+            decision.setFrameRate(decision.getFrameRate() + Math.max(1, decision.getMaxFrameRate() / 6));
+        } else if (decision.getVideoScale() < 1f) {
+            decision.setVideoScale(decision.getVideoScale() / 0.75f);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package cn.appdream.recorder;
+
+import android.annotation.TargetApi;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import java.io.IOException;
+
+/**
+ * {@link ClipBackendFactory} with {@code MediaExtractor}, {@code MediaMuxer} and the platform
+ * codecs.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+class AndroidClipBackendFactory implements ClipBackendFactory {
+
+    @Override
+    public SampleSource openSource(String path) throws IOException {
+        return new MediaExtractorSource(path);
+    }
+
+    @Override
+    public MuxerBackend createMuxer(String path, int orientationHint) throws IOException {
+        return new MediaMuxerBackend(path, orientationHint);
+    }
+
+    @Override
+    public TrackFormat.Converter getFormatConverter() {
+        return AndroidCodecBackendFactory.MEDIA_FORMATS;
+    }
+
+    @Override
+    public GopTranscoder createTranscoder(Object format) throws IOException {
+        MediaFormat mediaFormat = (MediaFormat) format;
+        if (!MediaCodecEncoder.MIME_VIDEO.equals(mediaFormat.getString(MediaFormat.KEY_MIME))) {
+            return null;
+        }
+        return new MediaCodecGopTranscoder(mediaFormat);
+    }
+}
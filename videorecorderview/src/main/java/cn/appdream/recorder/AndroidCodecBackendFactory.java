@@ -0,0 +1,77 @@
+package cn.appdream.recorder;
+
+import android.annotation.TargetApi;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link CodecBackendFactory} for H.264/AAC in MPEG-4 with the platform codecs.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+class AndroidCodecBackendFactory implements CodecBackendFactory {
+    /**
+     * Encoder and extractor formats to what {@link FragmentedMp4Writer} writes into the header.
+     */
+    static final TrackFormat.Converter MEDIA_FORMATS = new TrackFormat.Converter() {
+        @Override
+        public TrackFormat convert(Object format) {
+            MediaFormat mediaFormat = (MediaFormat) format;
+            String mime = mediaFormat.getString(MediaFormat.KEY_MIME);
+            if (MediaCodecEncoder.MIME_VIDEO.equals(mime)) {
+                return TrackFormat.avc(mediaFormat.getInteger(MediaFormat.KEY_WIDTH),
+                        mediaFormat.getInteger(MediaFormat.KEY_HEIGHT),
+                        bytes(mediaFormat.getByteBuffer("csd-0")), bytes(mediaFormat.getByteBuffer("csd-1")));
+            }
+            if (MediaCodecEncoder.MIME_AUDIO.equals(mime)) {
+                return TrackFormat.aac(mediaFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                        mediaFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
+                        bytes(mediaFormat.getByteBuffer("csd-0")));
+            }
+            return null;
+        }
+    };
+
+    @Override
+    public EncoderBackend createVideoEncoder(RecordingConfig config) throws IOException {
+        return MediaCodecEncoder.createVideo(config);
+    }
+
+    @Override
+    public EncoderBackend createAudioEncoder(RecordingConfig config) throws IOException {
+        return MediaCodecEncoder.createAudio(config);
+    }
+
+    @Override
+    public MuxerBackend createMuxer(String path, int orientationHint) throws IOException {
+        return new MediaMuxerBackend(path, orientationHint);
+    }
+
+    @Override
+    public MuxerBackend createFragmentedMuxer(String path, RecordingConfig config,
+                                              FragmentedMp4Writer.Listener listener) throws IOException {
+        RecordingSink sink = RecordingSink.open(new File(path), config.getFsyncPolicy());
+        return new FragmentedMp4Writer(sink, config.getOrientationHint(), config.getFragmentDurationMs(),
+                MEDIA_FORMATS, listener);
+    }
+
+    @Override
+    public TrackFormat.Converter getFormatConverter() {
+        return MEDIA_FORMATS;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        ByteBuffer data = buffer.duplicate();
+        data.rewind();
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
+    }
+}
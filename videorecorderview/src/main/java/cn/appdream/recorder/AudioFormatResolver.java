@@ -0,0 +1,81 @@
+package cn.appdream.recorder;
+
+/**
+ * Fits the audio settings of a {@link RecordingConfig} to what the device captures: the sample
+ * rate falls back to the closest common rate the microphone takes, stereo to mono, and the
+ * bitrate is kept within what AAC LC does at that rate.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+class AudioFormatResolver {
+    static final int[] SAMPLE_RATES = {48000, 44100, 32000, 24000, 22050, 16000, 11025, 8000};
+    static final int MIN_BIT_RATE_PER_CHANNEL = 8000;
+    /**
+     * AAC LC carries at most 6144 bits per channel and 1024 samples.
+     */
+    static final int MAX_BITS_PER_SAMPLE = 6;
+    static final int MAX_BIT_RATE = 320000;
+
+    interface Probe {
+        boolean supports(int sampleRate, int channels);
+    }
+
+    private AudioFormatResolver() {
+    }
+
+    /**
+     * Change the audio settings of {@code config} to supported ones, or disable audio if the
+     * device captures nothing.
+     *
+     * @return {@code false} if a setting had to change
+     */
+    static boolean resolve(RecordingConfig config, Probe probe) {
+        if (!config.isAudioEnabled()) {
+            return true;
+        }
+        int requestedRate = config.getAudioSampleRate();
+        int requestedChannels = config.getAudioChannels() == 2 ? 2 : 1;
+        for (int channels = requestedChannels; channels >= 1; channels--) {
+            int rate = closestRate(requestedRate, channels, probe);
+            if (rate > 0) {
+                int bitRate = clampBitRate(config.getAudioBitRate(), rate, channels);
+                boolean unchanged = rate == requestedRate && channels == config.getAudioChannels()
+                        && bitRate == config.getAudioBitRate();
+                config.setAudioSampleRate(rate);
+                config.setAudioChannels(channels);
+                config.setAudioBitRate(bitRate);
+                return unchanged;
+            }
+        }
+        config.setAudioEnabled(false);
+        return false;
+    }
+
+    /**
+     * @return the requested rate if supported, otherwise the nearest supported common rate,
+     * preferring higher ones; {@code 0} if none
+     */
+    private static int closestRate(int requested, int channels, Probe probe) {
+        if (requested > 0 && probe.supports(requested, channels)) {
+            return requested;
+        }
+        int best = 0;
+        for (int rate : SAMPLE_RATES) {
+            if (rate == requested || !probe.supports(rate, channels)) {
+                continue;
+            }
+            if (best == 0 || Math.abs(rate - requested) < Math.abs(best - requested)) {
+                best = rate;
+            }
+        }
+        return best;
+    }
+
+    static int clampBitRate(int bitRate, int sampleRate, int channels) {
+        int min = MIN_BIT_RATE_PER_CHANNEL * channels;
+        int max = Math.min(MAX_BIT_RATE, MAX_BITS_PER_SAMPLE * sampleRate * channels);
+        return Math.max(min, Math.min(max, bitRate));
+    }
+}
@@ -0,0 +1,27 @@
+package cn.appdream.recorder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 16 bit PCM source for {@link CodecRecordingEngine}, see {@link AudioRecordInput}.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public interface AudioInput {
+
+    void start(int sampleRate, int channels) throws IOException;
+
+    /**
+     * Blocking read into {@code buffer} from its position.
+     *
+     * @return bytes read, negative on error
+     */
+    int read(ByteBuffer buffer, int size);
+
+    void stop();
+
+    void release();
+}
@@ -0,0 +1,182 @@
+package cn.appdream.recorder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets several encoders read the same microphone: one thread reads the source and hands every
+ * chunk to each started branch, so a proxy recording gets the same audio without a second
+ * {@code AudioRecord}.
+ * <p>
+ * The source is started with the first branch and stopped with the last one; all branches have
+ * to ask for the same format. A branch that does not keep up loses its oldest chunks instead of
+ * holding up the others.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+class AudioInputSplitter {
+    /**
+     * Chunks a branch may fall behind, about 0.7 s of 1024 frame chunks at 44.1 kHz.
+     */
+    static final int QUEUE_CHUNKS = 32;
+    private static final int CHUNK_FRAMES = 1024;
+    private static final long POLL_TIMEOUT_MS = 20;
+
+    private final AudioInput mSource;
+    private final Branch[] mBranches;
+    private final Object mLock = new Object();
+    private int mStarted;
+    private int mSampleRate;
+    private int mChannels;
+    private Thread mPump;
+    private volatile boolean mPumping;
+
+    AudioInputSplitter(AudioInput source, int branches) {
+        mSource = source;
+        mBranches = new Branch[branches];
+        for (int i = 0; i < branches; i++) {
+            mBranches[i] = new Branch();
+        }
+    }
+
+    AudioInput getBranch(int index) {
+        return mBranches[index];
+    }
+
+    private void startBranch(Branch branch, int sampleRate, int channels) throws IOException {
+        synchronized (mLock) {
+            if (branch.mStarted) {
+                return;
+            }
+            if (mStarted == 0) {
+                mSource.start(sampleRate, channels);
+                mSampleRate = sampleRate;
+                mChannels = channels;
+                startPump(CHUNK_FRAMES * 2 * channels);
+            } else if (sampleRate != mSampleRate || channels != mChannels) {
+                throw new IOException("audio already started with " + mSampleRate + " Hz, "
+                        + mChannels + " channels");
+            }
+            branch.mQueue.clear();
+            branch.mStarted = true;
+            mStarted++;
+        }
+    }
+
+    private void stopBranch(Branch branch) {
+        synchronized (mLock) {
+            if (!branch.mStarted) {
+                return;
+            }
+            branch.mStarted = false;
+            mStarted--;
+            if (mStarted > 0) {
+                return;
+            }
+            mPumping = false;
+            join(mPump);
+            mPump = null;
+            mSource.stop();
+        }
+    }
+
+    private void startPump(final int chunk) {
+        mPumping = true;
+        mPump = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(chunk);
+                while (mPumping) {
+                    buffer.clear();
+                    int read = mSource.read(buffer, chunk);
+                    if (read <= 0) {
+                        continue;
+                    }
+                    byte[] data = new byte[read];
+                    buffer.position(0);
+                    buffer.limit(read);
+                    buffer.get(data);
+                    for (Branch branch : mBranches) {
+                        if (branch.mStarted) {
+                            branch.offer(data);
+                        }
+                    }
+                }
+            }
+        }, "AudioSplitter");
+        mPump.start();
+    }
+
+    private static void join(Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class Branch implements AudioInput {
+        final ArrayBlockingQueue<byte[]> mQueue = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+        volatile boolean mStarted;
+        // reader thread only
+        private byte[] mChunk;
+        private int mOffset;
+
+        void offer(byte[] data) {
+            while (!mQueue.offer(data)) {
+                // 丢掉最旧的，不阻塞其它分支
+                mQueue.poll();
+            }
+        }
+
+        @Override
+        public void start(int sampleRate, int channels) throws IOException {
+            mChunk = null;
+            startBranch(this, sampleRate, channels);
+        }
+
+        /**
+         * Waits shortly for the next chunk, {@code 0} if none came.
+         */
+        @Override
+        public int read(ByteBuffer buffer, int size) {
+            if (mChunk == null || mOffset >= mChunk.length) {
+                try {
+                    mChunk = mQueue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    mChunk = null;
+                }
+                mOffset = 0;
+                if (mChunk == null) {
+                    return 0;
+                }
+            }
+            int count = Math.min(Math.min(size, buffer.remaining()), mChunk.length - mOffset);
+            buffer.put(mChunk, mOffset, count);
+            mOffset += count;
+            return count;
+        }
+
+        @Override
+        public void stop() {
+            stopBranch(this);
+        }
+
+        @Override
+        public void release() {
+            stopBranch(this);
+        }
+    }
+}
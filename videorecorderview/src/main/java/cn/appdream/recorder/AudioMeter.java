@@ -0,0 +1,83 @@
+package cn.appdream.recorder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * RMS and peak level of 16 bit PCM chunks in dBFS, and whether the audio has been silent for a
+ * while: below the threshold for at least the hold time. Not thread safe.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+class AudioMeter {
+    /**
+     * Level of digital silence, 16 bit audio does not go lower.
+     */
+    static final float MIN_DB = -96f;
+    static final float DEFAULT_SILENCE_DB = -50f;
+
+    private final float mSilenceThresholdDb;
+    private final long mSilenceHoldUs;
+    private float mRmsDb = MIN_DB;
+    private float mPeakDb = MIN_DB;
+    private long mQuietUs;
+    private boolean mSilent;
+
+    /**
+     * @param silenceHoldUs how long audio has to stay below {@code silenceThresholdDb} to be
+     *                      silent, {@code 0} to never be
+     */
+    AudioMeter(float silenceThresholdDb, long silenceHoldUs) {
+        mSilenceThresholdDb = silenceThresholdDb;
+        mSilenceHoldUs = silenceHoldUs;
+    }
+
+    /**
+     * @param pcm        samples between position and limit in the byte order of the buffer,
+     *                   native for {@code AudioRecord} data; left untouched
+     * @param durationUs of the chunk
+     * @return whether the audio is silent now
+     */
+    boolean measure(ByteBuffer pcm, long durationUs) {
+        long sum = 0;
+        int peak = 0;
+        int count = 0;
+        for (int i = pcm.position(), end = pcm.limit() - 1; i < end; i += 2, count++) {
+            int sample = pcm.getShort(i);
+            sum += sample * sample;
+            int magnitude = sample < 0 ? -sample : sample;
+            if (magnitude > peak) {
+                peak = magnitude;
+            }
+        }
+        mRmsDb = count == 0 ? MIN_DB : toDb(Math.sqrt((double) sum / count));
+        mPeakDb = toDb(peak);
+        if (mRmsDb < mSilenceThresholdDb) {
+            mQuietUs += durationUs;
+        } else {
+            mQuietUs = 0;
+        }
+        mSilent = mSilenceHoldUs > 0 && mQuietUs >= mSilenceHoldUs;
+        return mSilent;
+    }
+
+    float getRmsDb() {
+        return mRmsDb;
+    }
+
+    float getPeakDb() {
+        return mPeakDb;
+    }
+
+    boolean isSilent() {
+        return mSilent;
+    }
+
+    static float toDb(double amplitude) {
+        if (amplitude <= 0) {
+            return MIN_DB;
+        }
+        return (float) Math.max(MIN_DB, 20 * Math.log10(amplitude / 32768));
+    }
+}
@@ -0,0 +1,280 @@
+package cn.appdream.recorder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the microphone on its own high priority thread into a fixed pool of direct buffers and
+ * hands them to the encoder, which reads it like any {@link AudioInput}. So the microphone is
+ * drained on time even when the encoder stalls; if the encoder falls behind by the whole pool,
+ * the oldest chunk is overwritten and counted.
+ * <p>
+ * On the way every chunk is metered, see {@link Listener#onLevel(float, float)}, checked for
+ * silence and timed: the capture time of a chunk against the time its samples account for
+ * since the start gives the drift of the audio clock, lost samples included. A read error of
+ * the microphone ends the capture; the reader gets the error once the chunks before it are
+ * read.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+class AudioPipeline implements AudioInput {
+    static final int CHUNK_FRAMES = 1024;
+    /**
+     * About 370 ms of 1024 frame chunks at 44.1 kHz.
+     */
+    static final int POOL_CHUNKS = 16;
+    /**
+     * Drift is reported once per this many chunks, the smallest value of them: reads only ever
+     * return late.
+     */
+    static final int DRIFT_WINDOW_CHUNKS = 43;
+    private static final long POLL_TIMEOUT_MS = 20;
+
+    /**
+     * Called on the capture thread, keep it short.
+     */
+    abstract static class Listener {
+        void onLevel(float rmsDb, float peakDb) {
+        }
+
+        void onSilenceChanged(boolean silent) {
+        }
+
+        /**
+         * @param driftUs how far the capture time ran ahead of the sample count since the
+         *                start; grows when the audio clock is slow or samples get lost
+         */
+        void onDrift(long driftUs) {
+        }
+    }
+
+    private static final class Chunk {
+        final ByteBuffer mData;
+        long mCaptureNanos;
+
+        Chunk(int size) {
+            mData = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        }
+    }
+
+    private final AudioInput mSource;
+    private volatile Listener mListener;
+    private volatile float mSilenceThresholdDb = AudioMeter.DEFAULT_SILENCE_DB;
+    private volatile long mSilenceHoldUs;
+    private volatile long mLevelIntervalNanos;
+    private ArrayBlockingQueue<Chunk> mFree;
+    private ArrayBlockingQueue<Chunk> mFilled;
+    private Thread mCapture;
+    private volatile boolean mCapturing;
+    private volatile long mOverruns;
+    private volatile long mDriftUs;
+    private volatile int mError;
+    // reader thread only
+    private Chunk mCurrent;
+
+    AudioPipeline(AudioInput source) {
+        mSource = source;
+    }
+
+    void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @param intervalMs time between {@link Listener#onLevel} calls, {@code 0} for none
+     */
+    void setLevelInterval(int intervalMs) {
+        mLevelIntervalNanos = intervalMs * 1000000L;
+    }
+
+    /**
+     * Report {@link Listener#onSilenceChanged} once audio stayed below {@code thresholdDb} for
+     * {@code holdMs}; takes effect on the next start.
+     */
+    void setSilenceDetection(float thresholdDb, int holdMs) {
+        mSilenceThresholdDb = thresholdDb;
+        mSilenceHoldUs = holdMs * 1000L;
+    }
+
+    /**
+     * @return chunks overwritten because the reader fell behind
+     */
+    long getOverrunCount() {
+        return mOverruns;
+    }
+
+    /**
+     * @return the last drift reported, see {@link Listener#onDrift(long)}
+     */
+    long getDriftUs() {
+        return mDriftUs;
+    }
+
+    @Override
+    public void start(int sampleRate, int channels) throws IOException {
+        stop();
+        mSource.start(sampleRate, channels);
+        int size = CHUNK_FRAMES * 2 * channels;
+        mFree = new ArrayBlockingQueue<>(POOL_CHUNKS);
+        mFilled = new ArrayBlockingQueue<>(POOL_CHUNKS);
+        for (int i = 0; i < POOL_CHUNKS; i++) {
+            mFree.add(new Chunk(size));
+        }
+        mCurrent = null;
+        mOverruns = 0;
+        mDriftUs = 0;
+        mError = 0;
+        mCapturing = true;
+        mCapture = new Thread(new Capture(sampleRate, 2 * channels), "AudioCapture");
+        mCapture.setPriority(Thread.MAX_PRIORITY);
+        mCapture.start();
+    }
+
+    /**
+     * Waits shortly for the next chunk, {@code 0} if none came, the error of the microphone once
+     * the capture ended on one.
+     */
+    @Override
+    public int read(ByteBuffer buffer, int size) {
+        if (mCurrent == null || !mCurrent.mData.hasRemaining()) {
+            if (mCurrent != null) {
+                mFree.offer(mCurrent);
+            }
+            try {
+                mCurrent = mFilled.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                mCurrent = null;
+            }
+            if (mCurrent == null) {
+                return mError;
+            }
+        }
+        ByteBuffer data = mCurrent.mData;
+        int count = Math.min(Math.min(size, buffer.remaining()), data.remaining());
+        int limit = data.limit();
+        data.limit(data.position() + count);
+        buffer.put(data);
+        data.limit(limit);
+        return count;
+    }
+
+    @Override
+    public void stop() {
+        if (mCapture == null) {
+            return;
+        }
+        mCapturing = false;
+        join(mCapture);
+        mCapture = null;
+        mSource.stop();
+        mFilled.clear();
+        mCurrent = null;
+    }
+
+    @Override
+    public void release() {
+        stop();
+        mSource.release();
+    }
+
+    private static void join(Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class Capture implements Runnable {
+        private final int mSampleRate;
+        private final int mFrameBytes;
+        private final AudioMeter mMeter = new AudioMeter(mSilenceThresholdDb, mSilenceHoldUs);
+        private long mStartNanos = -1;
+        private long mFrames;
+        private long mWindowDriftUs = Long.MAX_VALUE;
+        private int mWindowChunks;
+        private long mLastLevelNanos;
+
+        Capture(int sampleRate, int frameBytes) {
+            mSampleRate = sampleRate;
+            mFrameBytes = frameBytes;
+        }
+
+        @Override
+        public void run() {
+            while (mCapturing) {
+                Chunk chunk = mFree.poll();
+                if (chunk == null) {
+                    // 编码跟不上, 覆盖最旧的
+                    chunk = mFilled.poll();
+                    if (chunk == null) {
+                        Thread.yield();
+                        continue;
+                    }
+                    mOverruns++;
+                }
+                ByteBuffer data = chunk.mData;
+                data.clear();
+                int read = mSource.read(data, data.capacity());
+                if (read < 0) {
+                    // 麦克风被别的应用占了之类, 不会恢复
+                    mFree.offer(chunk);
+                    mError = read;
+                    break;
+                }
+                if (read == 0) {
+                    mFree.offer(chunk);
+                    continue;
+                }
+                chunk.mCaptureNanos = System.nanoTime();
+                data.position(0);
+                data.limit(read);
+                analyze(chunk, read / mFrameBytes);
+                mFilled.offer(chunk);
+            }
+        }
+
+        private void analyze(Chunk chunk, int frames) {
+            long durationUs = frames * 1000000L / mSampleRate;
+            Listener listener = mListener;
+            boolean wasSilent = mMeter.isSilent();
+            boolean silent = mMeter.measure(chunk.mData, durationUs);
+            if (listener != null && silent != wasSilent) {
+                listener.onSilenceChanged(silent);
+            }
+            long interval = mLevelIntervalNanos;
+            if (listener != null && interval > 0 && chunk.mCaptureNanos - mLastLevelNanos >= interval) {
+                mLastLevelNanos = chunk.mCaptureNanos;
+                listener.onLevel(mMeter.getRmsDb(), mMeter.getPeakDb());
+            }
+            if (mStartNanos < 0) {
+                // 第一块在读返回之前就录好了
+                mStartNanos = chunk.mCaptureNanos - durationUs * 1000;
+            }
+            mFrames += frames;
+            long driftUs = (chunk.mCaptureNanos - mStartNanos) / 1000 - mFrames * 1000000L / mSampleRate;
+            mWindowDriftUs = Math.min(mWindowDriftUs, driftUs);
+            if (++mWindowChunks >= DRIFT_WINDOW_CHUNKS) {
+                mDriftUs = mWindowDriftUs;
+                if (listener != null) {
+                    listener.onDrift(mWindowDriftUs);
+                }
+                mWindowDriftUs = Long.MAX_VALUE;
+                mWindowChunks = 0;
+            }
+        }
+    }
+}
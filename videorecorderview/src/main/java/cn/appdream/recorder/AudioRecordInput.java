@@ -0,0 +1,82 @@
+package cn.appdream.recorder;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Process;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link AudioInput} reading the camcorder microphone through {@link AudioRecord}. The thread
+ * that reads gets audio priority, see {@link AudioPipeline}.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+class AudioRecordInput implements AudioInput {
+    /**
+     * Whether {@code AudioRecord} takes a format, for {@link AudioFormatResolver}.
+     */
+    static final AudioFormatResolver.Probe PROBE = new AudioFormatResolver.Probe() {
+        @Override
+        public boolean supports(int sampleRate, int channels) {
+            return AudioRecord.getMinBufferSize(sampleRate, channelConfig(channels),
+                    AudioFormat.ENCODING_PCM_16BIT) > 0;
+        }
+    };
+
+    private AudioRecord mAudioRecord;
+    private Thread mPrioritized;
+
+    private static int channelConfig(int channels) {
+        return channels == 2 ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+    }
+
+    @Override
+    public void start(int sampleRate, int channels) throws IOException {
+        int channelConfig = channelConfig(channels);
+        int minBufferSize = AudioRecord.getMinBufferSize(sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT);
+        if (minBufferSize <= 0) {
+            throw new IOException("unsupported audio config " + sampleRate + "Hz x" + channels);
+        }
+        // 读线程优先级高, 小缓冲就够, 延迟也低
+        mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.CAMCORDER, sampleRate, channelConfig,
+                AudioFormat.ENCODING_PCM_16BIT, minBufferSize * 2);
+        if (mAudioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+            release();
+            throw new IOException("can not init AudioRecord");
+        }
+        mAudioRecord.startRecording();
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int size) {
+        if (mPrioritized != Thread.currentThread()) {
+            mPrioritized = Thread.currentThread();
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        }
+        return mAudioRecord.read(buffer, size);
+    }
+
+    @Override
+    public void stop() {
+        if (mAudioRecord != null) {
+            try {
+                mAudioRecord.stop();
+            } catch (IllegalStateException ignored) {
+            }
+            release();
+        }
+    }
+
+    @Override
+    public void release() {
+        if (mAudioRecord != null) {
+            mAudioRecord.release();
+            mAudioRecord = null;
+        }
+    }
+}
@@ -0,0 +1,656 @@
+package cn.appdream.recorder;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link CameraBackend} on {@code android.hardware.camera2}.
+ * <p>
+ * The camera is opened and configured synchronously on the camera thread, its callbacks run on
+ * a thread of their own. One capture session streams into the preview texture with a
+ * repeating {@link CameraDevice#TEMPLATE_RECORD} request; the {@link GlPreviewRenderer} draws
+ * that single stream to the display and to the encoder, so starting or stopping a recording
+ * never touches the session. Flash and focus are keys of the repeating request and change
+ * without reconfiguring. While frame consumers are attached an {@link ImageReader} is added to
+ * the session and its images are converted to NV21 for the {@link PreviewFrameTap}.
+ * <p>
+ * Only renders into a texture, so the view uses it with {@link VideoRecorderView#ENGINE_CODEC}.
+ * The texture is upright for the natural orientation of the display, the renderer rotates it
+ * for other display rotations.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class Camera2Backend implements CameraBackend {
+    private static final String TAG = "Camera2Backend";
+    private static final long TIMEOUT_MS = 3000;
+
+    private volatile Activity mActivity;
+    private final CameraManager mManager;
+    private final RecorderMetrics mMetrics;
+    private final PreviewFrameTap mFrameTap;
+    private final SizeResolver mSizeResolver = new SizeResolver();
+    private final Map<String, Integer> mResolvedSizes = new HashMap<>();
+    private volatile int mVideoWidth = 320, mVideoHeight = 240;
+    private volatile int mFrameRate;
+    private volatile int mCameraFacing = VideoRecorderView.FACING_BACK;
+    private volatile boolean mFlash;
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private CameraDevice mDevice;
+    private OpenCallback mDeviceCallback;
+    private int mOpenedFacing = -1;
+    private CameraCaptureSession mSession;
+    private CaptureRequest.Builder mRequest;
+    private SurfaceTexture mPreviewTexture;
+    private Surface mPreviewSurface;
+    private ImageReader mImageReader;
+    private final ConcurrentLinkedQueue<byte[]> mFreeBuffers = new ConcurrentLinkedQueue<>();
+    private CameraHelper.Size mSize;
+    private int mDisplayOrientation;
+    private int mTextureRotation;
+    private int mOrientation = -1;
+    private boolean mFrontFacing;
+    private boolean mFlashSupported;
+    private int[] mAfModes;
+
+    /**
+     * @param metrics  shared with the other backend of the view
+     * @param frameTap shared with the other backend of the view
+     */
+    Camera2Backend(Activity activity, RecorderMetrics metrics, PreviewFrameTap frameTap) {
+        mActivity = activity;
+        mManager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
+        mMetrics = metrics;
+        mFrameTap = frameTap;
+        mFrameTap.setMetrics(mMetrics);
+    }
+
+    @Override
+    public boolean openCamera() {
+        if (mDevice != null) {
+            releaseCamera();
+        }
+        String id = findCamera(mCameraFacing);
+        if (id == null) {
+            return false;
+        }
+        long start = System.nanoTime();
+        OpenCallback callback = openDevice(id);
+        if (callback == null) {
+            return false;
+        }
+        start = mMetrics.endPhase(RecorderMetrics.PHASE_CAMERA_OPEN, start);
+        mDevice = callback.take();
+        mDeviceCallback = callback;
+        mOpenedFacing = mCameraFacing;
+        return setUpCamera(start);
+    }
+
+    /**
+     * Camera2 devices are opened one at a time, the switch closes the old camera first. The
+     * preview texture stays attached to the renderer, so the display keeps its last frame.
+     */
+    @Override
+    public boolean switchCamera() {
+        if (mDevice == null) {
+            return false;
+        }
+        if (mCameraFacing == mOpenedFacing) {
+            return true;
+        }
+        long start = System.nanoTime();
+        boolean opened = openCamera();
+        if (opened) {
+            mMetrics.endPhase(RecorderMetrics.PHASE_CAMERA_SWITCH, start);
+        }
+        return opened;
+    }
+
+    /**
+     * @param start when the open phase ended
+     */
+    private boolean setUpCamera(long start) {
+        CameraCharacteristics characteristics;
+        try {
+            characteristics = mManager.getCameraCharacteristics(mDevice.getId());
+        } catch (CameraAccessException | RuntimeException e) {
+            mMetrics.onError(RecorderMetrics.phaseName(RecorderMetrics.PHASE_GET_PARAMETERS), e);
+            releaseCamera();
+            return false;
+        }
+        Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+        mFrontFacing = facing != null && facing == CameraMetadata.LENS_FACING_FRONT;
+        Integer sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        int sensor = sensorOrientation == null ? 90 : sensorOrientation;
+        Boolean flash = characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+        mFlashSupported = flash != null && flash;
+        mAfModes = characteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+        StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        start = mMetrics.endPhase(RecorderMetrics.PHASE_GET_PARAMETERS, start);
+        mSize = chooseOptimalSize(map, mVideoWidth, mVideoHeight);
+        start = mMetrics.endPhase(RecorderMetrics.PHASE_CHOOSE_SIZE, start);
+        // 缓冲区按自然方向旋转，其余交给渲染
+        mTextureRotation = CameraHelper.displayOrientation(sensor, mFrontFacing, 0);
+        mDisplayOrientation = CameraHelper.displayOrientation(sensor, mFrontFacing,
+                CameraHelper.getDisplayDegrees(mActivity));
+        mOrientation = CameraHelper.outputOrientation(mActivity, sensor, mFrontFacing, mDisplayOrientation);
+        return startSession(start);
+    }
+
+    private CameraHelper.Size chooseOptimalSize(StreamConfigurationMap map, int previewW, int previewH) {
+        int fps = mFrameRate;
+        String key = mDevice.getId() + ":" + SizeResolver.pack(previewW, previewH) + "@" + fps;
+        Integer cached = mResolvedSizes.get(key);
+        int packed = SizeResolver.NONE;
+        if (cached != null) {
+            packed = cached;
+        } else if (map != null) {
+            SizeResolver resolver = mSizeResolver;
+            resolver.reset();
+            Size[] previewSizes = map.getOutputSizes(SurfaceTexture.class);
+            if (previewSizes != null) {
+                for (Size size : previewSizes) {
+                    long frameDuration = map.getOutputMinFrameDuration(SurfaceTexture.class, size);
+                    int maxFps = frameDuration > 0 ? (int) (1000000000L / frameDuration) : 0;
+                    resolver.addPreviewSize(size.getWidth(), size.getHeight(), maxFps);
+                }
+            }
+            // 帧消费者用同一个尺寸
+            Size[] yuvSizes = map.getOutputSizes(ImageFormat.YUV_420_888);
+            if (yuvSizes != null) {
+                for (Size size : yuvSizes) {
+                    resolver.addVideoSize(size.getWidth(), size.getHeight());
+                }
+            }
+            packed = resolver.resolve(previewW, previewH, fps);
+            if (packed != SizeResolver.NONE) {
+                mResolvedSizes.put(key, packed);
+            }
+        }
+        if (packed == SizeResolver.NONE) {
+            Log.e(TAG, "设置预览失败");
+            return new CameraHelper.Size(previewW, previewH);
+        }
+        return new CameraHelper.Size(SizeResolver.width(packed), SizeResolver.height(packed));
+    }
+
+    /**
+     * Create the capture session for the current outputs and start the repeating request.
+     *
+     * @param start when the previous phase ended
+     */
+    private boolean startSession(long start) {
+        closeSession();
+        List<Surface> outputs = new ArrayList<>();
+        if (mPreviewTexture != null) {
+            mPreviewTexture.setDefaultBufferSize(mSize.getWidth(), mSize.getHeight());
+            mPreviewSurface = new Surface(mPreviewTexture);
+            outputs.add(mPreviewSurface);
+        }
+        if (mFrameTap.hasConsumers()) {
+            outputs.add(openImageReader());
+        }
+        if (outputs.isEmpty()) {
+            return true;
+        }
+        try {
+            mRequest = mDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+            for (Surface surface : outputs) {
+                mRequest.addTarget(surface);
+            }
+            setAutoFocusInternal();
+            setFlashInternal();
+            start = mMetrics.endPhase(RecorderMetrics.PHASE_SET_PARAMETERS, start);
+            mSession = createSession(outputs);
+            if (mSession == null) {
+                throw new CameraAccessException(CameraAccessException.CAMERA_ERROR, "session not configured");
+            }
+            mSession.setRepeatingRequest(mRequest.build(), null, handler());
+        } catch (CameraAccessException | RuntimeException e) {
+            e.printStackTrace();
+            mMetrics.onError(RecorderMetrics.phaseName(RecorderMetrics.PHASE_START_PREVIEW), e);
+            releaseCamera();
+            return false;
+        }
+        mMetrics.endPhase(RecorderMetrics.PHASE_START_PREVIEW, start);
+        return true;
+    }
+
+    private Surface openImageReader() {
+        final int width = mSize.getWidth();
+        final int height = mSize.getHeight();
+        mImageReader = ImageReader.newInstance(width, height, ImageFormat.YUV_420_888, 2);
+        mFreeBuffers.clear();
+        mFrameTap.attach(width, height, new FrameBufferPool.Recycler() {
+            @Override
+            public void recycle(byte[] buffer) {
+                mFreeBuffers.offer(buffer);
+            }
+        });
+        mImageReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+            @Override
+            public void onImageAvailable(ImageReader reader) {
+                Image image = reader.acquireLatestImage();
+                if (image == null) {
+                    return;
+                }
+                try {
+                    // 没有空闲缓冲区时丢帧，由缓冲池统计
+                    byte[] buffer = mFreeBuffers.poll();
+                    if (buffer != null) {
+                        toNv21(image, buffer);
+                        mFrameTap.deliver(buffer);
+                    }
+                } finally {
+                    image.close();
+                }
+            }
+        }, handler());
+        return mImageReader.getSurface();
+    }
+
+    /**
+     * Copy a {@link ImageFormat#YUV_420_888} image into {@code out} as NV21.
+     */
+    static void toNv21(Image image, byte[] out) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Image.Plane[] planes = image.getPlanes();
+        ByteBuffer y = planes[0].getBuffer();
+        int yRowStride = planes[0].getRowStride();
+        int position = 0;
+        if (yRowStride == width) {
+            y.get(out, 0, width * height);
+            position = width * height;
+        } else {
+            for (int row = 0; row < height; row++) {
+                y.position(row * yRowStride);
+                y.get(out, position, width);
+                position += width;
+            }
+        }
+        ByteBuffer u = planes[1].getBuffer();
+        ByteBuffer v = planes[2].getBuffer();
+        int uvRowStride = planes[1].getRowStride();
+        int uvPixelStride = planes[1].getPixelStride();
+        for (int row = 0; row < height / 2; row++) {
+            int offset = row * uvRowStride;
+            for (int col = 0; col < width / 2; col++) {
+                int index = offset + col * uvPixelStride;
+                out[position++] = v.get(index);
+                out[position++] = u.get(index);
+            }
+        }
+    }
+
+    private CameraCaptureSession createSession(List<Surface> outputs) throws CameraAccessException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CameraCaptureSession[] result = new CameraCaptureSession[1];
+        mDevice.createCaptureSession(outputs, new CameraCaptureSession.StateCallback() {
+            @Override
+            public void onConfigured(CameraCaptureSession session) {
+                result[0] = session;
+                latch.countDown();
+            }
+
+            @Override
+            public void onConfigureFailed(CameraCaptureSession session) {
+                latch.countDown();
+            }
+        }, handler());
+        if (!await(latch)) {
+            return null;
+        }
+        return result[0];
+    }
+
+    /**
+     * @return the callback holding the opened device, {@code null} if it did not open
+     */
+    private OpenCallback openDevice(String id) {
+        OpenCallback callback = new OpenCallback();
+        try {
+            mManager.openCamera(id, callback, handler());
+        } catch (CameraAccessException | RuntimeException e) {
+            mMetrics.onError(RecorderMetrics.phaseName(RecorderMetrics.PHASE_CAMERA_OPEN), e);
+            return null;
+        }
+        if (!await(callback.mOpened) || callback.take() == null) {
+            callback.abandon();
+            mMetrics.onError(RecorderMetrics.phaseName(RecorderMetrics.PHASE_CAMERA_OPEN),
+                    new CameraAccessException(CameraAccessException.CAMERA_ERROR, "camera " + id + " not opened"));
+            return null;
+        }
+        return callback;
+    }
+
+    private String findCamera(int facing) {
+        int lensFacing = facing == VideoRecorderView.FACING_FRONT
+                ? CameraMetadata.LENS_FACING_FRONT : CameraMetadata.LENS_FACING_BACK;
+        try {
+            String[] ids = mManager.getCameraIdList();
+            for (String id : ids) {
+                Integer it = mManager.getCameraCharacteristics(id).get(CameraCharacteristics.LENS_FACING);
+                if (it != null && it == lensFacing) {
+                    return id;
+                }
+            }
+            // 只有一个摄像头时用它
+            return ids.length > 0 ? ids[0] : null;
+        } catch (CameraAccessException | RuntimeException e) {
+            mMetrics.onError(RecorderMetrics.phaseName(RecorderMetrics.PHASE_CAMERA_OPEN), e);
+            return null;
+        }
+    }
+
+    private void setAutoFocusInternal() {
+        int mode;
+        if (supportsAfMode(CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO)) {
+            mode = CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO;
+        } else if (supportsAfMode(CameraMetadata.CONTROL_AF_MODE_AUTO)) {
+            mode = CameraMetadata.CONTROL_AF_MODE_AUTO;
+        } else {
+            return;
+        }
+        mRequest.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
+        mRequest.set(CaptureRequest.CONTROL_AF_MODE, mode);
+    }
+
+    private boolean supportsAfMode(int mode) {
+        if (mAfModes != null) {
+            for (int it : mAfModes) {
+                if (it == mode) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * For video the flash is a torch.
+     */
+    private void setFlashInternal() {
+        if (!mFlashSupported) {
+            return;
+        }
+        mRequest.set(CaptureRequest.CONTROL_AE_MODE, CameraMetadata.CONTROL_AE_MODE_ON);
+        mRequest.set(CaptureRequest.FLASH_MODE,
+                mFlash ? CameraMetadata.FLASH_MODE_TORCH : CameraMetadata.FLASH_MODE_OFF);
+    }
+
+    @Override
+    public void setFlash(boolean flash) {
+        if (flash == mFlash) {
+            return;
+        }
+        mFlash = flash;
+        if (mSession == null || mRequest == null || !mFlashSupported) {
+            return;
+        }
+        setFlashInternal();
+        try {
+            mSession.setRepeatingRequest(mRequest.build(), null, handler());
+        } catch (CameraAccessException | RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public boolean getFlash() {
+        return mFlash;
+    }
+
+    @Override
+    public void releaseCamera() {
+        mFrameTap.detach();
+        mMetrics.onPreviewStopped();
+        closeSession();
+        if (mDevice != null) {
+            try {
+                mDevice.close();
+                // 等相机断开预览纹理，下一个相机才能连接
+                await(mDeviceCallback.mClosed);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            mDevice = null;
+            mDeviceCallback = null;
+        }
+        mOpenedFacing = -1;
+        if (mThread != null) {
+            mThread.quitSafely();
+            mThread = null;
+            mHandler = null;
+        }
+    }
+
+    private void closeSession() {
+        if (mSession != null) {
+            try {
+                mSession.close();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            mSession = null;
+        }
+        mRequest = null;
+        if (mImageReader != null) {
+            mFrameTap.detach();
+            mImageReader.close();
+            mImageReader = null;
+        }
+        if (mPreviewSurface != null) {
+            mPreviewSurface.release();
+            mPreviewSurface = null;
+        }
+    }
+
+    @Override
+    public boolean isCameraOpened() {
+        return mDevice != null;
+    }
+
+    @Override
+    public int getCameraId() {
+        return mCameraFacing;
+    }
+
+    @Override
+    public void setCameraId(int cameraId) {
+        mCameraFacing = cameraId;
+    }
+
+    @Override
+    public void setVideoSize(int width, int height) {
+        mVideoHeight = height;
+        mVideoWidth = width;
+    }
+
+    @Override
+    public int getVideoWidth() {
+        return mVideoWidth;
+    }
+
+    @Override
+    public int getVideoHeight() {
+        return mVideoHeight;
+    }
+
+    @Override
+    public void setFrameRate(int fps) {
+        mFrameRate = fps;
+    }
+
+    @Override
+    public int getFrameRate() {
+        return mFrameRate;
+    }
+
+    @Override
+    public CameraHelper.Size getSize() {
+        return mSize;
+    }
+
+    @Override
+    public int getDisplayOrientation() {
+        return mDisplayOrientation;
+    }
+
+    @Override
+    public int getTextureRotation() {
+        return mTextureRotation;
+    }
+
+    @Override
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    @Override
+    public boolean isFrontFacing() {
+        return mFrontFacing;
+    }
+
+    @Override
+    public void setActivity(Activity activity) {
+        mActivity = activity;
+    }
+
+    @Override
+    public void setPreviewTexture(SurfaceTexture texture) {
+        mPreviewTexture = texture;
+    }
+
+    @Override
+    public PreviewFrameTap getFrameTap() {
+        return mFrameTap;
+    }
+
+    /**
+     * The image reader is an output of the session, so it is rebuilt when consumers come or go.
+     */
+    @Override
+    public void updateFrameTap() {
+        if (mDevice == null || mFrameTap.hasConsumers() == (mImageReader != null)) {
+            return;
+        }
+        startSession(System.nanoTime());
+    }
+
+    @Override
+    public RecorderMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+    }
+
+    private Handler handler() {
+        if (mHandler == null) {
+            mThread = new HandlerThread(TAG);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+        }
+        return mHandler;
+    }
+
+    private static boolean await(CountDownLatch latch) {
+        try {
+            return latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Hands the opened device to the camera thread, or closes it if the camera thread gave up
+     * waiting.
+     */
+    private static class OpenCallback extends CameraDevice.StateCallback {
+        final CountDownLatch mOpened = new CountDownLatch(1);
+        final CountDownLatch mClosed = new CountDownLatch(1);
+        private CameraDevice mDevice;
+        private boolean mAbandoned;
+
+        @Override
+        public void onOpened(CameraDevice camera) {
+            synchronized (this) {
+                if (!mAbandoned) {
+                    mDevice = camera;
+                    mOpened.countDown();
+                    return;
+                }
+            }
+            camera.close();
+        }
+
+        @Override
+        public void onDisconnected(CameraDevice camera) {
+            camera.close();
+            mOpened.countDown();
+        }
+
+        @Override
+        public void onError(CameraDevice camera, int error) {
+            Log.e(TAG, "camera error " + error);
+            camera.close();
+            mOpened.countDown();
+        }
+
+        @Override
+        public void onClosed(CameraDevice camera) {
+            mClosed.countDown();
+        }
+
+        synchronized CameraDevice take() {
+            return mDevice;
+        }
+
+        synchronized void abandon() {
+            mAbandoned = true;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package cn.appdream.recorder;
+
+import android.app.Activity;
+import android.graphics.SurfaceTexture;
+import android.view.SurfaceHolder;
+
+/**
+ * What the view and the {@link CameraWorker} need from a camera: open and close it, negotiate
+ * the preview size, report the orientation, control flash and focus and feed the preview
+ * surfaces. {@link CameraHelper} implements it with {@link android.hardware.Camera},
+ * {@link Camera2Backend} with {@code android.hardware.camera2}; {@link CameraBackends} picks one.
+ * <p>
+ * Like {@link CameraHelper}, everything except the configuration setters runs on the camera
+ * thread.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+interface CameraBackend extends SurfaceHolder.Callback {
+
+    /**
+     * (Re-)open the camera set with {@link #setCameraId(int)}, negotiate the preview size and
+     * start the preview.
+     *
+     * @return {@code false} if the camera could not be opened or started
+     */
+    boolean openCamera();
+
+    /**
+     * Move the open camera to the camera id set with {@link #setCameraId(int)}, keeping the
+     * preview surfaces.
+     *
+     * @return {@code false} if no camera is open afterwards
+     */
+    boolean switchCamera();
+
+    void releaseCamera();
+
+    boolean isCameraOpened();
+
+    /**
+     * @return {@link VideoRecorderView#FACING_BACK} or {@link VideoRecorderView#FACING_FRONT}
+     */
+    int getCameraId();
+
+    void setCameraId(int cameraId);
+
+    /**
+     * The size the preview should come close to, takes effect on the next {@link #openCamera()}.
+     */
+    void setVideoSize(int width, int height);
+
+    int getVideoWidth();
+
+    int getVideoHeight();
+
+    /**
+     * The frame rate the preview size should reach, takes effect on the next
+     * {@link #openCamera()}.
+     *
+     * @param fps {@code 0} to pick the size regardless of frame rate
+     */
+    void setFrameRate(int fps);
+
+    int getFrameRate();
+
+    /**
+     * @return the negotiated preview size, {@code null} before the first open
+     */
+    CameraHelper.Size getSize();
+
+    /**
+     * @return clockwise rotation that shows the preview upright
+     */
+    int getDisplayOrientation();
+
+    /**
+     * @return the part of {@link #getDisplayOrientation()} the camera already applies to the
+     * preview; the rest is up to the renderer
+     */
+    int getTextureRotation();
+
+    /**
+     * @return rotation hint for recordings of the unrotated camera frames
+     */
+    int getOrientation();
+
+    boolean isFrontFacing();
+
+    /**
+     * The activity whose display rotation the camera follows, read on the next
+     * {@link #openCamera()}. A shared camera moves to the activity of its newest view.
+     */
+    void setActivity(Activity activity);
+
+    void setFlash(boolean flash);
+
+    boolean getFlash();
+
+    /**
+     * Render the preview into a texture instead of the surface holder. Takes effect on the next
+     * {@link #openCamera()}.
+     *
+     * @param texture {@code null} to go back to the surface holder
+     */
+    void setPreviewTexture(SurfaceTexture texture);
+
+    PreviewFrameTap getFrameTap();
+
+    /**
+     * Start or stop delivering frames depending on whether {@link #getFrameTap()} has consumers.
+     */
+    void updateFrameTap();
+
+    RecorderMetrics getMetrics();
+}
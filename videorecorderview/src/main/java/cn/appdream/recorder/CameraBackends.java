@@ -0,0 +1,102 @@
+package cn.appdream.recorder;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.content.Context;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.os.Build;
+
+/**
+ * Chooses the {@link CameraBackend} of a view.
+ * <p>
+ * {@link Camera2Backend} needs API 21 and only renders into a texture, so it is used with the
+ * GL renderer of {@link VideoRecorderView#ENGINE_CODEC}. Cameras at the
+ * {@code LEGACY} hardware level run camera2 on top of the old API, they stay on
+ * {@link CameraHelper}, as does {@link VideoRecorderView#ENGINE_MEDIA_RECORDER}, which records
+ * from an {@link android.hardware.Camera}.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+final class CameraBackends {
+    static final int HARDWARE_LEVEL_LEGACY = CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY;
+
+    private static volatile int[] sHardwareLevels;
+
+    private CameraBackends() {
+    }
+
+    /**
+     * @param hardwareLevels {@code INFO_SUPPORTED_HARDWARE_LEVEL} of every camera, {@code null}
+     *                       if unknown
+     */
+    static boolean shouldUseCamera2(int sdkInt, boolean codecEngine, int[] hardwareLevels) {
+        if (sdkInt < Build.VERSION_CODES.LOLLIPOP || !codecEngine
+                || hardwareLevels == null || hardwareLevels.length == 0) {
+            return false;
+        }
+        for (int level : hardwareLevels) {
+            if (level == HARDWARE_LEVEL_LEGACY) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean isCamera2Backend(CameraBackend backend) {
+        return backend instanceof Camera2Backend;
+    }
+
+    /**
+     * @return the backend for the engine, {@code current} if that already is the right one
+     */
+    static CameraBackend create(Activity activity, boolean codecEngine, CameraBackend current) {
+        boolean camera2 = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                && shouldUseCamera2(Build.VERSION.SDK_INT, codecEngine, getHardwareLevels(activity));
+        if (current != null && camera2 == isCamera2Backend(current)) {
+            return current;
+        }
+        RecorderMetrics metrics = current == null ? new RecorderMetrics() : current.getMetrics();
+        PreviewFrameTap frameTap = current == null ? new PreviewFrameTap() : current.getFrameTap();
+        CameraBackend backend = camera2
+                ? new Camera2Backend(activity, metrics, frameTap)
+                : new CameraHelper(activity, metrics, frameTap);
+        if (current != null) {
+            backend.setCameraId(current.getCameraId());
+            backend.setVideoSize(current.getVideoWidth(), current.getVideoHeight());
+            backend.setFlash(current.getFlash());
+            backend.setFrameRate(current.getFrameRate());
+        }
+        return backend;
+    }
+
+    /**
+     * Cameras do not change while the process lives, the levels are read once.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static int[] getHardwareLevels(Context context) {
+        int[] levels = sHardwareLevels;
+        if (levels != null) {
+            return levels;
+        }
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            String[] ids = manager.getCameraIdList();
+            levels = new int[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                Integer level = manager.getCameraCharacteristics(ids[i])
+                        .get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+                levels[i] = level == null ? HARDWARE_LEVEL_LEGACY : level;
+            }
+        } catch (CameraAccessException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+        sHardwareLevels = levels;
+        return levels;
+    }
+}
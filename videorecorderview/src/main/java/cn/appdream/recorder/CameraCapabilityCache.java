@@ -0,0 +1,365 @@
+package cn.appdream.recorder;
+
+import android.content.Context;
+import android.hardware.Camera;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process wide cache of what each camera supports, persisted in a small binary file so warm
+ * starts can skip scanning {@link Camera.Parameters} and {@link Camera#getCameraInfo}.
+ * <p>
+ * The file is tied to {@link Build#FINGERPRINT}, any OS or build update drops it.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public class CameraCapabilityCache {
+    private static final String TAG = "CameraCapabilityCache";
+    private static final String FILE_NAME = "camera_capabilities.bin";
+    private static final int MAGIC = 0x43414d43;
+    private static final int VERSION = 1;
+
+    static final String[] FOCUS_MODES = {
+            Camera.Parameters.FOCUS_MODE_AUTO,
+            Camera.Parameters.FOCUS_MODE_INFINITY,
+            Camera.Parameters.FOCUS_MODE_MACRO,
+            Camera.Parameters.FOCUS_MODE_FIXED,
+            Camera.Parameters.FOCUS_MODE_EDOF,
+            Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO,
+            Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE,
+    };
+
+    static final String[] FLASH_MODES = {
+            Camera.Parameters.FLASH_MODE_OFF,
+            Camera.Parameters.FLASH_MODE_ON,
+            Camera.Parameters.FLASH_MODE_AUTO,
+            Camera.Parameters.FLASH_MODE_RED_EYE,
+            Camera.Parameters.FLASH_MODE_TORCH,
+    };
+
+    private static CameraCapabilityCache sInstance;
+
+    private final File mFile;
+    private final String mFingerprint;
+    private final Map<Integer, Capabilities> mEntries = new HashMap<>();
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+    private boolean mLoaded;
+
+    public static synchronized CameraCapabilityCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CameraCapabilityCache(new File(context.getApplicationContext().getCacheDir(), FILE_NAME),
+                    Build.FINGERPRINT + "/" + Build.VERSION.SDK_INT);
+        }
+        return sInstance;
+    }
+
+    CameraCapabilityCache(File file, String fingerprint) {
+        mFile = file;
+        mFingerprint = fingerprint;
+    }
+
+    /**
+     * @return number of camera opens served from the cache
+     */
+    public int getHitCount() {
+        return mHits.get();
+    }
+
+    /**
+     * @return number of camera opens that had to probe the camera
+     */
+    public int getMissCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * Forget everything, in memory and on disk.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+        mLoaded = true;
+        if (mFile.exists() && !mFile.delete()) {
+            Log.w(TAG, "can not delete " + mFile);
+        }
+    }
+
+    /**
+     * Cached capabilities of a camera, probing and storing them on a miss. Must be called on
+     * the camera thread with the camera open.
+     */
+    synchronized Capabilities get(int cameraId, Camera.Parameters parameters) {
+        load();
+        Capabilities capabilities = mEntries.get(cameraId);
+        if (capabilities != null) {
+            mHits.incrementAndGet();
+            return capabilities;
+        }
+        mMisses.incrementAndGet();
+        capabilities = Capabilities.probe(cameraId, parameters);
+        put(capabilities);
+        return capabilities;
+    }
+
+    /**
+     * @return the cached capabilities of a camera, {@code null} without probing it
+     */
+    synchronized Capabilities peek(int cameraId) {
+        load();
+        return mEntries.get(cameraId);
+    }
+
+    synchronized void put(Capabilities capabilities) {
+        load();
+        mEntries.put(capabilities.cameraId, capabilities);
+        save();
+    }
+
+    /**
+     * Remember the size {@link SizeResolver} picked for a target, so the next open with the same
+     * target skips the negotiation.
+     */
+    synchronized void putResolvedSize(Capabilities capabilities, int target, int size) {
+        if (capabilities.putResolvedSize(target, size)) {
+            save();
+        }
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !mFingerprint.equals(in.readUTF())) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Capabilities capabilities = Capabilities.read(in);
+                mEntries.put(capabilities.cameraId, capabilities);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "drop unreadable cache", e);
+            mEntries.clear();
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void save() {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(mFingerprint);
+            out.writeInt(mEntries.size());
+            for (Capabilities capabilities : mEntries.values()) {
+                capabilities.write(out);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile)) {
+                Log.w(TAG, "can not write " + mFile);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "can not write " + mFile, e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * What one camera supports. Sizes are packed with {@link SizeResolver#pack(int, int)},
+     * focus and flash modes are bit masks over {@link #FOCUS_MODES} and {@link #FLASH_MODES}.
+     */
+    static class Capabilities {
+        final int cameraId;
+        final int facing;
+        final int orientation;
+        final int[] previewSizes;
+        /**
+         * {@code null} when the camera reports no separate video sizes.
+         */
+        final int[] videoSizes;
+        final int focusModes;
+        final int flashModes;
+        /**
+         * Pairs of packed target size and packed resolved size.
+         */
+        private int[] mResolved = new int[0];
+
+        Capabilities(int cameraId, int facing, int orientation, int[] previewSizes, int[] videoSizes,
+                     int focusModes, int flashModes) {
+            this.cameraId = cameraId;
+            this.facing = facing;
+            this.orientation = orientation;
+            this.previewSizes = previewSizes;
+            this.videoSizes = videoSizes;
+            this.focusModes = focusModes;
+            this.flashModes = flashModes;
+        }
+
+        static Capabilities probe(int cameraId, Camera.Parameters parameters) {
+            Camera.CameraInfo info = new Camera.CameraInfo();
+            Camera.getCameraInfo(cameraId, info);
+            return new Capabilities(cameraId, info.facing, info.orientation,
+                    packSizes(parameters.getSupportedPreviewSizes()),
+                    packSizes(parameters.getSupportedVideoSizes()),
+                    toMask(FOCUS_MODES, parameters.getSupportedFocusModes()),
+                    toMask(FLASH_MODES, parameters.getSupportedFlashModes()));
+        }
+
+        boolean supportsFocusMode(String mode) {
+            return (focusModes & toBit(FOCUS_MODES, mode)) != 0;
+        }
+
+        boolean supportsFlashMode(String mode) {
+            return (flashModes & toBit(FLASH_MODES, mode)) != 0;
+        }
+
+        /**
+         * @return the packed size resolved for the packed target, {@link SizeResolver#NONE} if
+         * not known yet
+         */
+        int getResolvedSize(int target) {
+            for (int i = 0; i < mResolved.length; i += 2) {
+                if (mResolved[i] == target) {
+                    return mResolved[i + 1];
+                }
+            }
+            return SizeResolver.NONE;
+        }
+
+        private boolean putResolvedSize(int target, int size) {
+            for (int i = 0; i < mResolved.length; i += 2) {
+                if (mResolved[i] == target) {
+                    if (mResolved[i + 1] == size) {
+                        return false;
+                    }
+                    // 同一目标换了结果, 原地替换
+                    int[] resolved = mResolved.clone();
+                    resolved[i + 1] = size;
+                    mResolved = resolved;
+                    return true;
+                }
+            }
+            int[] resolved = Arrays.copyOf(mResolved, mResolved.length + 2);
+            resolved[resolved.length - 2] = target;
+            resolved[resolved.length - 1] = size;
+            mResolved = resolved;
+            return true;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeInt(cameraId);
+            out.writeInt(facing);
+            out.writeInt(orientation);
+            writeInts(out, previewSizes);
+            writeInts(out, videoSizes);
+            out.writeInt(focusModes);
+            out.writeInt(flashModes);
+            writeInts(out, mResolved);
+        }
+
+        private static Capabilities read(DataInputStream in) throws IOException {
+            Capabilities capabilities = new Capabilities(in.readInt(), in.readInt(), in.readInt(),
+                    readInts(in), readInts(in), in.readInt(), in.readInt());
+            int[] resolved = readInts(in);
+            if (resolved != null) {
+                capabilities.mResolved = resolved;
+            }
+            return capabilities;
+        }
+
+        private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+            if (values == null) {
+                out.writeInt(-1);
+                return;
+            }
+            out.writeInt(values.length);
+            for (int value : values) {
+                out.writeInt(value);
+            }
+        }
+
+        private static int[] readInts(DataInputStream in) throws IOException {
+            int length = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            if (length > in.available() / 4) {
+                // 文件坏了, 别按一个错的长度分配
+                throw new IOException("length " + length + " exceeds the file");
+            }
+            int[] values = new int[length];
+            for (int i = 0; i < length; i++) {
+                values[i] = in.readInt();
+            }
+            return values;
+        }
+
+        private static int[] packSizes(List<Camera.Size> sizes) {
+            if (sizes == null) {
+                return null;
+            }
+            int[] packed = new int[sizes.size()];
+            for (int i = 0; i < packed.length; i++) {
+                Camera.Size size = sizes.get(i);
+                packed[i] = SizeResolver.pack(size.width, size.height);
+            }
+            return packed;
+        }
+
+        private static int toMask(String[] known, List<String> modes) {
+            int mask = 0;
+            if (modes != null) {
+                for (int i = 0, n = modes.size(); i < n; i++) {
+                    mask |= toBit(known, modes.get(i));
+                }
+            }
+            return mask;
+        }
+
+        private static int toBit(String[] known, String mode) {
+            for (int i = 0; i < known.length; i++) {
+                if (known[i].equals(mode)) {
+                    return 1 << i;
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -1,30 +1,27 @@
 package cn.appdream.recorder;
 
-import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.content.pm.ActivityInfo;
 import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.util.Log;
 import android.util.SparseArray;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 
 /**
  * Camera
+ * <p>
+ * Everything touching {@link Camera} is expected to run on the {@link CameraWorker} thread;
+ * only the configuration setters are safe to call from other threads.
  *
  * @author An Zewei (anzewei88[at]gmail[dot]com)
  * @since ${VERSION}
  */
 
-public class CameraHelper implements SurfaceHolder.Callback {
+public class CameraHelper implements CameraBackend {
     private static final SparseArray<String> FLASH_MODES = new SparseArray<>();
 
     static {
@@ -35,18 +32,44 @@ public class CameraHelper implements SurfaceHolder.Callback {
         FLASH_MODES.put(Constants.FLASH_RED_EYE, Camera.Parameters.FLASH_MODE_RED_EYE);
     }
 
-    private int mVideoWidth = 320, mVideoHeight = 240;
+    private volatile int mVideoWidth = 320, mVideoHeight = 240;
+    private volatile int mFrameRate;
     private Camera mCamera = null;
     private SurfaceHolder mSurfaceHolder;
-    private int mCameraFacing = Camera.CameraInfo.CAMERA_FACING_BACK;
+    private SurfaceTexture mPreviewTexture;
+    private int mDisplayOrientation;
+    private volatile int mCameraFacing = Camera.CameraInfo.CAMERA_FACING_BACK;
+    private int mOpenedCameraId = -1;
     private Size mSize;
     private int outputOrientation = -1;
-    private Activity mActivity;
+    private volatile Activity mActivity;
     private Camera.Parameters mCameraParameters;
-    private boolean mFlash;
+    private volatile boolean mFlash;
+    private final SizeResolver mSizeResolver = new SizeResolver();
+    private final CameraCapabilityCache mCapabilityCache;
+    private CameraCapabilityCache.Capabilities mCapabilities;
+    private final PreviewFrameTap mFrameTap;
+    private final RecorderMetrics mMetrics;
 
     public CameraHelper(Activity activity) {
+        this(activity, new RecorderMetrics(), new PreviewFrameTap());
+    }
+
+    /**
+     * @param metrics  shared with the other backend of the view
+     * @param frameTap shared with the other backend of the view
+     */
+    CameraHelper(Activity activity, RecorderMetrics metrics, PreviewFrameTap frameTap) {
         mActivity = activity;
+        mCapabilityCache = CameraCapabilityCache.getInstance(activity);
+        mMetrics = metrics;
+        mFrameTap = frameTap;
+        mFrameTap.setMetrics(mMetrics);
+    }
+
+    @Override
+    public RecorderMetrics getMetrics() {
+        return mMetrics;
     }
 
     public Surface getSurface() {
@@ -59,6 +82,37 @@ public class CameraHelper implements SurfaceHolder.Callback {
         return outputOrientation;
     }
 
+    /**
+     * @return clockwise rotation that shows the preview upright
+     */
+    public int getDisplayOrientation() {
+        return mDisplayOrientation;
+    }
+
+    /**
+     * @return {@code 0} with a preview texture, the renderer rotates it on the GPU; otherwise
+     * the rotation applied with {@link Camera#setDisplayOrientation(int)}
+     */
+    @Override
+    public int getTextureRotation() {
+        return mPreviewTexture != null ? 0 : mDisplayOrientation;
+    }
+
+    public boolean isFrontFacing() {
+        return mCapabilities != null && mCapabilities.facing == Camera.CameraInfo.CAMERA_FACING_FRONT;
+    }
+
+    /**
+     * Render the preview into a texture instead of the surface holder. Takes effect on the next
+     * {@link #openCamera()}.
+     *
+     * @param texture {@code null} to go back to the surface holder
+     */
+    @Override
+    public void setPreviewTexture(SurfaceTexture texture) {
+        mPreviewTexture = texture;
+    }
+
     public Size getSize() {
         return mSize;
     }
@@ -75,45 +129,127 @@ public class CameraHelper implements SurfaceHolder.Callback {
         mCameraFacing = cameraId;
     }
 
+    /**
+     * Takes effect on the next {@link #openCamera()}, see {@link CameraWorker#reconfigure()}.
+     */
     public void setVideoSize(int width, int height) {
         mVideoHeight = height;
         mVideoWidth = width;
-        if (mCamera != null)
-            openCamera();
+    }
+
+    @Override
+    public int getVideoWidth() {
+        return mVideoWidth;
+    }
+
+    @Override
+    public int getVideoHeight() {
+        return mVideoHeight;
+    }
+
+    @Override
+    public void setFrameRate(int fps) {
+        mFrameRate = fps;
+    }
+
+    @Override
+    public int getFrameRate() {
+        return mFrameRate;
     }
 
     private void open() {
         if (Camera.getNumberOfCameras() == 1) {
             mCameraFacing = Camera.CameraInfo.CAMERA_FACING_BACK;
         }
+        Throwable error = null;
         for (int i = 0; i < 2; i++) {
             try {
                 mCamera = Camera.open(mCameraFacing);
             } catch (Throwable throwable) {
+                error = throwable;
             }
             if (mCamera != null)
                 break;
         }
+        if (mCamera != null) {
+            mOpenedCameraId = mCameraFacing;
+        } else if (error != null) {
+            mMetrics.onError(RecorderMetrics.phaseName(RecorderMetrics.PHASE_CAMERA_OPEN), error);
+        }
     }
 
     public boolean openCamera() {
         if (mCamera != null) {
             releaseCamera();
         }
+        long start = System.nanoTime();
         open();
         if (mCamera == null) {
             return false;
         }
+        start = mMetrics.endPhase(RecorderMetrics.PHASE_CAMERA_OPEN, start);
+        return setUpCamera(start);
+    }
+
+    /**
+     * Apply {@link #setCameraId(int)} to the open camera while the preview keeps its surface.
+     * If the device can open both cameras at once, the old one shows frames until the new one
+     * is open; otherwise this is a regular {@link #openCamera()}. The preview size is negotiated
+     * for the new camera.
+     *
+     * @return {@code false} if no camera is open afterwards
+     */
+    public boolean switchCamera() {
+        int cameraId = mCameraFacing;
+        if (mCamera == null) {
+            return false;
+        }
+        if (cameraId == mOpenedCameraId || Camera.getNumberOfCameras() == 1) {
+            return true;
+        }
+        long switchStart = System.nanoTime();
+        Camera next = null;
+        long start = System.nanoTime();
+        try {
+            next = Camera.open(cameraId);
+        } catch (Throwable throwable) {
+            // 大部分设备同时只能打开一个摄像头
+        }
+        boolean opened;
+        if (next == null) {
+            opened = openCamera();
+        } else {
+            start = mMetrics.endPhase(RecorderMetrics.PHASE_CAMERA_OPEN, start);
+            releaseCamera();
+            mCamera = next;
+            mOpenedCameraId = cameraId;
+            opened = setUpCamera(start);
+        }
+        if (opened) {
+            mMetrics.endPhase(RecorderMetrics.PHASE_CAMERA_SWITCH, switchStart);
+        }
+        return opened;
+    }
+
+    /**
+     * Configure the just opened {@link #mCamera} and start its preview.
+     *
+     * @param start when the open phase ended
+     */
+    private boolean setUpCamera(long start) {
         //魅族手机无法判断手机权限
         try {
             mCameraParameters = mCamera.getParameters();
         } catch (Throwable throwable) {
+            mMetrics.onError(RecorderMetrics.phaseName(RecorderMetrics.PHASE_GET_PARAMETERS), throwable);
             releaseCamera();
             return false;
         }
-        if (mSize == null) {
-            mSize = chooseOptimalSize(mVideoWidth, mVideoHeight);
-        }
+        mCapabilities = mCapabilityCache.get(mCameraFacing, mCameraParameters);
+        start = mMetrics.endPhase(RecorderMetrics.PHASE_GET_PARAMETERS, start);
+        // 每个摄像头支持的尺寸不同，结果按摄像头缓存
+        mSize = chooseOptimalSize(mVideoWidth, mVideoHeight);
+        start = mMetrics.endPhase(RecorderMetrics.PHASE_CHOOSE_SIZE, start);
         setCameraDisplayOrientation(mCameraFacing, mCamera);
 
         mCameraParameters.setPreviewSize(mSize.width, mSize.height);
@@ -122,66 +258,78 @@ public class CameraHelper implements SurfaceHolder.Callback {
         setAutoFocusInternal();
         setFlashInternal(mFlash);
         mCamera.setParameters(mCameraParameters);
-        if (mSurfaceHolder != null) {
+        updateFrameTap();
+        start = mMetrics.endPhase(RecorderMetrics.PHASE_SET_PARAMETERS, start);
+        if (mPreviewTexture != null) {
+            try {
+                mCamera.setPreviewTexture(mPreviewTexture);
+                mCamera.startPreview();
+            } catch (Exception e) {
+                e.printStackTrace();
+                mMetrics.onError(RecorderMetrics.phaseName(RecorderMetrics.PHASE_START_PREVIEW), e);
+                releaseCamera();
+                return false;
+            }
+            mMetrics.endPhase(RecorderMetrics.PHASE_START_PREVIEW, start);
+        } else if (mSurfaceHolder != null) {
             try {
                 //设置显示
                 mCamera.setPreviewDisplay(mSurfaceHolder);
                 mCamera.startPreview();
             } catch (Exception e) {
                 e.printStackTrace();
+                mMetrics.onError(RecorderMetrics.phaseName(RecorderMetrics.PHASE_START_PREVIEW), e);
                 releaseCamera();
                 return false;
             }
+            mMetrics.endPhase(RecorderMetrics.PHASE_START_PREVIEW, start);
         }
         return true;
     }
 
 
-    @SuppressLint("DefaultLocale")
     private Size chooseOptimalSize(int previewW, int previewH) {
-        Camera.Parameters parameters = mCameraParameters;
-        List<String> focusModes = parameters.getSupportedFocusModes();
-        if (focusModes.contains("continuous-video")) {
-            parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
-        }
-        List<Camera.Size> videoSizeList = parameters.getSupportedVideoSizes();
-        List<Camera.Size> previewSizeList = parameters.getSupportedPreviewSizes();
-
-        List<Size> listDest = new ArrayList<>();
-        if (null == videoSizeList) {
-            for (Camera.Size it : previewSizeList) {//没有视频分辨率列表时，用预览分辨率列表
-                listDest.add(new Size(it.width, it.height));
+        CameraCapabilityCache.Capabilities capabilities = mCapabilities;
+        int target = SizeResolver.pack(previewW, previewH);
+        int packed = capabilities.getResolvedSize(target);
+        if (packed == SizeResolver.NONE) {
+            SizeResolver resolver = mSizeResolver;
+            resolver.reset();
+            // 旧接口的帧率范围是整个相机的, 不分尺寸, 所以不按帧率选尺寸
+            for (int size : capabilities.previewSizes) {
+                resolver.addPreviewSize(SizeResolver.width(size), SizeResolver.height(size), 0);
             }
-        } else {//同时支持的分辨率列表
-            Map<String, Camera.Size> mapVideo = new HashMap<>();
-            for (Camera.Size it : videoSizeList) {
-                mapVideo.put(String.format("%dx%d", it.width, it.height), it);
-            }
-            for (Camera.Size it : previewSizeList) {
-                if (null != mapVideo.get(String.format("%dx%d", it.width, it.height))) {
-                    listDest.add(new Size(it.width, it.height));
+            if (null != capabilities.videoSizes) {//同时支持的分辨率列表，没有视频分辨率列表时，用预览分辨率列表
+                for (int size : capabilities.videoSizes) {
+                    resolver.addVideoSize(SizeResolver.width(size), SizeResolver.height(size));
                 }
             }
+            packed = resolver.resolve(previewW, previewH, 0);
+            if (packed != SizeResolver.NONE) {
+                mCapabilityCache.putResolvedSize(capabilities, target, packed);
+            }
         }
-
-        Size sizeRst = null;
-        Size localSize = getOptimalPreviewSize(listDest, previewW, previewH);
-        if (localSize != null) {
-            sizeRst = new Size(localSize.width, localSize.height);
-        } else {
-            sizeRst = new Size(previewW, previewH);
+        if (packed == SizeResolver.NONE) {
             Log.e("CameraManager", "设置预览失败");
+            return new Size(previewW, previewH);
         }
-        return sizeRst;
+        return new Size(SizeResolver.width(packed), SizeResolver.height(packed));
     }
 
     private void setCameraDisplayOrientation(int cameraId, Camera camera) {
-        int displayOrientation = -1;
-        Camera.CameraInfo info = new Camera.CameraInfo();
-        int rotation = getActivity().getWindowManager().getDefaultDisplay()
+        CameraCapabilityCache.Capabilities info = mCapabilities;
+        boolean front = info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT;
+        int displayOrientation = displayOrientation(info.orientation, front, getDisplayDegrees(getActivity()));
+        // 纹理预览由渲染器在 GPU 上旋转
+        camera.setDisplayOrientation(mPreviewTexture != null ? 0 : displayOrientation);
+        mDisplayOrientation = displayOrientation;
+        outputOrientation = outputOrientation(getActivity(), info.orientation, front, displayOrientation);
+    }
+
+    static int getDisplayDegrees(Activity activity) {
+        int rotation = activity.getWindowManager().getDefaultDisplay()
                 .getRotation();
         int degrees = 0;
-        Camera.getCameraInfo(cameraId, info);
 
         switch (rotation) {
             case Surface.ROTATION_0:
@@ -197,74 +345,67 @@ public class CameraHelper implements SurfaceHolder.Callback {
                 degrees = 270;
                 break;
         }
+        return degrees;
+    }
 
-        if (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
-            displayOrientation = (info.orientation + degrees) % 360;
-            displayOrientation = (360 - displayOrientation) % 360;
+    /**
+     * @param sensorOrientation clockwise rotation of the sensor image to the natural orientation
+     * @param degrees           rotation of the display
+     * @return clockwise rotation that shows the preview upright
+     */
+    static int displayOrientation(int sensorOrientation, boolean front, int degrees) {
+        if (front) {
+            int displayOrientation = (sensorOrientation + degrees) % 360;
+            return (360 - displayOrientation) % 360;
         } else {
-            displayOrientation = (info.orientation - degrees + 360) % 360;
+            return (sensorOrientation - degrees + 360) % 360;
         }
-        camera.setDisplayOrientation(displayOrientation);
-        if (getActivity().getRequestedOrientation() != ActivityInfo.SCREEN_ORIENTATION_UNSPECIFIED) {
-            outputOrientation =
-                    getCameraPictureRotation(getActivity().getWindowManager()
+    }
+
+    /**
+     * @return orientation hint for recordings of the unrotated camera frames
+     */
+    static int outputOrientation(Activity activity, int sensorOrientation, boolean front, int displayOrientation) {
+        if (activity.getRequestedOrientation() != ActivityInfo.SCREEN_ORIENTATION_UNSPECIFIED) {
+            return getCameraPictureRotation(sensorOrientation, front,
+                    activity.getWindowManager()
                             .getDefaultDisplay()
                             .getOrientation());
-        } else if (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
-            outputOrientation = (360 - displayOrientation) % 360;
+        } else if (front) {
+            return (360 - displayOrientation) % 360;
         } else {
-            outputOrientation = displayOrientation;
+            return displayOrientation;
         }
     }
 
-    private int getCameraPictureRotation(int orientation) {
-        Camera.CameraInfo info = new Camera.CameraInfo();
-        Camera.getCameraInfo(mCameraFacing, info);
+    private static int getCameraPictureRotation(int sensorOrientation, boolean front, int orientation) {
         int rotation = 0;
 
         orientation = (orientation + 45) / 90 * 90;
 
-        if (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
-            rotation = (info.orientation - orientation + 360) % 360;
+        if (front) {
+            rotation = (sensorOrientation - orientation + 360) % 360;
         } else { // back-facing camera
-            rotation = (info.orientation + orientation) % 360;
+            rotation = (sensorOrientation + orientation) % 360;
         }
 
         return (rotation);
     }
 
 
-    private Size getOptimalPreviewSize(List<Size> localList, int w, int h) {
-        Size optimalSize = null;
-        try {
-            ArrayList<Size> localArrayList = new ArrayList<Size>();
-            for (Size localSize : localList) {
-                //Log.e("---wh", localSize.width + " x " + localSize.height);
-                if (localSize.width <= w && localSize.height <= h) {
-                    localArrayList.add(localSize);
-                }
-            }
-            if (localArrayList.isEmpty()) {
-                Collections.sort(localArrayList, new PreviewComparator(h, w));
-                optimalSize = localArrayList.get(0);
-            } else optimalSize = localList.get(0);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        Log.e("getOptimalPreviewSize", optimalSize.width + "x" + optimalSize.height);
-        return optimalSize;
-    }
-
-    void setFlash(boolean flash) {
+    @Override
+    public void setFlash(boolean flash) {
         if (flash == mFlash) {
             return;
         }
         if (setFlashInternal(flash)) {
+            mFlash = flash;
             mCamera.setParameters(mCameraParameters);
         }
     }
 
-    boolean getFlash() {
+    @Override
+    public boolean getFlash() {
         return mFlash;
     }
 
@@ -273,10 +414,34 @@ public class CameraHelper implements SurfaceHolder.Callback {
         return mCamera != null;
     }
 
+    @Override
+    public PreviewFrameTap getFrameTap() {
+        return mFrameTap;
+    }
+
+    /**
+     * Attach or detach the preview callback depending on whether anybody consumes frames.
+     */
+    @Override
+    public void updateFrameTap() {
+        if (mCamera == null) {
+            return;
+        }
+        if (mFrameTap.hasConsumers()) {
+            if (!mFrameTap.isAttached()) {
+                mFrameTap.attach(mCamera, mSize.getWidth(), mSize.getHeight());
+            }
+        } else {
+            mFrameTap.detach();
+        }
+    }
+
     /**
      * 释放相机资源
      */
     public void releaseCamera() {
+        mFrameTap.detach();
+        mMetrics.onPreviewStopped();
         try {
             if (mCamera != null) {
                 mCamera.lock();
@@ -286,6 +451,7 @@ public class CameraHelper implements SurfaceHolder.Callback {
             e.printStackTrace();
         } finally {
             mCamera = null;
+            mOpenedCameraId = -1;
         }
     }
 
@@ -297,7 +463,7 @@ public class CameraHelper implements SurfaceHolder.Callback {
     @Override
     public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
         mSurfaceHolder = holder;
-        if (mCamera == null) {
+        if (mCamera == null || mPreviewTexture != null) {
             return;
         }
         try {
@@ -318,11 +484,16 @@ public class CameraHelper implements SurfaceHolder.Callback {
         return mActivity;
     }
 
+    @Override
+    public void setActivity(Activity activity) {
+        mActivity = activity;
+    }
+
     private void setAutoFocusInternal() {
-        List<String> focusModesList = mCameraParameters.getSupportedFocusModes();
-        if (focusModesList.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO)) {
+        CameraCapabilityCache.Capabilities capabilities = mCapabilities;
+        if (capabilities.supportsFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO)) {
             mCameraParameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO);
-        } else if (focusModesList.contains(Camera.Parameters.FOCUS_MODE_AUTO)) {
+        } else if (capabilities.supportsFocusMode(Camera.Parameters.FOCUS_MODE_AUTO)) {
             mCameraParameters.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
         }
     }
@@ -332,10 +503,12 @@ public class CameraHelper implements SurfaceHolder.Callback {
      */
     private boolean setFlashInternal(boolean flash) {
         if (isCameraOpened()) {
-            if (flash) {
-                mCameraParameters.setFlashMode(Camera.Parameters.FLASH_MODE_ON);
-            } else
-                mCameraParameters.setFlashMode(Camera.Parameters.FLASH_MODE_OFF);
+            String mode = flash ? Camera.Parameters.FLASH_MODE_ON : Camera.Parameters.FLASH_MODE_OFF;
+            if (!mCapabilities.supportsFlashMode(mode)) {
+                //前置摄像头一般没有闪光灯，设置会抛异常
+                return false;
+            }
+            mCameraParameters.setFlashMode(mode);
             return true;
         } else {
             mFlash = flash;
@@ -343,21 +516,6 @@ public class CameraHelper implements SurfaceHolder.Callback {
         }
     }
 
-    private static class PreviewComparator implements Comparator<Size> {
-        private int h;
-        private int w;
-
-        private PreviewComparator(int h, int w) {
-            this.h = h;
-            this.w = w;
-        }
-
-        @Override
-        public int compare(Size o1, Size o2) {
-            return o2.height - o1.height + o2.width - o1.width;
-        }
-    }
-
     /**
      * 尺寸类
      */
@@ -0,0 +1,147 @@
+package cn.appdream.recorder;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+
+/**
+ * One open camera shared by several views, see {@link CameraSessionManager}: a
+ * {@link CameraBackend} with its {@link CameraWorker} and a {@link GlPreviewRenderer} that
+ * draws each frame into the display surface of every view and into their encoders. The
+ * camera reports to every attached view; a view attaching to the open camera is told so at
+ * once instead of reopening it.
+ * <p>
+ * The camera settings belong to the session, a facing or size set by one view applies to all
+ * of them. Attach and detach on the main thread.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+class CameraSession {
+    private final CameraBackend mBackend;
+    private final CameraWorker mWorker;
+    private final GlPreviewRenderer mRenderer = new GlPreviewRenderer();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ArrayList<CameraWorker.Callback> mClients = new ArrayList<>();//只在主线程使用
+    private volatile int mDisplayDegrees = -1;
+
+    /**
+     * @param template camera settings to start with, those of the view that opens the session
+     */
+    CameraSession(Activity activity, CameraBackend template) {
+        mBackend = CameraBackends.create(activity, true, null);
+        mBackend.setCameraId(template.getCameraId());
+        mBackend.setVideoSize(template.getVideoWidth(), template.getVideoHeight());
+        mBackend.setFlash(template.getFlash());
+        mBackend.setFrameRate(template.getFrameRate());
+        mRenderer.setMetrics(mBackend.getMetrics());
+        mWorker = new CameraWorker(mBackend);
+        mWorker.setOnConfigured(new Runnable() {
+            @Override
+            public void run() {
+                mRenderer.followCamera(mBackend);
+            }
+        });
+        mWorker.setCallback(new CameraWorker.Callback() {
+            @Override
+            public void onCameraOpened() {
+                for (CameraWorker.Callback client : new ArrayList<>(mClients)) {
+                    client.onCameraOpened();
+                }
+            }
+
+            @Override
+            public void onCameraOpenFailed() {
+                for (CameraWorker.Callback client : new ArrayList<>(mClients)) {
+                    client.onCameraOpenFailed();
+                }
+            }
+
+            @Override
+            public void onCameraClosed() {
+                for (CameraWorker.Callback client : new ArrayList<>(mClients)) {
+                    client.onCameraClosed();
+                }
+            }
+
+            @Override
+            public void onCameraSwitched(long nanos) {
+                for (CameraWorker.Callback client : new ArrayList<>(mClients)) {
+                    client.onCameraSwitched(nanos);
+                }
+            }
+        });
+    }
+
+    CameraBackend getBackend() {
+        return mBackend;
+    }
+
+    CameraWorker getWorker() {
+        return mWorker;
+    }
+
+    GlPreviewRenderer getRenderer() {
+        return mRenderer;
+    }
+
+    /**
+     * Report the camera to {@code client} from now on and open it if it is not open. An open
+     * camera is only reopened if {@code activity} shows it at another display rotation.
+     */
+    void attach(final CameraWorker.Callback client, Activity activity) {
+        if (!mClients.contains(client)) {
+            mClients.add(client);
+        }
+        mBackend.setActivity(activity);
+        final int degrees = CameraHelper.getDisplayDegrees(activity);
+        mWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                mBackend.setPreviewTexture(mRenderer.start());
+                boolean rotated = degrees != mDisplayDegrees;
+                mDisplayDegrees = degrees;
+                if (!mBackend.isCameraOpened() || rotated) {
+                    // 视图随后的任务要看到打开的相机
+                    mWorker.openNow();
+                } else {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mClients.contains(client)) {
+                                client.onCameraOpened();
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    void detach(CameraWorker.Callback client) {
+        mClients.remove(client);
+    }
+
+    /**
+     * Close the camera and stop the threads once everything queued before has run.
+     */
+    void close() {
+        mClients.clear();
+        mWorker.close();
+        mWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                mBackend.getFrameTap().shutdown();
+                mBackend.setPreviewTexture(null);
+                mRenderer.release();
+            }
+        });
+        mWorker.quit();
+    }
+}
@@ -0,0 +1,137 @@
+package cn.appdream.recorder;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Process wide owner of the camera shared by views with
+ * {@link VideoRecorderView#setSharedCamera(boolean)}. A camera device is opened by one client
+ * at a time, so instead of each view opening its own, they all show and record the same
+ * session: it opens with the first view that starts its preview and closes a
+ * {@link #setLingerMs(int) linger} time after the last one stopped, so a recreated activity
+ * finds it still open.
+ * <p>
+ * Call it on the main thread.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public final class CameraSessionManager {
+    /**
+     * Long enough for a configuration change to recreate the activity.
+     */
+    public static final int DEFAULT_LINGER_MS = 3000;
+
+    private static CameraSessionManager sInstance;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final SharedResource<CameraSession> mSession;
+    private int mLingerMs = DEFAULT_LINGER_MS;
+    // 只在 acquire 时用来创建
+    private Activity mActivity;
+    private CameraBackend mTemplate;
+
+    public static synchronized CameraSessionManager getInstance() {
+        if (sInstance == null) {
+            sInstance = new CameraSessionManager();
+        }
+        return sInstance;
+    }
+
+    private CameraSessionManager() {
+        mSession = new SharedResource<>(new SharedResource.Factory<CameraSession>() {
+            @Override
+            public CameraSession create() {
+                return new CameraSession(mActivity, mTemplate);
+            }
+
+            @Override
+            public void destroy(CameraSession session) {
+                session.close();
+            }
+        });
+    }
+
+    /**
+     * @param lingerMs how long the camera stays open after the last view stopped its preview,
+     *                 {@code 0} to close it right away
+     */
+    public void setLingerMs(int lingerMs) {
+        if (lingerMs < 0) {
+            throw new IllegalArgumentException("linger " + lingerMs);
+        }
+        mLingerMs = lingerMs;
+    }
+
+    public int getLingerMs() {
+        return mLingerMs;
+    }
+
+    /**
+     * @return views showing the shared camera
+     */
+    public int getClientCount() {
+        return mSession.getRefCount();
+    }
+
+    /**
+     * @return whether the shared camera is in use or lingering
+     */
+    public boolean hasSession() {
+        return mSession.peek() != null;
+    }
+
+    /**
+     * Close a lingering camera now, e.g. when the app goes to the background.
+     */
+    public void closeIdleSession() {
+        mSession.expire();
+    }
+
+    /**
+     * Camera phases and preview frames of the shared camera; the recordings are measured by
+     * each view, see {@link VideoRecorderView#getMetrics()}.
+     *
+     * @return {@code null} without a session
+     */
+    public RecorderMetrics getMetrics() {
+        CameraSession session = mSession.peek();
+        return session == null ? null : session.getBackend().getMetrics();
+    }
+
+    /**
+     * @param template camera settings for a new session
+     */
+    CameraSession acquire(Activity activity, CameraBackend template) {
+        mActivity = activity;
+        mTemplate = template;
+        try {
+            return mSession.acquire();
+        } finally {
+            mActivity = null;
+            mTemplate = null;
+        }
+    }
+
+    void release() {
+        final long token = mSession.release();
+        if (token == SharedResource.HELD) {
+            return;
+        }
+        if (mLingerMs == 0) {
+            mSession.expire(token);
+            return;
+        }
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                mSession.expire(token);
+            }
+        }, mLingerMs);
+    }
+}
@@ -0,0 +1,270 @@
+package cn.appdream.recorder;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+
+/**
+ * Owns the camera of a {@link CameraBackend} on a dedicated thread.
+ * <p>
+ * Open/close/reconfigure are queued as commands; a newer command replaces pending ones that
+ * it makes redundant, so e.g. a burst of onResume/onPause only touches the camera once.
+ * Results are delivered to {@link Callback} on the main thread.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+class CameraWorker implements Handler.Callback {
+
+    interface Callback {
+        void onCameraOpened();
+
+        void onCameraOpenFailed();
+
+        void onCameraClosed();
+
+        /**
+         * @param nanos time the switch took on the camera thread
+         */
+        void onCameraSwitched(long nanos);
+    }
+
+    private static final int MSG_OPEN = 1;
+    private static final int MSG_CLOSE = 2;
+    private static final int MSG_RECONFIGURE = 3;
+    private static final int MSG_SWITCH = 4;
+
+    private volatile CameraBackend mBackend;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private Callback mCallback;
+    private Runnable mCameraGuard;
+    private Runnable mOnConfigured;
+
+    CameraWorker(CameraBackend backend) {
+        mBackend = backend;
+    }
+
+    /**
+     * Replace the backend. Call it on the camera thread once the old one is released.
+     */
+    void setBackend(CameraBackend backend) {
+        mBackend = backend;
+    }
+
+    void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * @param guard run on the camera thread before the camera is opened, reconfigured or
+     *              closed, e.g. to take the camera back from a prepared MediaRecorder
+     */
+    void setCameraGuard(Runnable guard) {
+        mCameraGuard = guard;
+    }
+
+    /**
+     * @param listener run on the camera thread whenever a camera was opened or switched, before
+     *                 the callback is posted, e.g. to follow its size and orientation
+     */
+    void setOnConfigured(Runnable listener) {
+        mOnConfigured = listener;
+    }
+
+    /**
+     * Open (or re-open) the camera with the current configuration of the backend.
+     */
+    void open() {
+        Handler handler = ensureHandler();
+        handler.removeMessages(MSG_OPEN);
+        handler.removeMessages(MSG_CLOSE);
+        handler.removeMessages(MSG_RECONFIGURE);
+        handler.removeMessages(MSG_SWITCH);
+        handler.sendEmptyMessage(MSG_OPEN);
+    }
+
+    /**
+     * {@link #open()} right away instead of queued, for tasks on the camera thread whose
+     * followers expect the camera open.
+     */
+    void openNow() {
+        if (mCameraGuard != null) {
+            mCameraGuard.run();
+        }
+        openCamera();
+    }
+
+    /**
+     * Release the camera. Pending open/reconfigure commands are dropped.
+     */
+    void close() {
+        if (mHandler == null) {
+            return;
+        }
+        mHandler.removeMessages(MSG_OPEN);
+        mHandler.removeMessages(MSG_RECONFIGURE);
+        mHandler.removeMessages(MSG_SWITCH);
+        mHandler.removeMessages(MSG_CLOSE);
+        mHandler.sendEmptyMessage(MSG_CLOSE);
+    }
+
+    /**
+     * Re-apply the configuration if the camera is open. Folded into a pending open.
+     */
+    void reconfigure() {
+        Handler handler = ensureHandler();
+        if (handler.hasMessages(MSG_OPEN)) {
+            return;
+        }
+        handler.removeMessages(MSG_RECONFIGURE);
+        handler.sendEmptyMessage(MSG_RECONFIGURE);
+    }
+
+    /**
+     * Move the open camera to the camera id set on the backend without a full reopen, see
+     * {@link CameraBackend#switchCamera()}. Folded into a pending open or reconfigure, which use
+     * the new id anyway.
+     */
+    void switchCamera() {
+        Handler handler = ensureHandler();
+        if (handler.hasMessages(MSG_OPEN) || handler.hasMessages(MSG_RECONFIGURE)) {
+            return;
+        }
+        handler.removeMessages(MSG_SWITCH);
+        handler.sendEmptyMessage(MSG_SWITCH);
+    }
+
+    /**
+     * Run a task on the camera thread, after all commands queued so far.
+     */
+    void post(Runnable runnable) {
+        ensureHandler().post(runnable);
+    }
+
+    /**
+     * Release the camera and stop the thread once everything queued before has run.
+     */
+    void quit() {
+        if (mHandler == null) {
+            return;
+        }
+        close();
+        final HandlerThread thread = mThread;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                thread.quit();
+            }
+        });
+        mThread = null;
+        mHandler = null;
+    }
+
+    private Handler ensureHandler() {
+        if (mHandler == null) {
+            mThread = new HandlerThread("CameraWorker", Process.THREAD_PRIORITY_DISPLAY);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper(), this);
+        }
+        return mHandler;
+    }
+
+    @Override
+    public boolean handleMessage(Message msg) {
+        if (mCameraGuard != null && (msg.what == MSG_OPEN || msg.what == MSG_CLOSE
+                || (msg.what == MSG_RECONFIGURE || msg.what == MSG_SWITCH) && mBackend.isCameraOpened())) {
+            mCameraGuard.run();
+        }
+        switch (msg.what) {
+            case MSG_OPEN:
+                openCamera();
+                return true;
+            case MSG_RECONFIGURE:
+                if (mBackend.isCameraOpened()) {
+                    openCamera();
+                }
+                return true;
+            case MSG_SWITCH:
+                if (mBackend.isCameraOpened()) {
+                    long start = System.nanoTime();
+                    if (mBackend.switchCamera()) {
+                        dispatchSwitched(System.nanoTime() - start);
+                    } else {
+                        dispatchOpenFailed();
+                    }
+                }
+                return true;
+            case MSG_CLOSE:
+                boolean wasOpened = mBackend.isCameraOpened();
+                mBackend.releaseCamera();
+                if (wasOpened) {
+                    dispatchClosed();
+                }
+                return true;
+        }
+        return false;
+    }
+
+    private void openCamera() {
+        if (mBackend.openCamera()) {
+            dispatchOpened();
+        } else {
+            dispatchOpenFailed();
+        }
+    }
+
+    private void dispatchOpened() {
+        if (mOnConfigured != null) {
+            mOnConfigured.run();
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCallback != null) {
+                    mCallback.onCameraOpened();
+                }
+            }
+        });
+    }
+
+    private void dispatchOpenFailed() {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCallback != null) {
+                    mCallback.onCameraOpenFailed();
+                }
+            }
+        });
+    }
+
+    private void dispatchSwitched(final long nanos) {
+        if (mOnConfigured != null) {
+            mOnConfigured.run();
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCallback != null) {
+                    mCallback.onCameraSwitched(nanos);
+                }
+            }
+        });
+    }
+
+    private void dispatchClosed() {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCallback != null) {
+                    mCallback.onCameraClosed();
+                }
+            }
+        });
+    }
+}
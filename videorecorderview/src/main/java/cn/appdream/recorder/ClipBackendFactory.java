@@ -0,0 +1,30 @@
+package cn.appdream.recorder;
+
+import java.io.IOException;
+
+/**
+ * Creates what a {@link ClipEditor} reads, writes and re-encodes with.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+interface ClipBackendFactory {
+
+    SampleSource openSource(String path) throws IOException;
+
+    MuxerBackend createMuxer(String path, int orientationHint) throws IOException;
+
+    /**
+     * @return turns source formats into {@link TrackFormat}s to compare clips and to put
+     * parameter sets in band
+     */
+    TrackFormat.Converter getFormatConverter();
+
+    /**
+     * @param format the video format of the source
+     * @return {@code null} if frames can not be encoded again; clips then start at the key
+     * frame before their start
+     */
+    GopTranscoder createTranscoder(Object format) throws IOException;
+}
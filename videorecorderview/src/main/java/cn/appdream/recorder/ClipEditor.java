@@ -0,0 +1,442 @@
+package cn.appdream.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Trims and joins recordings of this library without encoding them again: the compressed
+ * samples are copied from file to file one at a time, so time and memory do not grow with the
+ * length of the clips. Made for the files of {@link VideoRecorderView}: H.264 without B-frames
+ * and AAC, all clips recorded with the same size and audio settings.
+ * <p>
+ * A clip can only start at a key frame. With {@link #setExactCuts(boolean) exact cuts} and an
+ * encoder at hand, the group of pictures the start falls into is decoded and the frames from
+ * the start on are encoded again, everything after its next key frame is copied; otherwise the
+ * clip starts at the key frame before. Ends need no re-encoding, frames only refer to earlier
+ * ones. Where the parameter sets of the frames change, e.g. after re-encoded frames, the next
+ * key frame carries its own in band.
+ * <p>
+ * {@link #join} and {@link #trim} block, call them off the main thread.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public class ClipEditor {
+    private static final long NO_END = Long.MAX_VALUE;
+    private static final long DEFAULT_FRAME_US = 1000000L / 30;
+    private static final long AAC_FRAME_SAMPLES = 1024;
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    /**
+     * A part of a file to put into the output.
+     */
+    public static final class Clip {
+        private final String mPath;
+        private final long mStartUs;
+        private final long mEndUs;
+
+        public Clip(String path) {
+            this(path, 0, -1);
+        }
+
+        /**
+         * @param endUs {@code -1} for the end of the file
+         */
+        public Clip(String path, long startUs, long endUs) {
+            if (startUs < 0 || endUs >= 0 && endUs <= startUs) {
+                throw new IllegalArgumentException("clip from " + startUs + " to " + endUs);
+            }
+            mPath = path;
+            mStartUs = startUs;
+            mEndUs = endUs;
+        }
+
+        public String getPath() {
+            return mPath;
+        }
+
+        public long getStartUs() {
+            return mStartUs;
+        }
+
+        public long getEndUs() {
+            return mEndUs;
+        }
+    }
+
+    /**
+     * Called on the thread of {@link #join}.
+     */
+    public abstract static class Listener {
+        /**
+         * @param fraction of the output written, reported in steps of at least a percent
+         */
+        public void onProgress(float fraction) {
+        }
+    }
+
+    private final ClipBackendFactory mFactory;
+    private volatile boolean mExactCuts = true;
+    private volatile boolean mCancelled;
+
+    public ClipEditor() {
+        this(new AndroidClipBackendFactory());
+    }
+
+    ClipEditor(ClipBackendFactory factory) {
+        mFactory = factory;
+    }
+
+    /**
+     * @param exactCuts {@code true} to start clips at their exact time, re-encoding up to the
+     *                  next key frame; {@code false} to start at the key frame before, the
+     *                  fastest. {@code true} by default
+     */
+    public void setExactCuts(boolean exactCuts) {
+        mExactCuts = exactCuts;
+    }
+
+    /**
+     * Make a running {@link #join} fail with an {@link InterruptedIOException}.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * @param endUs {@code -1} for the end of the file
+     */
+    public void trim(String input, long startUs, long endUs, String output, Listener listener) throws IOException {
+        join(Collections.singletonList(new Clip(input, startUs, endUs)), output, listener);
+    }
+
+    /**
+     * Write the clips one after the other into {@code output}. The output takes the tracks and
+     * orientation of the first clip; on failure it is deleted.
+     *
+     * @param listener may be {@code null}
+     */
+    public void join(List<Clip> clips, String output, Listener listener) throws IOException {
+        if (clips.isEmpty()) {
+            throw new IllegalArgumentException("no clips");
+        }
+        mCancelled = false;
+        Job job = new Job(output, listener);
+        boolean finished = false;
+        try {
+            job.run(clips);
+            finished = true;
+        } finally {
+            job.release();
+            if (!finished) {
+                new File(output).delete();
+            }
+        }
+    }
+
+    /**
+     * @return the parameter sets of {@code format} with start codes, to go in front of a key frame
+     */
+    static byte[] parameterSets(TrackFormat format) {
+        byte[] sps = format.getSps();
+        byte[] pps = format.getPps();
+        byte[] sets = new byte[8 + sps.length + pps.length];
+        System.arraycopy(START_CODE, 0, sets, 0, 4);
+        System.arraycopy(sps, 0, sets, 4, sps.length);
+        System.arraycopy(START_CODE, 0, sets, 4 + sps.length, 4);
+        System.arraycopy(pps, 0, sets, 8 + sps.length, pps.length);
+        return sets;
+    }
+
+    /**
+     * One {@link #join} call.
+     */
+    private class Job implements GopTranscoder.Output {
+        private final String mOutput;
+        private final Listener mListener;
+        private final EncodedSample mSample = new EncodedSample();
+        private MuxerBackend mMuxer;
+        private boolean mMuxerStarted;
+        private GopTranscoder mTranscoder;
+        private boolean mTranscoderFailed;
+        private int mVideoTrack = -1;
+        private int mAudioTrack = -1;
+        private TrackFormat mVideoFormat;
+        private TrackFormat mAudioFormat;
+        /**
+         * What the decoder has seen last, {@code null} if unknown.
+         */
+        private byte[] mParametersInEffect;
+        private long mOffsetUs;
+        private final long[] mLastUs = new long[2];
+        private final long[] mLastDeltaUs = new long[2];
+        private long mTotalUs;
+        private long mDoneUs;
+        private float mReported;
+        // 当前片段
+        private long mOriginUs;
+        private long mEndUs;
+
+        Job(String output, Listener listener) {
+            mOutput = output;
+            mListener = listener;
+        }
+
+        void run(List<Clip> clips) throws IOException {
+            for (Clip clip : clips) {
+                SampleSource source = mFactory.openSource(clip.getPath());
+                try {
+                    long end = clip.getEndUs() < 0 ? source.getDurationUs() : Math.min(clip.getEndUs(), source.getDurationUs());
+                    mTotalUs += Math.max(0, end - clip.getStartUs());
+                } finally {
+                    source.release();
+                }
+            }
+            for (int i = 0; i < clips.size(); i++) {
+                appendClip(clips.get(i), i);
+            }
+            if (mMuxerStarted) {
+                mMuxerStarted = false;
+                try {
+                    mMuxer.stop();
+                } catch (RuntimeException e) {
+                    throw new IOException("finishing " + mOutput + " failed", e);
+                }
+            }
+            if (mListener != null) {
+                mListener.onProgress(1f);
+            }
+        }
+
+        void release() {
+            if (mTranscoder != null) {
+                mTranscoder.release();
+            }
+            if (mMuxer != null) {
+                mMuxer.release();
+            }
+        }
+
+        private void appendClip(Clip clip, int index) throws IOException {
+            SampleSource source = mFactory.openSource(clip.getPath());
+            try {
+                int video = -1;
+                int audio = -1;
+                for (int i = 0; i < source.getTrackCount(); i++) {
+                    if (source.isVideoTrack(i)) {
+                        video = video < 0 ? i : video;
+                    } else {
+                        audio = audio < 0 ? i : audio;
+                    }
+                }
+                if (index == 0) {
+                    openMuxer(source, video, audio);
+                } else if ((video >= 0) != (mVideoTrack >= 0) || (audio >= 0) != (mAudioTrack >= 0)
+                        || !matches(mVideoFormat, source, video) || !matches(mAudioFormat, source, audio)) {
+                    throw new IOException(clip.getPath() + " does not match " + mOutput);
+                }
+                copy(source, clip, video, audio);
+            } finally {
+                source.release();
+            }
+        }
+
+        private void openMuxer(SampleSource source, int video, int audio) throws IOException {
+            mMuxer = mFactory.createMuxer(mOutput, source.getOrientationHint());
+            if (video >= 0) {
+                mVideoTrack = mMuxer.addTrack(source.getTrackFormat(video));
+                mVideoFormat = convert(source.getTrackFormat(video));
+                mParametersInEffect = mVideoFormat == null ? null : parameterSets(mVideoFormat);
+            }
+            if (audio >= 0) {
+                mAudioTrack = mMuxer.addTrack(source.getTrackFormat(audio));
+                mAudioFormat = convert(source.getTrackFormat(audio));
+            }
+            mMuxer.start();
+            mMuxerStarted = true;
+        }
+
+        private void copy(SampleSource source, Clip clip, int video, int audio) throws IOException {
+            long start = clip.getStartUs();
+            mEndUs = clip.getEndUs() < 0 ? NO_END : clip.getEndUs();
+            TrackFormat videoFormat = video < 0 ? null : convert(source.getTrackFormat(video));
+            byte[] parameters = videoFormat == null ? null : parameterSets(videoFormat);
+            long keyUs = start;
+            if (video >= 0) {
+                // 先找到开始前的关键帧，再从那里读所有轨道
+                source.seekTo(start);
+                int track;
+                while ((track = source.readSample(mSample)) >= 0 && track != video) {
+                    checkCancelled();
+                }
+                if (track < 0) {
+                    return;
+                }
+                keyUs = mSample.presentationTimeUs;
+            }
+            source.seekTo(keyUs);
+            boolean transcode = keyUs < start && mExactCuts && parameters != null
+                    && obtainTranscoder(source.getTrackFormat(video));
+            mOriginUs = transcode ? start : Math.min(keyUs, start);
+            mLastUs[0] = mLastUs[1] = -1;
+            List<EncodedSample> gop = transcode ? new ArrayList<EncodedSample>() : null;
+            boolean videoDone = video < 0;
+            boolean audioDone = audio < 0;
+            while (!videoDone || !audioDone) {
+                checkCancelled();
+                int track = source.readSample(mSample);
+                if (track < 0) {
+                    break;
+                }
+                long timeUs = mSample.presentationTimeUs;
+                if (track == video && !videoDone) {
+                    if (timeUs >= mEndUs) {
+                        videoDone = true;
+                    } else if (gop != null && (gop.isEmpty() || !mSample.isKeyFrame())) {
+                        gop.add(mSample.copy());
+                    } else {
+                        if (gop != null) {
+                            transcode(gop, start);
+                            gop = null;
+                        }
+                        if (mSample.isKeyFrame() && parameters != null
+                                && !Arrays.equals(parameters, mParametersInEffect)) {
+                            writeVideo(withParameters(mSample, parameters));
+                            mParametersInEffect = parameters;
+                        } else {
+                            writeVideo(mSample);
+                        }
+                    }
+                } else if (track == audio && !audioDone) {
+                    if (timeUs >= mEndUs) {
+                        audioDone = true;
+                    } else if (timeUs >= mOriginUs) {
+                        write(1, mAudioTrack, mSample);
+                    }
+                }
+            }
+            if (gop != null && !gop.isEmpty()) {
+                transcode(gop, start);
+            }
+            // 下一段接在最长的轨道后面
+            long endUs = mOffsetUs;
+            for (int i = 0; i < 2; i++) {
+                if (mLastUs[i] >= 0) {
+                    long delta = mLastDeltaUs[i] > 0 ? mLastDeltaUs[i] : i == 0 ? DEFAULT_FRAME_US : aacFrameUs();
+                    endUs = Math.max(endUs, mLastUs[i] + delta);
+                }
+            }
+            mDoneUs += Math.max(0, Math.min(mEndUs, source.getDurationUs()) - start);
+            mOffsetUs = endUs;
+        }
+
+        private void transcode(List<EncodedSample> gop, long fromUs) throws IOException {
+            mTranscoder.transcode(gop, fromUs, this);
+            // 重新编码的帧带着自己的参数集
+            mParametersInEffect = null;
+        }
+
+        /**
+         * A re-encoded frame.
+         */
+        @Override
+        public void onSample(EncodedSample sample) throws IOException {
+            if (sample.presentationTimeUs < mEndUs) {
+                writeVideo(sample);
+            }
+        }
+
+        private void writeVideo(EncodedSample sample) throws IOException {
+            write(0, mVideoTrack, sample);
+        }
+
+        private void write(int kind, int track, EncodedSample sample) throws IOException {
+            long timeUs = sample.presentationTimeUs;
+            long outUs = mOffsetUs + timeUs - mOriginUs;
+            if (mLastUs[kind] >= 0 && outUs > mLastUs[kind]) {
+                mLastDeltaUs[kind] = outUs - mLastUs[kind];
+            }
+            mLastUs[kind] = outUs;
+            sample.presentationTimeUs = outUs;
+            try {
+                mMuxer.writeSample(track, sample);
+            } catch (RuntimeException e) {
+                throw new IOException("writing " + mOutput + " failed", e);
+            } finally {
+                sample.presentationTimeUs = timeUs;
+            }
+            reportProgress(timeUs);
+        }
+
+        private void reportProgress(long timeUs) {
+            if (mListener == null || mTotalUs <= 0) {
+                return;
+            }
+            float fraction = Math.min(1f, (float) (mDoneUs + Math.max(0, timeUs - mOriginUs)) / mTotalUs);
+            if (fraction - mReported >= 0.01f) {
+                mReported = fraction;
+                mListener.onProgress(fraction);
+            }
+        }
+
+        private boolean obtainTranscoder(Object format) throws IOException {
+            if (mTranscoder == null && !mTranscoderFailed) {
+                mTranscoder = mFactory.createTranscoder(format);
+                mTranscoderFailed = mTranscoder == null;
+            }
+            return mTranscoder != null;
+        }
+
+        private long aacFrameUs() {
+            int sampleRate = mAudioFormat == null ? 44100 : mAudioFormat.getSampleRate();
+            return AAC_FRAME_SAMPLES * 1000000L / sampleRate;
+        }
+
+        private void checkCancelled() throws InterruptedIOException {
+            if (mCancelled) {
+                throw new InterruptedIOException("cancelled");
+            }
+        }
+
+        private TrackFormat convert(Object format) {
+            try {
+                return mFactory.getFormatConverter().convert(format);
+            } catch (RuntimeException e) {
+                // 没有csd之类
+                return null;
+            }
+        }
+
+        /**
+         * @return whether {@code track} of {@code source} can follow {@code format} in one track
+         */
+        private boolean matches(TrackFormat format, SampleSource source, int track) {
+            if (track < 0 || format == null) {
+                return true;
+            }
+            TrackFormat other = convert(source.getTrackFormat(track));
+            return other != null && other.isVideo() == format.isVideo()
+                    && other.getWidth() == format.getWidth() && other.getHeight() == format.getHeight()
+                    && other.getSampleRate() == format.getSampleRate() && other.getChannels() == format.getChannels();
+        }
+    }
+
+    private static EncodedSample withParameters(EncodedSample sample, byte[] parameters) {
+        EncodedSample copy = new EncodedSample();
+        ByteBuffer data = ByteBuffer.allocate(parameters.length + sample.size());
+        data.put(parameters);
+        data.put(sample.data.duplicate());
+        data.flip();
+        copy.data = data;
+        copy.presentationTimeUs = sample.presentationTimeUs;
+        copy.flags = sample.flags;
+        return copy;
+    }
+}
@@ -0,0 +1,39 @@
+package cn.appdream.recorder;
+
+import java.io.IOException;
+
+/**
+ * Creates the encoders and muxers of a {@link CodecRecordingEngine}.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public interface CodecBackendFactory {
+
+    /**
+     * @return a configured, surface input video encoder
+     */
+    EncoderBackend createVideoEncoder(RecordingConfig config) throws IOException;
+
+    /**
+     * @return a configured, buffer input audio encoder
+     */
+    EncoderBackend createAudioEncoder(RecordingConfig config) throws IOException;
+
+    MuxerBackend createMuxer(String path, int orientationHint) throws IOException;
+
+    /**
+     * @param config   a {@link RecordingConfig#isFragmented() fragmented} config
+     * @param listener receives the header and every fragment once it is in the file
+     * @return a {@link FragmentedMp4Writer} into {@code path}
+     */
+    MuxerBackend createFragmentedMuxer(String path, RecordingConfig config,
+                                       FragmentedMp4Writer.Listener listener) throws IOException;
+
+    /**
+     * @return turns the output formats of the encoders into {@link TrackFormat}s, used for the
+     * index of {@link RecordingConfig#setCrashRecoveryEnabled(boolean) recoverable} recordings
+     */
+    TrackFormat.Converter getFormatConverter();
+}
@@ -0,0 +1,762 @@
+package cn.appdream.recorder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records through a surface input video encoder, a PCM fed audio encoder and a muxer, each
+ * encoder drained on its own thread.
+ * <p>
+ * Unlike {@link MediaRecorderEngine} this exposes the encoder settings of
+ * {@link RecordingConfig} and reports every written sample. The encoders and muxer come from a
+ * {@link CodecBackendFactory}, {@link AndroidCodecBackendFactory} on devices.
+ * <p>
+ * {@link RecordingConfig#isSegmented() Segmented} recordings swap the muxer at a video key
+ * frame: the encoders keep running, so no frame is lost between two segment files.
+ * <p>
+ * With a {@link RecordingConfig#setPreRollDurationMs(int) pre-roll} the engine encodes into a
+ * {@link PreRollBuffer} after {@link #start()}; {@link #startOutput(String)} then writes the
+ * buffered samples and everything after them to the file, without encoding anything twice.
+ * <p>
+ * A {@link RecordingConfig#setProxy(RecordingConfig) proxy} is recorded by a second engine on
+ * the same video input and microphone: the video input draws each frame into both encoder
+ * surfaces and an {@link AudioInputSplitter} hands the PCM to both audio encoders. The proxy
+ * segments and syncs its file on its own and reports to {@link #setProxyListener(Listener)}.
+ * <p>
+ * {@link RecordingConfig#isFragmented() Fragmented} recordings are written by the
+ * {@link CodecBackendFactory#createFragmentedMuxer fragmented muxer} of the factory, which
+ * reports each fragment through {@link Listener#onFragmentWritten}. Other files of a
+ * {@link RecordingConfig#setCrashRecoveryEnabled(boolean) recoverable} recording get an
+ * {@link IndexingMuxer}.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public class CodecRecordingEngine implements RecordingEngine {
+    public static final int TRACK_VIDEO = 0;
+    public static final int TRACK_AUDIO = 1;
+
+    private static final long TIMEOUT_US = 10000;
+    /**
+     * Give up waiting for the end of stream after this long without output.
+     */
+    private static final long EOS_TIMEOUT_US = 2000000;
+    private static final int AUDIO_CHUNK_FRAMES = 1024;
+
+    private final CodecBackendFactory mFactory;
+    private final VideoInput mVideoInput;
+    private final AudioInput mAudioInput;
+    private volatile Listener mListener;
+    private volatile Listener mProxyListener;
+    private volatile QualityController mQualityController;
+
+    private RecordingConfig mConfig;
+    private AudioInput mAudio;//录音来源，有代理时是分流器的一路
+    private AudioInputSplitter mAudioSplitter;
+    private CodecRecordingEngine mProxyEngine;
+    private boolean mProxyActive;
+    private volatile EncoderBackend mVideoEncoder;
+    private EncoderBackend mAudioEncoder;
+    private Thread mVideoThread;
+    private Thread mAudioThread;
+    private volatile boolean mStopRequested;
+
+    private final Object mMuxerLock = new Object();
+    private MuxerBackend mMuxer;
+    private final Object[] mTrackFormats = new Object[2];
+    private final int[] mTrackIndex = new int[2];
+    private int mTrackCount;
+    private boolean mMuxerStarted;
+    private final ArrayList<EncodedSample> mPending = new ArrayList<>();
+    private final ArrayList<Integer> mPendingTracks = new ArrayList<>();
+    private long mFirstVideoTimeUs;
+    private boolean mMaxDurationReached;
+    private int mSegmentIndex;
+    private String mSegmentPath;
+    private long mSegmentStartUs;
+    private long mSegmentEndUs;
+    private long mSegmentBytes;
+    private boolean mSegmentSwitchPending;
+    private RecordingSink mMeteredSink;//质量控制量的是这个文件写盘的时间
+    private long mMeteredBusyNanos;
+    private PreRollBuffer mPreRoll;
+    private ExecutorService mSyncExecutor;//fsync 完成的分段，不阻塞编码线程
+    private boolean mPreRolling;
+
+    /**
+     * @param audioInput {@code null} to record video only
+     */
+    public CodecRecordingEngine(CodecBackendFactory factory, VideoInput videoInput, AudioInput audioInput) {
+        mFactory = factory;
+        mVideoInput = videoInput;
+        mAudioInput = audioInput;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @param listener receives the samples, files and errors of the proxy recording
+     */
+    public void setProxyListener(Listener listener) {
+        mProxyListener = listener;
+        if (mProxyEngine != null) {
+            mProxyEngine.setListener(listener);
+        }
+    }
+
+    /**
+     * Report written samples to {@code controller} and let it change the video bitrate while
+     * recording. The controller should have {@link QualityController#begin begun} with the
+     * config given to {@link #prepare}.
+     */
+    public void setQualityController(QualityController controller) {
+        mQualityController = controller;
+    }
+
+    @Override
+    public void prepare(RecordingConfig config) throws IOException {
+        release();
+        mConfig = new RecordingConfig(config);
+        RecordingConfig proxy = mConfig.resolveProxy();
+        mAudio = proxy == null ? mAudioInput : obtainProxyEngine();
+        boolean audio = mAudio != null && config.isAudioEnabled();
+        try {
+            if (proxy != null) {
+                mProxyEngine.prepare(proxy);
+                mProxyActive = true;
+            }
+            mVideoEncoder = mFactory.createVideoEncoder(mConfig);
+            if (audio) {
+                mAudioEncoder = mFactory.createAudioEncoder(mConfig);
+            }
+            synchronized (mMuxerLock) {
+                mTrackCount = audio ? 2 : 1;
+                mTrackFormats[TRACK_VIDEO] = null;
+                mTrackFormats[TRACK_AUDIO] = null;
+                mMuxerStarted = false;
+                mFirstVideoTimeUs = -1;
+                mMaxDurationReached = false;
+                mPreRolling = mConfig.getPreRollDurationMs() > 0;
+                if (mPreRolling) {
+                    preparePreRollLocked(audio);
+                } else {
+                    openMuxerLocked();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * Create the proxy engine on first use, sharing the microphone through a splitter.
+     *
+     * @return the audio input of the primary recording
+     */
+    private AudioInput obtainProxyEngine() {
+        if (mProxyEngine == null) {
+            if (mAudioInput != null) {
+                mAudioSplitter = new AudioInputSplitter(mAudioInput, 2);
+            }
+            mProxyEngine = new CodecRecordingEngine(mFactory, mVideoInput,
+                    mAudioSplitter == null ? null : mAudioSplitter.getBranch(1));
+            mProxyEngine.setListener(mProxyListener);
+        }
+        return mAudioSplitter == null ? null : mAudioSplitter.getBranch(0);
+    }
+
+    /**
+     * Begin the file of a pre-roll recording, see {@link RecordingConfig#setPreRollDurationMs(int)}.
+     * The engine has to be started. A proxy begins at {@link RecordingConfig#getProxyPath(String)}.
+     */
+    public void startOutput(String outputFile) throws IOException {
+        synchronized (mMuxerLock) {
+            if (!mPreRolling) {
+                throw new IllegalStateException("not pre-rolling");
+            }
+            mConfig.setOutputFile(outputFile);
+            openMuxerLocked();
+            mPreRolling = false;
+            startMuxerLocked();
+        }
+        if (mProxyActive) {
+            mProxyEngine.startOutput(RecordingConfig.getProxyPath(outputFile));
+        }
+    }
+
+    /**
+     * @return the memory reserved for pre-roll samples, including the proxy; {@code 0} without
+     * pre-roll
+     */
+    public int getPreRollCapacityBytes() {
+        int proxy = mProxyActive ? mProxyEngine.getPreRollCapacityBytes() : 0;
+        synchronized (mMuxerLock) {
+            return (mPreRoll == null ? 0 : mPreRoll.getCapacityBytes()) + proxy;
+        }
+    }
+
+    /**
+     * @return bytes currently held for pre-roll
+     */
+    public long getPreRollBufferedBytes() {
+        synchronized (mMuxerLock) {
+            return mPreRoll == null ? 0 : mPreRoll.getBufferedBytes();
+        }
+    }
+
+    /**
+     * @return the time currently held for pre-roll, from a key frame to the newest sample
+     */
+    public long getPreRollBufferedDurationUs() {
+        synchronized (mMuxerLock) {
+            return mPreRoll == null ? 0 : mPreRoll.getBufferedDurationUs();
+        }
+    }
+
+    private void openMuxerLocked() throws IOException {
+        mSegmentIndex = 0;
+        mSegmentPath = mConfig.getSegmentPath(0);
+        mMuxer = createMuxerLocked();
+        resetSegment();
+    }
+
+    private MuxerBackend createMuxerLocked() throws IOException {
+        if (!mConfig.isFragmented()) {
+            MuxerBackend muxer = mFactory.createMuxer(mSegmentPath, mConfig.getOrientationHint());
+            if (!mConfig.isCrashRecoveryEnabled()) {
+                return muxer;
+            }
+            return new IndexingMuxer(muxer, mSegmentPath, mConfig.getOrientationHint(),
+                    mFactory.getFormatConverter());
+        }
+        final String path = mSegmentPath;
+        return mFactory.createFragmentedMuxer(path, mConfig, new FragmentedMp4Writer.Listener() {
+            @Override
+            public void onFragmentWritten(long offset, ByteBuffer data, long durationUs) {
+                Listener listener = mListener;
+                if (listener != null) {
+                    listener.onFragmentWritten(path, offset, data, durationUs);
+                }
+            }
+        });
+    }
+
+    private void preparePreRollLocked(boolean audio) {
+        int capacity = mConfig.getPreRollMaxBytes();
+        int samplesPerSecond = mConfig.getFrameRate()
+                + (audio ? mConfig.getAudioSampleRate() / AUDIO_CHUNK_FRAMES + 1 : 0);
+        int seconds = mConfig.getPreRollDurationMs() / 1000 + mConfig.getKeyFrameInterval() + 1;
+        int maxSamples = 2 * samplesPerSecond * seconds;
+        if (mPreRoll == null || mPreRoll.getCapacityBytes() != capacity
+                || mPreRoll.getMaxSampleCount() != maxSamples
+                || mPreRoll.getWindowUs() != mConfig.getPreRollDurationMs() * 1000L) {
+            mPreRoll = new PreRollBuffer(mConfig.getPreRollDurationMs() * 1000L, capacity, maxSamples, TRACK_VIDEO);
+        } else {
+            mPreRoll.clear();
+        }
+    }
+
+    @Override
+    public void start() throws IOException {
+        if (mVideoEncoder == null) {
+            throw new IllegalStateException("not prepared");
+        }
+        mStopRequested = false;
+        QualityController controller = mQualityController;
+        if (controller != null) {
+            controller.setBitRateTarget(new QualityController.BitRateTarget() {
+                @Override
+                public void setVideoBitRate(int bitsPerSecond) {
+                    EncoderBackend encoder = mVideoEncoder;
+                    if (encoder != null) {
+                        encoder.setBitRate(bitsPerSecond);
+                    }
+                }
+            });
+        }
+        mVideoEncoder.start();
+        mVideoInput.attachEncoderSurface(mVideoEncoder.getInputSurface(),
+                mConfig.getVideoWidth(), mConfig.getVideoHeight(), mConfig.getFrameRate());
+        mVideoThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    drain(mVideoEncoder, TRACK_VIDEO, TIMEOUT_US, true, new EncodedSample());
+                } catch (RuntimeException e) {
+                    dispatchError(e);
+                }
+            }
+        }, "VideoEncoder");
+        mVideoThread.start();
+        if (mAudioEncoder != null) {
+            mAudioEncoder.start();
+            mAudio.start(mConfig.getAudioSampleRate(), mConfig.getAudioChannels());
+            mAudioThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        recordAudio();
+                    } catch (RuntimeException e) {
+                        dispatchError(e);
+                    }
+                }
+            }, "AudioEncoder");
+            mAudioThread.start();
+        }
+        if (mProxyActive) {
+            try {
+                mProxyEngine.start();
+            } catch (IOException | RuntimeException e) {
+                // 不留下没有代理的录制
+                stop();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Stops the proxy on its own thread while this engine finishes its file.
+     */
+    @Override
+    public void stop() {
+        Thread proxyStop = null;
+        if (mProxyActive) {
+            mProxyActive = false;
+            proxyStop = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    mProxyEngine.stop();
+                }
+            }, "ProxyStop");
+            proxyStop.start();
+        }
+        stopSelf();
+        if (proxyStop != null) {
+            join(proxyStop);
+        }
+    }
+
+    private void stopSelf() {
+        if (mVideoThread == null) {
+            // only prepared, nothing to finish
+            synchronized (mMuxerLock) {
+                finishSegmentLocked();
+            }
+            releaseEncoders();
+            return;
+        }
+        mStopRequested = true;
+        mVideoInput.detachEncoderSurface(mVideoEncoder.getInputSurface());
+        mVideoEncoder.signalEndOfInput();
+        join(mVideoThread);
+        mVideoThread = null;
+        if (mAudioThread != null) {
+            join(mAudioThread);
+            mAudioThread = null;
+            mAudio.stop();
+        }
+        QualityController controller = mQualityController;
+        if (controller != null) {
+            controller.setBitRateTarget(null);
+        }
+        synchronized (mMuxerLock) {
+            finishSegmentLocked();
+            mPreRolling = false;
+            if (mPreRoll != null) {
+                mPreRoll.clear();
+            }
+            mPending.clear();
+            mPendingTracks.clear();
+        }
+        awaitSyncs();
+        releaseEncoders();
+    }
+
+    @Override
+    public void release() {
+        stop();
+        synchronized (mMuxerLock) {
+            if (mMuxer != null) {
+                mMuxer.release();
+                mMuxer = null;
+            }
+        }
+        releaseEncoders();
+        if (mProxyEngine != null) {
+            mProxyEngine.release();
+        }
+    }
+
+    /**
+     * Stop and release the current muxer, reporting its file as a finished segment.
+     */
+    private void finishSegmentLocked() {
+        if (mMuxer == null) {
+            return;
+        }
+        boolean finished = false;
+        try {
+            if (mMuxerStarted) {
+                mMuxer.stop();
+                finished = mSegmentBytes > 0;
+            }
+        } catch (RuntimeException e) {
+            dispatchError(e);
+        }
+        mMuxer.release();
+        mMuxer = null;
+        mMuxerStarted = false;
+        if (!finished) {
+            return;
+        }
+        final String path = mSegmentPath;
+        final long durationUs = mSegmentEndUs - mSegmentStartUs;
+        final long size = mSegmentBytes;
+        // the fragmented writer syncs its own file
+        if (!mConfig.getFsyncPolicy().syncsSegments() || mConfig.isFragmented()) {
+            dispatchSegmentFinished(path, durationUs, size);
+            return;
+        }
+        if (mSyncExecutor == null) {
+            mSyncExecutor = Executors.newSingleThreadExecutor();
+        }
+        mSyncExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    RecordingSink.syncFile(path);
+                } catch (IOException e) {
+                    dispatchError(e);
+                }
+                dispatchSegmentFinished(path, durationUs, size);
+            }
+        });
+    }
+
+    private void dispatchSegmentFinished(String path, long durationUs, long size) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onSegmentFinished(path, durationUs, size);
+        }
+    }
+
+    /**
+     * Wait for the files still being synced, so they are complete when {@link #stop()} returns.
+     */
+    private void awaitSyncs() {
+        ExecutorService executor;
+        synchronized (mMuxerLock) {
+            executor = mSyncExecutor;
+            mSyncExecutor = null;
+        }
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Continue in the next segment file, called at a video key frame.
+     */
+    private void switchSegmentLocked() {
+        finishSegmentLocked();
+        mSegmentIndex++;
+        mSegmentPath = mConfig.getSegmentPath(mSegmentIndex);
+        resetSegment();
+        try {
+            mMuxer = createMuxerLocked();
+            for (int i = 0; i < mTrackCount; i++) {
+                mTrackIndex[i] = mMuxer.addTrack(mTrackFormats[i]);
+            }
+            mMuxer.start();
+            mMuxerStarted = true;
+        } catch (IOException | RuntimeException e) {
+            if (mMuxer != null) {
+                mMuxer.release();
+                mMuxer = null;
+            }
+            dispatchError(e);
+        }
+    }
+
+    private void resetSegment() {
+        mSegmentStartUs = -1;
+        mSegmentEndUs = -1;
+        mSegmentBytes = 0;
+        mSegmentSwitchPending = false;
+    }
+
+    private void releaseEncoders() {
+        if (mVideoEncoder != null) {
+            mVideoEncoder.release();
+            mVideoEncoder = null;
+        }
+        if (mAudioEncoder != null) {
+            mAudioEncoder.release();
+            mAudioEncoder = null;
+        }
+    }
+
+    private void recordAudio() {
+        int channels = mConfig.getAudioChannels();
+        int sampleRate = mConfig.getAudioSampleRate();
+        int frameBytes = 2 * channels;
+        int chunk = AUDIO_CHUNK_FRAMES * frameBytes;
+        ByteBuffer pcm = ByteBuffer.allocateDirect(chunk).order(ByteOrder.nativeOrder());
+        EncodedSample sample = new EncodedSample();
+        AudioMeter silence = mConfig.getSilencePauseMs() > 0
+                ? new AudioMeter(mConfig.getSilenceThresholdDb(), mConfig.getSilencePauseMs() * 1000L) : null;
+        long startUs = -1;
+        long frames = 0;
+        while (!mStopRequested) {
+            pcm.clear();
+            int read = mAudio.read(pcm, chunk);
+            if (read < 0) {
+                // 麦克风被别的应用占了之类, 不会恢复, 结束音轨只留视频
+                dispatchError(new IOException("audio read failed: " + read));
+                break;
+            }
+            if (read == 0) {
+                continue;
+            }
+            pcm.position(0);
+            pcm.limit(read);
+            if (startUs < 0) {
+                // the first chunk was captured before the read returned
+                startUs = System.nanoTime() / 1000 - read / frameBytes * 1000000L / sampleRate;
+            }
+            long ptsUs = startUs + frames * 1000000L / sampleRate;
+            frames += read / frameBytes;
+            if (silence != null && silence.measure(pcm, read / frameBytes * 1000000L / sampleRate)) {
+                // 静音时不编码, 时间照走, 文件里留下空隙
+                drain(mAudioEncoder, TRACK_AUDIO, 0, false, sample);
+                continue;
+            }
+            while (!mAudioEncoder.queueInput(pcm, ptsUs, false, TIMEOUT_US)) {
+                drain(mAudioEncoder, TRACK_AUDIO, 0, false, sample);
+            }
+            drain(mAudioEncoder, TRACK_AUDIO, 0, false, sample);
+        }
+        pcm.clear();
+        pcm.limit(0);
+        long endUs = startUs < 0 ? System.nanoTime() / 1000 : startUs + frames * 1000000L / sampleRate;
+        while (!mAudioEncoder.queueInput(pcm, endUs, true, TIMEOUT_US)) {
+            drain(mAudioEncoder, TRACK_AUDIO, 0, false, sample);
+        }
+        drain(mAudioEncoder, TRACK_AUDIO, TIMEOUT_US, true, sample);
+    }
+
+    /**
+     * Move encoder output to the muxer.
+     *
+     * @param untilEndOfStream keep waiting for output until the end of stream, otherwise return
+     *                         as soon as the encoder has nothing
+     * @return {@code true} when the end of stream was reached
+     */
+    private boolean drain(EncoderBackend encoder, int track, long timeoutUs, boolean untilEndOfStream,
+                          EncodedSample sample) {
+        long idleUs = 0;
+        while (true) {
+            int status = encoder.dequeueOutput(sample, timeoutUs);
+            if (status == EncoderBackend.STATUS_TRY_AGAIN) {
+                if (!untilEndOfStream) {
+                    return false;
+                }
+                idleUs += timeoutUs;
+                if (mStopRequested && idleUs > EOS_TIMEOUT_US) {
+                    return true;
+                }
+                continue;
+            }
+            idleUs = 0;
+            if (status == EncoderBackend.STATUS_FORMAT_CHANGED) {
+                addTrack(track, encoder.getOutputFormat());
+                continue;
+            }
+            boolean endOfStream = sample.isEndOfStream();
+            if (!sample.isCodecConfig() && sample.size() > 0) {
+                writeSample(track, sample);
+            }
+            encoder.releaseOutput(sample);
+            if (endOfStream) {
+                return true;
+            }
+        }
+    }
+
+    private void addTrack(int track, Object format) {
+        synchronized (mMuxerLock) {
+            if (mMuxerStarted) {
+                return;
+            }
+            mTrackFormats[track] = format;
+            startMuxerLocked();
+        }
+    }
+
+    /**
+     * Start the muxer once it exists and all track formats are known, then write what waited.
+     */
+    private void startMuxerLocked() {
+        if (mMuxer == null || mMuxerStarted) {
+            return;
+        }
+        for (int i = 0; i < mTrackCount; i++) {
+            if (mTrackFormats[i] == null) {
+                return;
+            }
+        }
+        for (int i = 0; i < mTrackCount; i++) {
+            mTrackIndex[i] = mMuxer.addTrack(mTrackFormats[i]);
+        }
+        mMuxer.start();
+        mMuxerStarted = true;
+        if (mPreRoll != null && mPreRoll.getSampleCount() > 0) {
+            mPreRoll.drainTo(new PreRollBuffer.Consumer() {
+                @Override
+                public void onSample(int track, EncodedSample sample) {
+                    writeSampleLocked(track, sample);
+                }
+            });
+        }
+        for (int i = 0; i < mPending.size(); i++) {
+            writeSampleLocked(mPendingTracks.get(i), mPending.get(i));
+        }
+        mPending.clear();
+        mPendingTracks.clear();
+    }
+
+    private void writeSample(int track, EncodedSample sample) {
+        synchronized (mMuxerLock) {
+            if (mPreRolling) {
+                mPreRoll.write(track, sample);
+                return;
+            }
+            if (mMuxer == null) {
+                return;
+            }
+            if (!mMuxerStarted) {
+                mPending.add(sample.copy());
+                mPendingTracks.add(track);
+                return;
+            }
+            writeSampleLocked(track, sample);
+        }
+    }
+
+    private void writeSampleLocked(int track, EncodedSample sample) {
+        if (mMaxDurationReached) {
+            return;
+        }
+        if (track == TRACK_VIDEO && mFirstVideoTimeUs < 0) {
+            mFirstVideoTimeUs = sample.presentationTimeUs;
+        }
+        int maxDurationMs = mConfig.getMaxDurationMs();
+        if (maxDurationMs > 0 && mFirstVideoTimeUs >= 0
+                && sample.presentationTimeUs - mFirstVideoTimeUs >= maxDurationMs * 1000L) {
+            mMaxDurationReached = true;
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onMaxDurationReached();
+            }
+            return;
+        }
+        boolean videoKeyFrame = track == TRACK_VIDEO && sample.isKeyFrame();
+        if (mSegmentSwitchPending && videoKeyFrame) {
+            switchSegmentLocked();
+            if (mMuxer == null) {
+                return;
+            }
+        }
+        if (mSegmentStartUs < 0 || sample.presentationTimeUs < mSegmentStartUs) {
+            mSegmentStartUs = sample.presentationTimeUs;
+        }
+        if (sample.presentationTimeUs > mSegmentEndUs) {
+            mSegmentEndUs = sample.presentationTimeUs;
+        }
+        int size = sample.size();
+        long writeStart = System.nanoTime();
+        mMuxer.writeSample(mTrackIndex[track], sample);
+        long writeNanos = System.nanoTime() - writeStart;
+        if (mMuxer instanceof FragmentedMp4Writer) {
+            writeNanos = storageNanos(((FragmentedMp4Writer) mMuxer).getSink());
+        }
+        mSegmentBytes += size;
+        QualityController controller = mQualityController;
+        if (controller != null) {
+            controller.onSampleWritten(track, sample.presentationTimeUs, size, writeNanos);
+        }
+        if (!mSegmentSwitchPending && isSegmentFull()) {
+            // the next video key frame starts a new file, ask for it instead of waiting a GOP
+            mSegmentSwitchPending = true;
+            mVideoEncoder.requestKeyFrame();
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onSampleWritten(track, sample.presentationTimeUs, size, sample.flags);
+        }
+    }
+
+    /**
+     * @return time the storage spent on {@code sink} since the previous sample; writeSample
+     * only queues into it, that time says nothing about the card
+     */
+    private long storageNanos(RecordingSink sink) {
+        long busy = sink.getBusyNanos();
+        long nanos = sink == mMeteredSink ? busy - mMeteredBusyNanos : busy;
+        mMeteredSink = sink;
+        mMeteredBusyNanos = busy;
+        return nanos;
+    }
+
+    private boolean isSegmentFull() {
+        int durationMs = mConfig.getSegmentDurationMs();
+        long sizeBytes = mConfig.getSegmentSizeBytes();
+        return durationMs > 0 && mSegmentEndUs - mSegmentStartUs >= durationMs * 1000L
+                || sizeBytes > 0 && mSegmentBytes >= sizeBytes;
+    }
+
+    private void dispatchError(Throwable error) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onError(error);
+        }
+    }
+
+    private static void join(Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package cn.appdream.recorder;
+
+import android.annotation.TargetApi;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.os.Build;
+
+/**
+ * EGL display, context and surfaces for {@link GlPreviewRenderer}. The config is recordable,
+ * so window surfaces of encoder input surfaces work as well. Use from one thread only.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+class EglCore {
+    /**
+     * {@code EGLExt.EGL_RECORDABLE_ANDROID}, API 26.
+     */
+    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+
+    private EGLDisplay mDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLContext mContext = EGL14.EGL_NO_CONTEXT;
+    private EGLConfig mConfig;
+
+    EglCore() {
+        mDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        if (mDisplay == EGL14.EGL_NO_DISPLAY) {
+            throw new RuntimeException("unable to get EGL14 display");
+        }
+        int[] version = new int[2];
+        if (!EGL14.eglInitialize(mDisplay, version, 0, version, 1)) {
+            mDisplay = EGL14.EGL_NO_DISPLAY;
+            throw new RuntimeException("unable to initialize EGL14");
+        }
+        int[] attributes = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_ALPHA_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL_RECORDABLE_ANDROID, 1,
+                EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] count = new int[1];
+        if (!EGL14.eglChooseConfig(mDisplay, attributes, 0, configs, 0, 1, count, 0) || count[0] == 0) {
+            release();
+            throw new RuntimeException("no recordable RGBA8888 EGL config");
+        }
+        mConfig = configs[0];
+        int[] contextAttributes = {EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE};
+        mContext = EGL14.eglCreateContext(mDisplay, mConfig, EGL14.EGL_NO_CONTEXT, contextAttributes, 0);
+        checkError("eglCreateContext");
+    }
+
+    /**
+     * @param surface a {@link android.view.Surface} or {@link android.graphics.SurfaceTexture}
+     */
+    EGLSurface createWindowSurface(Object surface) {
+        int[] attributes = {EGL14.EGL_NONE};
+        EGLSurface eglSurface = EGL14.eglCreateWindowSurface(mDisplay, mConfig, surface, attributes, 0);
+        checkError("eglCreateWindowSurface");
+        return eglSurface;
+    }
+
+    EGLSurface createOffscreenSurface(int width, int height) {
+        int[] attributes = {EGL14.EGL_WIDTH, width, EGL14.EGL_HEIGHT, height, EGL14.EGL_NONE};
+        EGLSurface eglSurface = EGL14.eglCreatePbufferSurface(mDisplay, mConfig, attributes, 0);
+        checkError("eglCreatePbufferSurface");
+        return eglSurface;
+    }
+
+    void makeCurrent(EGLSurface surface) {
+        if (!EGL14.eglMakeCurrent(mDisplay, surface, surface, mContext)) {
+            throw new RuntimeException("eglMakeCurrent failed");
+        }
+    }
+
+    boolean swapBuffers(EGLSurface surface) {
+        return EGL14.eglSwapBuffers(mDisplay, surface);
+    }
+
+    /**
+     * @param nanos timestamp the encoder sees for the next swapped frame
+     */
+    void setPresentationTime(EGLSurface surface, long nanos) {
+        EGLExt.eglPresentationTimeANDROID(mDisplay, surface, nanos);
+    }
+
+    void releaseSurface(EGLSurface surface) {
+        EGL14.eglDestroySurface(mDisplay, surface);
+    }
+
+    void release() {
+        if (mDisplay != EGL14.EGL_NO_DISPLAY) {
+            EGL14.eglMakeCurrent(mDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+            if (mContext != EGL14.EGL_NO_CONTEXT) {
+                EGL14.eglDestroyContext(mDisplay, mContext);
+            }
+            EGL14.eglReleaseThread();
+            EGL14.eglTerminate(mDisplay);
+        }
+        mDisplay = EGL14.EGL_NO_DISPLAY;
+        mContext = EGL14.EGL_NO_CONTEXT;
+        mConfig = null;
+    }
+
+    private static void checkError(String op) {
+        int error = EGL14.eglGetError();
+        if (error != EGL14.EGL_SUCCESS) {
+            throw new RuntimeException(op + ": EGL error 0x" + Integer.toHexString(error));
+        }
+    }
+}
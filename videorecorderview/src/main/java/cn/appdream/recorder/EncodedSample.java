@@ -0,0 +1,58 @@
+package cn.appdream.recorder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One compressed access unit on its way from an encoder to a muxer. Mirrors
+ * {@code MediaCodec.BufferInfo} without depending on Android, flags use the same values.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public class EncodedSample {
+    public static final int FLAG_KEY_FRAME = 1;
+    public static final int FLAG_CODEC_CONFIG = 2;
+    public static final int FLAG_END_OF_STREAM = 4;
+
+    /**
+     * Sample bytes between position and limit.
+     */
+    public ByteBuffer data;
+    public long presentationTimeUs;
+    public int flags;
+    /**
+     * Encoder output buffer the data belongs to, for {@link EncoderBackend#releaseOutput}.
+     */
+    int bufferIndex = -1;
+
+    public int size() {
+        return data == null ? 0 : data.remaining();
+    }
+
+    public boolean isKeyFrame() {
+        return (flags & FLAG_KEY_FRAME) != 0;
+    }
+
+    public boolean isCodecConfig() {
+        return (flags & FLAG_CODEC_CONFIG) != 0;
+    }
+
+    public boolean isEndOfStream() {
+        return (flags & FLAG_END_OF_STREAM) != 0;
+    }
+
+    /**
+     * @return a copy whose data does not depend on the encoder buffer
+     */
+    EncodedSample copy() {
+        EncodedSample copy = new EncodedSample();
+        ByteBuffer data = ByteBuffer.allocate(size());
+        data.put(this.data.duplicate());
+        data.flip();
+        copy.data = data;
+        copy.presentationTimeUs = presentationTimeUs;
+        copy.flags = flags;
+        return copy;
+    }
+}
@@ -0,0 +1,66 @@
+package cn.appdream.recorder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The part of an encoder {@link CodecRecordingEngine} talks to, implemented on top of
+ * {@code MediaCodec} by {@link MediaCodecEncoder} and by fakes in JVM tests.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public interface EncoderBackend {
+    int STATUS_OK = 0;
+    int STATUS_TRY_AGAIN = -1;
+    int STATUS_FORMAT_CHANGED = -2;
+
+    void start();
+
+    /**
+     * @return the surface to render video input into, {@code null} for buffer input encoders
+     */
+    Object getInputSurface();
+
+    /**
+     * Queue raw input (PCM audio).
+     *
+     * @return {@code false} if no input buffer became free within the timeout
+     */
+    boolean queueInput(ByteBuffer data, long presentationTimeUs, boolean endOfStream, long timeoutUs);
+
+    /**
+     * End of input for surface input encoders.
+     */
+    void signalEndOfInput();
+
+    /**
+     * Ask for a key frame as soon as possible. Encoders that can not do this produce one at
+     * the next regular key frame interval.
+     */
+    void requestKeyFrame();
+
+    /**
+     * Change the video bitrate while encoding. Encoders that can not do this ignore it.
+     */
+    void setBitRate(int bitsPerSecond);
+
+    /**
+     * Fill {@code sample} with the next output.
+     *
+     * @return {@link #STATUS_OK}, {@link #STATUS_TRY_AGAIN} or {@link #STATUS_FORMAT_CHANGED}
+     */
+    int dequeueOutput(EncodedSample sample, long timeoutUs);
+
+    /**
+     * @return the output format, opaque to everything but the muxer
+     */
+    Object getOutputFormat();
+
+    /**
+     * Give back the buffer of a sample returned by {@link #dequeueOutput}.
+     */
+    void releaseOutput(EncodedSample sample);
+
+    void release();
+}
@@ -0,0 +1,353 @@
+package cn.appdream.recorder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * {@link MuxerBackend} writing fragmented MPEG-4: a header with an empty sample table
+ * ({@code ftyp} and {@code moov}) at {@link #start()}, then one {@code moof} and {@code mdat}
+ * pair per fragment. Everything up to the last fragment is playable while the recording goes
+ * on or after a crash, and every finished byte range can be uploaded right away, see
+ * {@link Listener}.
+ * <p>
+ * Fragments begin at a video key frame once {@code fragmentDurationMs} have passed; the samples
+ * of a fragment are held in memory until then. H.264 samples may come in Annex B like from
+ * {@code MediaCodec}, they are stored with 4 byte lengths. Presentation order is decode order,
+ * B-frames are not supported. Plain Java, writes through a {@link RecordingSink}.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public class FragmentedMp4Writer implements MuxerBackend {
+
+    /**
+     * Receives the finished byte ranges of the file in order, on the writing thread.
+     */
+    public interface Listener {
+        /**
+         * @param offset     where {@code data} starts in the file, {@code 0} for the header
+         * @param data       the bytes as they are in the file, only valid during the call
+         * @param durationUs media time in the fragment, {@code 0} for the header
+         */
+        void onFragmentWritten(long offset, ByteBuffer data, long durationUs);
+    }
+
+    private static final int SAMPLE_SYNC = 0x02000000;
+    private static final int SAMPLE_NON_SYNC = 0x01010000;
+    private static final int TRUN_FLAGS = 0x000701;//data offset, duration, size, flags
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    private static final int AAC_FRAME_SAMPLES = 1024;
+    private static final int DEFAULT_FRAME_RATE = 30;
+
+    private final RecordingSink mSink;
+    private final int mOrientationHint;
+    private final long mFragmentDurationUs;
+    private final TrackFormat.Converter mConverter;
+    private final Listener mListener;
+    private final ArrayList<Track> mTracks = new ArrayList<>();
+    private final Mp4Box mBox = new Mp4Box();
+    private int mVideoTrack = -1;
+    private boolean mStarted;
+    private boolean mFinished;
+    private int mSequence;
+    private long mOriginUs = -1;
+    private long mFragmentStartUs = -1;
+
+    private static class Sample {
+        final byte[] data;
+        final long presentationTimeUs;
+        final boolean sync;
+
+        Sample(byte[] data, long presentationTimeUs, boolean sync) {
+            this.data = data;
+            this.presentationTimeUs = presentationTimeUs;
+            this.sync = sync;
+        }
+    }
+
+    private static class Track {
+        final int id;
+        final TrackFormat format;
+        final ArrayList<Sample> samples = new ArrayList<>();
+        long lastDuration;
+        boolean synced;
+
+        Track(int id, TrackFormat format) {
+            this.id = id;
+            this.format = format;
+            lastDuration = format.isVideo() ? format.getTimescale() / DEFAULT_FRAME_RATE : AAC_FRAME_SAMPLES;
+        }
+    }
+
+    /**
+     * @param converter  for formats that are no {@link TrackFormat}, may be {@code null}
+     * @param listener   may be {@code null}
+     */
+    public FragmentedMp4Writer(RecordingSink sink, int orientationHint, int fragmentDurationMs,
+                               TrackFormat.Converter converter, Listener listener) {
+        if (fragmentDurationMs <= 0) {
+            throw new IllegalArgumentException("fragment duration must be positive: " + fragmentDurationMs);
+        }
+        mSink = sink;
+        mOrientationHint = orientationHint;
+        mFragmentDurationUs = fragmentDurationMs * 1000L;
+        mConverter = converter;
+        mListener = listener;
+    }
+
+    RecordingSink getSink() {
+        return mSink;
+    }
+
+    @Override
+    public int addTrack(Object format) {
+        if (mStarted) {
+            throw new IllegalStateException("already started");
+        }
+        TrackFormat trackFormat = format instanceof TrackFormat ? (TrackFormat) format
+                : mConverter == null ? null : mConverter.convert(format);
+        if (trackFormat == null) {
+            throw new IllegalArgumentException("unsupported format " + format);
+        }
+        if (trackFormat.isVideo() && mVideoTrack < 0) {
+            mVideoTrack = mTracks.size();
+        }
+        mTracks.add(new Track(mTracks.size() + 1, trackFormat));
+        return mTracks.size() - 1;
+    }
+
+    @Override
+    public void start() {
+        if (mStarted) {
+            throw new IllegalStateException("already started");
+        }
+        if (mTracks.isEmpty()) {
+            throw new IllegalStateException("no tracks");
+        }
+        mStarted = true;
+        TrackFormat[] formats = new TrackFormat[mTracks.size()];
+        for (int i = 0; i < formats.length; i++) {
+            formats[i] = mTracks.get(i).format;
+        }
+        mBox.reset();
+        Mp4Headers.writeFileType(mBox);
+        Mp4Headers.writeMovie(mBox, formats, mOrientationHint, null);
+        output(0);
+    }
+
+    @Override
+    public void writeSample(int track, EncodedSample sample) {
+        if (!mStarted || mFinished) {
+            throw new IllegalStateException("not started");
+        }
+        Track t = mTracks.get(track);
+        boolean video = t.format.isVideo();
+        if (video && !t.synced) {
+            // 从关键帧开始，之前的帧解不出来
+            if (!sample.isKeyFrame()) {
+                return;
+            }
+            t.synced = true;
+        }
+        boolean cutPoint = mVideoTrack < 0 || track == mVideoTrack && sample.isKeyFrame();
+        if (cutPoint && mFragmentStartUs >= 0
+                && sample.presentationTimeUs - mFragmentStartUs >= mFragmentDurationUs) {
+            writeFragment(track == mVideoTrack ? sample.presentationTimeUs : -1);
+        }
+        if (mFragmentStartUs < 0) {
+            mFragmentStartUs = sample.presentationTimeUs;
+        }
+        byte[] data = video ? toLengthPrefixed(sample.data) : copy(sample.data);
+        t.samples.add(new Sample(data, sample.presentationTimeUs, !video || sample.isKeyFrame()));
+    }
+
+    /**
+     * Write the last fragment and close the file.
+     */
+    @Override
+    public void stop() {
+        if (!mStarted || mFinished) {
+            throw new IllegalStateException("not started");
+        }
+        mFinished = true;
+        try {
+            writeFragment(-1);
+            mSink.close();
+        } catch (IllegalStateException e) {
+            closeQuietly();
+            throw e;
+        } catch (IOException e) {
+            throw new IllegalStateException("closing the file failed", e);
+        }
+    }
+
+    @Override
+    public void release() {
+        if (!mFinished) {
+            mFinished = true;
+            closeQuietly();
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            mSink.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @param nextVideoUs the time of the video frame after the fragment, {@code -1} if unknown
+     */
+    private void writeFragment(long nextVideoUs) {
+        long firstUs = Long.MAX_VALUE;
+        for (Track track : mTracks) {
+            if (!track.samples.isEmpty()) {
+                firstUs = Math.min(firstUs, track.samples.get(0).presentationTimeUs);
+            }
+        }
+        if (firstUs == Long.MAX_VALUE) {
+            return;
+        }
+        if (mOriginUs < 0) {
+            // the earliest sample of the first fragment is time zero for all tracks
+            mOriginUs = firstUs;
+        }
+        mSequence++;
+        Mp4Box box = mBox;
+        box.reset();
+        int moof = box.begin("moof");
+        int mfhd = box.beginFull("mfhd", 0, 0);
+        box.u32(mSequence);
+        box.end(mfhd);
+        int[] dataOffsets = new int[mTracks.size()];
+        long durationUs = 0;
+        for (int i = 0; i < mTracks.size(); i++) {
+            Track track = mTracks.get(i);
+            if (track.samples.isEmpty()) {
+                continue;
+            }
+            int timescale = track.format.getTimescale();
+            int traf = box.begin("traf");
+            int tfhd = box.beginFull("tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF);
+            box.u32(track.id);
+            box.end(tfhd);
+            int tfdt = box.beginFull("tfdt", 1, 0);
+            long start = toTrackTime(track.samples.get(0).presentationTimeUs, timescale);
+            box.u64(start);
+            box.end(tfdt);
+            int trun = box.beginFull("trun", 0, TRUN_FLAGS);
+            box.u32(track.samples.size());
+            dataOffsets[i] = box.size();
+            box.u32(0);
+            long time = start;
+            for (int s = 0; s < track.samples.size(); s++) {
+                Sample sample = track.samples.get(s);
+                long next;
+                if (s + 1 < track.samples.size()) {
+                    next = toTrackTime(track.samples.get(s + 1).presentationTimeUs, timescale);
+                } else if (i == mVideoTrack && nextVideoUs >= 0) {
+                    next = toTrackTime(nextVideoUs, timescale);
+                } else {
+                    next = time + track.lastDuration;
+                }
+                long duration = Math.max(0, next - time);
+                if (s + 1 < track.samples.size() || i == mVideoTrack && nextVideoUs >= 0) {
+                    track.lastDuration = duration;
+                }
+                box.u32(duration);
+                box.u32(sample.data.length);
+                box.u32(sample.sync ? SAMPLE_SYNC : SAMPLE_NON_SYNC);
+                time = next;
+            }
+            box.end(trun);
+            box.end(traf);
+            durationUs = Math.max(durationUs, (time - start) * 1000000L / timescale);
+        }
+        box.end(moof);
+        int mdat = box.begin("mdat");
+        for (int i = 0; i < mTracks.size(); i++) {
+            Track track = mTracks.get(i);
+            if (track.samples.isEmpty()) {
+                continue;
+            }
+            // trun data offsets count from the start of the moof
+            box.putInt(dataOffsets[i], box.size() - moof);
+            for (Sample sample : track.samples) {
+                box.bytes(sample.data);
+            }
+            track.samples.clear();
+        }
+        box.end(mdat);
+        mFragmentStartUs = nextVideoUs;
+        output(durationUs);
+    }
+
+    private long toTrackTime(long presentationTimeUs, int timescale) {
+        return Math.max(0, presentationTimeUs - mOriginUs) * timescale / 1000000L;
+    }
+
+    private void output(long durationUs) {
+        long offset = mSink.getPosition();
+        ByteBuffer data = mBox.toByteBuffer();
+        try {
+            mSink.write(data.duplicate());
+            mSink.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("writing fragment failed", e);
+        }
+        if (mListener != null) {
+            mListener.onFragmentWritten(offset, data.asReadOnlyBuffer(), durationUs);
+        }
+    }
+
+    private static byte[] copy(ByteBuffer data) {
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return the NAL units of an Annex B access unit, each behind its 4 byte length; data
+     * without start code is taken as already length prefixed
+     */
+    static byte[] toLengthPrefixed(ByteBuffer data) {
+        byte[] in = copy(data);
+        int first = TrackFormat.startCodeLength(in, 0, in.length);
+        if (first == 0) {
+            return in;
+        }
+        ArrayList<int[]> units = new ArrayList<>();
+        int start = first;
+        int size = 0;
+        int i = start;
+        while (i + 3 <= in.length) {
+            if (in[i] == 0 && in[i + 1] == 0 && in[i + 2] == 1) {
+                int end = i > start && in[i - 1] == 0 ? i - 1 : i;
+                units.add(new int[]{start, end});
+                size += 4 + end - start;
+                start = i + 3;
+                i = start;
+            } else {
+                i++;
+            }
+        }
+        units.add(new int[]{start, in.length});
+        size += 4 + in.length - start;
+        byte[] out = new byte[size];
+        int position = 0;
+        for (int[] unit : units) {
+            int length = unit[1] - unit[0];
+            out[position] = (byte) (length >>> 24);
+            out[position + 1] = (byte) (length >>> 16);
+            out[position + 2] = (byte) (length >>> 8);
+            out[position + 3] = (byte) length;
+            System.arraycopy(in, unit[0], out, position + 4, length);
+            position += 4 + length;
+        }
+        return out;
+    }
+}
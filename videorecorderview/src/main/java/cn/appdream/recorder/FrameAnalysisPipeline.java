@@ -0,0 +1,223 @@
+package cn.appdream.recorder;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs {@link FrameAnalyzer}s on the preview frames on a fixed number of worker threads; add it
+ * with {@link VideoRecorderView#addFrameConsumer(FrameConsumer)}.
+ * <p>
+ * Every analyzer keeps only the latest frame: while it is busy, a newer frame replaces the one
+ * waiting for it, which is released and counted as dropped. So a slow analyzer sees fewer
+ * frames but never old ones, and never holds more than two preview buffers; raise
+ * {@link VideoRecorderView#setFrameBufferCount(int)} when several slow analyzers run.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public class FrameAnalysisPipeline implements FrameConsumer {
+    /**
+     * Counters of one analyzer, see {@link #getStats(FrameAnalyzer)}.
+     */
+    public static final class Stats {
+        private final AtomicLong mAnalyzed = new AtomicLong();
+        private final AtomicLong mDropped = new AtomicLong();
+        private final AtomicLong mErrors = new AtomicLong();
+        private final LatencyHistogram mLatency = new LatencyHistogram();
+        private final LatencyHistogram mProcessingTime = new LatencyHistogram();
+
+        public long getAnalyzedCount() {
+            return mAnalyzed.get();
+        }
+
+        /**
+         * @return frames replaced by a newer one before the analyzer got to them
+         */
+        public long getDroppedCount() {
+            return mDropped.get();
+        }
+
+        /**
+         * @return how often {@link FrameAnalyzer#analyze(PreviewFrame)} threw
+         */
+        public long getErrorCount() {
+            return mErrors.get();
+        }
+
+        /**
+         * @return from the arrival of a frame to the end of its analysis
+         */
+        public LatencyHistogram getLatency() {
+            return mLatency;
+        }
+
+        /**
+         * @return time spent in {@link FrameAnalyzer#analyze(PreviewFrame)}
+         */
+        public LatencyHistogram getProcessingTime() {
+            return mProcessingTime;
+        }
+    }
+
+    private final Map<FrameAnalyzer, Slot> mSlots = new ConcurrentHashMap<>();
+    private final ExecutorService mWorkers;
+    private volatile boolean mReleased;
+
+    /**
+     * @param threadCount worker threads shared by all analyzers
+     */
+    public FrameAnalysisPipeline(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threads " + threadCount);
+        }
+        mWorkers = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "FrameAnalyzer-" + mCount.incrementAndGet());
+            }
+        });
+    }
+
+    public void addAnalyzer(FrameAnalyzer analyzer) {
+        if (!mSlots.containsKey(analyzer)) {
+            mSlots.put(analyzer, new Slot(analyzer));
+        }
+    }
+
+    /**
+     * A frame being analyzed finishes, one waiting is released.
+     */
+    public void removeAnalyzer(FrameAnalyzer analyzer) {
+        Slot slot = mSlots.remove(analyzer);
+        if (slot != null) {
+            slot.clear();
+        }
+    }
+
+    /**
+     * @return {@code null} if {@code analyzer} was not added
+     */
+    public Stats getStats(FrameAnalyzer analyzer) {
+        Slot slot = mSlots.get(analyzer);
+        return slot == null ? null : slot.mStats;
+    }
+
+    /**
+     * Stop the workers and release the waiting frames; later frames are released right away.
+     * Remove the pipeline from the view as well.
+     */
+    public void release() {
+        mReleased = true;
+        mWorkers.shutdown();
+        for (Slot slot : mSlots.values()) {
+            slot.clear();
+        }
+    }
+
+    @Override
+    public void onFrame(PreviewFrame frame) {
+        try {
+            if (mReleased) {
+                return;
+            }
+            for (Slot slot : mSlots.values()) {
+                slot.offer(frame);
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * The frame waiting for one analyzer; runs at most one task for it at a time.
+     */
+    private class Slot implements Runnable {
+        private final FrameAnalyzer mAnalyzer;
+        private final Stats mStats = new Stats();
+        private PreviewFrame mPending;
+        private boolean mScheduled;
+        private boolean mClosed;
+
+        Slot(FrameAnalyzer analyzer) {
+            mAnalyzer = analyzer;
+        }
+
+        void offer(PreviewFrame frame) {
+            PreviewFrame replaced;
+            boolean schedule;
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+                frame.retain();
+                replaced = mPending;
+                mPending = frame;
+                schedule = !mScheduled;
+                mScheduled = true;
+            }
+            if (replaced != null) {
+                mStats.mDropped.incrementAndGet();
+                replaced.release();
+            }
+            if (schedule) {
+                try {
+                    mWorkers.execute(this);
+                } catch (RuntimeException e) {
+                    // 已经release
+                    clear();
+                }
+            }
+        }
+
+        /**
+         * Release the waiting frame and take no more.
+         */
+        void clear() {
+            PreviewFrame pending;
+            synchronized (this) {
+                mClosed = true;
+                pending = mPending;
+                mPending = null;
+            }
+            if (pending != null) {
+                pending.release();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                PreviewFrame frame;
+                synchronized (this) {
+                    frame = mPending;
+                    mPending = null;
+                    if (frame == null) {
+                        mScheduled = false;
+                        return;
+                    }
+                }
+                long start = System.nanoTime();
+                try {
+                    mAnalyzer.analyze(frame);
+                    mStats.mAnalyzed.incrementAndGet();
+                } catch (RuntimeException e) {
+                    mStats.mErrors.incrementAndGet();
+                    e.printStackTrace();
+                } finally {
+                    long end = System.nanoTime();
+                    mStats.mProcessingTime.record(end - start);
+                    mStats.mLatency.record(end - frame.getTimestampNanos());
+                    frame.release();
+                }
+            }
+        }
+    }
+}
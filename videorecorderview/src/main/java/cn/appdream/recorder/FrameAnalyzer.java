@@ -0,0 +1,16 @@
+package cn.appdream.recorder;
+
+/**
+ * Looks at preview frames off the camera and dispatch threads, see {@link FrameAnalysisPipeline}.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public interface FrameAnalyzer {
+    /**
+     * Called on a worker thread, never for two frames at once. The frame is released once this
+     * returns; luminance only analyzers best read {@link PreviewFrame#getYPlane()}.
+     */
+    void analyze(PreviewFrame frame);
+}
@@ -0,0 +1,140 @@
+package cn.appdream.recorder;
+
+/**
+ * Fixed ring of preview buffers shared between the camera and frame consumers.
+ * <p>
+ * All buffers start queued at the camera. When none is queued the camera silently drops
+ * frames; the pool counts those from how long it stayed empty and the usual frame interval.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+class FrameBufferPool {
+
+    interface Recycler {
+        /**
+         * Give the buffer back to the camera. Called from any thread.
+         */
+        void recycle(byte[] buffer);
+    }
+
+    private final PreviewFrame[] mFrames;
+    private final Recycler mRecycler;
+    private int mQueued;
+    private long mLastTimestamp = -1;
+    private long mFrameInterval;
+    private long mEmptySince = -1;
+    private boolean mStarved;
+    private boolean mDetached;
+    private long mDelivered;
+    private long mExhausted;
+    private long mDropped;
+
+    /**
+     * @param bufferSize bytes per buffer, {@code width * height * 3 / 2} for NV21
+     */
+    FrameBufferPool(int count, int bufferSize, Recycler recycler) {
+        mRecycler = recycler;
+        mFrames = new PreviewFrame[count];
+        for (int i = 0; i < count; i++) {
+            mFrames[i] = new PreviewFrame(this, new byte[bufferSize]);
+        }
+    }
+
+    static int nv21Size(int width, int height) {
+        return width * height * 3 / 2;
+    }
+
+    /**
+     * Hand every buffer to the camera.
+     */
+    synchronized void queueAll() {
+        for (PreviewFrame frame : mFrames) {
+            mRecycler.recycle(frame.getData());
+        }
+        mQueued = mFrames.length;
+        mEmptySince = -1;
+        mLastTimestamp = -1;
+    }
+
+    /**
+     * Called when the camera filled {@code data}.
+     *
+     * @return the frame holding {@code refCount} references, or {@code null} if the buffer is not
+     * from this pool
+     */
+    synchronized PreviewFrame obtain(byte[] data, int width, int height, long timestampNanos, int refCount) {
+        PreviewFrame frame = null;
+        for (PreviewFrame it : mFrames) {
+            if (it.getData() == data) {
+                frame = it;
+                break;
+            }
+        }
+        if (frame == null) {
+            return null;
+        }
+        if (mLastTimestamp >= 0 && !mStarved) {
+            long delta = timestampNanos - mLastTimestamp;
+            mFrameInterval = mFrameInterval == 0 ? delta : (mFrameInterval * 7 + delta) / 8;
+        }
+        mStarved = false;
+        mLastTimestamp = timestampNanos;
+        mDelivered++;
+        if (--mQueued == 0) {
+            mExhausted++;
+            mEmptySince = timestampNanos;
+        }
+        frame.reset(width, height, timestampNanos, refCount);
+        return frame;
+    }
+
+    void recycle(PreviewFrame frame) {
+        recycle(frame, System.nanoTime());
+    }
+
+    synchronized void recycle(PreviewFrame frame, long nowNanos) {
+        if (mDetached) {
+            return;
+        }
+        if (mQueued == 0 && mEmptySince >= 0) {
+            if (mFrameInterval > 0) {
+                mDropped += (nowNanos - mEmptySince) / mFrameInterval;
+            }
+            mEmptySince = -1;
+            mStarved = true;
+        }
+        mQueued++;
+        mRecycler.recycle(frame.getData());
+    }
+
+    /**
+     * Stop handing buffers back, the camera is gone.
+     */
+    synchronized void detach() {
+        mDetached = true;
+    }
+
+    synchronized int getQueuedCount() {
+        return mQueued;
+    }
+
+    synchronized long getDeliveredCount() {
+        return mDelivered;
+    }
+
+    /**
+     * @return how often the camera was left without a buffer
+     */
+    synchronized long getExhaustedCount() {
+        return mExhausted;
+    }
+
+    /**
+     * @return estimated frames the camera dropped because no buffer was queued
+     */
+    synchronized long getDroppedCount() {
+        return mDropped;
+    }
+}
@@ -0,0 +1,16 @@
+package cn.appdream.recorder;
+
+/**
+ * Receives preview frames, see {@link VideoRecorderView#addFrameConsumer(FrameConsumer)}.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public interface FrameConsumer {
+    /**
+     * Called on the frame dispatch thread. The consumer owns one reference and must call
+     * {@link PreviewFrame#release()} when done, otherwise the camera runs out of buffers.
+     */
+    void onFrame(PreviewFrame frame);
+}
@@ -0,0 +1,46 @@
+package cn.appdream.recorder;
+
+/**
+ * Thins a stream of frames out to at most a target frame rate by their timestamps, e.g. the
+ * camera frames drawn into an encoder recording at a lower rate than the camera delivers. On
+ * average exactly the target rate is kept while the source is faster; a frame up to a quarter
+ * interval early still counts, so jitter of a source at the target rate drops nothing. Not
+ * thread safe.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+class FramePacer {
+    private final long mIntervalNanos;
+    private long mNextNanos = -1;
+
+    /**
+     * @param frameRate {@code 0} to keep every frame
+     */
+    FramePacer(int frameRate) {
+        if (frameRate < 0) {
+            throw new IllegalArgumentException("frame rate " + frameRate);
+        }
+        mIntervalNanos = frameRate == 0 ? 0 : 1000000000L / frameRate;
+    }
+
+    /**
+     * @return whether the frame taken at {@code timestampNanos} is kept
+     */
+    boolean accept(long timestampNanos) {
+        if (mIntervalNanos == 0) {
+            return true;
+        }
+        if (mNextNanos >= 0 && timestampNanos < mNextNanos - mIntervalNanos / 4) {
+            return false;
+        }
+        if (mNextNanos < 0 || timestampNanos - mNextNanos >= mIntervalNanos) {
+            // 第一帧或者断了一段, 从这一帧重新计
+            mNextNanos = timestampNanos + mIntervalNanos;
+        } else {
+            mNextNanos += mIntervalNanos;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,54 @@
+package cn.appdream.recorder;
+
+/**
+ * When recorded data is forced to the storage device. Syncing costs write throughput, not
+ * syncing risks losing the last seconds of a recording on power loss or a crash of the
+ * system.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public final class FsyncPolicy {
+    /**
+     * Leave it to the system.
+     */
+    public static final FsyncPolicy NEVER = new FsyncPolicy(0);
+    /**
+     * Sync when a file or segment is complete.
+     */
+    public static final FsyncPolicy PER_SEGMENT = new FsyncPolicy(-1);
+
+    private final long mBytes;
+
+    private FsyncPolicy(long bytes) {
+        mBytes = bytes;
+    }
+
+    /**
+     * Sync every {@code bytes} written and when a file is complete. Writers that do not see
+     * the bytes, like {@code MediaRecorder}, only sync complete files.
+     */
+    public static FsyncPolicy everyBytes(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("bytes must be positive: " + bytes);
+        }
+        return new FsyncPolicy(bytes);
+    }
+
+    public boolean syncsSegments() {
+        return mBytes != 0;
+    }
+
+    /**
+     * @return the bytes between syncs, {@code 0} if not syncing by size
+     */
+    public long getSyncBytes() {
+        return Math.max(0, mBytes);
+    }
+
+    @Override
+    public String toString() {
+        return mBytes == 0 ? "NEVER" : mBytes < 0 ? "PER_SEGMENT" : "EVERY_" + mBytes + "_BYTES";
+    }
+}
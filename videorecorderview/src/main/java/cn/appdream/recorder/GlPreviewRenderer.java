@@ -0,0 +1,388 @@
+package cn.appdream.recorder;
+
+import android.annotation.TargetApi;
+import android.graphics.SurfaceTexture;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Receives camera frames in a {@link SurfaceTexture} and draws every frame into the display
+ * surfaces and any attached encoder input surface, so one camera stream feeds all of them
+ * without a CPU copy. Each owner, a view, has one display surface; a {@link CameraSession}
+ * shared by several views draws into each of them. Encoders recording at a lower frame rate
+ * than the camera's get only that many frames, see {@link FramePacer}. The frame is rotated on
+ * the GPU and center-cropped to the aspect ratio of each target, see {@link PreviewTransform}.
+ * <p>
+ * All GL work happens on an own thread; the public methods may be called from any thread and
+ * return once the change is applied.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+class GlPreviewRenderer implements VideoInput, SurfaceTexture.OnFrameAvailableListener {
+    private static final String TAG = "GlPreviewRenderer";
+
+    private final Object mLock = new Object();
+    private HandlerThread mThread;
+    private volatile Handler mHandler;
+
+    // render thread only
+    private EglCore mEglCore;
+    private EGLSurface mOffscreenSurface;
+    private OesTextureProgram mProgram;
+    private int mTexture;
+    private SurfaceTexture mSurfaceTexture;
+    private final float[] mTexMatrix = new float[16];
+    private final ArrayList<Target> mTargets = new ArrayList<>();
+    private boolean mEncoderMirrored;
+    private int mFrameWidth;
+    private int mFrameHeight;
+    private int mRotation;
+    private volatile RecorderMetrics mMetrics;
+
+    private static class Target {
+        final Object owner;
+        final Object surface;
+        final EGLSurface eglSurface;
+        final boolean encoder;
+        /**
+         * {@code null} for display surfaces, they get every frame.
+         */
+        FramePacer pacer;
+        final float[] mvpMatrix = new float[16];
+        int width;
+        int height;
+
+        Target(Object owner, Object surface, EGLSurface eglSurface, boolean encoder) {
+            this.owner = owner;
+            this.surface = surface;
+            this.eglSurface = eglSurface;
+            this.encoder = encoder;
+            Matrix.setIdentityM(mvpMatrix, 0);
+        }
+    }
+
+    /**
+     * @param metrics counts the camera frames, may be {@code null}
+     */
+    void setMetrics(RecorderMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Start the render thread if needed.
+     *
+     * @return the texture the camera has to render into
+     */
+    SurfaceTexture start() {
+        synchronized (mLock) {
+            if (mThread == null) {
+                mThread = new HandlerThread("GlPreviewRenderer");
+                mThread.start();
+                mHandler = new Handler(mThread.getLooper());
+                runAndWait(new Runnable() {
+                    @Override
+                    public void run() {
+                        init();
+                    }
+                });
+            }
+            return mSurfaceTexture;
+        }
+    }
+
+    /**
+     * @param owner   the view showing the preview, replaces its previous display surface
+     * @param surface the view surface, {@code null} when it is gone
+     */
+    void setDisplaySurface(final Object owner, final Object surface, final int width, final int height) {
+        if (!isStarted()) {
+            return;
+        }
+        runAndWait(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = mTargets.size() - 1; i >= 0; i--) {
+                    Target target = mTargets.get(i);
+                    if (!target.encoder && target.owner == owner && target.surface != surface) {
+                        removeTarget(i);
+                    }
+                }
+                if (surface != null) {
+                    Target target = findTarget(surface);
+                    if (target == null) {
+                        target = addTarget(owner, surface, false);
+                    }
+                    if (target != null) {
+                        target.width = width;
+                        target.height = height;
+                        updateMatrix(target);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @param frameWidth  width of the camera frames in the texture
+     * @param frameHeight height of the camera frames in the texture
+     * @param rotation    clockwise rotation that shows the frames upright
+     */
+    void setGeometry(final int frameWidth, final int frameHeight, final int rotation) {
+        if (!isStarted()) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mFrameWidth = frameWidth;
+                mFrameHeight = frameHeight;
+                mRotation = rotation;
+                for (Target target : mTargets) {
+                    updateMatrix(target);
+                }
+            }
+        });
+    }
+
+    /**
+     * Follow the size and rotation of the frames {@code backend} renders into the texture; on
+     * the camera thread once it opened or switched a camera.
+     */
+    void followCamera(CameraBackend backend) {
+        CameraHelper.Size size = backend.getSize();
+        if (size == null) {
+            return;
+        }
+        int applied = backend.getTextureRotation();
+        int width = size.getWidth();
+        int height = size.getHeight();
+        if (applied == 90 || applied == 270) {
+            // 纹理里已经转过的帧
+            width = size.getHeight();
+            height = size.getWidth();
+        }
+        setGeometry(width, height, PreviewTransform.remainingRotation(backend.getDisplayOrientation(), applied));
+        setEncoderMirrored(backend.isFrontFacing());
+    }
+
+    /**
+     * Flip recorded frames horizontally, to undo the mirroring of front camera previews.
+     */
+    void setEncoderMirrored(final boolean mirrored) {
+        if (!isStarted()) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mEncoderMirrored = mirrored;
+                for (Target target : mTargets) {
+                    updateMatrix(target);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void attachEncoderSurface(final Object surface, final int width, final int height,
+                                     final int frameRate) {
+        start();
+        runAndWait(new Runnable() {
+            @Override
+            public void run() {
+                Target target = addTarget(null, surface, true);
+                if (target != null) {
+                    target.pacer = new FramePacer(frameRate);
+                    target.width = width;
+                    target.height = height;
+                    updateMatrix(target);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void detachEncoderSurface(final Object surface) {
+        if (!isStarted()) {
+            return;
+        }
+        runAndWait(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = mTargets.size() - 1; i >= 0; i--) {
+                    if (mTargets.get(i).surface == surface) {
+                        removeTarget(i);
+                    }
+                }
+            }
+        });
+    }
+
+    void release() {
+        synchronized (mLock) {
+            if (mThread == null) {
+                return;
+            }
+            runAndWait(new Runnable() {
+                @Override
+                public void run() {
+                    releaseGl();
+                }
+            });
+            mThread.quit();
+            mThread = null;
+            mHandler = null;
+        }
+    }
+
+    @Override
+    public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+        // delivered on the render thread, the texture was created there
+        if (mEglCore == null) {
+            return;
+        }
+        RecorderMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.onPreviewFrame(System.nanoTime());
+        }
+        try {
+            drawFrame();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "draw frame", e);
+        }
+    }
+
+    private boolean isStarted() {
+        synchronized (mLock) {
+            return mThread != null;
+        }
+    }
+
+    private void init() {
+        mEglCore = new EglCore();
+        mOffscreenSurface = mEglCore.createOffscreenSurface(1, 1);
+        mEglCore.makeCurrent(mOffscreenSurface);
+        mProgram = new OesTextureProgram();
+        mTexture = OesTextureProgram.createTexture();
+        mSurfaceTexture = new SurfaceTexture(mTexture);
+        mSurfaceTexture.setOnFrameAvailableListener(this);
+    }
+
+    private void drawFrame() {
+        mEglCore.makeCurrent(mTargets.isEmpty() ? mOffscreenSurface : mTargets.get(0).eglSurface);
+        mSurfaceTexture.updateTexImage();
+        if (mTargets.isEmpty()) {
+            return;
+        }
+        mSurfaceTexture.getTransformMatrix(mTexMatrix);
+        long timestamp = mSurfaceTexture.getTimestamp();
+        for (int i = 0; i < mTargets.size(); i++) {
+            Target target = mTargets.get(i);
+            if (target.pacer != null && !target.pacer.accept(timestamp)) {
+                // 质量控制降了帧率, 编码器只拿到这么多帧
+                continue;
+            }
+            mEglCore.makeCurrent(target.eglSurface);
+            GLES20.glViewport(0, 0, target.width, target.height);
+            mProgram.draw(mTexture, target.mvpMatrix, mTexMatrix);
+            if (target.encoder) {
+                mEglCore.setPresentationTime(target.eglSurface, timestamp);
+            }
+            mEglCore.swapBuffers(target.eglSurface);
+        }
+    }
+
+    private Target findTarget(Object surface) {
+        for (Target target : mTargets) {
+            if (target.surface == surface) {
+                return target;
+            }
+        }
+        return null;
+    }
+
+    private Target addTarget(Object owner, Object surface, boolean encoder) {
+        try {
+            Target target = new Target(owner, surface, mEglCore.createWindowSurface(surface), encoder);
+            updateMatrix(target);
+            mTargets.add(target);
+            return target;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "can not render into " + surface, e);
+            return null;
+        }
+    }
+
+    private void removeTarget(int index) {
+        Target target = mTargets.remove(index);
+        mEglCore.makeCurrent(mOffscreenSurface);
+        mEglCore.releaseSurface(target.eglSurface);
+    }
+
+    private void updateMatrix(Target target) {
+        PreviewTransform.centerCrop(mFrameWidth, mFrameHeight, mRotation, target.encoder && mEncoderMirrored,
+                target.width, target.height, target.mvpMatrix);
+    }
+
+    private void releaseGl() {
+        if (mEglCore == null) {
+            return;
+        }
+        while (!mTargets.isEmpty()) {
+            removeTarget(mTargets.size() - 1);
+        }
+        mSurfaceTexture.setOnFrameAvailableListener(null);
+        mSurfaceTexture.release();
+        mSurfaceTexture = null;
+        mProgram.release();
+        GLES20.glDeleteTextures(1, new int[]{mTexture}, 0);
+        mEglCore.releaseSurface(mOffscreenSurface);
+        mEglCore.release();
+        mEglCore = null;
+    }
+
+    private void runAndWait(final Runnable runnable) {
+        Handler handler = mHandler;
+        if (handler == null) {
+            return;
+        }
+        if (Thread.currentThread() == handler.getLooper().getThread()) {
+            runnable.run();
+            return;
+        }
+        final CountDownLatch latch = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } finally {
+                    latch.countDown();
+                }
+            }
+        });
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package cn.appdream.recorder;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Decodes one group of pictures and encodes the part of it after a cut again, so
+ * {@link ClipEditor} can start a clip between key frames. See {@link MediaCodecGopTranscoder}.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+interface GopTranscoder {
+
+    /**
+     * Receives the encoded samples in order.
+     */
+    interface Output {
+        void onSample(EncodedSample sample) throws IOException;
+    }
+
+    /**
+     * @param gop    a key frame and the frames up to the next one, in decode order
+     * @param fromUs frames before this time are decoded but not encoded
+     * @param output gets the new frames with their original times; the first is a key frame
+     *               that carries the parameter sets of the encoder in band
+     */
+    void transcode(List<EncodedSample> gop, long fromUs, Output output) throws IOException;
+
+    void release();
+}
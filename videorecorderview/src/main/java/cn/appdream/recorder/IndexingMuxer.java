@@ -0,0 +1,93 @@
+package cn.appdream.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * {@link MuxerBackend} that keeps a {@link RecordingIndex} next to the file of the muxer it wraps
+ * while recording. The index goes away once the muxer stopped cleanly and stays when it was only
+ * released, for {@link RecordingRecovery}. Failing to write the index never fails the recording,
+ * it just is not recoverable.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+class IndexingMuxer implements MuxerBackend {
+    private final MuxerBackend mMuxer;
+    private final File mIndexFile;
+    private final int mOrientationHint;
+    private final TrackFormat.Converter mConverter;
+    private final ArrayList<TrackFormat> mFormats = new ArrayList<>();
+    private final ArrayList<Integer> mTracks = new ArrayList<>();
+    private RecordingIndex.Writer mIndex;
+    private boolean mUnsupported;
+
+    IndexingMuxer(MuxerBackend muxer, String path, int orientationHint, TrackFormat.Converter converter) {
+        mMuxer = muxer;
+        mIndexFile = RecordingIndex.fileFor(new File(path));
+        mOrientationHint = orientationHint;
+        mConverter = converter;
+    }
+
+    @Override
+    public int addTrack(Object format) {
+        int track = mMuxer.addTrack(format);
+        TrackFormat trackFormat = format instanceof TrackFormat ? (TrackFormat) format
+                : mConverter == null ? null : mConverter.convert(format);
+        if (trackFormat == null) {
+            mUnsupported = true;
+        }
+        mFormats.add(trackFormat);
+        mTracks.add(track);
+        return track;
+    }
+
+    @Override
+    public void start() {
+        mMuxer.start();
+        if (mUnsupported) {
+            return;
+        }
+        try {
+            mIndex = new RecordingIndex.Writer(mIndexFile, mOrientationHint,
+                    mFormats.toArray(new TrackFormat[mFormats.size()]));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void writeSample(int track, EncodedSample sample) {
+        mMuxer.writeSample(track, sample);
+        if (mIndex == null) {
+            return;
+        }
+        try {
+            mIndex.write(mTracks.indexOf(track), sample.flags, sample.size(), sample.presentationTimeUs);
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeIndex(true);
+        }
+    }
+
+    @Override
+    public void stop() {
+        mMuxer.stop();
+        closeIndex(true);
+    }
+
+    @Override
+    public void release() {
+        mMuxer.release();
+        closeIndex(false);
+    }
+
+    private void closeIndex(boolean delete) {
+        if (mIndex != null) {
+            mIndex.close(delete);
+            mIndex = null;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package cn.appdream.recorder;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free latency histogram with power of two microsecond buckets: bucket {@code i} counts
+ * latencies below {@code 2^i} microseconds and at least half of that. Recording never
+ * allocates or blocks, so it is fine on encoder and writer threads; reading while recording
+ * gives a slightly torn but usable view.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public class LatencyHistogram {
+    /**
+     * The last bucket holds everything from about 34 s on.
+     */
+    public static final int BUCKET_COUNT = 26;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSumMicros = new AtomicLong();
+    private final AtomicLong mMaxMicros = new AtomicLong();
+
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        mBuckets.incrementAndGet(bucketOf(micros));
+        mCount.incrementAndGet();
+        mSumMicros.addAndGet(micros);
+        long max = mMaxMicros.get();
+        while (micros > max && !mMaxMicros.compareAndSet(max, micros)) {
+            max = mMaxMicros.get();
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMaxMicros() {
+        return mMaxMicros.get();
+    }
+
+    public long getMeanMicros() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSumMicros.get() / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper bound of the bucket the percentile falls into, {@code 0} when empty
+     */
+    public long getPercentileMicros(double percentile) {
+        long count = 0;
+        long[] buckets = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = mBuckets.get(i);
+            count += buckets[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets[i];
+            if (seen >= Math.max(1, rank)) {
+                return Math.min(upperBoundMicros(i), mMaxMicros.get());
+            }
+        }
+        return mMaxMicros.get();
+    }
+
+    /**
+     * @return the count of bucket {@code index}, see {@link #upperBoundMicros(int)}
+     */
+    public long getBucketCount(int index) {
+        return mBuckets.get(index);
+    }
+
+    /**
+     * @return the exclusive upper bound of bucket {@code index}
+     */
+    public static long upperBoundMicros(int index) {
+        return 1L << index;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSumMicros.set(0);
+        mMaxMicros.set(0);
+    }
+
+    static int bucketOf(long micros) {
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+}
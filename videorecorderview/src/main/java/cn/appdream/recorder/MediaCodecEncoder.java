@@ -0,0 +1,187 @@
+package cn.appdream.recorder;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link EncoderBackend} on top of {@link MediaCodec}.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+class MediaCodecEncoder implements EncoderBackend {
+    static final String MIME_VIDEO = MediaFormat.MIMETYPE_VIDEO_AVC;
+    static final String MIME_AUDIO = MediaFormat.MIMETYPE_AUDIO_AAC;
+
+    /**
+     * {@code MediaFormat.KEY_BITRATE_MODE}, API 21.
+     */
+    private static final String KEY_BITRATE_MODE = "bitrate-mode";
+    /**
+     * {@code MediaFormat.KEY_MAX_B_FRAMES}, API 29.
+     */
+    private static final String KEY_MAX_B_FRAMES = "max-bframes";
+
+    private final MediaCodec mCodec;
+    private final Surface mInputSurface;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+
+    private MediaCodecEncoder(MediaCodec codec, MediaFormat format, boolean surfaceInput) {
+        mCodec = codec;
+        mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mInputSurface = surfaceInput ? mCodec.createInputSurface() : null;
+    }
+
+    static MediaCodecEncoder createVideo(RecordingConfig config) throws IOException {
+        MediaFormat format = MediaFormat.createVideoFormat(MIME_VIDEO, config.getVideoWidth(), config.getVideoHeight());
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, config.getVideoBitRate());
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, config.getFrameRate());
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, config.getKeyFrameInterval());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            format.setInteger(KEY_BITRATE_MODE, config.getBitrateMode());
+        }
+        format.setInteger(KEY_MAX_B_FRAMES, config.getMaxBFrames());
+        return create(MIME_VIDEO, format, true);
+    }
+
+    static MediaCodecEncoder createAudio(RecordingConfig config) throws IOException {
+        MediaFormat format = MediaFormat.createAudioFormat(MIME_AUDIO, config.getAudioSampleRate(), config.getAudioChannels());
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, config.getAudioBitRate());
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 16 * 1024);
+        return create(MIME_AUDIO, format, false);
+    }
+
+    private static MediaCodecEncoder create(String mime, MediaFormat format, boolean surfaceInput) throws IOException {
+        MediaCodec codec = MediaCodec.createEncoderByType(mime);
+        try {
+            return new MediaCodecEncoder(codec, format, surfaceInput);
+        } catch (RuntimeException e) {
+            codec.release();
+            throw new IOException("can not configure " + format, e);
+        }
+    }
+
+    @Override
+    public void start() {
+        mCodec.start();
+        mInputBuffers = mInputSurface == null ? mCodec.getInputBuffers() : null;
+        mOutputBuffers = mCodec.getOutputBuffers();
+    }
+
+    @Override
+    public Object getInputSurface() {
+        return mInputSurface;
+    }
+
+    @Override
+    public boolean queueInput(ByteBuffer data, long presentationTimeUs, boolean endOfStream, long timeoutUs) {
+        int index = mCodec.dequeueInputBuffer(timeoutUs);
+        if (index < 0) {
+            return false;
+        }
+        ByteBuffer input = mInputBuffers[index];
+        input.clear();
+        int size = data.remaining();
+        input.put(data);
+        mCodec.queueInputBuffer(index, 0, size, presentationTimeUs,
+                endOfStream ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+        return true;
+    }
+
+    @Override
+    public void signalEndOfInput() {
+        if (mInputSurface != null) {
+            mCodec.signalEndOfInputStream();
+        }
+    }
+
+    @Override
+    public void requestKeyFrame() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            try {
+                mCodec.setParameters(params);
+            } catch (IllegalStateException ignored) {
+                // stopped meanwhile
+            }
+        }
+    }
+
+    @Override
+    public void setBitRate(int bitsPerSecond) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitsPerSecond);
+            try {
+                mCodec.setParameters(params);
+            } catch (IllegalStateException ignored) {
+                // stopped meanwhile
+            }
+        }
+    }
+
+    @Override
+    public int dequeueOutput(EncodedSample sample, long timeoutUs) {
+        while (true) {
+            int index = mCodec.dequeueOutputBuffer(mInfo, timeoutUs);
+            if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                mOutputBuffers = mCodec.getOutputBuffers();
+                continue;
+            }
+            if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                return STATUS_FORMAT_CHANGED;
+            }
+            if (index < 0) {
+                return STATUS_TRY_AGAIN;
+            }
+            ByteBuffer data = mOutputBuffers[index];
+            data.limit(mInfo.offset + mInfo.size);
+            data.position(mInfo.offset);
+            sample.data = data;
+            sample.presentationTimeUs = mInfo.presentationTimeUs;
+            sample.flags = mInfo.flags;
+            sample.bufferIndex = index;
+            return STATUS_OK;
+        }
+    }
+
+    @Override
+    public Object getOutputFormat() {
+        return mCodec.getOutputFormat();
+    }
+
+    @Override
+    public void releaseOutput(EncodedSample sample) {
+        mCodec.releaseOutputBuffer(sample.bufferIndex, false);
+        sample.bufferIndex = -1;
+        sample.data = null;
+    }
+
+    @Override
+    public void release() {
+        try {
+            mCodec.stop();
+        } catch (IllegalStateException ignored) {
+            // not started
+        }
+        mCodec.release();
+        if (mInputSurface != null) {
+            mInputSurface.release();
+        }
+    }
+}
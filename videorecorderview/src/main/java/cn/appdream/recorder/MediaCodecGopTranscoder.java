@@ -0,0 +1,187 @@
+package cn.appdream.recorder;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * {@link GopTranscoder} with the platform codecs: the decoder renders straight into the input
+ * surface of an H.264 encoder, frames before the cut are dropped instead of rendered. Both
+ * codecs only live for one group of pictures, cuts are rare.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+class MediaCodecGopTranscoder implements GopTranscoder {
+    private static final long TIMEOUT_US = 10000;
+    /**
+     * Give up after this long without any codec output.
+     */
+    private static final long STALL_TIMEOUT_NS = 5000000000L;
+    private static final int FRAME_RATE = 30;
+    /**
+     * Bits per pixel and frame when the source does not tell its bitrate; generous, the frames
+     * sit next to copied ones.
+     */
+    private static final float BITS_PER_PIXEL = 0.25f;
+
+    private final MediaFormat mInputFormat;
+    private final MediaFormat mOutputFormat;
+
+    MediaCodecGopTranscoder(MediaFormat format) {
+        mInputFormat = format;
+        int width = format.getInteger(MediaFormat.KEY_WIDTH);
+        int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+        mOutputFormat = MediaFormat.createVideoFormat(MediaCodecEncoder.MIME_VIDEO, width, height);
+        mOutputFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        mOutputFormat.setInteger(MediaFormat.KEY_BIT_RATE, format.containsKey(MediaFormat.KEY_BIT_RATE)
+                ? format.getInteger(MediaFormat.KEY_BIT_RATE) : (int) (width * height * FRAME_RATE * BITS_PER_PIXEL));
+        mOutputFormat.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        mOutputFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+    }
+
+    @Override
+    public void transcode(List<EncodedSample> gop, long fromUs, Output output) throws IOException {
+        MediaCodec encoder = null;
+        Surface surface = null;
+        MediaCodec decoder = null;
+        try {
+            encoder = MediaCodec.createEncoderByType(MediaCodecEncoder.MIME_VIDEO);
+            encoder.configure(mOutputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            surface = encoder.createInputSurface();
+            encoder.start();
+            decoder = MediaCodec.createDecoderByType(mInputFormat.getString(MediaFormat.KEY_MIME));
+            decoder.configure(mInputFormat, surface, null, 0);
+            decoder.start();
+            run(decoder, encoder, gop, fromUs, output);
+        } catch (RuntimeException e) {
+            throw new IOException("re-encoding from " + fromUs + " failed", e);
+        } finally {
+            release(decoder);
+            release(encoder);
+            if (surface != null) {
+                surface.release();
+            }
+        }
+    }
+
+    private static void run(MediaCodec decoder, MediaCodec encoder, List<EncodedSample> gop, long fromUs,
+                            Output output) throws IOException {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        ByteBuffer[] decoderInputs = decoder.getInputBuffers();
+        ByteBuffer[] encoderOutputs = encoder.getOutputBuffers();
+        EncodedSample sample = new EncodedSample();
+        byte[] parameterSets = null;
+        boolean parametersSent = false;
+        int fed = 0;
+        boolean inputDone = false;
+        boolean decoderDone = false;
+        long lastProgress = System.nanoTime();
+        while (true) {
+            if (!inputDone) {
+                int index = decoder.dequeueInputBuffer(TIMEOUT_US);
+                if (index >= 0) {
+                    if (fed == gop.size()) {
+                        decoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        inputDone = true;
+                    } else {
+                        EncodedSample in = gop.get(fed++);
+                        ByteBuffer buffer = decoderInputs[index];
+                        buffer.clear();
+                        buffer.put(in.data.duplicate());
+                        decoder.queueInputBuffer(index, 0, in.size(), in.presentationTimeUs,
+                                in.isKeyFrame() ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+                    }
+                }
+            }
+            if (!decoderDone) {
+                int index = decoder.dequeueOutputBuffer(info, TIMEOUT_US);
+                if (index >= 0) {
+                    // 切点之前的帧只解码不编码
+                    decoder.releaseOutputBuffer(index, info.size > 0 && info.presentationTimeUs >= fromUs);
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        encoder.signalEndOfInputStream();
+                        decoderDone = true;
+                    }
+                    lastProgress = System.nanoTime();
+                }
+            }
+            int index = encoder.dequeueOutputBuffer(info, TIMEOUT_US);
+            if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                encoderOutputs = encoder.getOutputBuffers();
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                MediaFormat format = encoder.getOutputFormat();
+                parameterSets = concat(format.getByteBuffer("csd-0"), format.getByteBuffer("csd-1"));
+            } else if (index >= 0) {
+                lastProgress = System.nanoTime();
+                boolean end = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+                    ByteBuffer data = encoderOutputs[index];
+                    data.limit(info.offset + info.size);
+                    data.position(info.offset);
+                    if (!parametersSent && parameterSets != null) {
+                        ByteBuffer withSets = ByteBuffer.allocate(parameterSets.length + info.size);
+                        withSets.put(parameterSets);
+                        withSets.put(data);
+                        withSets.flip();
+                        data = withSets;
+                        parametersSent = true;
+                    }
+                    sample.data = data;
+                    sample.presentationTimeUs = info.presentationTimeUs;
+                    sample.flags = info.flags & EncodedSample.FLAG_KEY_FRAME;
+                    try {
+                        output.onSample(sample);
+                    } finally {
+                        encoder.releaseOutputBuffer(index, false);
+                    }
+                } else {
+                    encoder.releaseOutputBuffer(index, false);
+                }
+                if (end) {
+                    return;
+                }
+            }
+            if (System.nanoTime() - lastProgress > STALL_TIMEOUT_NS) {
+                throw new IOException("codecs stalled re-encoding from " + fromUs);
+            }
+        }
+    }
+
+    private static byte[] concat(ByteBuffer sps, ByteBuffer pps) {
+        ByteBuffer first = sps.duplicate();
+        ByteBuffer second = pps.duplicate();
+        first.rewind();
+        second.rewind();
+        byte[] bytes = new byte[first.remaining() + second.remaining()];
+        first.get(bytes, 0, first.remaining());
+        second.get(bytes, bytes.length - second.remaining(), second.remaining());
+        return bytes;
+    }
+
+    private static void release(MediaCodec codec) {
+        if (codec == null) {
+            return;
+        }
+        try {
+            codec.stop();
+        } catch (IllegalStateException ignored) {
+            // not started
+        }
+        codec.release();
+    }
+
+    @Override
+    public void release() {
+    }
+}
@@ -0,0 +1,122 @@
+package cn.appdream.recorder;
+
+import android.annotation.TargetApi;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMetadataRetriever;
+import android.os.Build;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link SampleSource} reading a file through {@link MediaExtractor}, all tracks selected.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+class MediaExtractorSource implements SampleSource {
+    private static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    private final MediaExtractor mExtractor = new MediaExtractor();
+    private final int mOrientationHint;
+    private final ByteBuffer mBuffer;
+
+    MediaExtractorSource(String path) throws IOException {
+        try {
+            mExtractor.setDataSource(path);
+        } catch (IOException e) {
+            mExtractor.release();
+            throw e;
+        }
+        int bufferSize = DEFAULT_BUFFER_SIZE;
+        for (int i = 0; i < mExtractor.getTrackCount(); i++) {
+            mExtractor.selectTrack(i);
+            MediaFormat format = mExtractor.getTrackFormat(i);
+            if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+                bufferSize = Math.max(bufferSize, format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+            }
+        }
+        mBuffer = ByteBuffer.allocateDirect(bufferSize);
+        mOrientationHint = readOrientation(path);
+    }
+
+    private static int readOrientation(String path) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(path);
+            String rotation = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION);
+            return rotation == null ? 0 : Integer.parseInt(rotation);
+        } catch (RuntimeException e) {
+            return 0;
+        } finally {
+            retriever.release();
+        }
+    }
+
+    @Override
+    public int getTrackCount() {
+        return mExtractor.getTrackCount();
+    }
+
+    @Override
+    public Object getTrackFormat(int track) {
+        return mExtractor.getTrackFormat(track);
+    }
+
+    @Override
+    public boolean isVideoTrack(int track) {
+        String mime = mExtractor.getTrackFormat(track).getString(MediaFormat.KEY_MIME);
+        return mime != null && mime.startsWith("video/");
+    }
+
+    @Override
+    public int getOrientationHint() {
+        return mOrientationHint;
+    }
+
+    @Override
+    public long getDurationUs() {
+        long duration = 0;
+        for (int i = 0; i < mExtractor.getTrackCount(); i++) {
+            MediaFormat format = mExtractor.getTrackFormat(i);
+            if (format.containsKey(MediaFormat.KEY_DURATION)) {
+                duration = Math.max(duration, format.getLong(MediaFormat.KEY_DURATION));
+            }
+        }
+        return duration;
+    }
+
+    @Override
+    public void seekTo(long timeUs) {
+        mExtractor.seekTo(timeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+    }
+
+    @Override
+    public int readSample(EncodedSample sample) {
+        int track = mExtractor.getSampleTrackIndex();
+        if (track < 0) {
+            return -1;
+        }
+        mBuffer.clear();
+        int size = mExtractor.readSampleData(mBuffer, 0);
+        if (size < 0) {
+            return -1;
+        }
+        mBuffer.position(0);
+        mBuffer.limit(size);
+        sample.data = mBuffer;
+        sample.presentationTimeUs = mExtractor.getSampleTime();
+        sample.flags = (mExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0
+                ? EncodedSample.FLAG_KEY_FRAME : 0;
+        mExtractor.advance();
+        return track;
+    }
+
+    @Override
+    public void release() {
+        mExtractor.release();
+    }
+}
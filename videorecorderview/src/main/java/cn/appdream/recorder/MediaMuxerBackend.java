@@ -0,0 +1,53 @@
+package cn.appdream.recorder;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+
+import java.io.IOException;
+
+/**
+ * {@link MuxerBackend} writing MPEG-4 through {@link MediaMuxer}.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+class MediaMuxerBackend implements MuxerBackend {
+    private final MediaMuxer mMuxer;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+    MediaMuxerBackend(String path, int orientationHint) throws IOException {
+        mMuxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        mMuxer.setOrientationHint(orientationHint);
+    }
+
+    @Override
+    public int addTrack(Object format) {
+        return mMuxer.addTrack((MediaFormat) format);
+    }
+
+    @Override
+    public void start() {
+        mMuxer.start();
+    }
+
+    @Override
+    public void writeSample(int track, EncodedSample sample) {
+        mInfo.set(sample.data.position(), sample.size(), sample.presentationTimeUs, sample.flags);
+        mMuxer.writeSampleData(track, sample.data, mInfo);
+    }
+
+    @Override
+    public void stop() {
+        mMuxer.stop();
+    }
+
+    @Override
+    public void release() {
+        mMuxer.release();
+    }
+}
@@ -0,0 +1,271 @@
+package cn.appdream.recorder;
+
+import android.hardware.Camera;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+
+/**
+ * {@link RecordingEngine} letting {@link MediaRecorder} drive the camera directly.
+ * <p>
+ * Must be used on the camera thread, the camera is unlocked while recording and reconnected on
+ * {@link #stop()}.
+ * <p>
+ * Segmented recordings need {@code MediaRecorder.setNextOutputFile}, API 26, which switches
+ * files at a size limit only; a segment duration is turned into a size from the bitrates.
+ * Older devices record a single file.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+class MediaRecorderEngine implements RecordingEngine, MediaRecorder.OnInfoListener {
+    private static final String TAG = "MediaRecorderEngine";
+    /**
+     * {@code MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_APPROACHING}, API 26.
+     */
+    private static final int INFO_MAX_FILESIZE_APPROACHING = 802;
+    /**
+     * {@code MediaRecorder.MEDIA_RECORDER_INFO_NEXT_OUTPUT_FILE_STARTED}, API 26.
+     */
+    private static final int INFO_NEXT_OUTPUT_FILE_STARTED = 803;
+
+    private final CameraHelper mCameraHelper;
+    private MediaRecorder mRecorder;//音视频录制类
+    private boolean mPrepared;
+    private boolean mStarted;
+    private volatile Listener mListener;
+    private RecordingConfig mConfig;
+    private boolean mSegmented;
+    private int mSegmentIndex;
+    private long mSegmentStartMs;
+
+    MediaRecorderEngine(CameraHelper cameraHelper) {
+        mCameraHelper = cameraHelper;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void prepare(RecordingConfig config) throws IOException {
+        mConfig = new RecordingConfig(config);
+        mSegmented = config.isSegmented() && Build.VERSION.SDK_INT >= 26;
+        if (config.isSegmented() && !mSegmented) {
+            Log.w(TAG, "segmented recording needs API 26, recording one file");
+        }
+        mSegmentIndex = 0;
+        mPrepared = false;
+        if (mRecorder == null) {
+            mRecorder = new MediaRecorder(); // 创建MediaRecorder
+        }
+        mRecorder.reset();
+        try {
+            Camera camera = mCameraHelper.getCamera();
+            if (camera != null) {
+                camera.lock();
+                camera.unlock();
+                mRecorder.setCamera(camera);
+            }
+            if (config.isAudioEnabled()) {
+                // 设置音频采集方式
+                mRecorder.setAudioSource(MediaRecorder.AudioSource.CAMCORDER);
+            }
+            //设置视频的采集方式
+            mRecorder.setVideoSource(MediaRecorder.VideoSource.CAMERA);
+            //设置文件的输出格式
+            mRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);//aac_adif， aac_adts， output_format_rtp_avp， output_format_mpeg2ts ，webm
+            //设置video的编码格式
+            mRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.H264);
+            //设置录制的视频编码比特率
+            mRecorder.setVideoEncodingBitRate(config.getVideoBitRate());// 比特率
+            //设置录制的视频帧率,注意文档的说明:
+//            mRecorder.setVideoFrameRate(30);
+            if (config.isAudioEnabled()) {
+                mRecorder.setAudioChannels(config.getAudioChannels());
+                mRecorder.setAudioSamplingRate(config.getAudioSampleRate());
+                mRecorder.setAudioEncodingBitRate(config.getAudioBitRate());
+                mRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
+            }
+            //设置要捕获的视频的宽度和高度
+            mRecorder.setVideoSize(config.getVideoWidth(), config.getVideoHeight());
+            //设置记录会话的最大持续时间（毫秒）
+            mRecorder.setMaxDuration(config.getMaxDurationMs());
+            mRecorder.setPreviewDisplay(mCameraHelper.getSurface());
+            mRecorder.setOrientationHint(config.getOrientationHint());
+
+            mRecorder.setOnInfoListener(this);
+            if (mSegmented) {
+                mRecorder.setMaxFileSize(segmentSizeBytes(config));
+            }
+
+            //设置输出文件的路径
+            mRecorder.setOutputFile(mSegmented ? config.getSegmentPath(0) : config.getOutputFile());
+            //准备录制
+            mRecorder.prepare();
+            mPrepared = true;
+        } catch (RuntimeException e) {
+            throw new IOException("can not prepare MediaRecorder", e);
+        } finally {
+            if (!mPrepared) {
+                // 写不了文件时 prepare 抛 IOException, 同样要还回相机
+                mRecorder.reset();
+                relockCamera();
+            }
+        }
+    }
+
+    @Override
+    public void start() throws IOException {
+        try {
+            //开始录制
+            mRecorder.start();
+            mStarted = true;
+            mSegmentStartMs = SystemClock.elapsedRealtime();
+        } catch (RuntimeException e) {
+            mPrepared = false;
+            mRecorder.reset();
+            relockCamera();
+            throw new IOException("can not start MediaRecorder", e);
+        }
+    }
+
+    @Override
+    public void onInfo(MediaRecorder mr, int what, int extra) {
+        Listener listener = mListener;
+        switch (what) {
+            case MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED:
+            case MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED:
+                // MediaRecorder stopped by itself
+                if (listener != null) {
+                    listener.onMaxDurationReached();
+                }
+                break;
+            case INFO_MAX_FILESIZE_APPROACHING:
+                if (mSegmented && !setNextOutputFile(mr, mConfig.getSegmentPath(mSegmentIndex + 1))) {
+                    mSegmented = false;
+                }
+                break;
+            case INFO_NEXT_OUTPUT_FILE_STARTED:
+                finishSegment();
+                mSegmentIndex++;
+                break;
+        }
+    }
+
+    private void finishSegment() {
+        long now = SystemClock.elapsedRealtime();
+        String path = mConfig.getSegmentPath(mSegmentIndex);
+        syncFile(path);
+        mCameraHelper.getMetrics().onFileWritten(new File(path).length());
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onSegmentFinished(path, (now - mSegmentStartMs) * 1000, new File(path).length());
+        }
+        mSegmentStartMs = now;
+    }
+
+    private void syncFile(String path) {
+        if (!mConfig.getFsyncPolicy().syncsSegments()) {
+            return;
+        }
+        try {
+            RecordingSink.syncFile(path);
+        } catch (IOException e) {
+            Log.e(TAG, "can not sync " + path, e);
+        }
+    }
+
+    private static long segmentSizeBytes(RecordingConfig config) {
+        long size = config.getSegmentSizeBytes();
+        if (config.getSegmentDurationMs() > 0) {
+            long bitRate = config.getVideoBitRate() + (config.isAudioEnabled() ? config.getAudioBitRate() : 0);
+            long durationSize = bitRate / 8 * config.getSegmentDurationMs() / 1000;
+            size = size > 0 ? Math.min(size, durationSize) : durationSize;
+        }
+        return size;
+    }
+
+    private static boolean setNextOutputFile(MediaRecorder recorder, String path) {
+        try {
+            Method method = MediaRecorder.class.getMethod("setNextOutputFile", File.class);
+            method.invoke(recorder, new File(path));
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "can not set next output file", e);
+            return false;
+        }
+    }
+
+    private void relockCamera() {
+        Camera camera = mCameraHelper.getCamera();
+        if (camera != null) {
+            try {
+                camera.lock();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (mRecorder == null || !mPrepared) {
+            return;
+        }
+        mPrepared = false;
+        if (mStarted) {
+            mStarted = false;
+            try {
+                //停止录制
+                mRecorder.stop();
+                if (mSegmented) {
+                    finishSegment();
+                } else {
+                    syncFile(mConfig.getOutputFile());
+                    mCameraHelper.getMetrics().onFileWritten(new File(mConfig.getOutputFile()).length());
+                }
+            } catch (Exception e) {
+                // already stopped at the max duration
+                e.printStackTrace();
+            }
+        }
+        //重置
+        mRecorder.reset();
+        if (mCameraHelper.getCamera() != null)
+            try {
+                mCameraHelper.getCamera().reconnect();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+    }
+
+    /**
+     * 释放MediaRecorder
+     */
+    @Override
+    public void release() {
+        if (mRecorder != null) {
+            if (mStarted) {
+                try {
+                    mRecorder.stop();
+                } catch (Exception e) {
+                }
+                mStarted = false;
+            }
+            mRecorder.release();
+            mRecorder = null;
+            if (mPrepared) {
+                mPrepared = false;
+                relockCamera();
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package cn.appdream.recorder;
+
+/**
+ * Measures how much of the picture changed since the previous frame, from the luminance plane
+ * only. Every {@link #STEP}th pixel of every {@link #STEP}th row is summed up per block of
+ * {@link #BLOCK} pixels; a block counts as changed when its mean moved by more than the pixel
+ * threshold beyond the change of the whole picture, so auto exposure does not look like motion.
+ * About 1/16 of the pixels are read, at 720p well below a millisecond. Not thread safe.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+class MotionDetector {
+    static final int STEP = 4;
+    static final int BLOCK = 16;
+    static final int DEFAULT_PIXEL_THRESHOLD = 12;
+
+    private final int mPixelThreshold;
+    private int mWidth;
+    private int mHeight;
+    private int[] mMeans;
+    private int[] mPrevious;
+    private boolean mHasPrevious;
+
+    MotionDetector() {
+        this(DEFAULT_PIXEL_THRESHOLD);
+    }
+
+    /**
+     * @param pixelThreshold luminance levels a block mean has to move to count as changed
+     */
+    MotionDetector(int pixelThreshold) {
+        mPixelThreshold = pixelThreshold;
+    }
+
+    /**
+     * @param luma at least {@code width * height} bytes, row after row, e.g. a NV21 frame
+     * @return the fraction of blocks that changed, {@code 0} for the first frame of a size
+     */
+    float update(byte[] luma, int width, int height) {
+        int columns = width / BLOCK;
+        int rows = height / BLOCK;
+        if (columns == 0 || rows == 0) {
+            return 0;
+        }
+        if (width != mWidth || height != mHeight) {
+            mWidth = width;
+            mHeight = height;
+            mMeans = new int[columns * rows];
+            mPrevious = new int[columns * rows];
+            mHasPrevious = false;
+        }
+        int[] means = mMeans;
+        int samples = (BLOCK / STEP) * (BLOCK / STEP);
+        for (int by = 0; by < rows; by++) {
+            int base = by * columns;
+            for (int i = 0; i < columns; i++) {
+                means[base + i] = 0;
+            }
+            for (int y = by * BLOCK; y < (by + 1) * BLOCK; y += STEP) {
+                int row = y * width;
+                for (int x = 0, end = columns * BLOCK; x < end; x += STEP) {
+                    means[base + x / BLOCK] += luma[row + x] & 0xff;
+                }
+            }
+            for (int i = 0; i < columns; i++) {
+                means[base + i] /= samples;
+            }
+        }
+        float activity = 0;
+        if (mHasPrevious) {
+            int count = means.length;
+            long shift = 0;
+            for (int i = 0; i < count; i++) {
+                shift += means[i] - mPrevious[i];
+            }
+            // 整体亮度的变化不算
+            int global = (int) (shift / count);
+            int changed = 0;
+            for (int i = 0; i < count; i++) {
+                int diff = means[i] - mPrevious[i] - global;
+                if (diff > mPixelThreshold || diff < -mPixelThreshold) {
+                    changed++;
+                }
+            }
+            activity = (float) changed / count;
+        }
+        mMeans = mPrevious;
+        mPrevious = means;
+        mHasPrevious = true;
+        return activity;
+    }
+
+    /**
+     * The next frame starts over, e.g. after the camera switched.
+     */
+    void reset() {
+        mHasPrevious = false;
+    }
+}
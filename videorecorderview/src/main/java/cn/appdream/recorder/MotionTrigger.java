@@ -0,0 +1,78 @@
+package cn.appdream.recorder;
+
+/**
+ * Turns the activity of {@link MotionDetector} into start and stop decisions with hysteresis:
+ * motion starts after {@code startFrames} frames in a row at or above the start threshold,
+ * and ends once the activity stayed below the lower stop threshold for the quiet period. Not
+ * thread safe.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+class MotionTrigger {
+    static final int NONE = 0;
+    static final int START = 1;
+    static final int STOP = 2;
+    static final int DEFAULT_START_FRAMES = 2;
+
+    private final float mStartThreshold;
+    private final float mStopThreshold;
+    private final int mStartFrames;
+    private final long mQuietNanos;
+    private boolean mActive;
+    private int mFramesAbove;
+    private long mLastMotionNanos;
+
+    /**
+     * @param startThreshold fraction of the picture that has to change to start
+     * @param stopThreshold  at most {@code startThreshold}; activity below it counts as quiet
+     */
+    MotionTrigger(float startThreshold, float stopThreshold, int startFrames, long quietNanos) {
+        if (startThreshold <= 0 || stopThreshold > startThreshold || startFrames < 1 || quietNanos < 0) {
+            throw new IllegalArgumentException("start " + startThreshold + ", stop " + stopThreshold
+                    + ", frames " + startFrames + ", quiet " + quietNanos);
+        }
+        mStartThreshold = startThreshold;
+        mStopThreshold = stopThreshold;
+        mStartFrames = startFrames;
+        mQuietNanos = quietNanos;
+    }
+
+    /**
+     * @return {@link #START}, {@link #STOP} or {@link #NONE}
+     */
+    int onActivity(float activity, long nowNanos) {
+        if (!mActive) {
+            mFramesAbove = activity >= mStartThreshold ? mFramesAbove + 1 : 0;
+            if (mFramesAbove < mStartFrames) {
+                return NONE;
+            }
+            mActive = true;
+            mFramesAbove = 0;
+            mLastMotionNanos = nowNanos;
+            return START;
+        }
+        if (activity >= mStopThreshold) {
+            mLastMotionNanos = nowNanos;
+            return NONE;
+        }
+        if (nowNanos - mLastMotionNanos < mQuietNanos) {
+            return NONE;
+        }
+        mActive = false;
+        return STOP;
+    }
+
+    boolean isActive() {
+        return mActive;
+    }
+
+    /**
+     * Back to waiting for motion, without a {@link #STOP}.
+     */
+    void reset() {
+        mActive = false;
+        mFramesAbove = 0;
+    }
+}
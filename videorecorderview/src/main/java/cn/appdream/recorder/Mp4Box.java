@@ -0,0 +1,100 @@
+package cn.appdream.recorder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Growing big endian buffer for MPEG-4 boxes: {@link #begin(String)} leaves room for the size
+ * that {@link #end(int)} fills in, so boxes nest like the calls.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+final class Mp4Box {
+    private byte[] mData = new byte[4096];
+    private int mSize;
+
+    void reset() {
+        mSize = 0;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    int begin(String type) {
+        int start = mSize;
+        u32(0);
+        fourcc(type);
+        return start;
+    }
+
+    int beginFull(String type, int version, int flags) {
+        int start = begin(type);
+        u32(version << 24 | flags & 0xffffff);
+        return start;
+    }
+
+    void end(int start) {
+        putInt(start, mSize - start);
+    }
+
+    void u8(int value) {
+        ensure(1);
+        mData[mSize++] = (byte) value;
+    }
+
+    void u16(int value) {
+        u8(value >>> 8);
+        u8(value);
+    }
+
+    void u32(long value) {
+        ensure(4);
+        putInt(mSize, (int) value);
+        mSize += 4;
+    }
+
+    void u64(long value) {
+        u32(value >>> 32);
+        u32(value);
+    }
+
+    void fourcc(String type) {
+        for (int i = 0; i < 4; i++) {
+            u8(type.charAt(i));
+        }
+    }
+
+    void zeros(int count) {
+        ensure(count);
+        for (int i = 0; i < count; i++) {
+            mData[mSize++] = 0;
+        }
+    }
+
+    void bytes(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, mData, mSize, bytes.length);
+        mSize += bytes.length;
+    }
+
+    void putInt(int position, int value) {
+        mData[position] = (byte) (value >>> 24);
+        mData[position + 1] = (byte) (value >>> 16);
+        mData[position + 2] = (byte) (value >>> 8);
+        mData[position + 3] = (byte) value;
+    }
+
+    ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(mData, 0, mSize);
+    }
+
+    private void ensure(int count) {
+        if (mSize + count > mData.length) {
+            byte[] data = new byte[Math.max(mData.length * 2, mSize + count)];
+            System.arraycopy(mData, 0, data, 0, mSize);
+            mData = data;
+        }
+    }
+}
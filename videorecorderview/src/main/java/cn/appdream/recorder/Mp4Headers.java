@@ -0,0 +1,267 @@
+package cn.appdream.recorder;
+
+/**
+ * The header boxes of the MPEG-4 files this library writes itself: {@code ftyp} and a
+ * {@code moov} with one H.264 or AAC track per {@link TrackFormat}. Fragmented files get empty
+ * sample tables, {@link RecordingRecovery} fills them from a {@link SampleTable}.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+final class Mp4Headers {
+
+    /**
+     * Writes the {@code stts} to {@code stco} boxes of one track.
+     */
+    interface SampleTable {
+        /**
+         * @return the track length in units of {@link TrackFormat#getTimescale()}
+         */
+        long getDuration();
+
+        void write(Mp4Box box);
+    }
+
+    private Mp4Headers() {
+    }
+
+    static void writeFileType(Mp4Box box) {
+        int ftyp = box.begin("ftyp");
+        box.fourcc("isom");
+        box.u32(0x200);
+        box.fourcc("isom");
+        box.fourcc("iso6");
+        box.fourcc("iso2");
+        box.fourcc("avc1");
+        box.fourcc("mp41");
+        box.end(ftyp);
+    }
+
+    /**
+     * @param tables the samples of each track, {@code null} for a fragmented file: empty
+     *               tables and a {@code mvex} box, the samples follow in fragments
+     */
+    static void writeMovie(Mp4Box box, TrackFormat[] formats, int orientationHint, SampleTable[] tables) {
+        long durationMs = 0;
+        if (tables != null) {
+            for (int i = 0; i < formats.length; i++) {
+                durationMs = Math.max(durationMs, tables[i].getDuration() * 1000 / formats[i].getTimescale());
+            }
+        }
+        int moov = box.begin("moov");
+        int mvhd = box.beginFull("mvhd", 0, 0);
+        box.u32(0);
+        box.u32(0);
+        box.u32(1000);
+        box.u32(durationMs);
+        box.u32(0x00010000);
+        box.u16(0x0100);
+        box.zeros(10);
+        writeMatrix(box, 0);
+        box.zeros(24);
+        box.u32(formats.length + 1);
+        box.end(mvhd);
+        for (int i = 0; i < formats.length; i++) {
+            SampleTable table = tables == null ? null : tables[i];
+            long trackDurationMs = table == null ? 0 : table.getDuration() * 1000 / formats[i].getTimescale();
+            writeTrack(box, i + 1, formats[i], orientationHint, trackDurationMs, table);
+        }
+        if (tables == null) {
+            int mvex = box.begin("mvex");
+            for (int i = 0; i < formats.length; i++) {
+                int trex = box.beginFull("trex", 0, 0);
+                box.u32(i + 1);
+                box.u32(1);
+                box.u32(0);
+                box.u32(0);
+                box.u32(0);
+                box.end(trex);
+            }
+            box.end(mvex);
+        }
+        box.end(moov);
+    }
+
+    private static void writeTrack(Mp4Box box, int id, TrackFormat format, int orientationHint,
+                                   long durationMs, SampleTable table) {
+        boolean video = format.isVideo();
+        int trak = box.begin("trak");
+        int tkhd = box.beginFull("tkhd", 0, 3);
+        box.u32(0);
+        box.u32(0);
+        box.u32(id);
+        box.u32(0);
+        box.u32(durationMs);
+        box.zeros(8);
+        box.u16(0);
+        box.u16(0);
+        box.u16(video ? 0 : 0x0100);
+        box.u16(0);
+        writeMatrix(box, video ? orientationHint : 0);
+        box.u32(format.getWidth() << 16);
+        box.u32(format.getHeight() << 16);
+        box.end(tkhd);
+
+        int mdia = box.begin("mdia");
+        int mdhd = box.beginFull("mdhd", 0, 0);
+        box.u32(0);
+        box.u32(0);
+        box.u32(format.getTimescale());
+        box.u32(table == null ? 0 : table.getDuration());
+        box.u16(0x55c4);//und
+        box.u16(0);
+        box.end(mdhd);
+        int hdlr = box.beginFull("hdlr", 0, 0);
+        box.u32(0);
+        box.fourcc(video ? "vide" : "soun");
+        box.zeros(12);
+        box.bytes((video ? "VideoHandle\0" : "SoundHandle\0").getBytes());
+        box.end(hdlr);
+
+        int minf = box.begin("minf");
+        if (video) {
+            int vmhd = box.beginFull("vmhd", 0, 1);
+            box.zeros(8);
+            box.end(vmhd);
+        } else {
+            int smhd = box.beginFull("smhd", 0, 0);
+            box.zeros(4);
+            box.end(smhd);
+        }
+        int dinf = box.begin("dinf");
+        int dref = box.beginFull("dref", 0, 0);
+        box.u32(1);
+        box.end(box.beginFull("url ", 0, 1));
+        box.end(dref);
+        box.end(dinf);
+
+        int stbl = box.begin("stbl");
+        int stsd = box.beginFull("stsd", 0, 0);
+        box.u32(1);
+        if (video) {
+            writeAvcEntry(box, format);
+        } else {
+            writeAacEntry(box, id, format);
+        }
+        box.end(stsd);
+        if (table != null) {
+            table.write(box);
+        } else {
+            int stts = box.beginFull("stts", 0, 0);
+            box.u32(0);
+            box.end(stts);
+            int stsc = box.beginFull("stsc", 0, 0);
+            box.u32(0);
+            box.end(stsc);
+            int stsz = box.beginFull("stsz", 0, 0);
+            box.u32(0);
+            box.u32(0);
+            box.end(stsz);
+            int stco = box.beginFull("stco", 0, 0);
+            box.u32(0);
+            box.end(stco);
+        }
+        box.end(stbl);
+        box.end(minf);
+        box.end(mdia);
+        box.end(trak);
+    }
+
+    private static void writeAvcEntry(Mp4Box box, TrackFormat format) {
+        byte[] sps = format.getSps();
+        byte[] pps = format.getPps();
+        int avc1 = box.begin("avc1");
+        box.zeros(6);
+        box.u16(1);
+        box.zeros(16);
+        box.u16(format.getWidth());
+        box.u16(format.getHeight());
+        box.u32(0x00480000);
+        box.u32(0x00480000);
+        box.u32(0);
+        box.u16(1);
+        box.zeros(32);
+        box.u16(0x0018);
+        box.u16(0xffff);
+        int avcc = box.begin("avcC");
+        box.u8(1);
+        box.u8(sps[1]);
+        box.u8(sps[2]);
+        box.u8(sps[3]);
+        box.u8(0xff);//4 字节长度
+        box.u8(0xe1);
+        box.u16(sps.length);
+        box.bytes(sps);
+        box.u8(1);
+        box.u16(pps.length);
+        box.bytes(pps);
+        box.end(avcc);
+        box.end(avc1);
+    }
+
+    private static void writeAacEntry(Mp4Box box, int id, TrackFormat format) {
+        byte[] config = format.getAudioSpecificConfig();
+        int mp4a = box.begin("mp4a");
+        box.zeros(6);
+        box.u16(1);
+        box.zeros(8);
+        box.u16(format.getChannels());
+        box.u16(16);
+        box.zeros(4);
+        box.u32(format.getSampleRate() << 16);
+        int esds = box.beginFull("esds", 0, 0);
+        // ES_Descriptor > DecoderConfigDescriptor > DecoderSpecificInfo, SLConfigDescriptor
+        int decoderSpecific = 2 + config.length;
+        int decoderConfig = 2 + 13 + decoderSpecific;
+        box.u8(0x03);
+        box.u8(3 + decoderConfig + 3);
+        box.u16(id);
+        box.u8(0);
+        box.u8(0x04);
+        box.u8(decoderConfig - 2);
+        box.u8(0x40);//AAC
+        box.u8(0x15);//audio stream
+        box.zeros(11);
+        box.u8(0x05);
+        box.u8(config.length);
+        box.bytes(config);
+        box.u8(0x06);
+        box.u8(1);
+        box.u8(0x02);
+        box.end(esds);
+        box.end(mp4a);
+    }
+
+    private static void writeMatrix(Mp4Box box, int rotation) {
+        int cos;
+        int sin;
+        switch (((rotation % 360) + 360) % 360) {
+            case 90:
+                cos = 0;
+                sin = 0x10000;
+                break;
+            case 180:
+                cos = -0x10000;
+                sin = 0;
+                break;
+            case 270:
+                cos = 0;
+                sin = -0x10000;
+                break;
+            default:
+                cos = 0x10000;
+                sin = 0;
+                break;
+        }
+        box.u32(cos);
+        box.u32(sin);
+        box.u32(0);
+        box.u32(-sin);
+        box.u32(cos);
+        box.u32(0);
+        box.u32(0);
+        box.u32(0);
+        box.u32(0x40000000);
+    }
+}
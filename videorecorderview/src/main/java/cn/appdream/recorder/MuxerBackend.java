@@ -0,0 +1,25 @@
+package cn.appdream.recorder;
+
+/**
+ * Container writer used by {@link CodecRecordingEngine}, see {@link MediaMuxerBackend}.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public interface MuxerBackend {
+
+    /**
+     * @param format format reported by {@link EncoderBackend#getOutputFormat()}
+     * @return the track index
+     */
+    int addTrack(Object format);
+
+    void start();
+
+    void writeSample(int track, EncodedSample sample);
+
+    void stop();
+
+    void release();
+}
@@ -0,0 +1,308 @@
+package cn.appdream.recorder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Conversions of the NV21 preview frames: to I420, NV12 and ARGB, rotation by the camera
+ * orientation and downscaling. Nothing is allocated, the caller passes reusable output arrays;
+ * the loops run row by row over plain arrays so the JIT can vectorize them. For large frames
+ * see {@link Nv21Parallel}.
+ * <p>
+ * Width and height have to be even. NV21 is the luminance plane followed by interleaved V and U
+ * of every 2x2 block.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public final class Nv21 {
+
+    private Nv21() {
+    }
+
+    /**
+     * @return bytes of an NV21, NV12 or I420 frame
+     */
+    public static int size(int width, int height) {
+        return width * height * 3 / 2;
+    }
+
+    /**
+     * @return width of {@link #downscale} output
+     */
+    public static int scaledSize(int size, int factor) {
+        return size / factor & ~1;
+    }
+
+    /**
+     * Y, then the U plane, then the V plane.
+     */
+    public static void toI420(byte[] nv21, int width, int height, byte[] i420) {
+        check(nv21, width, height);
+        checkLength(i420.length, size(width, height));
+        toI420(nv21, width, height, i420, 0);
+    }
+
+    /**
+     * Into {@code i420} from its position on, e.g. an encoder input buffer; the position is not
+     * changed.
+     */
+    public static void toI420(byte[] nv21, int width, int height, ByteBuffer i420) {
+        check(nv21, width, height);
+        checkLength(i420.remaining(), size(width, height));
+        if (i420.hasArray()) {
+            toI420(nv21, width, height, i420.array(), i420.arrayOffset() + i420.position());
+            return;
+        }
+        int frame = width * height;
+        int quarter = frame / 4;
+        int base = i420.position();
+        ByteBuffer out = i420.duplicate();
+        out.put(nv21, 0, frame);
+        for (int i = 0; i < quarter; i++) {
+            i420.put(base + frame + i, nv21[frame + 2 * i + 1]);
+            i420.put(base + frame + quarter + i, nv21[frame + 2 * i]);
+        }
+    }
+
+    private static void toI420(byte[] nv21, int width, int height, byte[] out, int offset) {
+        int frame = width * height;
+        int quarter = frame / 4;
+        System.arraycopy(nv21, 0, out, offset, frame);
+        int u = offset + frame;
+        int v = u + quarter;
+        for (int i = 0; i < quarter; i++) {
+            out[u + i] = nv21[frame + 2 * i + 1];
+            out[v + i] = nv21[frame + 2 * i];
+        }
+    }
+
+    /**
+     * Y, then interleaved U and V; what most encoders call semi planar.
+     */
+    public static void toNv12(byte[] nv21, int width, int height, byte[] nv12) {
+        check(nv21, width, height);
+        checkLength(nv12.length, size(width, height));
+        toNv12(nv21, width, height, nv12, 0);
+    }
+
+    /**
+     * Into {@code nv12} from its position on; the position is not changed.
+     */
+    public static void toNv12(byte[] nv21, int width, int height, ByteBuffer nv12) {
+        check(nv21, width, height);
+        checkLength(nv12.remaining(), size(width, height));
+        if (nv12.hasArray()) {
+            toNv12(nv21, width, height, nv12.array(), nv12.arrayOffset() + nv12.position());
+            return;
+        }
+        int frame = width * height;
+        int end = size(width, height);
+        int base = nv12.position();
+        ByteBuffer out = nv12.duplicate();
+        out.put(nv21, 0, frame);
+        for (int i = frame; i < end; i += 2) {
+            nv12.put(base + i, nv21[i + 1]);
+            nv12.put(base + i + 1, nv21[i]);
+        }
+    }
+
+    private static void toNv12(byte[] nv21, int width, int height, byte[] out, int offset) {
+        int frame = width * height;
+        int end = size(width, height);
+        System.arraycopy(nv21, 0, out, offset, frame);
+        for (int i = frame; i < end; i += 2) {
+            out[offset + i] = nv21[i + 1];
+            out[offset + i + 1] = nv21[i];
+        }
+    }
+
+    /**
+     * Opaque ARGB, BT.601 video range, as {@code Bitmap.Config.ARGB_8888} takes it.
+     */
+    public static void toArgb(byte[] nv21, int width, int height, int[] argb) {
+        check(nv21, width, height);
+        checkLength(argb.length, width * height);
+        toArgbRows(nv21, width, height, argb, 0, height);
+    }
+
+    /**
+     * Rows {@code top} (even) to {@code bottom} of {@link #toArgb}.
+     */
+    static void toArgbRows(byte[] nv21, int width, int height, int[] argb, int top, int bottom) {
+        int frame = width * height;
+        for (int y = top; y < bottom; y++) {
+            int row = y * width;
+            int chroma = frame + (y >> 1) * width;
+            for (int x = 0; x < width; x++) {
+                int c = (nv21[row + x] & 0xff) - 16;
+                c = (c < 0 ? 0 : c) * 298;
+                int uv = chroma + (x & ~1);
+                int e = (nv21[uv] & 0xff) - 128;
+                int d = (nv21[uv + 1] & 0xff) - 128;
+                int r = (c + 409 * e + 128) >> 8;
+                int g = (c - 100 * d - 208 * e + 128) >> 8;
+                int b = (c + 516 * d + 128) >> 8;
+                r = r < 0 ? 0 : r > 255 ? 255 : r;
+                g = g < 0 ? 0 : g > 255 ? 255 : g;
+                b = b < 0 ? 0 : b > 255 ? 255 : b;
+                argb[row + x] = 0xff000000 | r << 16 | g << 8 | b;
+            }
+        }
+    }
+
+    /**
+     * Turn the frame clockwise, e.g. by the camera orientation to get it upright. The output is
+     * {@code height x width} for 90 and 270 degrees.
+     */
+    public static void rotate(byte[] nv21, int width, int height, int degrees, byte[] out) {
+        check(nv21, width, height);
+        checkLength(out.length, size(width, height));
+        rotateRows(nv21, width, height, checkDegrees(degrees), out, 0, outHeight(width, height, degrees));
+    }
+
+    static int checkDegrees(int degrees) {
+        if (degrees != 0 && degrees != 90 && degrees != 180 && degrees != 270) {
+            throw new IllegalArgumentException("rotation " + degrees);
+        }
+        return degrees;
+    }
+
+    static int outHeight(int width, int height, int degrees) {
+        return degrees == 90 || degrees == 270 ? width : height;
+    }
+
+    /**
+     * Output rows {@code top} (even) to {@code bottom} of {@link #rotate}.
+     */
+    static void rotateRows(byte[] nv21, int width, int height, int degrees, byte[] out, int top, int bottom) {
+        boolean swap = degrees == 90 || degrees == 270;
+        int outWidth = swap ? height : width;
+        // 亮度
+        for (int oy = top; oy < bottom; oy++) {
+            int row = oy * outWidth;
+            switch (degrees) {
+                case 90:
+                    for (int ox = 0, src = (height - 1) * width + oy; ox < outWidth; ox++, src -= width) {
+                        out[row + ox] = nv21[src];
+                    }
+                    break;
+                case 180:
+                    for (int ox = 0, src = (height - 1 - oy) * width + width - 1; ox < outWidth; ox++, src--) {
+                        out[row + ox] = nv21[src];
+                    }
+                    break;
+                case 270:
+                    for (int ox = 0, src = width - 1 - oy; ox < outWidth; ox++, src += width) {
+                        out[row + ox] = nv21[src];
+                    }
+                    break;
+                default:
+                    System.arraycopy(nv21, oy * width, out, row, width);
+                    break;
+            }
+        }
+        // 色度, 以VU对为单位
+        int frame = width * height;
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        int outChromaWidth = outWidth / 2;
+        for (int oy = top / 2; oy < bottom / 2; oy++) {
+            int row = frame + oy * outWidth;
+            for (int ox = 0; ox < outChromaWidth; ox++) {
+                int sx;
+                int sy;
+                switch (degrees) {
+                    case 90:
+                        sx = oy;
+                        sy = chromaHeight - 1 - ox;
+                        break;
+                    case 180:
+                        sx = chromaWidth - 1 - ox;
+                        sy = chromaHeight - 1 - oy;
+                        break;
+                    case 270:
+                        sx = chromaWidth - 1 - oy;
+                        sy = ox;
+                        break;
+                    default:
+                        sx = ox;
+                        sy = oy;
+                        break;
+                }
+                int src = frame + sy * width + sx * 2;
+                out[row + ox * 2] = nv21[src];
+                out[row + ox * 2 + 1] = nv21[src + 1];
+            }
+        }
+    }
+
+    /**
+     * Average blocks of {@code factor x factor} pixels into an NV21 frame of
+     * {@link #scaledSize scaledSize(width, factor)} by {@code scaledSize(height, factor)}.
+     */
+    public static void downscale(byte[] nv21, int width, int height, int factor, byte[] out) {
+        check(nv21, width, height);
+        if (factor < 1) {
+            throw new IllegalArgumentException("factor " + factor);
+        }
+        int outWidth = scaledSize(width, factor);
+        int outHeight = scaledSize(height, factor);
+        checkLength(out.length, size(outWidth, outHeight));
+        downscaleRows(nv21, width, height, factor, out, 0, outHeight);
+    }
+
+    /**
+     * Output rows {@code top} (even) to {@code bottom} of {@link #downscale}.
+     */
+    static void downscaleRows(byte[] nv21, int width, int height, int factor, byte[] out, int top, int bottom) {
+        int outWidth = scaledSize(width, factor);
+        int outHeight = scaledSize(height, factor);
+        int area = factor * factor;
+        int half = area / 2;
+        for (int oy = top; oy < bottom; oy++) {
+            int row = oy * outWidth;
+            int src = oy * factor * width;
+            for (int ox = 0; ox < outWidth; ox++) {
+                int sum = 0;
+                for (int dy = 0, line = src + ox * factor; dy < factor; dy++, line += width) {
+                    for (int dx = 0; dx < factor; dx++) {
+                        sum += nv21[line + dx] & 0xff;
+                    }
+                }
+                out[row + ox] = (byte) ((sum + half) / area);
+            }
+        }
+        int frame = width * height;
+        int outFrame = outWidth * outHeight;
+        for (int oy = top / 2; oy < bottom / 2; oy++) {
+            int row = outFrame + oy * outWidth;
+            int src = frame + oy * factor * width;
+            for (int ox = 0; ox < outWidth; ox += 2) {
+                int v = 0;
+                int u = 0;
+                for (int dy = 0, line = src + ox * factor; dy < factor; dy++, line += width) {
+                    for (int dx = 0; dx < factor * 2; dx += 2) {
+                        v += nv21[line + dx] & 0xff;
+                        u += nv21[line + dx + 1] & 0xff;
+                    }
+                }
+                out[row + ox] = (byte) ((v + half) / area);
+                out[row + ox + 1] = (byte) ((u + half) / area);
+            }
+        }
+    }
+
+    private static void check(byte[] nv21, int width, int height) {
+        if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0) {
+            throw new IllegalArgumentException("size " + width + "x" + height);
+        }
+        checkLength(nv21.length, size(width, height));
+    }
+
+    private static void checkLength(int length, int needed) {
+        if (length < needed) {
+            throw new IllegalArgumentException("buffer of " + length + " bytes, needs " + needed);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package cn.appdream.recorder;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The heavier {@link Nv21} kernels split into bands of rows, one per thread; the calling thread
+ * takes the last band and returns once all are done. Frames below {@link #MIN_PARALLEL_PIXELS}
+ * run on the calling thread only, handing them out costs more than it saves. An executor
+ * rather than a {@code ForkJoinPool}, which Android only has from API 21 on.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public class Nv21Parallel {
+    public static final int MIN_PARALLEL_PIXELS = 640 * 480;
+
+    private interface Kernel {
+        void rows(int top, int bottom);
+    }
+
+    private final ExecutorService mWorkers;
+    private final int mBands;
+    private final int mMinPixels;
+
+    /**
+     * @param threadCount including the calling thread, e.g. the number of cores
+     */
+    public Nv21Parallel(int threadCount) {
+        this(threadCount, MIN_PARALLEL_PIXELS);
+    }
+
+    Nv21Parallel(int threadCount, int minPixels) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threads " + threadCount);
+        }
+        mBands = threadCount;
+        mMinPixels = minPixels;
+        mWorkers = threadCount == 1 ? null : Executors.newFixedThreadPool(threadCount - 1, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Nv21-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @see Nv21#toArgb(byte[], int, int, int[])
+     */
+    public void toArgb(final byte[] nv21, final int width, final int height, final int[] argb) {
+        if (!parallel(width, height)) {
+            Nv21.toArgb(nv21, width, height, argb);
+            return;
+        }
+        if (nv21.length < Nv21.size(width, height) || argb.length < width * height) {
+            throw new IllegalArgumentException("buffers of " + nv21.length + " bytes and " + argb.length + " pixels");
+        }
+        run(height, new Kernel() {
+            @Override
+            public void rows(int top, int bottom) {
+                Nv21.toArgbRows(nv21, width, height, argb, top, bottom);
+            }
+        });
+    }
+
+    /**
+     * @see Nv21#rotate(byte[], int, int, int, byte[])
+     */
+    public void rotate(final byte[] nv21, final int width, final int height, final int degrees, final byte[] out) {
+        if (!parallel(width, height)) {
+            Nv21.rotate(nv21, width, height, degrees, out);
+            return;
+        }
+        check(nv21, width, height, out, Nv21.size(width, height));
+        Nv21.checkDegrees(degrees);
+        run(Nv21.outHeight(width, height, degrees), new Kernel() {
+            @Override
+            public void rows(int top, int bottom) {
+                Nv21.rotateRows(nv21, width, height, degrees, out, top, bottom);
+            }
+        });
+    }
+
+    /**
+     * @see Nv21#downscale(byte[], int, int, int, byte[])
+     */
+    public void downscale(final byte[] nv21, final int width, final int height, final int factor, final byte[] out) {
+        if (!parallel(width, height) || factor < 1) {
+            Nv21.downscale(nv21, width, height, factor, out);
+            return;
+        }
+        int outHeight = Nv21.scaledSize(height, factor);
+        check(nv21, width, height, out, Nv21.size(Nv21.scaledSize(width, factor), outHeight));
+        run(outHeight, new Kernel() {
+            @Override
+            public void rows(int top, int bottom) {
+                Nv21.downscaleRows(nv21, width, height, factor, out, top, bottom);
+            }
+        });
+    }
+
+    public void release() {
+        if (mWorkers != null) {
+            mWorkers.shutdown();
+        }
+    }
+
+    private boolean parallel(int width, int height) {
+        return mWorkers != null && width * height >= mMinPixels && width > 0 && height > 0
+                && (width & 1) == 0 && (height & 1) == 0;
+    }
+
+    private static void check(byte[] nv21, int width, int height, byte[] out, int outSize) {
+        if (nv21.length < Nv21.size(width, height) || out.length < outSize) {
+            throw new IllegalArgumentException("buffers of " + nv21.length + " and " + out.length + " bytes");
+        }
+    }
+
+    /**
+     * @param rows output rows, even
+     */
+    private void run(int rows, final Kernel kernel) {
+        // 每段偶数行, 色度行不跨段
+        int pairs = rows / 2;
+        final int band = (pairs + mBands - 1) / mBands * 2;
+        int bands = (rows + band - 1) / band;
+        final CountDownLatch done = new CountDownLatch(bands - 1);
+        final RuntimeException[] error = new RuntimeException[1];
+        for (int i = 0; i < bands - 1; i++) {
+            final int top = i * band;
+            mWorkers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        kernel.rows(top, top + band);
+                    } catch (RuntimeException e) {
+                        error[0] = e;
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        kernel.rows((bands - 1) * band, rows);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                // 其它线程还在写输出, 不能提前返回
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+    }
+}
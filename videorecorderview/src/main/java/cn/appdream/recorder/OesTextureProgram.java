@@ -0,0 +1,139 @@
+package cn.appdream.recorder;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Draws an external (camera) texture over the whole viewport. The current EGL context must
+ * stay the same for the life of the program.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+class OesTextureProgram {
+    private static final String VERTEX_SHADER =
+            "uniform mat4 uMVPMatrix;\n" +
+                    "uniform mat4 uTexMatrix;\n" +
+                    "attribute vec4 aPosition;\n" +
+                    "attribute vec4 aTextureCoord;\n" +
+                    "varying vec2 vTextureCoord;\n" +
+                    "void main() {\n" +
+                    "    gl_Position = uMVPMatrix * aPosition;\n" +
+                    "    vTextureCoord = (uTexMatrix * aTextureCoord).xy;\n" +
+                    "}\n";
+
+    private static final String FRAGMENT_SHADER =
+            "#extension GL_OES_EGL_image_external : require\n" +
+                    "precision mediump float;\n" +
+                    "varying vec2 vTextureCoord;\n" +
+                    "uniform samplerExternalOES sTexture;\n" +
+                    "void main() {\n" +
+                    "    gl_FragColor = texture2D(sTexture, vTextureCoord);\n" +
+                    "}\n";
+
+    private static final float[] VERTICES = {
+            -1f, -1f, 1f, -1f, -1f, 1f, 1f, 1f
+    };
+    private static final float[] TEX_COORDS = {
+            0f, 0f, 1f, 0f, 0f, 1f, 1f, 1f
+    };
+
+    private final FloatBuffer mVertices = floatBuffer(VERTICES);
+    private final FloatBuffer mTexCoords = floatBuffer(TEX_COORDS);
+    private int mProgram;
+    private final int mPositionLocation;
+    private final int mTexCoordLocation;
+    private final int mMvpMatrixLocation;
+    private final int mTexMatrixLocation;
+
+    OesTextureProgram() {
+        mProgram = createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+        mPositionLocation = GLES20.glGetAttribLocation(mProgram, "aPosition");
+        mTexCoordLocation = GLES20.glGetAttribLocation(mProgram, "aTextureCoord");
+        mMvpMatrixLocation = GLES20.glGetUniformLocation(mProgram, "uMVPMatrix");
+        mTexMatrixLocation = GLES20.glGetUniformLocation(mProgram, "uTexMatrix");
+    }
+
+    static int createTexture() {
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textures[0]);
+        GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        return textures[0];
+    }
+
+    /**
+     * @param mvpMatrix maps the full screen quad into the viewport
+     * @param texMatrix from {@link android.graphics.SurfaceTexture#getTransformMatrix(float[])}
+     */
+    void draw(int texture, float[] mvpMatrix, float[] texMatrix) {
+        GLES20.glUseProgram(mProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, texture);
+        GLES20.glUniformMatrix4fv(mMvpMatrixLocation, 1, false, mvpMatrix, 0);
+        GLES20.glUniformMatrix4fv(mTexMatrixLocation, 1, false, texMatrix, 0);
+        GLES20.glEnableVertexAttribArray(mPositionLocation);
+        GLES20.glVertexAttribPointer(mPositionLocation, 2, GLES20.GL_FLOAT, false, 8, mVertices);
+        GLES20.glEnableVertexAttribArray(mTexCoordLocation);
+        GLES20.glVertexAttribPointer(mTexCoordLocation, 2, GLES20.GL_FLOAT, false, 8, mTexCoords);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        GLES20.glDisableVertexAttribArray(mPositionLocation);
+        GLES20.glDisableVertexAttribArray(mTexCoordLocation);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
+        GLES20.glUseProgram(0);
+    }
+
+    void release() {
+        GLES20.glDeleteProgram(mProgram);
+        mProgram = 0;
+    }
+
+    private static int createProgram(String vertexSource, String fragmentSource) {
+        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
+        int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+        int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, vertexShader);
+        GLES20.glAttachShader(program, fragmentShader);
+        GLES20.glLinkProgram(program);
+        int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(fragmentShader);
+        if (status[0] != GLES20.GL_TRUE) {
+            String log = GLES20.glGetProgramInfoLog(program);
+            GLES20.glDeleteProgram(program);
+            throw new RuntimeException("can not link program: " + log);
+        }
+        return program;
+    }
+
+    private static int loadShader(int type, String source) {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        int[] status = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+        if (status[0] == 0) {
+            String log = GLES20.glGetShaderInfoLog(shader);
+            GLES20.glDeleteShader(shader);
+            throw new RuntimeException("can not compile shader " + type + ": " + log);
+        }
+        return shader;
+    }
+
+    private static FloatBuffer floatBuffer(float[] values) {
+        FloatBuffer buffer = ByteBuffer.allocateDirect(values.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        buffer.put(values).position(0);
+        return buffer;
+    }
+}
@@ -0,0 +1,34 @@
+package cn.appdream.recorder;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/**
+ * {@link RecordingSink.FileAllocator} reserving blocks with {@code posix_fallocate}, so that a
+ * recording can not run out of space half way and its file is less fragmented. Does nothing
+ * before Lollipop.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public class PosixFileAllocator implements RecordingSink.FileAllocator {
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    @Override
+    public void allocate(FileDescriptor fd, long length) throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        try {
+            Os.posix_fallocate(fd, 0, length);
+        } catch (ErrnoException e) {
+            throw new IOException("can not reserve " + length + " bytes", e);
+        }
+    }
+}
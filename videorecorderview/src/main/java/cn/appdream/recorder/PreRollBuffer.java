@@ -0,0 +1,209 @@
+package cn.appdream.recorder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the last encoded seconds in memory so that a recording can start before it was
+ * asked for.
+ * <p>
+ * Sample bytes go into one byte array allocated up front, sample metadata into fixed size
+ * arrays, so buffering does not allocate. The buffer always starts at a video key frame:
+ * samples are evicted a whole GOP at a time, either when the buffered time exceeds the window
+ * or when space runs out. Not thread safe.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+class PreRollBuffer {
+
+    /**
+     * Receives the buffered samples from {@link #drainTo(Consumer)}.
+     */
+    interface Consumer {
+        /**
+         * @param sample only valid during the call
+         */
+        void onSample(int track, EncodedSample sample);
+    }
+
+    private final long mWindowUs;
+    private final int mVideoTrack;
+    private final byte[] mData;
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final int[] mTracks;
+    private final int[] mFlags;
+    private final long[] mTimestamps;
+    private final EncodedSample mSample = new EncodedSample();
+
+    private int mHead;
+    private int mCount;
+    private int mWritePosition;
+    private long mBytes;
+    private long mNewestUs;
+    private long mDroppedSamples;
+
+    /**
+     * @param windowUs   keep at least this much before the newest sample
+     * @param capacity   bytes for sample data
+     * @param maxSamples samples the buffer can hold
+     * @param videoTrack track whose key frames start a GOP
+     */
+    PreRollBuffer(long windowUs, int capacity, int maxSamples, int videoTrack) {
+        mWindowUs = windowUs;
+        mVideoTrack = videoTrack;
+        mData = new byte[capacity];
+        mOffsets = new int[maxSamples];
+        mSizes = new int[maxSamples];
+        mTracks = new int[maxSamples];
+        mFlags = new int[maxSamples];
+        mTimestamps = new long[maxSamples];
+    }
+
+    /**
+     * Copy a sample in, evicting old GOPs as needed.
+     *
+     * @return {@code false} if the sample was dropped: nothing can be buffered before the first
+     * key frame, and a GOP that does not fit at all is dropped up to the next key frame
+     */
+    boolean write(int track, EncodedSample sample) {
+        int size = sample.size();
+        boolean gopStart = track == mVideoTrack && sample.isKeyFrame();
+        if (size == 0 || size > mData.length || mCount == 0 && !gopStart) {
+            mDroppedSamples++;
+            return false;
+        }
+        int offset = allocate(size);
+        while (offset < 0 || mCount == mOffsets.length) {
+            evictGop();
+            if (mCount == 0 && !gopStart) {
+                mDroppedSamples++;
+                return false;
+            }
+            offset = allocate(size);
+        }
+        int slot = (mHead + mCount) % mOffsets.length;
+        sample.data.duplicate().get(mData, offset, size);
+        mOffsets[slot] = offset;
+        mSizes[slot] = size;
+        mTracks[slot] = track;
+        mFlags[slot] = sample.flags;
+        mTimestamps[slot] = sample.presentationTimeUs;
+        mCount++;
+        mWritePosition = offset + size;
+        mBytes += size;
+        if (sample.presentationTimeUs > mNewestUs || mCount == 1) {
+            mNewestUs = sample.presentationTimeUs;
+        }
+        // drop the oldest GOP while the ones after it still cover the window
+        int second = nextGopStart();
+        while (second >= 0 && mNewestUs - mTimestamps[second] >= mWindowUs) {
+            evictGop();
+            second = nextGopStart();
+        }
+        return true;
+    }
+
+    /**
+     * Hand all buffered samples to {@code consumer}, oldest first, and empty the buffer.
+     */
+    void drainTo(Consumer consumer) {
+        while (mCount > 0) {
+            int slot = mHead;
+            mSample.data = ByteBuffer.wrap(mData, mOffsets[slot], mSizes[slot]);
+            mSample.presentationTimeUs = mTimestamps[slot];
+            mSample.flags = mFlags[slot];
+            consumer.onSample(mTracks[slot], mSample);
+            removeHead();
+        }
+        mSample.data = null;
+    }
+
+    void clear() {
+        mHead = 0;
+        mCount = 0;
+        mWritePosition = 0;
+        mBytes = 0;
+    }
+
+    long getWindowUs() {
+        return mWindowUs;
+    }
+
+    int getMaxSampleCount() {
+        return mOffsets.length;
+    }
+
+    int getSampleCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the fixed memory taken by the sample data
+     */
+    int getCapacityBytes() {
+        return mData.length;
+    }
+
+    long getBufferedBytes() {
+        return mBytes;
+    }
+
+    long getBufferedDurationUs() {
+        return mCount == 0 ? 0 : mNewestUs - mTimestamps[mHead];
+    }
+
+    long getDroppedSampleCount() {
+        return mDroppedSamples;
+    }
+
+    /**
+     * @return where {@code size} bytes fit in one piece, or {@code -1}
+     */
+    private int allocate(int size) {
+        if (mCount == 0) {
+            mWritePosition = 0;
+            return 0;
+        }
+        int readPosition = mOffsets[mHead];
+        if (mWritePosition > readPosition) {
+            if (mData.length - mWritePosition >= size) {
+                return mWritePosition;
+            }
+            // wrap, the tail of the array stays unused until the data before it is gone
+            return readPosition >= size ? 0 : -1;
+        }
+        return readPosition - mWritePosition >= size ? mWritePosition : -1;
+    }
+
+    private int nextGopStart() {
+        for (int i = 1; i < mCount; i++) {
+            int slot = (mHead + i) % mOffsets.length;
+            if (mTracks[slot] == mVideoTrack && (mFlags[slot] & EncodedSample.FLAG_KEY_FRAME) != 0) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private void evictGop() {
+        if (mCount == 0) {
+            return;
+        }
+        int next = nextGopStart();
+        int evict = next < 0 ? mCount : (next - mHead + mOffsets.length) % mOffsets.length;
+        for (int i = 0; i < evict; i++) {
+            removeHead();
+        }
+    }
+
+    private void removeHead() {
+        mBytes -= mSizes[mHead];
+        mHead = (mHead + 1) % mOffsets.length;
+        mCount--;
+        if (mCount == 0) {
+            clear();
+        }
+    }
+}
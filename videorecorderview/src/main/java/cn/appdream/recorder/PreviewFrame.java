@@ -0,0 +1,82 @@
+package cn.appdream.recorder;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One NV21 preview frame backed by a pooled buffer.
+ * <p>
+ * The buffer goes back to the camera once every holder called {@link #release()}, so the data
+ * must not be touched after that. Consumers that keep a frame beyond
+ * {@link FrameConsumer#onFrame(PreviewFrame)} simply release it later.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public final class PreviewFrame {
+    private final FrameBufferPool mPool;
+    private final byte[] mData;
+    private final AtomicInteger mRefCount = new AtomicInteger();
+    private int mWidth;
+    private int mHeight;
+    private long mTimestampNanos;
+
+    PreviewFrame(FrameBufferPool pool, byte[] data) {
+        mPool = pool;
+        mData = data;
+    }
+
+    void reset(int width, int height, long timestampNanos, int refCount) {
+        mWidth = width;
+        mHeight = height;
+        mTimestampNanos = timestampNanos;
+        mRefCount.set(refCount);
+    }
+
+    /**
+     * @return the NV21 data, the array may be larger than the frame
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    /**
+     * @return the luminance plane without copying, {@code getWidth() * getHeight()} bytes row
+     * after row; read only, for analyzers that need no color
+     */
+    public ByteBuffer getYPlane() {
+        return ByteBuffer.wrap(mData, 0, mWidth * mHeight).slice().asReadOnlyBuffer();
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return arrival time in the {@link System#nanoTime()} time base
+     */
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    /**
+     * Keep the frame for one more holder, who has to {@link #release()} it as well.
+     */
+    public void retain() {
+        mRefCount.incrementAndGet();
+    }
+
+    public void release() {
+        int count = mRefCount.decrementAndGet();
+        if (count == 0) {
+            mPool.recycle(this);
+        } else if (count < 0) {
+            throw new IllegalStateException("frame released too often");
+        }
+    }
+}
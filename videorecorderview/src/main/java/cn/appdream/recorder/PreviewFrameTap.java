@@ -0,0 +1,220 @@
+package cn.appdream.recorder;
+
+import android.hardware.Camera;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Delivers NV21 preview frames to {@link FrameConsumer}s using
+ * {@link Camera#setPreviewCallbackWithBuffer}, so the camera fills a fixed set of buffers
+ * instead of allocating one per frame. Other sources fill the buffers handed to their
+ * {@link FrameBufferPool.Recycler} and pass them to {@link #deliver(byte[])}.
+ * <p>
+ * {@link #attach}/{@link #detach} run on the camera thread, frames are handed to consumers on
+ * a separate dispatch thread. After {@link #shutdown()} frames go straight back to the source
+ * until the next {@link #attach}.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+class PreviewFrameTap implements Camera.PreviewCallback {
+    static final int DEFAULT_BUFFER_COUNT = 3;
+
+    private final List<FrameConsumer> mConsumers = new CopyOnWriteArrayList<>();
+    private final Object mDispatcherLock = new Object();
+    private ExecutorService mDispatcher;//由 mDispatcherLock 保护
+    private boolean mShutdown;//由 mDispatcherLock 保护
+    private volatile int mBufferCount = DEFAULT_BUFFER_COUNT;
+    private Camera mCamera;
+    private volatile FrameBufferPool mPool;
+    private volatile FrameBufferPool.Recycler mRecycler;
+    private int mWidth;
+    private int mHeight;
+    private long mDroppedBefore;
+    private long mExhaustedBefore;
+    private RecorderMetrics mMetrics;
+
+    void setMetrics(RecorderMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    void addConsumer(FrameConsumer consumer) {
+        mConsumers.add(consumer);
+    }
+
+    void removeConsumer(FrameConsumer consumer) {
+        mConsumers.remove(consumer);
+    }
+
+    /**
+     * @return a copy
+     */
+    List<FrameConsumer> getConsumers() {
+        return new ArrayList<>(mConsumers);
+    }
+
+    boolean hasConsumers() {
+        return !mConsumers.isEmpty();
+    }
+
+    /**
+     * Takes effect on the next {@link #attach}.
+     */
+    void setBufferCount(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("count " + count);
+        }
+        mBufferCount = count;
+    }
+
+    boolean isAttached() {
+        return mPool != null;
+    }
+
+    void attach(final Camera camera, int width, int height) {
+        attach(width, height, new FrameBufferPool.Recycler() {
+            @Override
+            public void recycle(byte[] buffer) {
+                camera.addCallbackBuffer(buffer);
+            }
+        });
+        mCamera = camera;
+        camera.setPreviewCallbackWithBuffer(this);
+    }
+
+    /**
+     * Hand all buffers to {@code recycler}, the source fills them and passes them to
+     * {@link #deliver(byte[])}.
+     */
+    void attach(int width, int height, FrameBufferPool.Recycler recycler) {
+        detach();
+        synchronized (mDispatcherLock) {
+            mShutdown = false;
+        }
+        mWidth = width;
+        mHeight = height;
+        mRecycler = recycler;
+        mPool = new FrameBufferPool(mBufferCount, FrameBufferPool.nv21Size(width, height), recycler);
+        mPool.queueAll();
+    }
+
+    void detach() {
+        FrameBufferPool pool = mPool;
+        if (pool == null) {
+            return;
+        }
+        if (mCamera != null) {
+            mCamera.setPreviewCallbackWithBuffer(null);
+        }
+        pool.detach();
+        mDroppedBefore += pool.getDroppedCount();
+        mExhaustedBefore += pool.getExhaustedCount();
+        mPool = null;
+        mCamera = null;
+        mRecycler = null;
+    }
+
+    /**
+     * Stop the dispatch thread once the frames handed to it are delivered.
+     */
+    void shutdown() {
+        synchronized (mDispatcherLock) {
+            mShutdown = true;
+            if (mDispatcher != null) {
+                mDispatcher.shutdown();
+                mDispatcher = null;
+            }
+        }
+    }
+
+    /**
+     * @return estimated frames the camera dropped because every buffer was held by consumers
+     */
+    long getDroppedFrameCount() {
+        FrameBufferPool pool = mPool;
+        return mDroppedBefore + (pool == null ? 0 : pool.getDroppedCount());
+    }
+
+    /**
+     * @return how often the camera was left without a buffer
+     */
+    long getExhaustedCount() {
+        FrameBufferPool pool = mPool;
+        return mExhaustedBefore + (pool == null ? 0 : pool.getExhaustedCount());
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        deliver(data);
+    }
+
+    /**
+     * A buffer of the pool was filled with a NV21 frame.
+     */
+    void deliver(byte[] data) {
+        FrameBufferPool pool = mPool;
+        FrameBufferPool.Recycler recycler = mRecycler;
+        if (pool == null || recycler == null || data == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (mMetrics != null) {
+            mMetrics.onPreviewFrame(now);
+        }
+        final Object[] consumers = mConsumers.toArray();
+        if (consumers.length == 0) {
+            recycler.recycle(data);
+            return;
+        }
+        final PreviewFrame frame = pool.obtain(data, mWidth, mHeight, now, consumers.length);
+        if (frame == null) {
+            return;
+        }
+        boolean dispatched = dispatch(new Runnable() {
+            @Override
+            public void run() {
+                for (Object consumer : consumers) {
+                    try {
+                        ((FrameConsumer) consumer).onFrame(frame);
+                    } catch (RuntimeException e) {
+                        // 出错的消费者没有释放, 替它释放, 否则缓冲回不到相机
+                        e.printStackTrace();
+                        frame.release();
+                    }
+                }
+            }
+        });
+        if (!dispatched) {
+            for (int i = 0; i < consumers.length; i++) {
+                frame.release();
+            }
+        }
+    }
+
+    /**
+     * @return {@code false} after {@link #shutdown()}
+     */
+    private boolean dispatch(Runnable task) {
+        synchronized (mDispatcherLock) {
+            if (mShutdown) {
+                return false;
+            }
+            if (mDispatcher == null) {
+                mDispatcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "FrameDispatcher");
+                    }
+                });
+            }
+            mDispatcher.execute(task);
+            return true;
+        }
+    }
+}
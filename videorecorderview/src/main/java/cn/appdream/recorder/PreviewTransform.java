@@ -0,0 +1,86 @@
+package cn.appdream.recorder;
+
+/**
+ * Vertex matrix of the preview pass of {@link GlPreviewRenderer}: rotates the camera frame,
+ * mirrors it if asked and scales it so that it covers the viewport, cutting off what sticks
+ * out on either side (center crop).
+ * <p>
+ * Matrices are 4x4 in column-major order like {@code android.opengl.Matrix}, applied to the
+ * full viewport quad of {@link OesTextureProgram}. Plain Java so it can be tested on the JVM.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+final class PreviewTransform {
+
+    private PreviewTransform() {
+    }
+
+    /**
+     * @param frameWidth   width of the camera frame as it is in the texture
+     * @param frameHeight  height of the camera frame as it is in the texture
+     * @param rotation     clockwise rotation in degrees, a multiple of 90
+     * @param mirror       flip horizontally after rotating
+     * @param targetWidth  viewport width, the frame is only rotated if the size is unknown
+     * @param targetHeight viewport height
+     * @param out          receives the matrix, 16 floats
+     */
+    static void centerCrop(int frameWidth, int frameHeight, int rotation, boolean mirror,
+                           int targetWidth, int targetHeight, float[] out) {
+        rotation = ((rotation % 360) + 360) % 360;
+        float cos;
+        float sin;
+        switch (rotation) {
+            case 90:
+                cos = 0f;
+                sin = 1f;
+                break;
+            case 180:
+                cos = -1f;
+                sin = 0f;
+                break;
+            case 270:
+                cos = 0f;
+                sin = -1f;
+                break;
+            default:
+                cos = 1f;
+                sin = 0f;
+                break;
+        }
+        float scaleX = 1f;
+        float scaleY = 1f;
+        if (frameWidth > 0 && frameHeight > 0 && targetWidth > 0 && targetHeight > 0) {
+            boolean swap = rotation == 90 || rotation == 270;
+            float frameAspect = swap ? (float) frameHeight / frameWidth : (float) frameWidth / frameHeight;
+            float targetAspect = (float) targetWidth / targetHeight;
+            if (frameAspect > targetAspect) {
+                scaleX = frameAspect / targetAspect;
+            } else {
+                scaleY = targetAspect / frameAspect;
+            }
+        }
+        if (mirror) {
+            scaleX = -scaleX;
+        }
+        // x' = scaleX * (x * cos + y * sin), y' = scaleY * (-x * sin + y * cos)
+        for (int i = 0; i < 16; i++) {
+            out[i] = 0f;
+        }
+        out[0] = scaleX * cos;
+        out[1] = -scaleY * sin;
+        out[4] = scaleX * sin;
+        out[5] = scaleY * cos;
+        out[10] = 1f;
+        out[15] = 1f;
+    }
+
+    /**
+     * @return the rotation still to apply when the texture already holds {@code applied}
+     * of the {@code total} clockwise rotation
+     */
+    static int remainingRotation(int total, int applied) {
+        return ((total - applied) % 360 + 360) % 360;
+    }
+}
@@ -0,0 +1,217 @@
+package cn.appdream.recorder;
+
+/**
+ * Adapts recording quality to what the device manages: measures encoder output and write time
+ * over fixed intervals of presentation time and lets a {@link QualityPolicy} decide.
+ * <p>
+ * The video bitrate changes while recording through a {@link BitRateTarget}. Frame rate and
+ * size go into the {@link RecordingConfig} of the next recording, see {@link #begin}. Decisions
+ * stay across recordings until {@link #resetDecision()}.
+ * <p>
+ * Measuring uses presentation time instead of the clock, so feeding the same samples gives the
+ * same decisions.
+ * <p>
+ * The write time only shows slow storage when the recording goes through a
+ * {@link RecordingSink}: {@link CodecRecordingEngine} then reports the time the sink spent
+ * writing the file. {@code MediaMuxer} writes on its own thread, with it the write time is that
+ * of handing the sample over, a proxy that rises only once the muxer blocks.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public class QualityController {
+
+    /**
+     * Where live bitrate changes go, the video encoder.
+     */
+    public interface BitRateTarget {
+        void setVideoBitRate(int bitsPerSecond);
+    }
+
+    /**
+     * Called after every interval, on an encoder thread.
+     */
+    public interface Listener {
+        void onQualityEvaluated(QualitySample sample, QualityDecision decision);
+    }
+
+    private final QualityPolicy mPolicy;
+    private int mIntervalMs = 1000;
+    private int mMinVideoBitRate;
+    private int mMaxVideoBitRate;
+    private int mMinFrameRate = 15;
+    private float mMinVideoScale = 0.5f;
+    private BitRateTarget mTarget;
+    private Listener mListener;
+
+    private QualityDecision mDecision;
+    private int mBaseWidth;
+    private int mBaseHeight;
+
+    // the running interval
+    private final QualitySample mSample = new QualitySample();
+    private long mWindowStartUs = -1;
+    private long mVideoBytes;
+    private int mVideoFrames;
+    private long mWriteNanos;
+
+    public QualityController(QualityPolicy policy) {
+        mPolicy = policy;
+    }
+
+    /**
+     * @param minBitRate lowest video bitrate, {@code 0} for a quarter of the configured one
+     * @param maxBitRate highest video bitrate, {@code 0} for the configured one
+     */
+    public synchronized void setBitRateRange(int minBitRate, int maxBitRate) {
+        mMinVideoBitRate = minBitRate;
+        mMaxVideoBitRate = maxBitRate;
+        mDecision = null;
+    }
+
+    public synchronized void setMinFrameRate(int minFrameRate) {
+        mMinFrameRate = minFrameRate;
+        mDecision = null;
+    }
+
+    /**
+     * @param minVideoScale smallest size relative to the configured one, {@code 1} to keep the size
+     */
+    public synchronized void setMinVideoScale(float minVideoScale) {
+        mMinVideoScale = minVideoScale;
+        mDecision = null;
+    }
+
+    public synchronized void setIntervalMs(int intervalMs) {
+        mIntervalMs = intervalMs;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public synchronized void setBitRateTarget(BitRateTarget target) {
+        mTarget = target;
+    }
+
+    /**
+     * Go back to the configured quality with the next recording.
+     */
+    public synchronized void resetDecision() {
+        mDecision = null;
+    }
+
+    /**
+     * @return a copy of the current decision, {@code null} before the first recording
+     */
+    public synchronized QualityDecision getDecision() {
+        return mDecision == null ? null : new QualityDecision(mDecision);
+    }
+
+    /**
+     * Start measuring a recording and put the decided quality into its config.
+     *
+     * @param config the recording to start, the bitrate, frame rate and video size are changed
+     * @param scalable whether the video size may change
+     */
+    public synchronized void begin(RecordingConfig config, boolean scalable) {
+        if (mDecision == null || mBaseWidth != config.getVideoWidth() || mBaseHeight != config.getVideoHeight()) {
+            mBaseWidth = config.getVideoWidth();
+            mBaseHeight = config.getVideoHeight();
+            QualityDecision decision = new QualityDecision();
+            int bitRate = config.getVideoBitRate();
+            decision.mMaxVideoBitRate = mMaxVideoBitRate > 0 ? mMaxVideoBitRate : bitRate;
+            decision.mMinVideoBitRate = Math.min(decision.mMaxVideoBitRate,
+                    mMinVideoBitRate > 0 ? mMinVideoBitRate : bitRate / 4);
+            decision.mMaxFrameRate = config.getFrameRate();
+            decision.mMinFrameRate = Math.min(mMinFrameRate, config.getFrameRate());
+            decision.mMinVideoScale = mMinVideoScale;
+            decision.setVideoBitRate(bitRate);
+            decision.setFrameRate(config.getFrameRate());
+            decision.clamp();
+            mDecision = decision;
+        }
+        config.setVideoBitRate(mDecision.getVideoBitRate());
+        config.setFrameRate(mDecision.getFrameRate());
+        if (scalable && mDecision.getVideoScale() < 1f) {
+            config.setVideoSize(scale(mBaseWidth, mDecision.getVideoScale()),
+                    scale(mBaseHeight, mDecision.getVideoScale()));
+        }
+        mWindowStartUs = -1;
+    }
+
+    /**
+     * Report a sample that went to the output.
+     *
+     * @param writeNanos how long writing it took, or the time the storage spent on the output
+     *                   since the previous sample
+     */
+    public void onSampleWritten(int track, long presentationTimeUs, int size, long writeNanos) {
+        BitRateTarget target = null;
+        int bitRate = 0;
+        Listener listener = null;
+        QualitySample sample = null;
+        QualityDecision decision = null;
+        synchronized (this) {
+            if (mDecision == null) {
+                return;
+            }
+            mWriteNanos += writeNanos;
+            if (track != CodecRecordingEngine.TRACK_VIDEO) {
+                return;
+            }
+            if (mWindowStartUs < 0 || presentationTimeUs < mWindowStartUs) {
+                startWindow(presentationTimeUs);
+                return;
+            }
+            // a frame counts until the next one, so it belongs to the interval it was shown in
+            mVideoBytes += size;
+            mVideoFrames++;
+            long durationUs = presentationTimeUs - mWindowStartUs;
+            if (durationUs < mIntervalMs * 1000L) {
+                return;
+            }
+            mSample.timeUs = presentationTimeUs;
+            mSample.durationUs = durationUs;
+            mSample.targetBitRate = mDecision.getVideoBitRate();
+            mSample.encodedBitRate = (int) (mVideoBytes * 8 * 1000000 / durationUs);
+            mSample.targetFrameRate = mDecision.getFrameRate();
+            mSample.encodedFrameRate = mVideoFrames * 1000000f / durationUs;
+            mSample.writeLoad = mWriteNanos / 1000f / durationUs;
+            int before = mDecision.getVideoBitRate();
+            mPolicy.adjust(mSample, mDecision);
+            mDecision.clamp();
+            if (mDecision.getVideoBitRate() != before) {
+                target = mTarget;
+                bitRate = mDecision.getVideoBitRate();
+            }
+            listener = mListener;
+            if (listener != null) {
+                sample = new QualitySample(mSample);
+                decision = new QualityDecision(mDecision);
+            }
+            startWindow(presentationTimeUs);
+        }
+        if (target != null) {
+            target.setVideoBitRate(bitRate);
+        }
+        if (listener != null) {
+            listener.onQualityEvaluated(sample, decision);
+        }
+    }
+
+    private void startWindow(long presentationTimeUs) {
+        mWindowStartUs = presentationTimeUs;
+        mVideoBytes = 0;
+        mVideoFrames = 0;
+        mWriteNanos = 0;
+    }
+
+    /**
+     * Scale a side, keeping it a multiple of 16 as encoders like it.
+     */
+    static int scale(int side, float scale) {
+        return Math.max(16, Math.round(side * scale / 16) * 16);
+    }
+}
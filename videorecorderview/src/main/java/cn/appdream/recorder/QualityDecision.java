@@ -0,0 +1,90 @@
+package cn.appdream.recorder;
+
+/**
+ * Settings chosen by a {@link QualityPolicy}, together with the bounds they are kept in.
+ * <p>
+ * The video bitrate is applied while recording where the encoder supports it. Frame rate and
+ * video scale need a new encoder and apply from the next recording on.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public class QualityDecision {
+    private int mVideoBitRate;
+    private int mFrameRate;
+    private float mVideoScale = 1f;
+
+    int mMinVideoBitRate;
+    int mMaxVideoBitRate;
+    int mMinFrameRate;
+    int mMaxFrameRate;
+    float mMinVideoScale;
+
+    QualityDecision() {
+    }
+
+    QualityDecision(QualityDecision other) {
+        mVideoBitRate = other.mVideoBitRate;
+        mFrameRate = other.mFrameRate;
+        mVideoScale = other.mVideoScale;
+        mMinVideoBitRate = other.mMinVideoBitRate;
+        mMaxVideoBitRate = other.mMaxVideoBitRate;
+        mMinFrameRate = other.mMinFrameRate;
+        mMaxFrameRate = other.mMaxFrameRate;
+        mMinVideoScale = other.mMinVideoScale;
+    }
+
+    public int getVideoBitRate() {
+        return mVideoBitRate;
+    }
+
+    public void setVideoBitRate(int videoBitRate) {
+        mVideoBitRate = videoBitRate;
+    }
+
+    public int getFrameRate() {
+        return mFrameRate;
+    }
+
+    public void setFrameRate(int frameRate) {
+        mFrameRate = frameRate;
+    }
+
+    /**
+     * @return the recorded size relative to the configured one
+     */
+    public float getVideoScale() {
+        return mVideoScale;
+    }
+
+    public void setVideoScale(float videoScale) {
+        mVideoScale = videoScale;
+    }
+
+    public int getMinVideoBitRate() {
+        return mMinVideoBitRate;
+    }
+
+    public int getMaxVideoBitRate() {
+        return mMaxVideoBitRate;
+    }
+
+    public int getMinFrameRate() {
+        return mMinFrameRate;
+    }
+
+    public int getMaxFrameRate() {
+        return mMaxFrameRate;
+    }
+
+    public float getMinVideoScale() {
+        return mMinVideoScale;
+    }
+
+    void clamp() {
+        mVideoBitRate = Math.max(mMinVideoBitRate, Math.min(mMaxVideoBitRate, mVideoBitRate));
+        mFrameRate = Math.max(mMinFrameRate, Math.min(mMaxFrameRate, mFrameRate));
+        mVideoScale = Math.max(mMinVideoScale, Math.min(1f, mVideoScale));
+    }
+}
@@ -0,0 +1,20 @@
+package cn.appdream.recorder;
+
+/**
+ * Rules of a {@link QualityController}. Called once per measured interval on an encoder
+ * thread; implementations should only look at their arguments and their own state, so that
+ * they can be tested by replaying {@link QualitySample} traces.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public interface QualityPolicy {
+
+    /**
+     * @param sample   what happened during the last interval
+     * @param decision the settings in use, change it to adapt; values are clamped to the
+     *                 bounds of the controller afterwards
+     */
+    void adjust(QualitySample sample, QualityDecision decision);
+}
@@ -0,0 +1,80 @@
+package cn.appdream.recorder;
+
+import java.util.Locale;
+
+/**
+ * What a {@link QualityController} measured over one interval of a recording, handed to the
+ * {@link QualityPolicy}.
+ * <p>
+ * {@link #toString()} gives one trace line and {@link #parse(String)} reads it back, so that
+ * samples logged on a device can be replayed against a policy in a unit test.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public class QualitySample {
+    /**
+     * End of the interval, in presentation time.
+     */
+    public long timeUs;
+    public long durationUs;
+    /**
+     * The video bitrate the encoder was asked for.
+     */
+    public int targetBitRate;
+    /**
+     * The video bitrate the encoder produced.
+     */
+    public int encodedBitRate;
+    public int targetFrameRate;
+    public float encodedFrameRate;
+    /**
+     * Time spent writing audio and video to the output, relative to the interval. Above
+     * {@code 1} the output can not keep up.
+     */
+    public float writeLoad;
+
+    public QualitySample() {
+    }
+
+    public QualitySample(QualitySample other) {
+        timeUs = other.timeUs;
+        durationUs = other.durationUs;
+        targetBitRate = other.targetBitRate;
+        encodedBitRate = other.encodedBitRate;
+        targetFrameRate = other.targetFrameRate;
+        encodedFrameRate = other.encodedFrameRate;
+        writeLoad = other.writeLoad;
+    }
+
+    /**
+     * @param line as written by {@link #toString()}
+     * @throws IllegalArgumentException if the line is no trace line
+     */
+    public static QualitySample parse(String line) {
+        String[] values = line.trim().split(",");
+        if (values.length != 7) {
+            throw new IllegalArgumentException("not a quality trace line: " + line);
+        }
+        try {
+            QualitySample sample = new QualitySample();
+            sample.timeUs = Long.parseLong(values[0]);
+            sample.durationUs = Long.parseLong(values[1]);
+            sample.targetBitRate = Integer.parseInt(values[2]);
+            sample.encodedBitRate = Integer.parseInt(values[3]);
+            sample.targetFrameRate = Integer.parseInt(values[4]);
+            sample.encodedFrameRate = Float.parseFloat(values[5]);
+            sample.writeLoad = Float.parseFloat(values[6]);
+            return sample;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("not a quality trace line: " + line, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%d,%d,%d,%d,%d,%.2f,%.3f", timeUs, durationUs, targetBitRate,
+                encodedBitRate, targetFrameRate, encodedFrameRate, writeLoad);
+    }
+}
@@ -0,0 +1,279 @@
+package cn.appdream.recorder;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Where the time of the recorder goes: durations of the camera and recorder setup phases,
+ * preview and encoder frame intervals, bytes recorded and errors.
+ * <p>
+ * Everything is kept in lock free counters and {@link LatencyHistogram}s, so it is always on;
+ * read it with the getters or get each phase and error pushed to a {@link Listener}, e.g. to
+ * export it to telemetry. Times come from {@link System#nanoTime()}.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public class RecorderMetrics {
+    /**
+     * {@code Camera.open()}, including the retry.
+     */
+    public static final int PHASE_CAMERA_OPEN = 0;
+    public static final int PHASE_GET_PARAMETERS = 1;
+    /**
+     * Choosing the preview size, fast once the result is cached.
+     */
+    public static final int PHASE_CHOOSE_SIZE = 2;
+    public static final int PHASE_SET_PARAMETERS = 3;
+    /**
+     * Attaching the preview surface and {@code startPreview()}.
+     */
+    public static final int PHASE_START_PREVIEW = 4;
+    /**
+     * Preparing the recording engine, {@code MediaRecorder.prepare()} or encoder setup.
+     */
+    public static final int PHASE_RECORDER_PREPARE = 5;
+    public static final int PHASE_RECORDER_START = 6;
+    /**
+     * Stopping the engine until the file is complete.
+     */
+    public static final int PHASE_RECORDER_STOP = 7;
+    /**
+     * From {@code startRecord()} to the first frame in the file.
+     */
+    public static final int PHASE_FIRST_FRAME = 8;
+    /**
+     * Switching the facing, from the request on the camera thread to the preview of the new
+     * camera.
+     */
+    public static final int PHASE_CAMERA_SWITCH = 9;
+    public static final int PHASE_COUNT = 10;
+    /**
+     * The requested file, see {@link #getStream(int)}.
+     */
+    public static final int STREAM_PRIMARY = 0;
+    /**
+     * The proxy file of {@link RecordingConfig#setProxy(RecordingConfig)}.
+     */
+    public static final int STREAM_PROXY = 1;
+
+    private static final String[] PHASE_NAMES = {
+            "camera_open", "get_parameters", "choose_size", "set_parameters", "start_preview",
+            "recorder_prepare", "recorder_start", "recorder_stop", "first_frame", "camera_switch",
+    };
+
+    /**
+     * Receives phases and errors as they happen, on the thread they happen on. Keep it short.
+     */
+    public abstract static class Listener {
+        /**
+         * @param phase one of the {@code PHASE_} constants
+         * @param nanos how long it took
+         */
+        public void onPhase(int phase, long nanos) {
+        }
+
+        /**
+         * @param source the {@link #phaseName(int) phase name} or {@code "recording"}
+         */
+        public void onError(String source, Throwable error) {
+        }
+    }
+
+    private static final Listener NO_LISTENER = new Listener() {
+    };
+
+    private final LatencyHistogram[] mPhases = new LatencyHistogram[PHASE_COUNT];
+    private final LatencyHistogram mPreviewFrameIntervals = new LatencyHistogram();
+    private final LatencyHistogram mVideoOutputIntervals = new LatencyHistogram();
+    private final AtomicLong mPreviewFrames = new AtomicLong();
+    private final AtomicLong mLastPreviewFrameNanos = new AtomicLong();
+    private final AtomicLong[] mEncodedSamples = {new AtomicLong(), new AtomicLong()};
+    private final AtomicLong mLastVideoOutputNanos = new AtomicLong();
+    private final AtomicLong mRecordedBytes = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+    private final AtomicLong mAudioDriftUs = new AtomicLong();
+    private final StreamMetrics[] mStreams = {new StreamMetrics(), new StreamMetrics()};
+    private volatile Listener mListener = NO_LISTENER;
+
+    public RecorderMetrics() {
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            mPhases[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @param listener {@code null} for none
+     */
+    public void setListener(Listener listener) {
+        mListener = listener == null ? NO_LISTENER : listener;
+    }
+
+    public static String phaseName(int phase) {
+        return PHASE_NAMES[phase];
+    }
+
+    /**
+     * Record that {@code phase} started at {@code startNanos} and ends now.
+     *
+     * @return now, to chain the next phase
+     */
+    public long endPhase(int phase, long startNanos) {
+        long now = System.nanoTime();
+        long nanos = now - startNanos;
+        mPhases[phase].record(nanos);
+        mListener.onPhase(phase, nanos);
+        return now;
+    }
+
+    public void onError(String source, Throwable error) {
+        mErrors.incrementAndGet();
+        mListener.onError(source, error);
+    }
+
+    void onPreviewFrame(long nanos) {
+        mPreviewFrames.incrementAndGet();
+        long last = mLastPreviewFrameNanos.getAndSet(nanos);
+        if (last != 0) {
+            mPreviewFrameIntervals.record(nanos - last);
+        }
+    }
+
+    /**
+     * The preview stopped, the next frame does not start an interval.
+     */
+    void onPreviewStopped() {
+        mLastPreviewFrameNanos.set(0);
+    }
+
+    /**
+     * @param track {@link CodecRecordingEngine#TRACK_VIDEO} or {@link CodecRecordingEngine#TRACK_AUDIO}
+     */
+    void onSampleWritten(int track, int size, long nanos) {
+        mEncodedSamples[track].incrementAndGet();
+        mRecordedBytes.addAndGet(size);
+        if (track == CodecRecordingEngine.TRACK_VIDEO) {
+            long last = mLastVideoOutputNanos.getAndSet(nanos);
+            if (last != 0) {
+                mVideoOutputIntervals.record(nanos - last);
+            }
+        }
+    }
+
+    /**
+     * The encoder output ends, e.g. at the end of a recording.
+     */
+    void onOutputStopped() {
+        mLastVideoOutputNanos.set(0);
+        for (StreamMetrics stream : mStreams) {
+            stream.onOutputStopped();
+        }
+    }
+
+    void onAudioDrift(long driftUs) {
+        mAudioDriftUs.set(driftUs);
+    }
+
+    /**
+     * For engines that only see complete files.
+     */
+    void onFileWritten(long bytes) {
+        mRecordedBytes.addAndGet(bytes);
+    }
+
+    public LatencyHistogram getPhaseTime(int phase) {
+        return mPhases[phase];
+    }
+
+    public long getPreviewFrameCount() {
+        return mPreviewFrames.get();
+    }
+
+    /**
+     * Only measured where the frames pass the library: with {@link VideoRecorderView#ENGINE_CODEC}
+     * or while a {@link FrameConsumer} is attached.
+     */
+    public LatencyHistogram getPreviewFrameIntervals() {
+        return mPreviewFrameIntervals;
+    }
+
+    /**
+     * @return frames per second from the mean interval, {@code 0} before two frames
+     */
+    public float getPreviewFrameRate() {
+        return rate(mPreviewFrameIntervals);
+    }
+
+    /**
+     * @return compressed samples of {@code track} written to files
+     */
+    public long getEncodedSampleCount(int track) {
+        return mEncodedSamples[track].get();
+    }
+
+    /**
+     * Time between video samples coming out of the encoder, only with
+     * {@link VideoRecorderView#ENGINE_CODEC}.
+     */
+    public LatencyHistogram getVideoOutputIntervals() {
+        return mVideoOutputIntervals;
+    }
+
+    public float getVideoOutputFrameRate() {
+        return rate(mVideoOutputIntervals);
+    }
+
+    /**
+     * @return bytes written to recordings; live with {@link VideoRecorderView#ENGINE_CODEC},
+     * per complete file with {@link VideoRecorderView#ENGINE_MEDIA_RECORDER}
+     */
+    public long getRecordedBytes() {
+        return mRecordedBytes.get();
+    }
+
+    public long getErrorCount() {
+        return mErrors.get();
+    }
+
+    /**
+     * How far the audio capture clock lags the system clock since the recording started, lost
+     * samples included; the audio track drifts that much against the video. Only measured with
+     * {@link VideoRecorderView#ENGINE_CODEC}, updated about once a second.
+     */
+    public long getAudioDriftUs() {
+        return mAudioDriftUs.get();
+    }
+
+    /**
+     * Per file throughput, only with {@link VideoRecorderView#ENGINE_CODEC}.
+     *
+     * @param stream {@link #STREAM_PRIMARY} or {@link #STREAM_PROXY}
+     */
+    public StreamMetrics getStream(int stream) {
+        return mStreams[stream];
+    }
+
+    public void reset() {
+        for (LatencyHistogram phase : mPhases) {
+            phase.reset();
+        }
+        mPreviewFrameIntervals.reset();
+        mVideoOutputIntervals.reset();
+        mPreviewFrames.set(0);
+        mLastPreviewFrameNanos.set(0);
+        mEncodedSamples[0].set(0);
+        mEncodedSamples[1].set(0);
+        mLastVideoOutputNanos.set(0);
+        mRecordedBytes.set(0);
+        mErrors.set(0);
+        mAudioDriftUs.set(0);
+        for (StreamMetrics stream : mStreams) {
+            stream.reset();
+        }
+    }
+
+    private static float rate(LatencyHistogram intervals) {
+        long mean = intervals.getMeanMicros();
+        return mean == 0 ? 0 : 1000000f / mean;
+    }
+}
@@ -0,0 +1,483 @@
+package cn.appdream.recorder;
+
+import java.util.Locale;
+
+/**
+ * Settings for a {@link RecordingEngine}. Not every engine honours every setting,
+ * {@link MediaRecorderEngine} ignores the encoder tuning ones.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public class RecordingConfig {
+    /**
+     * Constant quality, see {@code MediaCodecInfo.EncoderCapabilities}.
+     */
+    public static final int BITRATE_MODE_CQ = 0;
+    /**
+     * Variable bitrate.
+     */
+    public static final int BITRATE_MODE_VBR = 1;
+    /**
+     * Constant bitrate.
+     */
+    public static final int BITRATE_MODE_CBR = 2;
+
+    private String mOutputFile;
+    private int mVideoWidth;
+    private int mVideoHeight;
+    private int mVideoBitRate;
+    private int mFrameRate = 30;
+    private int mKeyFrameInterval = 1;
+    private int mBitrateMode = BITRATE_MODE_VBR;
+    private int mMaxBFrames = 0;
+    private boolean mAudioEnabled = true;
+    private int mAudioSampleRate = 44100;
+    private int mAudioChannels = 1;
+    private int mAudioBitRate = 64000;
+    private float mSilenceThresholdDb = AudioMeter.DEFAULT_SILENCE_DB;
+    private int mSilencePauseMs;
+    private int mOrientationHint;
+    private int mMaxDurationMs = 20 * 1000;
+    private int mSegmentDurationMs;
+    private long mSegmentSizeBytes;
+    private int mPreRollDurationMs;
+    private int mPreRollMaxBytes;
+    private FsyncPolicy mFsyncPolicy = FsyncPolicy.NEVER;
+    private int mFragmentDurationMs;
+    private boolean mCrashRecoveryEnabled;
+    private RecordingConfig mProxy;
+
+    public RecordingConfig() {
+    }
+
+    public RecordingConfig(RecordingConfig other) {
+        mOutputFile = other.mOutputFile;
+        mVideoWidth = other.mVideoWidth;
+        mVideoHeight = other.mVideoHeight;
+        mVideoBitRate = other.mVideoBitRate;
+        mFrameRate = other.mFrameRate;
+        mKeyFrameInterval = other.mKeyFrameInterval;
+        mBitrateMode = other.mBitrateMode;
+        mMaxBFrames = other.mMaxBFrames;
+        mAudioEnabled = other.mAudioEnabled;
+        mAudioSampleRate = other.mAudioSampleRate;
+        mAudioChannels = other.mAudioChannels;
+        mAudioBitRate = other.mAudioBitRate;
+        mSilenceThresholdDb = other.mSilenceThresholdDb;
+        mSilencePauseMs = other.mSilencePauseMs;
+        mOrientationHint = other.mOrientationHint;
+        mMaxDurationMs = other.mMaxDurationMs;
+        mSegmentDurationMs = other.mSegmentDurationMs;
+        mSegmentSizeBytes = other.mSegmentSizeBytes;
+        mPreRollDurationMs = other.mPreRollDurationMs;
+        mPreRollMaxBytes = other.mPreRollMaxBytes;
+        mFsyncPolicy = other.mFsyncPolicy;
+        mFragmentDurationMs = other.mFragmentDurationMs;
+        mCrashRecoveryEnabled = other.mCrashRecoveryEnabled;
+        mProxy = other.mProxy == null ? null : new RecordingConfig(other.mProxy);
+    }
+
+    public String getOutputFile() {
+        return mOutputFile;
+    }
+
+    public void setOutputFile(String outputFile) {
+        mOutputFile = outputFile;
+    }
+
+    public int getVideoWidth() {
+        return mVideoWidth;
+    }
+
+    public int getVideoHeight() {
+        return mVideoHeight;
+    }
+
+    public void setVideoSize(int width, int height) {
+        mVideoWidth = width;
+        mVideoHeight = height;
+    }
+
+    /**
+     * @return the video bitrate, {@code 2 * width * height} unless set
+     */
+    public int getVideoBitRate() {
+        return mVideoBitRate > 0 ? mVideoBitRate : 2 * mVideoWidth * mVideoHeight;
+    }
+
+    /**
+     * @param videoBitRate bits per second, {@code 0} for {@code 2 * width * height}
+     */
+    public void setVideoBitRate(int videoBitRate) {
+        mVideoBitRate = videoBitRate;
+    }
+
+    public int getFrameRate() {
+        return mFrameRate;
+    }
+
+    public void setFrameRate(int frameRate) {
+        mFrameRate = frameRate;
+    }
+
+    /**
+     * @return seconds between key frames
+     */
+    public int getKeyFrameInterval() {
+        return mKeyFrameInterval;
+    }
+
+    public void setKeyFrameInterval(int seconds) {
+        mKeyFrameInterval = seconds;
+    }
+
+    public int getBitrateMode() {
+        return mBitrateMode;
+    }
+
+    /**
+     * @param bitrateMode {@link #BITRATE_MODE_CQ}, {@link #BITRATE_MODE_VBR} or
+     *                    {@link #BITRATE_MODE_CBR}; encoders may not support all of them
+     */
+    public void setBitrateMode(int bitrateMode) {
+        mBitrateMode = bitrateMode;
+    }
+
+    public int getMaxBFrames() {
+        return mMaxBFrames;
+    }
+
+    /**
+     * @param maxBFrames B-frames between reference frames, only applied where the platform
+     *                   exposes the setting
+     */
+    public void setMaxBFrames(int maxBFrames) {
+        mMaxBFrames = maxBFrames;
+    }
+
+    public boolean isAudioEnabled() {
+        return mAudioEnabled;
+    }
+
+    public void setAudioEnabled(boolean audioEnabled) {
+        mAudioEnabled = audioEnabled;
+    }
+
+    public int getAudioSampleRate() {
+        return mAudioSampleRate;
+    }
+
+    public void setAudioSampleRate(int audioSampleRate) {
+        mAudioSampleRate = audioSampleRate;
+    }
+
+    public int getAudioChannels() {
+        return mAudioChannels;
+    }
+
+    public void setAudioChannels(int audioChannels) {
+        mAudioChannels = audioChannels;
+    }
+
+    public int getAudioBitRate() {
+        return mAudioBitRate;
+    }
+
+    public void setAudioBitRate(int audioBitRate) {
+        mAudioBitRate = audioBitRate;
+    }
+
+    public float getSilenceThresholdDb() {
+        return mSilenceThresholdDb;
+    }
+
+    public int getSilencePauseMs() {
+        return mSilencePauseMs;
+    }
+
+    /**
+     * Leave audio out of the file while it is silent, to save space; honoured by
+     * {@link CodecRecordingEngine}. Audio below {@code thresholdDb} for {@code pauseMs} stops
+     * being encoded, the next louder chunk resumes it in time, players treat the gap as silence.
+     *
+     * @param thresholdDb RMS level in dBFS, e.g. {@code -50}
+     * @param pauseMs     {@code 0} to always encode
+     */
+    public void setSilencePause(float thresholdDb, int pauseMs) {
+        mSilenceThresholdDb = thresholdDb;
+        mSilencePauseMs = pauseMs;
+    }
+
+    public int getOrientationHint() {
+        return mOrientationHint;
+    }
+
+    public void setOrientationHint(int orientationHint) {
+        mOrientationHint = orientationHint;
+    }
+
+    public int getMaxDurationMs() {
+        return mMaxDurationMs;
+    }
+
+    /**
+     * @param maxDurationMs stop after this long, {@code 0} to record until stopped
+     */
+    public void setMaxDurationMs(int maxDurationMs) {
+        mMaxDurationMs = maxDurationMs;
+    }
+
+    public int getSegmentDurationMs() {
+        return mSegmentDurationMs;
+    }
+
+    /**
+     * Split the recording into consecutive files of about this length. A segment ends at the
+     * first key frame after the limit, so the files play back to back without a gap.
+     *
+     * @param segmentDurationMs {@code 0} for one file
+     * @see #getSegmentPath(int)
+     */
+    public void setSegmentDurationMs(int segmentDurationMs) {
+        mSegmentDurationMs = segmentDurationMs;
+    }
+
+    public long getSegmentSizeBytes() {
+        return mSegmentSizeBytes;
+    }
+
+    /**
+     * Like {@link #setSegmentDurationMs(int)}, but by written bytes. When both are set the
+     * segment ends at whichever comes first.
+     *
+     * @param segmentSizeBytes {@code 0} for no size limit
+     */
+    public void setSegmentSizeBytes(long segmentSizeBytes) {
+        mSegmentSizeBytes = segmentSizeBytes;
+    }
+
+    public boolean isSegmented() {
+        return mSegmentDurationMs > 0 || mSegmentSizeBytes > 0;
+    }
+
+    /**
+     * @return the output file when not {@link #isSegmented() segmented}, otherwise the output
+     * file with the index appended to its name, {@code /sdcard/a.mp4} becomes
+     * {@code /sdcard/a_000.mp4}, {@code /sdcard/a_001.mp4} ...
+     */
+    public String getSegmentPath(int index) {
+        if (!isSegmented() || mOutputFile == null) {
+            return mOutputFile;
+        }
+        int slash = mOutputFile.lastIndexOf('/');
+        int dot = mOutputFile.lastIndexOf('.');
+        if (dot <= slash) {
+            dot = mOutputFile.length();
+        }
+        return mOutputFile.substring(0, dot) + String.format(Locale.US, "_%03d", index)
+                + mOutputFile.substring(dot);
+    }
+
+    public int getPreRollDurationMs() {
+        return mPreRollDurationMs;
+    }
+
+    /**
+     * Keep encoding into memory after {@link RecordingEngine#start()}, so that the file begun
+     * by {@link CodecRecordingEngine#startOutput(String)} starts with up to this much of what
+     * happened before. The output file is not needed until then.
+     *
+     * @param preRollDurationMs {@code 0} to start recordings at the trigger
+     */
+    public void setPreRollDurationMs(int preRollDurationMs) {
+        mPreRollDurationMs = preRollDurationMs;
+    }
+
+    /**
+     * @return the memory for pre-roll samples; unless set twice what the configured bitrates
+     * need for one key frame interval more than {@link #getPreRollDurationMs()}
+     */
+    public int getPreRollMaxBytes() {
+        if (mPreRollMaxBytes > 0) {
+            return mPreRollMaxBytes;
+        }
+        long bitRate = getVideoBitRate() + (mAudioEnabled ? mAudioBitRate : 0);
+        long durationMs = mPreRollDurationMs + mKeyFrameInterval * 1000L;
+        return (int) Math.min(Integer.MAX_VALUE, 2 * bitRate / 8 * durationMs / 1000);
+    }
+
+    /**
+     * @param preRollMaxBytes cap for the pre-roll memory, {@code 0} to derive it from the bitrates
+     */
+    public void setPreRollMaxBytes(int preRollMaxBytes) {
+        mPreRollMaxBytes = preRollMaxBytes;
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return mFsyncPolicy;
+    }
+
+    /**
+     * @param fsyncPolicy when recorded files are forced to the storage, {@link FsyncPolicy#NEVER}
+     *                    by default
+     */
+    public void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+        mFsyncPolicy = fsyncPolicy;
+    }
+
+    public int getFragmentDurationMs() {
+        return mFragmentDurationMs;
+    }
+
+    /**
+     * Write fragmented MPEG-4: the file grows by one self-contained fragment about this long at
+     * a time, each reported to {@link RecordingEngine.Listener#onFragmentWritten} as soon as it
+     * is in the file, so it can be uploaded while recording and survives a crash. Only
+     * {@link CodecRecordingEngine} writes fragments, see {@link FragmentedMp4Writer}.
+     *
+     * @param fragmentDurationMs {@code 0} for a regular file, written out at the end
+     */
+    public void setFragmentDurationMs(int fragmentDurationMs) {
+        mFragmentDurationMs = fragmentDurationMs;
+    }
+
+    public boolean isFragmented() {
+        return mFragmentDurationMs > 0;
+    }
+
+    public boolean isCrashRecoveryEnabled() {
+        return mCrashRecoveryEnabled;
+    }
+
+    /**
+     * Keep a small index of the written samples next to each file while recording, so
+     * {@link RecordingRecovery} can make a file playable that was not finished because the app
+     * died. Only for {@link CodecRecordingEngine}; fragmented files need no index.
+     */
+    public void setCrashRecoveryEnabled(boolean crashRecoveryEnabled) {
+        mCrashRecoveryEnabled = crashRecoveryEnabled;
+    }
+
+    public RecordingConfig getProxy() {
+        return mProxy;
+    }
+
+    /**
+     * Record a second, smaller file from the same camera frames and microphone, e.g. for a quick
+     * upload or editing before the full file is needed. Only {@link CodecRecordingEngine} records
+     * proxies.
+     * <p>
+     * The video size of {@code proxy} bounds the proxy size, in either orientation; the frames
+     * are scaled down to fit with the aspect ratio of this config, {@code 0x0} for half the
+     * size. Bitrates, key frame interval, segments and fsync policy are its own, the output
+     * file, frame rate, orientation, max duration, pre-roll and audio format follow this config.
+     *
+     * @param proxy {@code null} to record one file
+     * @see #getProxyPath(String)
+     */
+    public void setProxy(RecordingConfig proxy) {
+        mProxy = proxy == null ? null : new RecordingConfig(proxy);
+    }
+
+    /**
+     * @return where the proxy of a recording into {@code file} goes, {@code /sdcard/a.mp4}
+     * becomes {@code /sdcard/a_proxy.mp4}
+     */
+    public static String getProxyPath(String file) {
+        if (file == null) {
+            return null;
+        }
+        int slash = file.lastIndexOf('/');
+        int dot = file.lastIndexOf('.');
+        if (dot <= slash) {
+            dot = file.length();
+        }
+        return file.substring(0, dot) + "_proxy" + file.substring(dot);
+    }
+
+    /**
+     * @param maxWidth  bound for the longer side, {@code 0} for none; both {@code 0} halves
+     *                  the size
+     * @param maxHeight bound for the shorter side, {@code 0} for none
+     * @return the {@link SizeResolver#pack(int, int) packed} size of {@code width x height}
+     * scaled down to fit the bounds, never up, with even sides for the encoders
+     */
+    static int fitProxySize(int width, int height, int maxWidth, int maxHeight) {
+        double scale;
+        if (maxWidth <= 0 && maxHeight <= 0) {
+            scale = 0.5;
+        } else {
+            boolean portrait = width < height;
+            int boundW = portrait ? maxHeight : maxWidth;
+            int boundH = portrait ? maxWidth : maxHeight;
+            scale = 1;
+            if (boundW > 0) {
+                scale = Math.min(scale, (double) boundW / width);
+            }
+            if (boundH > 0) {
+                scale = Math.min(scale, (double) boundH / height);
+            }
+        }
+        int w = Math.max(2, (int) (width * scale) & ~1);
+        int h = Math.max(2, (int) (height * scale) & ~1);
+        return SizeResolver.pack(w, h);
+    }
+
+    /**
+     * @return the settings of the proxy recording, see {@link #setProxy(RecordingConfig)};
+     * {@code null} without proxy
+     */
+    RecordingConfig resolveProxy() {
+        if (mProxy == null) {
+            return null;
+        }
+        RecordingConfig proxy = new RecordingConfig(mProxy);
+        proxy.mProxy = null;
+        proxy.mOutputFile = getProxyPath(mOutputFile);
+        int size = fitProxySize(mVideoWidth, mVideoHeight, mProxy.mVideoWidth, mProxy.mVideoHeight);
+        proxy.mVideoWidth = SizeResolver.width(size);
+        proxy.mVideoHeight = SizeResolver.height(size);
+        proxy.mFrameRate = mFrameRate;
+        proxy.mOrientationHint = mOrientationHint;
+        proxy.mMaxDurationMs = mMaxDurationMs;
+        proxy.mPreRollDurationMs = mPreRollDurationMs;
+        proxy.mAudioEnabled = mAudioEnabled && mProxy.mAudioEnabled;
+        proxy.mAudioSampleRate = mAudioSampleRate;
+        proxy.mAudioChannels = mAudioChannels;
+        proxy.mSilenceThresholdDb = mSilenceThresholdDb;
+        proxy.mSilencePauseMs = mSilencePauseMs;
+        return proxy;
+    }
+
+    /**
+     * @return {@code true} if both configs record the same way, only the output file may differ
+     */
+    boolean hasSameSettings(RecordingConfig other) {
+        return mVideoWidth == other.mVideoWidth
+                && mVideoHeight == other.mVideoHeight
+                && mVideoBitRate == other.mVideoBitRate
+                && mFrameRate == other.mFrameRate
+                && mKeyFrameInterval == other.mKeyFrameInterval
+                && mBitrateMode == other.mBitrateMode
+                && mMaxBFrames == other.mMaxBFrames
+                && mAudioEnabled == other.mAudioEnabled
+                && mAudioSampleRate == other.mAudioSampleRate
+                && mAudioChannels == other.mAudioChannels
+                && mAudioBitRate == other.mAudioBitRate
+                && mSilenceThresholdDb == other.mSilenceThresholdDb
+                && mSilencePauseMs == other.mSilencePauseMs
+                && mOrientationHint == other.mOrientationHint
+                && mMaxDurationMs == other.mMaxDurationMs
+                && mSegmentDurationMs == other.mSegmentDurationMs
+                && mSegmentSizeBytes == other.mSegmentSizeBytes
+                && mPreRollDurationMs == other.mPreRollDurationMs
+                && mPreRollMaxBytes == other.mPreRollMaxBytes
+                && mFsyncPolicy == other.mFsyncPolicy
+                && mFragmentDurationMs == other.mFragmentDurationMs
+                && mCrashRecoveryEnabled == other.mCrashRecoveryEnabled
+                && (mProxy == null ? other.mProxy == null
+                : other.mProxy != null && mProxy.hasSameSettings(other.mProxy));
+    }
+}
@@ -0,0 +1,80 @@
+package cn.appdream.recorder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns camera frames (and microphone input) into a file.
+ * <p>
+ * All calls come from one thread, in the order {@link #prepare}, {@link #start},
+ * {@link #stop}, and {@link #release} at any point. An engine may be prepared again after
+ * {@link #stop}.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public interface RecordingEngine {
+
+    /**
+     * Events of a {@link RecordingEngine}. Called on engine threads, not the main thread.
+     */
+    abstract class Listener {
+
+        /**
+         * A compressed sample went into the output file.
+         *
+         * @param track {@link CodecRecordingEngine#TRACK_VIDEO} or {@link CodecRecordingEngine#TRACK_AUDIO}
+         * @param flags {@link EncodedSample} flags
+         */
+        public void onSampleWritten(int track, long presentationTimeUs, int size, int flags) {
+        }
+
+        /**
+         * A segment file is complete, see {@link RecordingConfig#setSegmentDurationMs(int)}.
+         *
+         * @param durationUs time between the first and the last sample of the segment
+         * @param size       bytes written to the segment; engines that do not see the container
+         *                   report the audio and video payload only
+         */
+        public void onSegmentFinished(String path, long durationUs, long size) {
+        }
+
+        /**
+         * A byte range of a fragmented recording is in the file, see
+         * {@link RecordingConfig#setFragmentDurationMs(int)}. The first range of every file is
+         * its header, the ranges follow each other without gaps.
+         *
+         * @param data       the bytes of the range, only valid during the call
+         * @param durationUs media time in the range, {@code 0} for the header
+         */
+        public void onFragmentWritten(String path, long offset, ByteBuffer data, long durationUs) {
+        }
+
+        /**
+         * {@link RecordingConfig#getMaxDurationMs()} passed, nothing is written anymore.
+         */
+        public void onMaxDurationReached() {
+        }
+
+        public void onError(Throwable error) {
+        }
+    }
+
+    void setListener(Listener listener);
+
+    /**
+     * Set everything up so that {@link #start()} only has to start.
+     */
+    void prepare(RecordingConfig config) throws IOException;
+
+    void start() throws IOException;
+
+    /**
+     * Stop and finish the output file. Blocks until the file is complete. Without
+     * {@link #start()} it undoes {@link #prepare}, e.g. hands the camera back.
+     */
+    void stop();
+
+    void release();
+}
@@ -0,0 +1,218 @@
+package cn.appdream.recorder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The sidecar of a {@link RecordingConfig#setCrashRecoveryEnabled(boolean) recoverable}
+ * recording: the track formats and, in the order they went to the muxer, track, flags, size and
+ * time of every sample. {@code MediaMuxer} does not tell where a sample lands in the file, the
+ * offsets are worked out by {@link RecordingRecovery}.
+ * <p>
+ * Records are 15 bytes, written through a buffer that is flushed about once a second of
+ * recording; a crash loses at most the unflushed tail, and a last record cut in half is ignored.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+final class RecordingIndex {
+    static final String SUFFIX = ".rindex";
+
+    private static final int MAGIC = 0x56524958;//VRIX
+    private static final int VERSION = 1;
+    private static final int RECORD_FORMAT = 'F';
+    private static final int RECORD_SAMPLE = 'S';
+    private static final long FLUSH_INTERVAL_US = 1000000;
+    private static final int FLUSH_SAMPLES = 256;
+
+    final int orientationHint;
+    final TrackFormat[] formats;
+    /**
+     * Per track, in write order.
+     */
+    final Samples[] samples;
+
+    static final class Samples {
+        int count;
+        int[] sizes = new int[64];
+        long[] timesUs = new long[64];
+        boolean[] sync = new boolean[64];
+
+        void add(int size, long timeUs, boolean key) {
+            if (count == sizes.length) {
+                sizes = Arrays.copyOf(sizes, count * 2);
+                timesUs = Arrays.copyOf(timesUs, count * 2);
+                sync = Arrays.copyOf(sync, count * 2);
+            }
+            sizes[count] = size;
+            timesUs[count] = timeUs;
+            sync[count] = key;
+            count++;
+        }
+    }
+
+    private RecordingIndex(int orientationHint, TrackFormat[] formats, Samples[] samples) {
+        this.orientationHint = orientationHint;
+        this.formats = formats;
+        this.samples = samples;
+    }
+
+    static File fileFor(File recording) {
+        return new File(recording.getPath() + SUFFIX);
+    }
+
+    /**
+     * @return the index, {@code null} if the file holds no complete header
+     */
+    static RecordingIndex read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+                return null;
+            }
+            int orientationHint = in.readShort();
+            int trackCount = in.readUnsignedByte();
+            TrackFormat[] formats = new TrackFormat[trackCount];
+            Samples[] samples = new Samples[trackCount];
+            for (int i = 0; i < trackCount; i++) {
+                if (in.readUnsignedByte() != RECORD_FORMAT) {
+                    return null;
+                }
+                formats[i] = readFormat(in);
+                samples[i] = new Samples();
+            }
+            RecordingIndex index = new RecordingIndex(orientationHint, formats, samples);
+            byte[] record = new byte[14];
+            try {
+                while (in.readUnsignedByte() == RECORD_SAMPLE) {
+                    in.readFully(record);
+                    int track = record[0] & 0xff;
+                    if (track >= trackCount) {
+                        break;
+                    }
+                    samples[track].add(readInt(record, 2), (long) readInt(record, 6) << 32
+                            | readInt(record, 10) & 0xffffffffL, (record[1] & EncodedSample.FLAG_KEY_FRAME) != 0);
+                }
+            } catch (EOFException e) {
+                // 最后一条没写完
+            }
+            return index;
+        } catch (EOFException e) {
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16
+                | (data[offset + 2] & 0xff) << 8 | data[offset + 3] & 0xff;
+    }
+
+    private static void writeFormat(DataOutputStream out, TrackFormat format) throws IOException {
+        out.writeBoolean(format.isVideo());
+        if (format.isVideo()) {
+            out.writeShort(format.getWidth());
+            out.writeShort(format.getHeight());
+            writeBytes(out, format.getSps());
+            writeBytes(out, format.getPps());
+        } else {
+            out.writeInt(format.getSampleRate());
+            out.writeByte(format.getChannels());
+            writeBytes(out, format.getAudioSpecificConfig());
+        }
+    }
+
+    private static TrackFormat readFormat(DataInputStream in) throws IOException {
+        if (in.readBoolean()) {
+            int width = in.readUnsignedShort();
+            int height = in.readUnsignedShort();
+            byte[] sps = readBytes(in);
+            return TrackFormat.avc(width, height, sps, readBytes(in));
+        }
+        int sampleRate = in.readInt();
+        int channels = in.readUnsignedByte();
+        return TrackFormat.aac(sampleRate, channels, readBytes(in));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Appends to the sidecar of one recording. Not thread safe, called with the muxer.
+     */
+    static final class Writer {
+        private final DataOutputStream mOut;
+        private final File mFile;
+        private long mFlushedUs = -1;
+        private int mUnflushed;
+
+        Writer(File file, int orientationHint, TrackFormat[] formats) throws IOException {
+            mFile = file;
+            mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 8192));
+            try {
+                mOut.writeInt(MAGIC);
+                mOut.writeByte(VERSION);
+                mOut.writeShort(orientationHint);
+                mOut.writeByte(formats.length);
+                for (TrackFormat format : formats) {
+                    mOut.writeByte(RECORD_FORMAT);
+                    writeFormat(mOut, format);
+                }
+                mOut.flush();
+            } catch (IOException e) {
+                mOut.close();
+                file.delete();
+                throw e;
+            }
+        }
+
+        void write(int track, int flags, int size, long presentationTimeUs) throws IOException {
+            mOut.writeByte(RECORD_SAMPLE);
+            mOut.writeByte(track);
+            mOut.writeByte(flags);
+            mOut.writeInt(size);
+            mOut.writeLong(presentationTimeUs);
+            mUnflushed++;
+            if (mFlushedUs < 0) {
+                mFlushedUs = presentationTimeUs;
+            }
+            if (mUnflushed >= FLUSH_SAMPLES || presentationTimeUs - mFlushedUs >= FLUSH_INTERVAL_US) {
+                mOut.flush();
+                mUnflushed = 0;
+                mFlushedUs = presentationTimeUs;
+            }
+        }
+
+        /**
+         * @param delete the recording was finished, the index is not needed any more
+         */
+        void close(boolean delete) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (delete) {
+                mFile.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package cn.appdream.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Makes MPEG-4 files playable that a {@link RecordingConfig#setCrashRecoveryEnabled(boolean)
+ * recoverable} recording left without {@code moov} because the app died. Best called on the next
+ * start, off the main thread, e.g. {@code recoverAll(directory)} before recording again.
+ * <p>
+ * The samples are not encoded again and the file is not read into memory: the index kept
+ * next to the file has size and time of each sample, and {@code MediaMuxer} writes the samples
+ * of a track in that order, interleaving the tracks in chunks. Going through the {@code mdat}
+ * once, the next video sample is taken where the bytes are NAL units with 4 byte lengths adding
+ * up to its size, the next audio sample otherwise. Samples cut off by the crash are dropped,
+ * the file is truncated after the last whole one and gets a {@code moov} appended. Expects H.264
+ * with 4 byte start codes as from {@code MediaCodec} and no B-frames.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public final class RecordingRecovery {
+    private static final int NAL_MISMATCH = 0;
+    private static final int NAL_MATCH = 1;
+    private static final int NAL_TRUNCATED = 2;
+    private static final int DEFAULT_FRAME_RATE = 30;
+    private static final int AAC_FRAME_SAMPLES = 1024;
+
+    private RecordingRecovery() {
+    }
+
+    /**
+     * @return the recordings in {@code directory} that have an index left, i.e. were not finished
+     */
+    public static List<File> findInterrupted(File directory) {
+        List<File> recordings = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return recordings;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(RecordingIndex.SUFFIX)) {
+                continue;
+            }
+            File recording = new File(directory, name.substring(0, name.length() - RecordingIndex.SUFFIX.length()));
+            if (recording.isFile()) {
+                recordings.add(recording);
+            } else {
+                // 录像已经被删掉了
+                file.delete();
+            }
+        }
+        return recordings;
+    }
+
+    /**
+     * Recover every {@link #findInterrupted(File) interrupted} recording in {@code directory}.
+     *
+     * @return the files that are playable now
+     */
+    public static List<File> recoverAll(File directory) {
+        List<File> recovered = new ArrayList<>();
+        for (File recording : findInterrupted(directory)) {
+            try {
+                if (recover(recording)) {
+                    recovered.add(recording);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return recovered;
+    }
+
+    /**
+     * Rebuild the sample table of {@code recording} from its index. The index is deleted
+     * afterwards unless reading or writing the file failed.
+     *
+     * @return {@code true} if the file is playable now or already was, {@code false} if nothing
+     * could be recovered, the file is left as it is then
+     */
+    public static boolean recover(File recording) throws IOException {
+        File indexFile = RecordingIndex.fileFor(recording);
+        if (!indexFile.isFile()) {
+            return false;
+        }
+        RecordingIndex index = RecordingIndex.read(indexFile);
+        boolean recovered = false;
+        if (index != null && recording.isFile()) {
+            RandomAccessFile file = new RandomAccessFile(recording, "rw");
+            try {
+                recovered = rebuild(file, index);
+            } finally {
+                file.close();
+            }
+        }
+        indexFile.delete();
+        return recovered;
+    }
+
+    private static boolean rebuild(RandomAccessFile file, RecordingIndex index) throws IOException {
+        long length = file.length();
+        byte[] header = new byte[16];
+        long mdatStart = -1;
+        int mdatHeaderSize = 0;
+        long mdatEnd = length;
+        long position = 0;
+        while (position + 8 <= length) {
+            file.seek(position);
+            file.readFully(header, 0, 8);
+            long size = readInt(header, 0) & 0xffffffffL;
+            int headerSize = 8;
+            if (size == 1 && position + 16 <= length) {
+                file.readFully(header, 8, 8);
+                size = readLong(header, 8);
+                headerSize = 16;
+            }
+            String type = new String(header, 4, 4, "US-ASCII");
+            if ("moov".equals(type)) {
+                return true;
+            }
+            // 大小还没写的box一直到文件末尾
+            boolean open = size < headerSize || position + size > length;
+            if ("mdat".equals(type) && mdatStart < 0) {
+                mdatStart = position;
+                mdatHeaderSize = headerSize;
+                mdatEnd = open ? length : position + size;
+            }
+            if (open) {
+                break;
+            }
+            position += size;
+        }
+        if (mdatStart < 0) {
+            return false;
+        }
+
+        int trackCount = index.formats.length;
+        long[][] offsets = new long[trackCount][];
+        int[] found = new int[trackCount];
+        int video = -1;
+        for (int i = 0; i < trackCount; i++) {
+            offsets[i] = new long[index.samples[i].count];
+            if (video < 0 && index.formats[i].isVideo()) {
+                video = i;
+            }
+        }
+        position = mdatStart + mdatHeaderSize;
+        while (true) {
+            int track = -1;
+            if (video >= 0 && found[video] < index.samples[video].count) {
+                int match = matchVideo(file, position, index.samples[video].sizes[found[video]], mdatEnd, header);
+                if (match == NAL_TRUNCATED) {
+                    break;
+                }
+                if (match == NAL_MATCH) {
+                    track = video;
+                }
+            }
+            for (int i = 0; track < 0 && i < trackCount; i++) {
+                if (i != video && found[i] < index.samples[i].count
+                        && position + index.samples[i].sizes[found[i]] <= mdatEnd) {
+                    track = i;
+                }
+            }
+            if (track < 0) {
+                break;
+            }
+            offsets[track][found[track]] = position;
+            position += index.samples[track].sizes[found[track]];
+            found[track]++;
+        }
+
+        List<TrackFormat> formats = new ArrayList<>();
+        List<Mp4Headers.SampleTable> tables = new ArrayList<>();
+        for (int i = 0; i < trackCount; i++) {
+            if (found[i] > 0) {
+                formats.add(index.formats[i]);
+                tables.add(new Table(index.formats[i], index.samples[i], offsets[i], found[i]));
+            }
+        }
+        if (formats.isEmpty()) {
+            return false;
+        }
+        long mdatSize = position - mdatStart;
+        if (mdatHeaderSize == 8 && mdatSize > 0xffffffffL) {
+            throw new IOException("mdat too large for its header: " + mdatSize);
+        }
+
+        Mp4Box box = new Mp4Box();
+        Mp4Headers.writeMovie(box, formats.toArray(new TrackFormat[formats.size()]), index.orientationHint,
+                tables.toArray(new Mp4Headers.SampleTable[tables.size()]));
+        file.setLength(position);
+        file.seek(mdatStart);
+        if (mdatHeaderSize == 16) {
+            file.writeInt(1);
+            file.writeBytes("mdat");
+            file.writeLong(mdatSize);
+        } else {
+            file.writeInt((int) mdatSize);
+            file.writeBytes("mdat");
+        }
+        ByteBuffer moov = box.toByteBuffer();
+        file.seek(position);
+        file.write(moov.array(), moov.arrayOffset() + moov.position(), moov.remaining());
+        file.getFD().sync();
+        return true;
+    }
+
+    /**
+     * @return whether the bytes at {@code position} are H.264 NAL units with 4 byte lengths,
+     * exactly {@code size} long, {@link #NAL_TRUNCATED} if they are as far as the data goes
+     */
+    private static int matchVideo(RandomAccessFile file, long position, int size, long end, byte[] buffer)
+            throws IOException {
+        long limit = position + size;
+        long nal = position;
+        while (nal < limit) {
+            if (nal + 5 > end) {
+                return NAL_TRUNCATED;
+            }
+            file.seek(nal);
+            file.readFully(buffer, 0, 5);
+            long length = readInt(buffer, 0) & 0xffffffffL;
+            int type = buffer[4] & 0x1f;
+            // forbidden_zero_bit，类型1到23
+            if (length == 0 || nal + 4 + length > limit || (buffer[4] & 0x80) != 0 || type == 0 || type > 23) {
+                return NAL_MISMATCH;
+            }
+            nal += 4 + length;
+        }
+        return limit <= end ? NAL_MATCH : NAL_TRUNCATED;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16
+                | (data[offset + 2] & 0xff) << 8 | data[offset + 3] & 0xff;
+    }
+
+    private static long readLong(byte[] data, int offset) {
+        return (long) readInt(data, offset) << 32 | readInt(data, offset + 4) & 0xffffffffL;
+    }
+
+    /**
+     * One sample per chunk, times from the index relative to the first sample of the track.
+     */
+    private static class Table implements Mp4Headers.SampleTable {
+        private final boolean mVideo;
+        private final RecordingIndex.Samples mSamples;
+        private final long[] mOffsets;
+        private final int mCount;
+        private final long[] mDurations;
+        private final long mDuration;
+
+        Table(TrackFormat format, RecordingIndex.Samples samples, long[] offsets, int count) {
+            mVideo = format.isVideo();
+            mSamples = samples;
+            mOffsets = offsets;
+            mCount = count;
+            mDurations = new long[count];
+            int timescale = format.getTimescale();
+            long last = mVideo ? timescale / DEFAULT_FRAME_RATE : AAC_FRAME_SAMPLES;
+            long origin = samples.timesUs[0];
+            long duration = 0;
+            for (int i = 0; i < count; i++) {
+                if (i + 1 < count) {
+                    long time = (samples.timesUs[i] - origin) * timescale / 1000000L;
+                    long next = (samples.timesUs[i + 1] - origin) * timescale / 1000000L;
+                    last = Math.max(0, next - time);
+                }
+                mDurations[i] = last;
+                duration += last;
+            }
+            mDuration = duration;
+        }
+
+        @Override
+        public long getDuration() {
+            return mDuration;
+        }
+
+        @Override
+        public void write(Mp4Box box) {
+            int stts = box.beginFull("stts", 0, 0);
+            int entries = box.size();
+            box.u32(0);
+            int entryCount = 0;
+            for (int i = 0; i < mCount; ) {
+                int run = 1;
+                while (i + run < mCount && mDurations[i + run] == mDurations[i]) {
+                    run++;
+                }
+                box.u32(run);
+                box.u32(mDurations[i]);
+                entryCount++;
+                i += run;
+            }
+            box.putInt(entries, entryCount);
+            box.end(stts);
+
+            if (mVideo) {
+                int stss = box.beginFull("stss", 0, 0);
+                entries = box.size();
+                box.u32(0);
+                entryCount = 0;
+                for (int i = 0; i < mCount; i++) {
+                    if (mSamples.sync[i]) {
+                        box.u32(i + 1);
+                        entryCount++;
+                    }
+                }
+                box.putInt(entries, entryCount);
+                box.end(stss);
+            }
+
+            int stsc = box.beginFull("stsc", 0, 0);
+            box.u32(1);
+            box.u32(1);
+            box.u32(1);
+            box.u32(1);
+            box.end(stsc);
+
+            int stsz = box.beginFull("stsz", 0, 0);
+            box.u32(0);
+            box.u32(mCount);
+            for (int i = 0; i < mCount; i++) {
+                box.u32(mSamples.sizes[i]);
+            }
+            box.end(stsz);
+
+            boolean large = mOffsets[mCount - 1] > 0xffffffffL;
+            int stco = box.beginFull(large ? "co64" : "stco", 0, 0);
+            box.u32(mCount);
+            for (int i = 0; i < mCount; i++) {
+                if (large) {
+                    box.u64(mOffsets[i]);
+                } else {
+                    box.u32(mOffsets[i]);
+                }
+            }
+            box.end(stco);
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package cn.appdream.recorder;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Output file of a recording written on an own thread, so that slow storage stalls this
+ * thread instead of the encoder.
+ * <p>
+ * {@link #write(ByteBuffer)} copies into one of a fixed set of direct buffers; full buffers
+ * are queued and written in one go. Only when all buffers wait for the storage does
+ * {@link #write(ByteBuffer)} block, counted in {@link #getStallCount()}. Space can be reserved
+ * up front with {@link #preallocate(FileAllocator, long)}, the file is cut to the written size on
+ * {@link #close()}. When data reaches the device follows an {@link FsyncPolicy}.
+ * <p>
+ * Writing happens from one thread. Errors of the writer thread are thrown by the next call.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public class RecordingSink {
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+    public static final int DEFAULT_BUFFER_COUNT = 4;
+
+    /**
+     * Reserves disk space for a file, {@link PosixFileAllocator} on devices.
+     */
+    public interface FileAllocator {
+        /**
+         * Make sure {@code length} bytes from the start can be written without running out
+         * of space. The file may grow to {@code length}.
+         */
+        void allocate(FileDescriptor fd, long length) throws IOException;
+    }
+
+    private static final ByteBuffer FLUSH = ByteBuffer.allocate(0);
+
+    private final FileChannel mChannel;
+    private final FileDescriptor mFd;
+    private final FsyncPolicy mPolicy;
+    private final BlockingQueue<ByteBuffer> mFree;
+    private final BlockingQueue<ByteBuffer> mQueue;
+    private final Thread mThread;
+    private final LatencyHistogram mWriteLatency = new LatencyHistogram();
+    private final LatencyHistogram mSyncLatency = new LatencyHistogram();
+    private final Object mFlushLock = new Object();
+    private final AtomicLong mBusyNanos = new AtomicLong();
+
+    private ByteBuffer mCurrent;
+    private long mPosition;
+    private long mAllocated;
+    private volatile long mStalls;
+    private volatile int mMaxQueueDepth;
+    private volatile long mBytesWritten;
+    private volatile IOException mError;
+    private long mFlushesRequested;
+    private long mFlushesDone;
+    private boolean mClosed;
+
+    /**
+     * @param fd for {@link #preallocate(FileAllocator, long)}, may be {@code null}
+     */
+    public RecordingSink(FileChannel channel, FileDescriptor fd, FsyncPolicy policy, int bufferSize, int bufferCount) {
+        mChannel = channel;
+        mFd = fd;
+        mPolicy = policy;
+        mFree = new ArrayBlockingQueue<>(bufferCount);
+        mQueue = new ArrayBlockingQueue<>(bufferCount + 1);
+        for (int i = 0; i < bufferCount; i++) {
+            mFree.add(ByteBuffer.allocateDirect(bufferSize));
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "RecordingSink");
+        mThread.start();
+    }
+
+    public RecordingSink(FileChannel channel, FsyncPolicy policy) {
+        this(channel, null, policy, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT);
+    }
+
+    /**
+     * Write to an already open file, e.g. from a {@code ParcelFileDescriptor}.
+     */
+    public RecordingSink(FileDescriptor fd, FsyncPolicy policy) {
+        this(new FileOutputStream(fd).getChannel(), fd, policy, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT);
+    }
+
+    /**
+     * Create or truncate {@code file} and write to it.
+     */
+    public static RecordingSink open(File file, FsyncPolicy policy) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            return new RecordingSink(raf.getChannel(), raf.getFD(), policy, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT);
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Force the data of a file written by someone else, e.g. {@code MediaMuxer}, to the device.
+     */
+    public static void syncFile(String path) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(path, "r");
+        try {
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reserve space for {@code length} bytes, best done before the first write.
+     */
+    public void preallocate(FileAllocator allocator, long length) throws IOException {
+        checkError();
+        if (mFd == null || length <= mAllocated) {
+            return;
+        }
+        allocator.allocate(mFd, length);
+        mAllocated = length;
+    }
+
+    /**
+     * Append the remaining bytes of {@code src}. Blocks only if the writer thread is behind by
+     * all buffers.
+     */
+    public void write(ByteBuffer src) throws IOException {
+        checkOpen();
+        while (src.hasRemaining()) {
+            if (mCurrent == null) {
+                mCurrent = takeFree();
+            }
+            int count = Math.min(src.remaining(), mCurrent.remaining());
+            ByteBuffer slice = src.duplicate();
+            slice.limit(slice.position() + count);
+            mCurrent.put(slice);
+            src.position(src.position() + count);
+            mPosition += count;
+            if (!mCurrent.hasRemaining()) {
+                enqueue(mCurrent);
+                mCurrent = null;
+            }
+        }
+    }
+
+    /**
+     * @return bytes passed to {@link #write(ByteBuffer)} so far, the size of the file once
+     * everything is written
+     */
+    public long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Wait until everything written so far is in the file, without syncing.
+     */
+    public void flush() throws IOException {
+        checkOpen();
+        flushInternal();
+    }
+
+    /**
+     * A segment ends: flush and sync if the policy says so.
+     */
+    public void endSegment() throws IOException {
+        flush();
+        if (mPolicy.syncsSegments()) {
+            sync();
+        }
+    }
+
+    /**
+     * Flush, sync as the policy says, cut off preallocated space and close the file.
+     */
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        try {
+            flushInternal();
+            if (mAllocated > mPosition) {
+                mChannel.truncate(mPosition);
+            }
+            if (mPolicy.syncsSegments()) {
+                sync();
+            }
+        } finally {
+            mClosed = true;
+            mThread.interrupt();
+            join(mThread);
+            mChannel.close();
+        }
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @return buffers waiting for the storage
+     */
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    /**
+     * @return how often {@link #write(ByteBuffer)} had to wait for a free buffer
+     */
+    public long getStallCount() {
+        return mStalls;
+    }
+
+    /**
+     * @return the time of each write of a buffer to the file
+     */
+    public LatencyHistogram getWriteLatency() {
+        return mWriteLatency;
+    }
+
+    /**
+     * @return total time spent writing to and syncing the file, how busy the storage kept the
+     * recording; unlike the time of {@link #write(ByteBuffer)} it grows with a slow card
+     */
+    public long getBusyNanos() {
+        return mBusyNanos.get();
+    }
+
+    public LatencyHistogram getSyncLatency() {
+        return mSyncLatency;
+    }
+
+    private void sync() throws IOException {
+        long start = System.nanoTime();
+        mChannel.force(false);
+        long nanos = System.nanoTime() - start;
+        mSyncLatency.record(nanos);
+        mBusyNanos.addAndGet(nanos);
+    }
+
+    private void flushInternal() throws IOException {
+        if (mCurrent != null && mCurrent.position() > 0) {
+            enqueue(mCurrent);
+            mCurrent = null;
+        }
+        long flush;
+        synchronized (mFlushLock) {
+            flush = ++mFlushesRequested;
+        }
+        enqueue(FLUSH);
+        synchronized (mFlushLock) {
+            while (mFlushesDone < flush && mError == null) {
+                try {
+                    mFlushLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while flushing");
+                }
+            }
+        }
+        checkError();
+    }
+
+    private ByteBuffer takeFree() throws IOException {
+        ByteBuffer buffer = mFree.poll();
+        if (buffer == null) {
+            mStalls++;
+            try {
+                while (buffer == null) {
+                    checkError();
+                    buffer = mFree.poll(100, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for the storage");
+            }
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private void enqueue(ByteBuffer buffer) throws IOException {
+        try {
+            mQueue.put(buffer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while queueing");
+        }
+        int depth = mQueue.size();
+        if (depth > mMaxQueueDepth) {
+            mMaxQueueDepth = depth;
+        }
+    }
+
+    private void writeLoop() {
+        long unsynced = 0;
+        long syncBytes = mPolicy.getSyncBytes();
+        while (true) {
+            ByteBuffer buffer;
+            try {
+                buffer = mQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (buffer == FLUSH) {
+                synchronized (mFlushLock) {
+                    mFlushesDone++;
+                    mFlushLock.notifyAll();
+                }
+                continue;
+            }
+            try {
+                if (mError == null) {
+                    buffer.flip();
+                    long start = System.nanoTime();
+                    int size = buffer.remaining();
+                    while (buffer.hasRemaining()) {
+                        mChannel.write(buffer);
+                    }
+                    long nanos = System.nanoTime() - start;
+                    mWriteLatency.record(nanos);
+                    mBusyNanos.addAndGet(nanos);
+                    mBytesWritten += size;
+                    unsynced += size;
+                    if (syncBytes > 0 && unsynced >= syncBytes) {
+                        sync();
+                        unsynced = 0;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                mError = e instanceof IOException ? (IOException) e : new IOException(e);
+                synchronized (mFlushLock) {
+                    mFlushLock.notifyAll();
+                }
+            } finally {
+                mFree.add(buffer);
+            }
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (mClosed) {
+            throw new IOException("sink closed");
+        }
+        checkError();
+    }
+
+    private void checkError() throws IOException {
+        IOException error = mError;
+        if (error != null) {
+            throw new IOException("writing the recording failed", error);
+        }
+    }
+
+    private static void join(Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package cn.appdream.recorder;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Lifecycle of the recorder: {@link #IDLE} &rarr; {@link #PREVIEWING} &rarr; {@link #PREPARING}
+ * &rarr; {@link #RECORDING} &rarr; {@link #STOPPING} &rarr; {@link #PREVIEWING}.
+ * <p>
+ * {@link #requestStart(String)} and {@link #requestStop()} may be called from any thread and
+ * return at once. They only record what is wanted; the transitions run one after the other on
+ * the worker {@link Executor}, which also calls {@link Actions} and {@link Listener}. Requests
+ * arriving while a transition runs are folded into the next one, so start, stop, start before
+ * the worker gets to it records once, and a stop during {@link #PREPARING} stops right after the
+ * start. The time spent in each state is recorded per state, see {@link #getStateTime(int)}.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+class RecordingStateMachine {
+    static final int IDLE = 0;
+    static final int PREVIEWING = 1;
+    static final int PREPARING = 2;
+    static final int RECORDING = 3;
+    static final int STOPPING = 4;
+    static final int STATE_COUNT = 5;
+
+    /**
+     * The work behind the transitions, called on the worker.
+     */
+    interface Actions {
+        /**
+         * @return {@code false} if the recording could not be started
+         */
+        boolean startRecording(String file);
+
+        /**
+         * @param file the recording being stopped, a start requested meanwhile has its own
+         */
+        void stopRecording(String file);
+    }
+
+    /**
+     * Called on the worker.
+     */
+    abstract static class Listener {
+        /**
+         * @param nanos time spent in {@code from}
+         */
+        void onStateChanged(int from, int to, long nanos) {
+        }
+
+        void onRecordingStarted(String file) {
+        }
+
+        void onRecordingFailed(String file) {
+        }
+
+        void onRecordingStopped(String file) {
+        }
+    }
+
+    private final Executor mWorker;
+    private final Actions mActions;
+    private final LatencyHistogram[] mStateTimes = new LatencyHistogram[STATE_COUNT];
+    private final Runnable mDrive = new Runnable() {
+        @Override
+        public void run() {
+            drive();
+        }
+    };
+    private volatile Listener mListener;
+
+    private final Object mLock = new Object();
+    private boolean mWantRecording;
+    private String mWantedFile;
+    private int mGeneration;
+    private boolean mScheduled;
+    private long mCoalesced;
+
+    // 只在工作线程修改
+    private volatile int mState = IDLE;
+    private long mStateSince = System.nanoTime();
+    private boolean mPreviewing;
+    private String mFile;
+    private int mFileGeneration;
+
+    RecordingStateMachine(Executor worker, Actions actions) {
+        mWorker = worker;
+        mActions = actions;
+        for (int i = 0; i < STATE_COUNT; i++) {
+            mStateTimes[i] = new LatencyHistogram();
+        }
+    }
+
+    void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    int getState() {
+        return mState;
+    }
+
+    /**
+     * @return how long the recorder stayed in {@code state} each time, e.g. the start latency
+     * for {@link #PREPARING}
+     */
+    LatencyHistogram getStateTime(int state) {
+        return mStateTimes[state];
+    }
+
+    /**
+     * @return requests that did not change what was already wanted or pending
+     */
+    long getCoalescedRequestCount() {
+        synchronized (mLock) {
+            return mCoalesced;
+        }
+    }
+
+    /**
+     * Record into {@code file} once the preview runs.
+     *
+     * @return {@code false} if a recording is already wanted, the call is ignored then
+     */
+    boolean requestStart(String file) {
+        synchronized (mLock) {
+            if (mWantRecording) {
+                mCoalesced++;
+                return false;
+            }
+            mWantRecording = true;
+            mWantedFile = file;
+            mGeneration++;
+            scheduleLocked();
+            return true;
+        }
+    }
+
+    /**
+     * Stop the recording, or cancel a start that has not begun yet.
+     */
+    void requestStop() {
+        synchronized (mLock) {
+            if (!mWantRecording) {
+                mCoalesced++;
+                return;
+            }
+            mWantRecording = false;
+            mWantedFile = null;
+            scheduleLocked();
+        }
+    }
+
+    /**
+     * Call on the worker when the camera was opened or closed. Closing stops a recording first.
+     */
+    void setPreviewing(boolean previewing) {
+        mPreviewing = previewing;
+        if (previewing && mState == IDLE) {
+            moveTo(PREVIEWING);
+        }
+        drive();
+    }
+
+    private void scheduleLocked() {
+        if (mScheduled) {
+            mCoalesced++;
+            return;
+        }
+        mScheduled = true;
+        mWorker.execute(mDrive);
+    }
+
+    private void drive() {
+        while (true) {
+            boolean want;
+            String file;
+            int generation;
+            synchronized (mLock) {
+                mScheduled = false;
+                want = mWantRecording && mPreviewing;
+                file = mWantedFile;
+                generation = mGeneration;
+                if (mWantRecording && !mPreviewing) {
+                    // 相机没有打开，放弃这次请求
+                    mWantRecording = false;
+                    mWantedFile = null;
+                }
+            }
+            int state = mState;
+            if (want && state == PREVIEWING) {
+                record(file, generation);
+            } else if (!want && state == RECORDING
+                    || want && state == RECORDING && generation != mFileGeneration) {
+                // 停了又要开始新的文件: 先停, 下一轮再录
+                stop();
+            } else if (!mPreviewing && state == PREVIEWING) {
+                moveTo(IDLE);
+                notifyFailed(file);
+                return;
+            } else {
+                notifyFailed(state == IDLE ? file : null);
+                return;
+            }
+        }
+    }
+
+    private void record(String file, int generation) {
+        moveTo(PREPARING);
+        boolean started;
+        try {
+            started = mActions.startRecording(file);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            started = false;
+        }
+        if (started) {
+            mFile = file;
+            mFileGeneration = generation;
+            moveTo(RECORDING);
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onRecordingStarted(file);
+            }
+            return;
+        }
+        synchronized (mLock) {
+            if (mGeneration == generation) {
+                mWantRecording = false;
+                mWantedFile = null;
+            }
+        }
+        moveTo(PREVIEWING);
+        notifyFailed(file);
+    }
+
+    private void stop() {
+        String file = mFile;
+        mFile = null;
+        moveTo(STOPPING);
+        try {
+            mActions.stopRecording(file);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        moveTo(mPreviewing ? PREVIEWING : IDLE);
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onRecordingStopped(file);
+        }
+    }
+
+    private void notifyFailed(String file) {
+        Listener listener = mListener;
+        if (file != null && listener != null) {
+            listener.onRecordingFailed(file);
+        }
+    }
+
+    private void moveTo(int state) {
+        int from = mState;
+        long now = System.nanoTime();
+        long nanos = now - mStateSince;
+        mStateTimes[from].record(nanos);
+        mStateSince = now;
+        mState = state;
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onStateChanged(from, state, nanos);
+        }
+    }
+}
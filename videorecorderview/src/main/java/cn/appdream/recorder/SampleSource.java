@@ -0,0 +1,41 @@
+package cn.appdream.recorder;
+
+/**
+ * Reads the compressed samples of a recorded file, the part of {@code MediaExtractor}
+ * {@link ClipEditor} needs; {@link MediaExtractorSource} on Android, fakes in JVM tests.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public interface SampleSource {
+
+    int getTrackCount();
+
+    /**
+     * @return the format of {@code track}, opaque to everything but the muxer and
+     * {@link TrackFormat.Converter}
+     */
+    Object getTrackFormat(int track);
+
+    boolean isVideoTrack(int track);
+
+    int getOrientationHint();
+
+    long getDurationUs();
+
+    /**
+     * Go to the last key frame at or before {@code timeUs}, on all tracks.
+     */
+    void seekTo(long timeUs);
+
+    /**
+     * Read the next sample in file order into {@code sample}. The data stays valid until the
+     * next call.
+     *
+     * @return the track of the sample, {@code -1} at the end of the file
+     */
+    int readSample(EncodedSample sample);
+
+    void release();
+}
@@ -0,0 +1,99 @@
+package cn.appdream.recorder;
+
+/**
+ * Reference counts one expensive resource, created on the first {@link #acquire()} and
+ * destroyed once nobody holds it for a while. The caller times the linger: {@link #release()}
+ * hands out a token when the last reference went, {@link #expire(long)} with that token
+ * destroys the resource unless it was acquired again in between.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+class SharedResource<T> {
+    /**
+     * Returned by {@link #release()} while references remain.
+     */
+    static final long HELD = -1;
+
+    interface Factory<T> {
+        T create();
+
+        void destroy(T resource);
+    }
+
+    private final Factory<T> mFactory;
+    private T mResource;
+    private int mRefCount;
+    private long mGeneration;
+
+    SharedResource(Factory<T> factory) {
+        mFactory = factory;
+    }
+
+    /**
+     * @return the resource, the lingering one if there is one
+     */
+    synchronized T acquire() {
+        if (mResource == null) {
+            mResource = mFactory.create();
+        }
+        mRefCount++;
+        mGeneration++;
+        return mResource;
+    }
+
+    /**
+     * @return the token for {@link #expire(long)} if that was the last reference, {@link #HELD}
+     * otherwise
+     */
+    synchronized long release() {
+        if (mRefCount == 0) {
+            throw new IllegalStateException("not acquired");
+        }
+        if (--mRefCount > 0) {
+            return HELD;
+        }
+        return ++mGeneration;
+    }
+
+    /**
+     * Destroy the resource if nobody acquired it since {@link #release()} returned
+     * {@code token}.
+     *
+     * @return whether it was destroyed
+     */
+    synchronized boolean expire(long token) {
+        if (token != mGeneration) {
+            return false;
+        }
+        return expire();
+    }
+
+    /**
+     * Destroy the resource now if nobody holds it, without waiting for the linger.
+     *
+     * @return whether it was destroyed
+     */
+    synchronized boolean expire() {
+        if (mResource == null || mRefCount > 0) {
+            return false;
+        }
+        T resource = mResource;
+        mResource = null;
+        mGeneration++;
+        mFactory.destroy(resource);
+        return true;
+    }
+
+    /**
+     * @return the resource, held or lingering; {@code null} if there is none
+     */
+    synchronized T peek() {
+        return mResource;
+    }
+
+    synchronized int getRefCount() {
+        return mRefCount;
+    }
+}
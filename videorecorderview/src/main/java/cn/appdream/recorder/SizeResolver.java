@@ -0,0 +1,148 @@
+package cn.appdream.recorder;
+
+import java.util.Arrays;
+
+/**
+ * Picks the preview/video size for a target size.
+ * <p>
+ * Sizes are packed into one {@code int} ({@code width << 16 | height}) so that the supported
+ * lists can be sorted and intersected as primitive arrays. The scratch arrays are kept between
+ * calls, a resolver that is reused does not allocate once they have grown large enough.
+ * Not thread-safe.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+class SizeResolver {
+    /**
+     * Returned by {@link #resolve(int, int, int)} when there is no candidate at all.
+     */
+    static final int NONE = 0;
+
+    private static final double ASPECT_WEIGHT = 4;
+    private static final double OVERSIZE_WEIGHT = 2;
+    private static final double FPS_PENALTY = 1;
+
+    /**
+     * Preview sizes: packed size in the high 32 bits, max fps (0 if unknown) in the low bits,
+     * so sorting the longs sorts by size.
+     */
+    private long[] mPreview = new long[32];
+    private int mPreviewCount;
+    private int[] mVideo = new int[32];
+    private int mVideoCount;
+    private boolean mHasVideoSizes;
+
+    static int pack(int width, int height) {
+        return (width << 16) | (height & 0xffff);
+    }
+
+    static int width(int packed) {
+        return packed >>> 16;
+    }
+
+    static int height(int packed) {
+        return packed & 0xffff;
+    }
+
+    void reset() {
+        mPreviewCount = 0;
+        mVideoCount = 0;
+        mHasVideoSizes = false;
+    }
+
+    /**
+     * @param maxFps highest frame rate the camera can deliver at this size, {@code 0} if unknown
+     */
+    void addPreviewSize(int width, int height, int maxFps) {
+        if (mPreviewCount == mPreview.length) {
+            mPreview = Arrays.copyOf(mPreview, mPreviewCount * 2);
+        }
+        mPreview[mPreviewCount++] = ((long) pack(width, height) << 32) | (maxFps & 0xffffffffL);
+    }
+
+    /**
+     * Restrict the result to sizes that are also video sizes. When no video size is added at
+     * all every preview size is a candidate, like cameras that report no video size list.
+     */
+    void addVideoSize(int width, int height) {
+        if (mVideoCount == mVideo.length) {
+            mVideo = Arrays.copyOf(mVideo, mVideoCount * 2);
+        }
+        mVideo[mVideoCount++] = pack(width, height);
+        mHasVideoSizes = true;
+    }
+
+    /**
+     * @param targetWidth  wanted width, orientation does not matter
+     * @param targetHeight wanted height
+     * @param targetFps    wanted frame rate, {@code 0} to ignore
+     * @return the packed best size, or {@link #NONE}
+     */
+    int resolve(int targetWidth, int targetHeight, int targetFps) {
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            return NONE;
+        }
+        Arrays.sort(mPreview, 0, mPreviewCount);
+        if (mHasVideoSizes) {
+            Arrays.sort(mVideo, 0, mVideoCount);
+        }
+        // camera sizes are landscape
+        int tw = Math.max(targetWidth, targetHeight);
+        int th = Math.min(targetWidth, targetHeight);
+        double targetAspect = (double) tw / th;
+        double targetPixels = (double) tw * th;
+
+        int best = NONE;
+        double bestScore = Double.MAX_VALUE;
+        int v = 0;
+        for (int i = 0; i < mPreviewCount; i++) {
+            int size = (int) (mPreview[i] >>> 32);
+            if (i + 1 < mPreviewCount && size == (int) (mPreview[i + 1] >>> 32)) {
+                continue; // keep the entry with the highest fps
+            }
+            if (mHasVideoSizes) {
+                while (v < mVideoCount && mVideo[v] < size) {
+                    v++;
+                }
+                if (v == mVideoCount) {
+                    break;
+                }
+                if (mVideo[v] != size) {
+                    continue;
+                }
+            }
+            int fps = (int) mPreview[i];
+            double score = score(size, fps, targetAspect, targetPixels, targetFps);
+            if (score < bestScore || (score == bestScore && size > best)) {
+                bestScore = score;
+                best = size;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Lower is better: relative aspect ratio error, plus the relative pixel count distance
+     * (sizes larger than the target cost more than smaller ones), plus a fixed penalty when the
+     * size is known not to reach the target frame rate.
+     */
+    static double score(int size, int maxFps, double targetAspect, double targetPixels, int targetFps) {
+        int w = Math.max(width(size), height(size));
+        int h = Math.min(width(size), height(size));
+        if (h == 0) {
+            return Double.MAX_VALUE;
+        }
+        double aspectError = Math.abs((double) w / h - targetAspect) / targetAspect;
+        double pixels = (double) w * h;
+        double pixelError = pixels <= targetPixels
+                ? (targetPixels - pixels) / targetPixels
+                : (pixels - targetPixels) / targetPixels * OVERSIZE_WEIGHT;
+        double score = ASPECT_WEIGHT * aspectError + pixelError;
+        if (targetFps > 0 && maxFps > 0 && maxFps < targetFps) {
+            score += FPS_PENALTY;
+        }
+        return score;
+    }
+}
@@ -0,0 +1,119 @@
+package cn.appdream.recorder;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of one recorded stream, the primary file or the proxy: samples and bytes written,
+ * the frame rate by presentation time, frames the encoder dropped and the bitrate reached.
+ * <p>
+ * Dropped frames are estimated from gaps between video timestamps: a gap of more than one and a
+ * half {@link #setExpectedFrameRate(int) expected} frame intervals counts the frames missing in
+ * it. Lock free like {@link RecorderMetrics}, fed from one encoder thread per track.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public class StreamMetrics {
+    private final LatencyHistogram mFrameIntervals = new LatencyHistogram();
+    private final AtomicLong[] mSamples = {new AtomicLong(), new AtomicLong()};
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mDurationUs = new AtomicLong();
+    private final AtomicLong mLastVideoPtsUs = new AtomicLong(-1);
+    private final AtomicLong mDroppedFrames = new AtomicLong();
+    private final AtomicLong mSegments = new AtomicLong();
+    private volatile long mExpectedIntervalUs;
+
+    /**
+     * @param frameRate what the stream is configured for, {@code 0} to not count drops
+     */
+    public void setExpectedFrameRate(int frameRate) {
+        mExpectedIntervalUs = frameRate > 0 ? 1000000L / frameRate : 0;
+    }
+
+    /**
+     * @param track {@link CodecRecordingEngine#TRACK_VIDEO} or {@link CodecRecordingEngine#TRACK_AUDIO}
+     */
+    void onSampleWritten(int track, long presentationTimeUs, int size) {
+        mSamples[track].incrementAndGet();
+        mBytes.addAndGet(size);
+        if (track != CodecRecordingEngine.TRACK_VIDEO) {
+            return;
+        }
+        long last = mLastVideoPtsUs.getAndSet(presentationTimeUs);
+        if (last < 0 || presentationTimeUs <= last) {
+            return;
+        }
+        long deltaUs = presentationTimeUs - last;
+        mFrameIntervals.record(deltaUs * 1000);
+        mDurationUs.addAndGet(deltaUs);
+        long expectedUs = mExpectedIntervalUs;
+        if (expectedUs > 0 && deltaUs * 2 > expectedUs * 3) {
+            mDroppedFrames.addAndGet((deltaUs + expectedUs / 2) / expectedUs - 1);
+        }
+    }
+
+    void onSegmentFinished() {
+        mSegments.incrementAndGet();
+    }
+
+    /**
+     * The stream ended, the next sample does not continue it.
+     */
+    void onOutputStopped() {
+        mLastVideoPtsUs.set(-1);
+    }
+
+    public long getSampleCount(int track) {
+        return mSamples[track].get();
+    }
+
+    public long getBytes() {
+        return mBytes.get();
+    }
+
+    /**
+     * Time between the timestamps of consecutive video samples.
+     */
+    public LatencyHistogram getFrameIntervals() {
+        return mFrameIntervals;
+    }
+
+    /**
+     * @return frames per second from the mean interval, {@code 0} before two frames
+     */
+    public float getFrameRate() {
+        long mean = mFrameIntervals.getMeanMicros();
+        return mean == 0 ? 0 : 1000000f / mean;
+    }
+
+    public long getDroppedFrameCount() {
+        return mDroppedFrames.get();
+    }
+
+    /**
+     * @return finished files, every segment counts
+     */
+    public long getSegmentCount() {
+        return mSegments.get();
+    }
+
+    /**
+     * @return bits per second over the recorded video time, {@code 0} before two frames
+     */
+    public long getAverageBitRate() {
+        long durationUs = mDurationUs.get();
+        return durationUs == 0 ? 0 : mBytes.get() * 8 * 1000000L / durationUs;
+    }
+
+    public void reset() {
+        mFrameIntervals.reset();
+        mSamples[0].set(0);
+        mSamples[1].set(0);
+        mBytes.set(0);
+        mDurationUs.set(0);
+        mLastVideoPtsUs.set(-1);
+        mDroppedFrames.set(0);
+        mSegments.set(0);
+    }
+}
@@ -0,0 +1,46 @@
+package cn.appdream.recorder;
+
+/**
+ * A small still of a recording, upright like the recording plays, see
+ * {@link VideoRecorderView#setThumbnailInterval(int, int)}. The pixels suit
+ * {@code Bitmap.createBitmap(getPixels(), getWidth(), getHeight(), Bitmap.Config.ARGB_8888)}.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public final class Thumbnail {
+    private final long mTimeUs;
+    private final int mWidth;
+    private final int mHeight;
+    private final int[] mPixels;
+
+    Thumbnail(long timeUs, int width, int height, int[] pixels) {
+        mTimeUs = timeUs;
+        mWidth = width;
+        mHeight = height;
+        mPixels = pixels;
+    }
+
+    /**
+     * @return time since the start of the recording
+     */
+    public long getTimeUs() {
+        return mTimeUs;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return opaque ARGB pixels, row by row; not copied
+     */
+    public int[] getPixels() {
+        return mPixels;
+    }
+}
@@ -0,0 +1,144 @@
+package cn.appdream.recorder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The thumbnails taken while recording and the times of the video key frames, for a poster
+ * frame and a scrub bar without decoding the file. {@link VideoRecorderView} stores it next to
+ * the recording, see {@link #fileFor(String)}.
+ * <p>
+ * On disk the pixels are RGB 565, two bytes each, and times are microseconds since the start of
+ * the recording.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public final class ThumbnailIndex {
+    public static final String SUFFIX = ".thumbs";
+
+    private static final int MAGIC = 0x56525448;//VRTH
+    private static final int VERSION = 1;
+
+    private final List<Thumbnail> mThumbnails;
+    private final long[] mKeyFrameTimesUs;
+
+    ThumbnailIndex(List<Thumbnail> thumbnails, long[] keyFrameTimesUs) {
+        mThumbnails = Collections.unmodifiableList(new ArrayList<>(thumbnails));
+        mKeyFrameTimesUs = keyFrameTimesUs;
+    }
+
+    public static File fileFor(String recording) {
+        return new File(recording + SUFFIX);
+    }
+
+    /**
+     * @return in time order
+     */
+    public List<Thumbnail> getThumbnails() {
+        return mThumbnails;
+    }
+
+    /**
+     * @return the thumbnail shown at {@code timeUs}, the last one taken before or at it;
+     * {@code null} without thumbnails
+     */
+    public Thumbnail getThumbnailAt(long timeUs) {
+        Thumbnail found = null;
+        for (Thumbnail thumbnail : mThumbnails) {
+            if (found != null && thumbnail.getTimeUs() > timeUs) {
+                break;
+            }
+            found = thumbnail;
+        }
+        return found;
+    }
+
+    /**
+     * @return in time order; empty if the engine does not report samples, like
+     * {@code MediaRecorder}
+     */
+    public long[] getKeyFrameTimesUs() {
+        return mKeyFrameTimesUs.clone();
+    }
+
+    /**
+     * @return the last key frame at or before {@code timeUs}, where seeking starts decoding;
+     * {@code 0} if there is none
+     */
+    public long getKeyFrameBefore(long timeUs) {
+        long found = 0;
+        for (long time : mKeyFrameTimesUs) {
+            if (time > timeUs) {
+                break;
+            }
+            found = time;
+        }
+        return found;
+    }
+
+    public void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(mKeyFrameTimesUs.length);
+            for (long time : mKeyFrameTimesUs) {
+                out.writeLong(time);
+            }
+            out.writeInt(mThumbnails.size());
+            for (Thumbnail thumbnail : mThumbnails) {
+                out.writeLong(thumbnail.getTimeUs());
+                out.writeShort(thumbnail.getWidth());
+                out.writeShort(thumbnail.getHeight());
+                for (int argb : thumbnail.getPixels()) {
+                    out.writeShort((argb >> 8 & 0xf800) | (argb >> 5 & 0x07e0) | (argb >> 3 & 0x001f));
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public static ThumbnailIndex read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+                throw new IOException("not a thumbnail index: " + file);
+            }
+            long[] keyFrames = new long[in.readInt()];
+            for (int i = 0; i < keyFrames.length; i++) {
+                keyFrames[i] = in.readLong();
+            }
+            int count = in.readInt();
+            List<Thumbnail> thumbnails = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long time = in.readLong();
+                int width = in.readUnsignedShort();
+                int height = in.readUnsignedShort();
+                int[] pixels = new int[width * height];
+                for (int p = 0; p < pixels.length; p++) {
+                    int rgb = in.readUnsignedShort();
+                    int r = rgb >> 11 & 0x1f;
+                    int g = rgb >> 5 & 0x3f;
+                    int b = rgb & 0x1f;
+                    pixels[p] = 0xff000000 | (r << 3 | r >> 2) << 16 | (g << 2 | g >> 4) << 8 | (b << 3 | b >> 2);
+                }
+                thumbnails.add(new Thumbnail(time, width, height, pixels));
+            }
+            return new ThumbnailIndex(thumbnails, keyFrames);
+        } finally {
+            in.close();
+        }
+    }
+}
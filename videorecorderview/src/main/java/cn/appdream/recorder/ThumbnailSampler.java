@@ -0,0 +1,197 @@
+package cn.appdream.recorder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Takes {@link Thumbnail}s from the preview frames while a recording runs and collects the key
+ * frame times of the encoder, the parts of a {@link ThumbnailIndex}.
+ * <p>
+ * A frame becomes a thumbnail each time another interval passed since {@link #begin}: it is
+ * averaged down in blocks to at most {@code maxSize} on the long side, converted to RGB and
+ * rotated upright, all on the frame dispatch thread before the frame is released. Between
+ * recordings frames are released right away. Thumbnail times are the frame arrival times since {@link #begin}, key
+ * frame times the presentation times since the first video sample.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+class ThumbnailSampler implements FrameConsumer {
+    private final Object mLock = new Object();
+    private final List<Thumbnail> mThumbnails = new ArrayList<>();
+    private long[] mKeyFrames = new long[16];
+    private int mKeyFrameCount;
+    private long mFirstVideoUs = -1;
+    private volatile long mIntervalUs;
+    private volatile int mMaxSize;
+    private boolean mRecording;
+    private long mStartNanos;
+    private long mNextNanos;
+    private int mRotation;
+
+    /**
+     * @param intervalMs time between thumbnails, {@code 0} for none
+     * @param maxSize    pixels on the long side
+     */
+    void setInterval(int intervalMs, int maxSize) {
+        if (intervalMs < 0 || maxSize <= 0) {
+            throw new IllegalArgumentException("interval " + intervalMs + ", size " + maxSize);
+        }
+        mIntervalUs = intervalMs * 1000L;
+        mMaxSize = maxSize;
+    }
+
+    boolean isEnabled() {
+        return mIntervalUs > 0;
+    }
+
+    /**
+     * A recording started; drops what was collected for the last one.
+     *
+     * @param rotation clockwise degrees that turn the frames upright
+     */
+    void begin(long startNanos, int rotation) {
+        synchronized (mLock) {
+            mThumbnails.clear();
+            mKeyFrameCount = 0;
+            mFirstVideoUs = -1;
+            mStartNanos = startNanos;
+            mNextNanos = startNanos;
+            mRotation = rotation;
+            mRecording = true;
+        }
+    }
+
+    /**
+     * A video sample went into the file.
+     */
+    void onVideoSample(long presentationTimeUs, boolean keyFrame) {
+        synchronized (mLock) {
+            if (!mRecording) {
+                return;
+            }
+            if (mFirstVideoUs < 0) {
+                mFirstVideoUs = presentationTimeUs;
+            }
+            if (!keyFrame) {
+                return;
+            }
+            if (mKeyFrameCount == mKeyFrames.length) {
+                mKeyFrames = Arrays.copyOf(mKeyFrames, mKeyFrameCount * 2);
+            }
+            mKeyFrames[mKeyFrameCount++] = presentationTimeUs - mFirstVideoUs;
+        }
+    }
+
+    /**
+     * @return what was collected since {@link #begin}, {@code null} if not recording
+     */
+    ThumbnailIndex end() {
+        synchronized (mLock) {
+            if (!mRecording) {
+                return null;
+            }
+            mRecording = false;
+            ThumbnailIndex index = new ThumbnailIndex(mThumbnails, Arrays.copyOf(mKeyFrames, mKeyFrameCount));
+            mThumbnails.clear();
+            return index;
+        }
+    }
+
+    @Override
+    public void onFrame(PreviewFrame frame) {
+        try {
+            long intervalUs = mIntervalUs;
+            long timeNanos = frame.getTimestampNanos();
+            int rotation;
+            synchronized (mLock) {
+                if (!mRecording || intervalUs <= 0 || timeNanos < mNextNanos) {
+                    return;
+                }
+                // 保持在间隔的整数倍上
+                long intervalNanos = intervalUs * 1000;
+                mNextNanos += ((timeNanos - mNextNanos) / intervalNanos + 1) * intervalNanos;
+                rotation = mRotation;
+            }
+            Thumbnail thumbnail = scale(frame.getData(), frame.getWidth(), frame.getHeight(), rotation,
+                    mMaxSize, (timeNanos - mStartNanos) / 1000);
+            synchronized (mLock) {
+                if (mRecording) {
+                    mThumbnails.add(thumbnail);
+                }
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Average {@code nv21} down by a whole factor to at most {@code maxSize} on the long side,
+     * convert it to ARGB (BT.601, video range) and turn it by {@code rotation}.
+     */
+    static Thumbnail scale(byte[] nv21, int width, int height, int rotation, int maxSize, long timeUs) {
+        int step = Math.max(1, (Math.max(width, height) + maxSize - 1) / maxSize);
+        int scaledWidth = Math.max(1, width / step);
+        int scaledHeight = Math.max(1, height / step);
+        boolean swap = rotation == 90 || rotation == 270;
+        int outWidth = swap ? scaledHeight : scaledWidth;
+        int outHeight = swap ? scaledWidth : scaledHeight;
+        int[] pixels = new int[outWidth * outHeight];
+        int area = step * step;
+        int chroma = width * height;
+        for (int y = 0; y < scaledHeight; y++) {
+            for (int x = 0; x < scaledWidth; x++) {
+                int sum = 0;
+                int row = y * step * width + x * step;
+                for (int dy = 0; dy < step; dy++, row += width) {
+                    for (int dx = 0; dx < step; dx++) {
+                        sum += nv21[row + dx] & 0xff;
+                    }
+                }
+                // 块中心的色度
+                int cx = (x * step + step / 2) & ~1;
+                int cy = (y * step + step / 2) >> 1;
+                int uv = chroma + cy * width + cx;
+                int argb = toArgb(sum / area, nv21[uv + 1] & 0xff, nv21[uv] & 0xff);
+                int ox;
+                int oy;
+                switch (rotation) {
+                    case 90:
+                        ox = scaledHeight - 1 - y;
+                        oy = x;
+                        break;
+                    case 180:
+                        ox = scaledWidth - 1 - x;
+                        oy = scaledHeight - 1 - y;
+                        break;
+                    case 270:
+                        ox = y;
+                        oy = scaledWidth - 1 - x;
+                        break;
+                    default:
+                        ox = x;
+                        oy = y;
+                        break;
+                }
+                pixels[oy * outWidth + ox] = argb;
+            }
+        }
+        return new Thumbnail(timeUs, outWidth, outHeight, pixels);
+    }
+
+    private static int toArgb(int y, int u, int v) {
+        int c = Math.max(0, y - 16) * 298;
+        int d = u - 128;
+        int e = v - 128;
+        int r = clamp((c + 409 * e + 128) >> 8);
+        int g = clamp((c - 100 * d - 208 * e + 128) >> 8);
+        int b = clamp((c + 516 * d + 128) >> 8);
+        return 0xff000000 | r << 16 | g << 8 | b;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+}
@@ -0,0 +1,125 @@
+package cn.appdream.recorder;
+
+import java.util.Arrays;
+
+/**
+ * What {@link FragmentedMp4Writer} needs to describe a track: H.264 with its parameter sets or
+ * AAC with its {@code AudioSpecificConfig}. The Android side builds it from the
+ * {@code MediaFormat} of the encoder, {@code csd-0} and {@code csd-1}.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public final class TrackFormat {
+
+    /**
+     * Turns encoder output formats, e.g. {@code MediaFormat}, into {@link TrackFormat}s.
+     */
+    public interface Converter {
+        /**
+         * @return {@code null} if the format is not supported
+         */
+        TrackFormat convert(Object format);
+    }
+
+    private final boolean mVideo;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mSampleRate;
+    private final int mChannels;
+    private final byte[] mSps;
+    private final byte[] mPps;
+    private final byte[] mAudioSpecificConfig;
+
+    private TrackFormat(boolean video, int width, int height, int sampleRate, int channels,
+                        byte[] sps, byte[] pps, byte[] audioSpecificConfig) {
+        mVideo = video;
+        mWidth = width;
+        mHeight = height;
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mSps = sps;
+        mPps = pps;
+        mAudioSpecificConfig = audioSpecificConfig;
+    }
+
+    /**
+     * @param sps sequence parameter set, with or without Annex B start code
+     * @param pps picture parameter set, with or without Annex B start code
+     */
+    public static TrackFormat avc(int width, int height, byte[] sps, byte[] pps) {
+        sps = stripStartCode(sps);
+        if (sps.length < 4) {
+            throw new IllegalArgumentException("sps too short: " + sps.length);
+        }
+        return new TrackFormat(true, width, height, 0, 0, sps, stripStartCode(pps), null);
+    }
+
+    public static TrackFormat aac(int sampleRate, int channels, byte[] audioSpecificConfig) {
+        return new TrackFormat(false, 0, 0, sampleRate, channels, null, null,
+                audioSpecificConfig.clone());
+    }
+
+    public boolean isVideo() {
+        return mVideo;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    byte[] getSps() {
+        return mSps;
+    }
+
+    byte[] getPps() {
+        return mPps;
+    }
+
+    byte[] getAudioSpecificConfig() {
+        return mAudioSpecificConfig;
+    }
+
+    /**
+     * @return units per second of the track time, 90 kHz for video, the sample rate for audio
+     */
+    int getTimescale() {
+        return mVideo ? 90000 : mSampleRate;
+    }
+
+    /**
+     * @return {@code data} without a leading {@code 00 00 01} or {@code 00 00 00 01}
+     */
+    static byte[] stripStartCode(byte[] data) {
+        int skip = startCodeLength(data, 0, data.length);
+        return skip == 0 ? data.clone() : Arrays.copyOfRange(data, skip, data.length);
+    }
+
+    /**
+     * @return the length of the start code at {@code offset}, {@code 0} if there is none
+     */
+    static int startCodeLength(byte[] data, int offset, int end) {
+        if (end - offset >= 3 && data[offset] == 0 && data[offset + 1] == 0) {
+            if (data[offset + 2] == 1) {
+                return 3;
+            }
+            if (end - offset >= 4 && data[offset + 2] == 0 && data[offset + 3] == 1) {
+                return 4;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,25 @@
+package cn.appdream.recorder;
+
+/**
+ * Feeds camera frames into the input surface of a video encoder, see
+ * {@link GlPreviewRenderer}.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+public interface VideoInput {
+
+    /**
+     * Start rendering frames into {@code surface} at the given size.
+     *
+     * @param frameRate at most this many frames a second go into the surface, the rest of the
+     *                  camera frames are skipped; {@code 0} for every frame
+     */
+    void attachEncoderSurface(Object surface, int width, int height, int frameRate);
+
+    /**
+     * Stop rendering into {@code surface}. Returns once no frame is drawn into it anymore.
+     */
+    void detachEncoderSurface(Object surface);
+}
@@ -4,18 +4,30 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
-import android.media.CamcorderProfile;
-import android.media.MediaRecorder;
+import android.os.Build;
 import android.support.annotation.IntDef;
 import android.text.TextUtils;
 import android.util.AttributeSet;
+import android.util.Log;
+import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
+import android.view.TextureView;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
 
 /**
  * Recorder view
@@ -35,10 +47,61 @@ public class VideoRecorderView extends SurfaceView {
      */
     public static final int FACING_FRONT = Camera.CameraInfo.CAMERA_FACING_FRONT;
 
+    /**
+     * Record with {@link android.media.MediaRecorder}, the camera is handed over while recording.
+     */
+    public static final int ENGINE_MEDIA_RECORDER = 0;
+
+    /**
+     * Record with MediaCodec encoders and MediaMuxer, the preview is rendered through OpenGL and
+     * shared with the encoder. Needs API 18.
+     */
+    public static final int ENGINE_CODEC = 1;
+
+    /**
+     * The camera is closed.
+     */
+    public static final int STATE_IDLE = RecordingStateMachine.IDLE;
+
+    /**
+     * The camera is open and nothing is recorded.
+     */
+    public static final int STATE_PREVIEWING = RecordingStateMachine.PREVIEWING;
+
+    /**
+     * A recording is being set up.
+     */
+    public static final int STATE_PREPARING = RecordingStateMachine.PREPARING;
+
+    public static final int STATE_RECORDING = RecordingStateMachine.RECORDING;
+
+    /**
+     * The recording is being finished, the file is not complete yet.
+     */
+    public static final int STATE_STOPPING = RecordingStateMachine.STOPPING;
+
+    private static final String TAG = "VideoRecorderView";
+
     public String getFile() {
         return mFile;
     }
 
+    /**
+     * How recordings are encoded.
+     */
+    @IntDef({ENGINE_MEDIA_RECORDER, ENGINE_CODEC})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Engine {
+    }
+
+    /**
+     * Lifecycle state of the recorder, see {@link #getRecordState()}.
+     */
+    @IntDef({STATE_IDLE, STATE_PREVIEWING, STATE_PREPARING, STATE_RECORDING, STATE_STOPPING})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface RecordState {
+    }
+
     /**
      * Direction the camera faces relative to device screen.
      */
@@ -47,11 +110,273 @@ public class VideoRecorderView extends SurfaceView {
     public @interface Facing {
     }
 
-    private CameraHelper mCameraHelper;
-    private MediaRecorder mRecorder;//音视频录制类
-    private boolean isRecording;
+    /**
+     * Callback for monitoring events about {@link VideoRecorderView}, always invoked on the
+     * main thread.
+     */
+    public abstract static class Callback {
+
+        /**
+         * Called when camera is opened and the preview is running (or will be as soon as the
+         * surface is ready).
+         *
+         * @param view The associated {@link VideoRecorderView}.
+         */
+        public void onCameraOpened(VideoRecorderView view) {
+        }
+
+        /**
+         * Called when the camera could not be opened, usually because of missing permission or
+         * because another app holds it.
+         *
+         * @param view The associated {@link VideoRecorderView}.
+         */
+        public void onCameraError(VideoRecorderView view) {
+        }
+
+        /**
+         * Called when {@link #setFacing(int)} moved the open camera to the other facing.
+         *
+         * @param view      The associated {@link VideoRecorderView}.
+         * @param facing    The new facing.
+         * @param elapsedMs How long the switch took.
+         */
+        public void onCameraSwitched(VideoRecorderView view, @Facing int facing, long elapsedMs) {
+        }
+
+        /**
+         * Called when camera is closed.
+         *
+         * @param view The associated {@link VideoRecorderView}.
+         */
+        public void onCameraClosed(VideoRecorderView view) {
+        }
+
+        /**
+         * Called when a recording requested with {@link #startRecord(String)} is running.
+         *
+         * @param view The associated {@link VideoRecorderView}.
+         * @param file The file being recorded.
+         */
+        public void onRecordStarted(VideoRecorderView view, String file) {
+        }
+
+        /**
+         * Called when a recording requested with {@link #startRecord(String)} could not be
+         * started, e.g. because the camera is not open.
+         *
+         * @param view The associated {@link VideoRecorderView}.
+         * @param file The file that was requested.
+         */
+        public void onRecordFailed(VideoRecorderView view, String file) {
+        }
+
+        /**
+         * Called on every change of {@link #getRecordState()}.
+         *
+         * @param view      The associated {@link VideoRecorderView}.
+         * @param oldState  The state that was left.
+         * @param newState  The current state.
+         * @param elapsedMs How long the recorder was in {@code oldState}.
+         */
+        public void onRecordStateChanged(VideoRecorderView view, @RecordState int oldState,
+                                         @RecordState int newState, long elapsedMs) {
+        }
+
+        /**
+         * Called when {@link #stopRecord()} has finished writing the file.
+         *
+         * @param view The associated {@link VideoRecorderView}.
+         * @param file The recorded file.
+         */
+        public void onRecordStopped(VideoRecorderView view, String file) {
+        }
+
+        /**
+         * Called for every completed file of a segmented recording, see
+         * {@link RecordingConfig#setSegmentDurationMs(int)}. The last segment is reported before
+         * {@link #onRecordStopped(VideoRecorderView, String)}.
+         *
+         * @param view       The associated {@link VideoRecorderView}.
+         * @param file       The segment file.
+         * @param durationMs The length of the segment.
+         * @param size       The bytes written to the segment.
+         */
+        public void onSegmentFinished(VideoRecorderView view, String file, long durationMs, long size) {
+        }
+
+        /**
+         * Called for every completed proxy file, see {@link RecordingConfig#setProxy(RecordingConfig)};
+         * segmented like {@link #onSegmentFinished(VideoRecorderView, String, long, long)}.
+         *
+         * @param view       The associated {@link VideoRecorderView}.
+         * @param file       The proxy file.
+         * @param durationMs The length of the file.
+         * @param size       The bytes written to the file.
+         */
+        public void onProxyFinished(VideoRecorderView view, String file, long durationMs, long size) {
+        }
+
+        /**
+         * Called for every byte range of a fragmented recording once it is in the file, see
+         * {@link RecordingConfig#setFragmentDurationMs(int)}; the first range of a file is its
+         * header. The ranges can be uploaded while the recording goes on.
+         *
+         * @param view       The associated {@link VideoRecorderView}.
+         * @param file       The file being written.
+         * @param offset     Where the range starts in the file.
+         * @param size       The bytes in the range.
+         * @param durationMs The media time in the range, {@code 0} for the header.
+         */
+        public void onFragmentWritten(VideoRecorderView view, String file, long offset, int size, long durationMs) {
+        }
+
+        /**
+         * Called right before {@link #onRecordStopped(VideoRecorderView, String)} when thumbnails
+         * are {@link VideoRecorderView#setThumbnailInterval(int, int) enabled}; the index is
+         * also stored next to the file, see {@link ThumbnailIndex#fileFor(String)}.
+         *
+         * @param view  The associated {@link VideoRecorderView}.
+         * @param file  The recorded file.
+         * @param index The thumbnails and key frame times of the recording.
+         */
+        public void onThumbnailsReady(VideoRecorderView view, String file, ThumbnailIndex index) {
+        }
+
+        /**
+         * Called when the {@link VideoRecorderView#startMotionTrigger(File, float, int) motion
+         * trigger} saw motion start or end, whether or not it started a recording.
+         *
+         * @param view   The associated {@link VideoRecorderView}.
+         * @param moving Whether something moves now.
+         */
+        public void onMotionChanged(VideoRecorderView view, boolean moving) {
+        }
+
+        /**
+         * Called every {@link VideoRecorderView#setAudioLevelInterval(int) level interval} while
+         * the codec engine records audio.
+         *
+         * @param view   The associated {@link VideoRecorderView}.
+         * @param rmsDb  The average level of the last chunk in dBFS, {@code -96} for silence.
+         * @param peakDb The loudest sample of the last chunk in dBFS.
+         */
+        public void onAudioLevel(VideoRecorderView view, float rmsDb, float peakDb) {
+        }
+
+        /**
+         * Called when the audio turned silent or sound came back, see
+         * {@link VideoRecorderView#setSilenceDetection(float, int, boolean)}.
+         *
+         * @param view   The associated {@link VideoRecorderView}.
+         * @param silent Whether the audio is silent now.
+         */
+        public void onSilenceChanged(VideoRecorderView view, boolean silent) {
+        }
+    }
+
+    private volatile CameraBackend mCameraBackend;//切换引擎时在相机线程替换
+    private CameraWorker mCameraWorker;
+    private RecorderMetrics mMetrics;
+    private PreviewFrameTap mFrameTap;//本视图的帧消费者, 共享相机时同时挂在会话上
+    private boolean mSharedCamera;
+    private CameraSession mSession;//只在主线程使用
+    private CameraBackend mLocalBackend;
+    private CameraWorker mLocalWorker;
+    private GlPreviewRenderer mLocalRenderer;
+    private int mEngineType = ENGINE_MEDIA_RECORDER;
+    private volatile RecordingEngine mEngine;//录制引擎，只在相机线程修改
+    private GlPreviewRenderer mRenderer;
+    private TextureView mPreviewTextureView;
+    private final RecordingConfig mRecordingConfig = new RecordingConfig();
+    private volatile QualityController mQualityController;
+    private RecordingStateMachine mStateMachine;
+    private volatile boolean isPreRolling;
+    private final WarmStart mWarmStart = new WarmStart();//只在相机线程使用
+    private final ThumbnailSampler mThumbnailSampler = new ThumbnailSampler();
+    private volatile ThumbnailIndex mThumbnails;
+    private volatile MotionAnalyzer mMotionAnalyzer;
+    private FrameAnalysisPipeline mMotionPipeline;
+    private boolean mMotionRecording;//只在主线程使用
+    private volatile AudioPipeline mAudioPipeline;
+    private volatile int mAudioLevelIntervalMs;
+    private volatile float mSilenceThresholdDb = AudioMeter.DEFAULT_SILENCE_DB;
+    private volatile int mSilenceHoldMs;
+    private volatile boolean mWarmStartEnabled;
+    private volatile File mWarmStartDirectory;
+    private volatile long mStartRequestNanos;
+    private volatile boolean mFirstFramePending;
     private boolean mVideoSizeSet = false;
     private String mFile;
+    private final ArrayList<Callback> mCallbacks = new ArrayList<>();
+    private final Runnable mUpdatePreviewState = new Runnable() {
+        @Override
+        public void run() {
+            mStateMachine.setPreviewing(mCameraBackend.isCameraOpened());
+        }
+    };
+    private final TextureView.SurfaceTextureListener mTextureListener = new TextureView.SurfaceTextureListener() {
+        @Override
+        public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
+            if (mRenderer != null) {
+                mRenderer.setDisplaySurface(VideoRecorderView.this, surface, width, height);
+            }
+        }
+
+        @Override
+        public void onSurfaceTextureSizeChanged(SurfaceTexture surface, int width, int height) {
+            if (mRenderer != null) {
+                mRenderer.setDisplaySurface(VideoRecorderView.this, surface, width, height);
+            }
+        }
+
+        @Override
+        public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
+            if (mRenderer != null) {
+                mRenderer.setDisplaySurface(VideoRecorderView.this, null, 0, 0);
+            }
+            return true;
+        }
+
+        @Override
+        public void onSurfaceTextureUpdated(SurfaceTexture surface) {
+        }
+    };
+    private final CameraWorker.Callback mWorkerCallback = new CameraWorker.Callback() {
+        @Override
+        public void onCameraOpened() {
+            for (Callback callback : new ArrayList<>(mCallbacks)) {
+                callback.onCameraOpened(VideoRecorderView.this);
+            }
+        }
+
+        @Override
+        public void onCameraOpenFailed() {
+            for (Callback callback : new ArrayList<>(mCallbacks)) {
+                callback.onCameraError(VideoRecorderView.this);
+            }
+        }
+
+        @Override
+        public void onCameraClosed() {
+            for (Callback callback : new ArrayList<>(mCallbacks)) {
+                callback.onCameraClosed(VideoRecorderView.this);
+            }
+        }
+
+        @Override
+        public void onCameraSwitched(long nanos) {
+            for (Callback callback : new ArrayList<>(mCallbacks)) {
+                callback.onCameraSwitched(VideoRecorderView.this, getFacing(), nanos / 1000000);
+            }
+        }
+    };
+    private final Runnable mPrewarm = new Runnable() {
+        @Override
+        public void run() {
+            prewarm();
+        }
+    };
 
     public VideoRecorderView(Context context) {
         this(context, null);
@@ -67,7 +392,51 @@ public class VideoRecorderView extends SurfaceView {
     }
 
     private void init(Context context, AttributeSet attrs, int defStyleAttr) {
-        mCameraHelper = new CameraHelper((Activity) getContext());
+        mCameraBackend = CameraBackends.create((Activity) getContext(), false, null);
+        // 换引擎时沿用
+        mMetrics = mCameraBackend.getMetrics();
+        mFrameTap = mCameraBackend.getFrameTap();
+        mCameraWorker = new CameraWorker(mCameraBackend);
+        mStateMachine = new RecordingStateMachine(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mCameraWorker.post(command);
+            }
+        }, new RecordingStateMachine.Actions() {
+            @Override
+            public boolean startRecording(String file) {
+                if (!startRecordInternal(file)) {
+                    return false;
+                }
+                if (mThumbnailSampler.isEnabled()) {
+                    mThumbnailSampler.begin(System.nanoTime(), mCameraBackend.getOrientation());
+                }
+                return true;
+            }
+
+            @Override
+            public void stopRecording(String file) {
+                stopRecordInternal(file);
+            }
+        });
+        mStateMachine.setListener(new StateListener());
+        mCameraWorker.setCameraGuard(new Runnable() {
+            @Override
+            public void run() {
+                // 预热的MediaRecorder占着相机
+                if (mWarmStart.isPrepared()) {
+                    mWarmStart.discard();
+                    mCameraWorker.post(mPrewarm);
+                }
+            }
+        });
+        mCameraWorker.setOnConfigured(new Runnable() {
+            @Override
+            public void run() {
+                updateRendererGeometry();
+            }
+        });
+        mCameraWorker.setCallback(mWorkerCallback);
         TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.VideoRecorderView, defStyleAttr,
                 R.style.Widget_VideoRecorderView);
         setFacing(a.getInt(R.styleable.VideoRecorderView_cameraOpt, FACING_BACK));
@@ -88,17 +457,98 @@ public class VideoRecorderView extends SurfaceView {
         holder.setFormat(PixelFormat.TRANSPARENT);
         holder.setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);
         holder.setKeepScreenOn(true);
-        holder.addCallback(mCameraHelper); // holder加入回调接口
+        holder.addCallback(new SurfaceHolder.Callback() {
+            @Override
+            public void surfaceCreated(final SurfaceHolder holder) {
+                if (mRenderer != null) {
+                    return;
+                }
+                postCameraTask(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCameraBackend.surfaceCreated(holder);
+                    }
+                });
+            }
+
+            @Override
+            public void surfaceChanged(final SurfaceHolder holder, final int format, final int width, final int height) {
+                if (mRenderer != null) {
+                    if (mPreviewTextureView == null) {
+                        mRenderer.setDisplaySurface(VideoRecorderView.this, holder.getSurface(), width, height);
+                    }
+                    return;
+                }
+                postCameraTask(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCameraBackend.surfaceChanged(holder, format, width, height);
+                    }
+                });
+            }
+
+            @Override
+            public void surfaceDestroyed(final SurfaceHolder holder) {
+                if (mRenderer != null) {
+                    if (mPreviewTextureView == null) {
+                        mRenderer.setDisplaySurface(VideoRecorderView.this, null, 0, 0);
+                    }
+                    return;
+                }
+                postCameraTask(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCameraBackend.surfaceDestroyed(holder);
+                    }
+                });
+            }
+        }); // holder加入回调接口，在相机线程处理
+    }
+
+    /**
+     * Add a new callback.
+     *
+     * @param callback The {@link Callback} to add.
+     * @see #removeCallback(Callback)
+     */
+    public void addCallback(Callback callback) {
+        mCallbacks.add(callback);
+    }
+
+    /**
+     * Remove a callback.
+     *
+     * @param callback The {@link Callback} to remove.
+     * @see #addCallback(Callback)
+     */
+    public void removeCallback(Callback callback) {
+        mCallbacks.remove(callback);
     }
 
     /**
-     * Chooses camera by the direction it faces.
+     * Chooses camera by the direction it faces. An open camera is switched without closing the
+     * preview, reported to {@link Callback#onCameraSwitched(VideoRecorderView, int, long)}.
+     * With {@link #ENGINE_CODEC} a running recording continues with the new camera, with
+     * {@link #ENGINE_MEDIA_RECORDER}, which records from the camera itself, it is stopped.
      *
      * @param facing The camera facing. Must be either {@link #FACING_BACK} or
      *               {@link #FACING_FRONT}.
      */
     public void setFacing(@Facing int facing) {
-        mCameraHelper.setCameraId(facing);
+        mCameraBackend.setCameraId(facing);
+        final GlPreviewRenderer renderer = mRenderer;
+        if (renderer == null && getRecordState() >= STATE_PREPARING) {
+            mStateMachine.requestStop();
+        }
+        mCameraWorker.switchCamera();
+        if (renderer != null) {
+            mCameraWorker.post(new Runnable() {
+                @Override
+                public void run() {
+                    renderer.setEncoderMirrored(mCameraBackend.isFrontFacing());
+                }
+            });
+        }
     }
 
     /**
@@ -109,131 +559,1169 @@ public class VideoRecorderView extends SurfaceView {
     @Facing
     public int getFacing() {
         //noinspection WrongConstant
-        return mCameraHelper.getCameraId();
+        return mCameraBackend.getCameraId();
     }
 
     public void setVideoSize(int width, int height) {
         mVideoSizeSet = true;
-        mCameraHelper.setVideoSize(width, height);
+        mCameraBackend.setVideoSize(width, height);
+        mCameraWorker.reconfigure();
     }
 
-    public void setFlashOn(boolean flash) {
-        mCameraHelper.setFlash(flash);
+    public void setFlashOn(final boolean flash) {
+        postCameraTask(new Runnable() {
+            @Override
+            public void run() {
+                mCameraBackend.setFlash(flash);
+            }
+        });
     }
 
     public boolean getFlashOn() {
-        return mCameraHelper.getFlash();
+        return mCameraBackend.getFlash();
+    }
+
+
+    /**
+     * Choose how recordings are encoded. Call it while the preview is stopped.
+     * <p>
+     * {@link #ENGINE_CODEC} runs the camera on {@code android.hardware.camera2} from API 21 when
+     * no camera is at the legacy hardware level; one capture session feeds the preview and the
+     * encoder, so a recording starts without touching the camera.
+     *
+     * @param engine {@link #ENGINE_MEDIA_RECORDER} or {@link #ENGINE_CODEC}; the latter falls
+     *               back to the former below API 18
+     */
+    public void setRecordingEngine(@Engine int engine) {
+        if (engine == ENGINE_CODEC && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Log.w(TAG, "ENGINE_CODEC needs API 18, using ENGINE_MEDIA_RECORDER");
+            engine = ENGINE_MEDIA_RECORDER;
+        }
+        if (engine == mEngineType) {
+            return;
+        }
+        if (mSession != null) {
+            stopPreview();
+        }
+        mEngineType = engine;
+        final GlPreviewRenderer oldRenderer = mRenderer;
+        mRenderer = engine == ENGINE_CODEC ? new GlPreviewRenderer() : null;
+        if (mRenderer != null) {
+            mRenderer.setMetrics(getMetrics());
+        }
+        final CameraBackend oldBackend = mCameraBackend;
+        final CameraBackend backend = CameraBackends.create((Activity) getContext(),
+                engine == ENGINE_CODEC, oldBackend);
+        mCameraBackend = backend;
+        final SurfaceHolder holder = getHolder();
+        mStateMachine.requestStop();
+        mCameraWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                releaseEngine();
+                if (oldRenderer != null) {
+                    oldBackend.setPreviewTexture(null);
+                    oldRenderer.release();
+                }
+                if (backend != oldBackend) {
+                    oldBackend.releaseCamera();
+                    mCameraWorker.setBackend(backend);
+                    // the surface may have been created while the renderer had it
+                    Surface surface = holder.getSurface();
+                    if (mRenderer == null && surface != null && surface.isValid()) {
+                        backend.surfaceCreated(holder);
+                    }
+                    mStateMachine.setPreviewing(false);
+                }
+                prewarm();
+            }
+        });
+    }
+
+    @Engine
+    public int getRecordingEngine() {
+        return mEngineType;
+    }
+
+    /**
+     * Settings applied to the next {@link #startRecord(String)}. The output file, video size
+     * and orientation are filled in by the view. The frame rate also steers the preview size the
+     * camera2 backend picks on the next {@link #startPreview()}.
+     */
+    public RecordingConfig getRecordingConfig() {
+        return mRecordingConfig;
+    }
+
+    /**
+     * Adapt the recording quality to the device with {@code policy}, e.g. an
+     * {@link AimdQualityPolicy}. The video bitrate follows the policy while recording, frame
+     * rate and size change from the next recording on. The bounds are set on
+     * {@link #getQualityController()}. Only {@link #ENGINE_CODEC} is measured, with
+     * {@link #ENGINE_MEDIA_RECORDER} the decisions of earlier codec recordings are kept.
+     *
+     * @param policy {@code null} to always record with {@link #getRecordingConfig()}
+     */
+    public void setQualityPolicy(QualityPolicy policy) {
+        mQualityController = policy == null ? null : new QualityController(policy);
+    }
+
+    /**
+     * @return the controller of the policy set with {@link #setQualityPolicy}, or {@code null}
+     */
+    public QualityController getQualityController() {
+        return mQualityController;
+    }
+
+    /**
+     * Keep the next recording prepared while the preview is idle, so that
+     * {@link #startRecord(String)} only has to start it. The recording goes to a temp file in
+     * {@link #setWarmStartDirectory(File)} and is moved to the requested file when it stops,
+     * which is a rename on the same storage. Segmented and pre-roll recordings start cold.
+     * The effect shows in {@link #getFirstFrameLatency()}.
+     */
+    public void setWarmStartEnabled(final boolean enabled) {
+        mWarmStartEnabled = enabled;
+        mCameraWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                if (enabled) {
+                    prewarm();
+                } else {
+                    mWarmStart.discard();
+                }
+            }
+        });
+    }
+
+    public boolean isWarmStartEnabled() {
+        return mWarmStartEnabled;
+    }
+
+    /**
+     * @param directory where warm recordings are prepared, best the directory of the recorded
+     *                  files; by default the directory of the last recording or the cache
+     *                  directory
+     */
+    public void setWarmStartDirectory(File directory) {
+        mWarmStartDirectory = directory;
+    }
+
+    /**
+     * @return time from {@link #startRecord(String)} to the first frame in the file. With
+     * {@link #ENGINE_MEDIA_RECORDER} the frames are not visible, it ends when the recorder
+     * has started
+     */
+    public LatencyHistogram getFirstFrameLatency() {
+        return getMetrics().getPhaseTime(RecorderMetrics.PHASE_FIRST_FRAME);
+    }
+
+    /**
+     * Timings of the camera and recorder phases, frame rates and errors, always collected.
+     * Set a {@link RecorderMetrics.Listener} on it to export them. With a
+     * {@link #setSharedCamera(boolean) shared camera} the camera phases and preview frames are
+     * in {@link CameraSessionManager#getMetrics()}.
+     */
+    public RecorderMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Run a camera task on the camera thread. A warm MediaRecorder holds the camera, so it is
+     * given back first and prepared again afterwards.
+     */
+    private void postCameraTask(final Runnable task) {
+        mCameraWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                boolean rewarm = mRenderer == null && mWarmStart.isPrepared();
+                if (rewarm) {
+                    mWarmStart.discard();
+                }
+                task.run();
+                if (rewarm) {
+                    prewarm();
+                }
+            }
+        });
+    }
+
+    /**
+     * Prepare the engine for the next recording if the preview is idle.
+     */
+    private void prewarm() {
+        if (!mWarmStartEnabled || isPreRolling || mWarmStart.isPrepared() || mWarmStart.isRecording()
+                || mStateMachine.getState() != STATE_PREVIEWING) {
+            return;
+        }
+        RecordingConfig config = buildConfig(null, false);
+        if (config == null || !WarmStart.canWarm(config)) {
+            return;
+        }
+        RecordingEngine engine = obtainEngine();
+        if (engine instanceof CodecRecordingEngine) {
+            ((CodecRecordingEngine) engine).setQualityController(mQualityController);
+        }
+        mWarmStart.prepare(engine, config, getWarmStartDirectory());
+    }
+
+    private File getWarmStartDirectory() {
+        File directory = mWarmStartDirectory;
+        if (directory != null) {
+            return directory;
+        }
+        String file = mFile;
+        if (file != null && new File(file).getParentFile() != null) {
+            return new File(file).getParentFile();
+        }
+        return getContext().getCacheDir();
+    }
+
+    /**
+     * Show the preview in {@code view} instead of this view, so it can be animated, scaled or
+     * clipped like any other view. Only with {@link #ENGINE_CODEC}: the camera renders into a
+     * texture, one GPU pass rotates the frame and crops it to the aspect ratio of {@code view},
+     * and the same frame is drawn into the encoder.
+     *
+     * @param view {@code null} to show the preview in this view again
+     */
+    public void setPreviewTextureView(TextureView view) {
+        if (mPreviewTextureView != null) {
+            mPreviewTextureView.setSurfaceTextureListener(null);
+        }
+        mPreviewTextureView = view;
+        if (view != null) {
+            view.setSurfaceTextureListener(mTextureListener);
+        }
+        GlPreviewRenderer renderer = mRenderer;
+        if (renderer == null) {
+            return;
+        }
+        if (view != null) {
+            if (view.isAvailable()) {
+                renderer.setDisplaySurface(this, view.getSurfaceTexture(), view.getWidth(), view.getHeight());
+            } else {
+                renderer.setDisplaySurface(this, null, 0, 0);
+            }
+        } else {
+            SurfaceHolder holder = getHolder();
+            Surface surface = holder.getSurface();
+            if (surface != null && surface.isValid()) {
+                Rect frame = holder.getSurfaceFrame();
+                renderer.setDisplaySurface(this, surface, frame.width(), frame.height());
+            } else {
+                renderer.setDisplaySurface(this, null, 0, 0);
+            }
+        }
+    }
+
+    /**
+     * Hand the size and rotation of the camera frames to the renderer, on the camera thread.
+     */
+    private void updateRendererGeometry() {
+        GlPreviewRenderer renderer = mRenderer;
+        if (renderer != null) {
+            renderer.followCamera(mCameraBackend);
+        }
+    }
+
+    /**
+     * Receive NV21 preview frames. Frames come from a small pool of reusable buffers, so every
+     * frame has to be released, see {@link FrameConsumer}. For work slower than a frame
+     * interval use a {@link FrameAnalysisPipeline}.
+     */
+    public void addFrameConsumer(FrameConsumer consumer) {
+        mFrameTap.addConsumer(consumer);
+        if (mSession != null) {
+            mSession.getBackend().getFrameTap().addConsumer(consumer);
+        }
+        updateFrameTap();
+    }
+
+    public void removeFrameConsumer(FrameConsumer consumer) {
+        mFrameTap.removeConsumer(consumer);
+        if (mSession != null) {
+            mSession.getBackend().getFrameTap().removeConsumer(consumer);
+        }
+        updateFrameTap();
+    }
+
+    /**
+     * Take a small still from the preview frames every {@code intervalMs} while recording and
+     * collect the key frame times of the codec engine. They are stored next to each recording
+     * and reported to {@link Callback#onThumbnailsReady(VideoRecorderView, String, ThumbnailIndex)}
+     * once {@link #stopRecord()} finished, see {@link #getThumbnails()}. Uses the preview
+     * callback, with Camera2 best enabled before the preview starts.
+     *
+     * @param intervalMs time between thumbnails, {@code 0} to turn them off
+     * @param maxSize    pixels on the long side of a thumbnail
+     */
+    public void setThumbnailInterval(int intervalMs, int maxSize) {
+        mThumbnailSampler.setInterval(intervalMs, maxSize);
+        removeFrameConsumer(mThumbnailSampler);
+        if (mThumbnailSampler.isEnabled()) {
+            addFrameConsumer(mThumbnailSampler);
+        }
+    }
+
+    /**
+     * Report the microphone level to {@link Callback#onAudioLevel(VideoRecorderView, float, float)}
+     * while recording, only with {@link #ENGINE_CODEC}.
+     *
+     * @param intervalMs time between reports, {@code 0} to turn them off
+     */
+    public void setAudioLevelInterval(int intervalMs) {
+        if (intervalMs < 0) {
+            throw new IllegalArgumentException("interval " + intervalMs);
+        }
+        mAudioLevelIntervalMs = intervalMs;
+        AudioPipeline audio = mAudioPipeline;
+        if (audio != null) {
+            audio.setLevelInterval(intervalMs);
+        }
+    }
+
+    /**
+     * Report to {@link Callback#onSilenceChanged(VideoRecorderView, boolean)} when the audio
+     * stays below {@code thresholdDb} for {@code holdMs} while recording, only with
+     * {@link #ENGINE_CODEC}. With {@code pause} the silent audio is not encoded either, which
+     * saves space; the audio track then has gaps where it was silent. Takes effect with the
+     * next recording.
+     *
+     * @param thresholdDb level in dBFS below which audio counts as silent, e.g. {@code -50}
+     * @param holdMs      how long it has to be silent, {@code 0} to turn detection off
+     * @param pause       whether to stop encoding audio while silent
+     */
+    public void setSilenceDetection(float thresholdDb, int holdMs, boolean pause) {
+        if (holdMs < 0) {
+            throw new IllegalArgumentException("hold " + holdMs);
+        }
+        mSilenceThresholdDb = thresholdDb;
+        mSilenceHoldMs = holdMs;
+        mRecordingConfig.setSilencePause(thresholdDb, pause ? holdMs : 0);
+        AudioPipeline audio = mAudioPipeline;
+        if (audio != null) {
+            audio.setSilenceDetection(thresholdDb, holdMs);
+        }
+    }
+
+    /**
+     * @return the thumbnails of the last finished recording, {@code null} before one
+     */
+    public ThumbnailIndex getThumbnails() {
+        return mThumbnails;
+    }
+
+    /**
+     * Record while something moves in front of the camera, for unattended use. Block
+     * differences of the preview luminance start a recording once {@code threshold} of the
+     * picture changes, and stop it after {@code quietMs} with less than half of that. Files go
+     * to {@code directory}, named by their start time. The max duration of the
+     * {@link #getRecordingConfig() config} still applies, continuing motion then starts the
+     * next file. Recordings started by hand are left alone. Call on the main thread.
+     *
+     * @param threshold fraction of the picture, e.g. {@code 0.02f}
+     */
+    public void startMotionTrigger(File directory, float threshold, int quietMs) {
+        stopMotionTrigger();
+        MotionAnalyzer analyzer = new MotionAnalyzer(directory, new MotionTrigger(threshold, threshold / 2,
+                MotionTrigger.DEFAULT_START_FRAMES, quietMs * 1000000L));
+        mMotionPipeline = new FrameAnalysisPipeline(1);
+        mMotionPipeline.addAnalyzer(analyzer);
+        mMotionAnalyzer = analyzer;
+        addFrameConsumer(mMotionPipeline);
+    }
+
+    /**
+     * Turn the motion trigger off, a recording it started is stopped.
+     */
+    public void stopMotionTrigger() {
+        if (mMotionPipeline == null) {
+            return;
+        }
+        removeFrameConsumer(mMotionPipeline);
+        mMotionPipeline.release();
+        mMotionPipeline = null;
+        mMotionAnalyzer = null;
+        if (mMotionRecording) {
+            mMotionRecording = false;
+            stopRecord();
+        }
+    }
+
+    public boolean isMotionTriggerEnabled() {
+        return mMotionPipeline != null;
+    }
+
+    private void startMotionRecording(MotionAnalyzer analyzer) {
+        if (analyzer == mMotionAnalyzer && getRecordState() == STATE_PREVIEWING
+                && startRecord(analyzer.nextFile())) {
+            mMotionRecording = true;
+        }
+    }
+
+    private void onMotionChanged(MotionAnalyzer analyzer, boolean moving) {
+        if (analyzer != mMotionAnalyzer) {
+            return;
+        }
+        if (moving) {
+            startMotionRecording(analyzer);
+        } else if (mMotionRecording) {
+            mMotionRecording = false;
+            stopRecord();
+        }
+        for (Callback callback : new ArrayList<>(mCallbacks)) {
+            callback.onMotionChanged(this, moving);
+        }
+    }
+
+    /**
+     * Number of preview buffers, applied on the next camera open. More buffers let consumers
+     * hold frames longer at the cost of memory.
+     */
+    public void setFrameBufferCount(int count) {
+        mCameraBackend.getFrameTap().setBufferCount(count);
+    }
+
+    /**
+     * @return estimated preview frames lost because consumers held every buffer
+     */
+    public long getDroppedFrameCount() {
+        return mCameraBackend.getFrameTap().getDroppedFrameCount();
+    }
+
+    /**
+     * @return how often consumers held every preview buffer
+     */
+    public long getFrameBufferExhaustedCount() {
+        return mCameraBackend.getFrameTap().getExhaustedCount();
+    }
+
+    private void updateFrameTap() {
+        postCameraTask(new Runnable() {
+            @Override
+            public void run() {
+                mCameraBackend.updateFrameTap();
+            }
+        });
+    }
+
+    /**
+     * Open the camera and start preview on the camera thread. The result is reported to
+     * {@link Callback#onCameraOpened(VideoRecorderView)} or
+     * {@link Callback#onCameraError(VideoRecorderView)}.
+     *
+     * @return {@code true} once the request is queued
+     */
+    public boolean startPreview() {
+        mCameraBackend.setFrameRate(mRecordingConfig.getFrameRate());
+        if (mSharedCamera && mRenderer != null) {
+            attachSession();
+            return true;
+        }
+        final GlPreviewRenderer renderer = mRenderer;
+        if (renderer != null) {
+            mCameraWorker.post(new Runnable() {
+                @Override
+                public void run() {
+                    mCameraBackend.setPreviewTexture(renderer.start());
+                    showPreview(renderer);
+                }
+            });
+        }
+        mCameraWorker.open();
+        mCameraWorker.post(mUpdatePreviewState);
+        return true;
     }
 
+    /**
+     * Close the camera, a running recording is stopped first. A
+     * {@link #setSharedCamera(boolean) shared camera} stays open for the other views.
+     */
+    public void stopPreview() {
+        mStateMachine.requestStop();
+        mCameraWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                releaseEngine();
+            }
+        });
+        if (mSession != null) {
+            detachSession();
+            return;
+        }
+        mCameraWorker.close();
+        mCameraWorker.post(mUpdatePreviewState);
+    }
 
-    public boolean startPreview(){
-       return mCameraHelper.openCamera();
+    /**
+     * Show and record the camera of the {@link CameraSessionManager} until
+     * {@link #detachSession()}; the view uses the camera, thread and renderer of the session
+     * instead of its own meanwhile.
+     */
+    private void attachSession() {
+        if (mSession == null) {
+            mSession = CameraSessionManager.getInstance().acquire((Activity) getContext(), mCameraBackend);
+            mLocalBackend = mCameraBackend;
+            mLocalWorker = mCameraWorker;
+            mLocalRenderer = mRenderer;
+            mCameraBackend = mSession.getBackend();
+            mCameraWorker = mSession.getWorker();
+            mRenderer = mSession.getRenderer();
+            PreviewFrameTap tap = mCameraBackend.getFrameTap();
+            for (FrameConsumer consumer : mFrameTap.getConsumers()) {
+                tap.addConsumer(consumer);
+            }
+        }
+        mSession.attach(mWorkerCallback, (Activity) getContext());
+        final GlPreviewRenderer renderer = mRenderer;
+        mCameraWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                showPreview(renderer);
+                mCameraBackend.updateFrameTap();
+            }
+        });
+        mCameraWorker.post(mUpdatePreviewState);
     }
 
-    public void stopPreview(){
-        releaseMediaRecorder();
-        mCameraHelper.releaseCamera();
+    /**
+     * Take this view off the shared camera, after the tasks queued for it, and go back to the
+     * own camera of the view.
+     */
+    private void detachSession() {
+        final CameraSession session = mSession;
+        final List<FrameConsumer> consumers = mFrameTap.getConsumers();
+        mCameraWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                session.getRenderer().setDisplaySurface(VideoRecorderView.this, null, 0, 0);
+                PreviewFrameTap tap = session.getBackend().getFrameTap();
+                for (FrameConsumer consumer : consumers) {
+                    tap.removeConsumer(consumer);
+                }
+                session.getBackend().updateFrameTap();
+                mStateMachine.setPreviewing(false);
+            }
+        });
+        session.detach(mWorkerCallback);
+        mSession = null;
+        mCameraBackend = mLocalBackend;
+        mCameraWorker = mLocalWorker;
+        mRenderer = mLocalRenderer;
+        mLocalBackend = null;
+        mLocalWorker = null;
+        mLocalRenderer = null;
+        CameraSessionManager.getInstance().release();
+    }
+
+    /**
+     * Hand the surface of the view to {@code renderer}, on the camera thread: it may have been
+     * created before the renderer was started.
+     */
+    private void showPreview(GlPreviewRenderer renderer) {
+        TextureView textureView = mPreviewTextureView;
+        SurfaceHolder holder = getHolder();
+        Surface surface = holder.getSurface();
+        if (textureView != null) {
+            if (textureView.isAvailable()) {
+                renderer.setDisplaySurface(this, textureView.getSurfaceTexture(),
+                        textureView.getWidth(), textureView.getHeight());
+            }
+        } else if (surface != null && surface.isValid()) {
+            Rect frame = holder.getSurfaceFrame();
+            renderer.setDisplaySurface(this, surface, frame.width(), frame.height());
+        }
+    }
+
+    /**
+     * Show the same camera as the other views sharing it, e.g. a large preview and a small
+     * overlay, each of which can record. The camera is opened with the first of them that
+     * {@link #startPreview() starts}, with the settings of that view, and closed a while after
+     * the last one {@link #stopPreview() stopped}, see {@link CameraSessionManager}. Facing,
+     * video size and flash apply to all of them; the size follows
+     * {@link #setVideoSize(int, int)} only, not the layout. Only with {@link #ENGINE_CODEC},
+     * the MediaRecorder engine records from the camera itself. Takes effect with the next
+     * {@link #startPreview()}, a shared preview is stopped.
+     */
+    public void setSharedCamera(boolean shared) {
+        if (shared == mSharedCamera) {
+            return;
+        }
+        if (mSession != null) {
+            stopPreview();
+        }
+        mSharedCamera = shared;
+    }
+
+    public boolean isSharedCamera() {
+        return mSharedCamera;
+    }
+
+    /**
+     * @return the current lifecycle state, changes are reported to
+     * {@link Callback#onRecordStateChanged(VideoRecorderView, int, int, long)}
+     */
+    @RecordState
+    public int getRecordState() {
+        return mStateMachine.getState();
+    }
+
+    public boolean isRecording() {
+        return mStateMachine.getState() == STATE_RECORDING;
+    }
+
+    /**
+     * @param state one of the {@link RecordState} constants
+     * @return how long the recorder stayed in {@code state}, e.g. the start latency for
+     * {@link #STATE_PREPARING} and the time to finish a file for {@link #STATE_STOPPING}
+     */
+    public LatencyHistogram getRecordStateTime(@RecordState int state) {
+        return mStateMachine.getStateTime(state);
     }
 
     @Override
     protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
         super.onLayout(changed, left, top, right, bottom);
         if (changed && !mVideoSizeSet) {
-            mCameraHelper.setVideoSize(getWidth(), getHeight());
+            if (mSession != null) {
+                // 共享的相机不跟随各个视图的大小, 只作为下次打开的设置
+                mLocalBackend.setVideoSize(getWidth(), getHeight());
+                return;
+            }
+            mCameraBackend.setVideoSize(getWidth(), getHeight());
+            mCameraWorker.reconfigure();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        stopMotionTrigger();
+        stopPreview();
+        mCameraWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                mCameraBackend.getFrameTap().shutdown();
+            }
+        });
+        final GlPreviewRenderer renderer = mRenderer;
+        if (renderer != null) {
+            mCameraWorker.post(new Runnable() {
+                @Override
+                public void run() {
+                    renderer.release();
+                }
+            });
         }
+        mCameraWorker.quit();
+        super.onDetachedFromWindow();
     }
 
     /**
-     * 释放MediaRecorder
+     * 释放录制引擎
      */
-    private void releaseMediaRecorder() {
-        if (mRecorder != null) {
-            try {
-                mRecorder.stop();
-            } catch (Exception e) {
+    private void releaseEngine() {
+        mWarmStart.discard();
+        if (mEngine != null) {
+            mEngine.release();
+            mEngine = null;
+        }
+        mAudioPipeline = null;
+        isPreRolling = false;
+    }
+
+    private RecordingEngine obtainEngine() {
+        if (mEngine == null) {
+            if (mRenderer != null) {
+                AudioPipeline audio = new AudioPipeline(new AudioRecordInput());
+                audio.setLevelInterval(mAudioLevelIntervalMs);
+                audio.setSilenceDetection(mSilenceThresholdDb, mSilenceHoldMs);
+                audio.setListener(new AudioListener());
+                mAudioPipeline = audio;
+                CodecRecordingEngine engine = new CodecRecordingEngine(new AndroidCodecBackendFactory(),
+                        mRenderer, audio);
+                engine.setProxyListener(new ProxyListener());
+                mEngine = engine;
+            } else {
+                // without the renderer the backend always is the legacy one
+                mEngine = new MediaRecorderEngine((CameraHelper) mCameraBackend);
             }
-            mRecorder.release();
-            mRecorder = null;
+            mEngine.setListener(new RecordingEngine.Listener() {
+                @Override
+                public void onSampleWritten(int track, long presentationTimeUs, int size, int flags) {
+                    getMetrics().onSampleWritten(track, size, System.nanoTime());
+                    getMetrics().getStream(RecorderMetrics.STREAM_PRIMARY)
+                            .onSampleWritten(track, presentationTimeUs, size);
+                    if (track == CodecRecordingEngine.TRACK_VIDEO) {
+                        mThumbnailSampler.onVideoSample(presentationTimeUs, (flags & EncodedSample.FLAG_KEY_FRAME) != 0);
+                    }
+                    if (mFirstFramePending && track == CodecRecordingEngine.TRACK_VIDEO) {
+                        mFirstFramePending = false;
+                        recordFirstFrame();
+                    }
+                }
+
+                @Override
+                public void onSegmentFinished(String path, final long durationUs, final long size) {
+                    getMetrics().getStream(RecorderMetrics.STREAM_PRIMARY).onSegmentFinished();
+                    final String file = mWarmStart.resolvePath(path);
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            for (Callback callback : new ArrayList<>(mCallbacks)) {
+                                callback.onSegmentFinished(VideoRecorderView.this, file, durationUs / 1000, size);
+                            }
+                        }
+                    });
+                }
+
+                @Override
+                public void onFragmentWritten(final String path, final long offset, ByteBuffer data,
+                                              final long durationUs) {
+                    final int size = data.remaining();
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            for (Callback callback : new ArrayList<>(mCallbacks)) {
+                                callback.onFragmentWritten(VideoRecorderView.this, path, offset, size, durationUs / 1000);
+                            }
+                        }
+                    });
+                }
+
+                @Override
+                public void onMaxDurationReached() {
+                    stopRecord();
+                }
+
+                @Override
+                public void onError(Throwable error) {
+                    Log.e(TAG, "recording failed", error);
+                    getMetrics().onError("recording", error);
+                }
+            });
+        }
+        return mEngine;
+    }
+
+    /**
+     * Forwards the audio levels, silence and drift to the callbacks and the metrics.
+     */
+    private class AudioListener extends AudioPipeline.Listener {
+        @Override
+        void onLevel(final float rmsDb, final float peakDb) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Callback callback : new ArrayList<>(mCallbacks)) {
+                        callback.onAudioLevel(VideoRecorderView.this, rmsDb, peakDb);
+                    }
+                }
+            });
+        }
+
+        @Override
+        void onSilenceChanged(final boolean silent) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Callback callback : new ArrayList<>(mCallbacks)) {
+                        callback.onSilenceChanged(VideoRecorderView.this, silent);
+                    }
+                }
+            });
+        }
+
+        @Override
+        void onDrift(long driftUs) {
+            getMetrics().onAudioDrift(driftUs);
+        }
+    }
+
+    /**
+     * Counts the proxy in its own {@link StreamMetrics} and hands its files to the callbacks.
+     */
+    private class ProxyListener extends RecordingEngine.Listener {
+        @Override
+        public void onSampleWritten(int track, long presentationTimeUs, int size, int flags) {
+            getMetrics().getStream(RecorderMetrics.STREAM_PROXY).onSampleWritten(track, presentationTimeUs, size);
+        }
+
+        @Override
+        public void onSegmentFinished(final String path, final long durationUs, final long size) {
+            getMetrics().getStream(RecorderMetrics.STREAM_PROXY).onSegmentFinished();
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Callback callback : new ArrayList<>(mCallbacks)) {
+                        callback.onProxyFinished(VideoRecorderView.this, path, durationUs / 1000, size);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            // 代理失败不影响主文件
+            Log.e(TAG, "proxy recording failed", error);
+            getMetrics().onError("proxy", error);
         }
     }
 
 
     /**
-     * Start record and save mp4 to file
+     * Start encoding into memory without a file, so that the next {@link #startRecord(String)}
+     * includes up to {@link RecordingConfig#getPreRollDurationMs()} from before the call. Needs
+     * {@link #ENGINE_CODEC} and a pre-roll duration in {@link #getRecordingConfig()}. The
+     * pre-roll ends with the recording that used it.
+     *
+     * @return {@code false} if pre-roll is not possible with the current settings
      */
-    public boolean startRecord(String file) {
-        if (isRecording)
+    public boolean startPreRoll() {
+        if (mRenderer == null || mRecordingConfig.getPreRollDurationMs() <= 0) {
+            return false;
+        }
+        if (mStateMachine.getState() >= STATE_PREPARING || isPreRolling) {
             return true;
-        if (mRecorder == null) {
-            mRecorder = new MediaRecorder(); // 创建MediaRecorder
         }
-        mRecorder.reset();
+        isPreRolling = true;
+        mCameraWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!startEngine(null)) {
+                    isPreRolling = false;
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Stop a pre-roll that was not used by a recording and free its memory.
+     */
+    public void stopPreRoll() {
+        mCameraWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isPreRolling && mEngine != null) {
+                    mEngine.release();
+                    mEngine = null;
+                }
+                isPreRolling = false;
+                prewarm();
+            }
+        });
+    }
+
+    public boolean isPreRolling() {
+        return isPreRolling;
+    }
+
+    /**
+     * @return the memory held for pre-roll samples, {@code 0} when not pre-rolling
+     */
+    public int getPreRollMemoryBytes() {
+        RecordingEngine engine = mEngine;
+        return isPreRolling && engine instanceof CodecRecordingEngine
+                ? ((CodecRecordingEngine) engine).getPreRollCapacityBytes() : 0;
+    }
+
+    /**
+     * Start record and save mp4 to file. Recording is set up on the camera thread, this call
+     * does not wait for it; the outcome is reported to
+     * {@link Callback#onRecordStarted(VideoRecorderView, String)} or
+     * {@link Callback#onRecordFailed(VideoRecorderView, String)}. While
+     * {@link #isPreRolling() pre-rolling} the file starts with the buffered footage.
+     *
+     * @return {@code false} if a recording is already running or requested, the call is
+     * ignored then
+     */
+    public boolean startRecord(final String file) {
+        mStartRequestNanos = System.nanoTime();
+        if (!mStateMachine.requestStart(file)) {
+            return false;
+        }
         mFile = file;
+        return true;
+    }
+
+    private boolean startRecordInternal(String file) {
+        if (isPreRolling && mEngine instanceof CodecRecordingEngine) {
+            isPreRolling = false;
+            try {
+                ((CodecRecordingEngine) mEngine).startOutput(file);
+                // the buffered frames go into the file at once
+                recordFirstFrame();
+                return true;
+            } catch (Throwable e) {
+                e.printStackTrace();
+                getMetrics().onError(RecorderMetrics.phaseName(RecorderMetrics.PHASE_RECORDER_START), e);
+                mEngine.stop();
+                return false;
+            }
+        }
+        // the codec engine reports its first frame, MediaRecorder only that it started
+        boolean codec = mRenderer != null;
+        mFirstFramePending = codec;
+        if (!startEngine(file)) {
+            mFirstFramePending = false;
+            return false;
+        }
+        if (!codec) {
+            recordFirstFrame();
+        }
+        return true;
+    }
+
+    private void recordFirstFrame() {
+        getMetrics().endPhase(RecorderMetrics.PHASE_FIRST_FRAME, mStartRequestNanos);
+    }
+
+    /**
+     * @param file {@code null} to pre-roll
+     */
+    private boolean startEngine(String file) {
+        RecordingConfig config = buildConfig(file, file == null);
+        if (config == null) {
+            return false;
+        }
+        RecordingEngine engine = obtainEngine();
+        if (engine instanceof CodecRecordingEngine) {
+            ((CodecRecordingEngine) engine).setQualityController(mQualityController);
+        }
+        RecorderMetrics metrics = getMetrics();
+        metrics.getStream(RecorderMetrics.STREAM_PRIMARY).setExpectedFrameRate(config.getFrameRate());
+        RecordingConfig proxy = config.resolveProxy();
+        metrics.getStream(RecorderMetrics.STREAM_PROXY).setExpectedFrameRate(proxy == null ? 0 : proxy.getFrameRate());
+        int phase = RecorderMetrics.PHASE_RECORDER_PREPARE;
         try {
-            if (mCameraHelper.getCamera() != null) {
-                mCameraHelper.getCamera().lock();
-                mCameraHelper.getCamera().unlock();
-                mRecorder.setCamera(mCameraHelper.getCamera());
-            }
-            CamcorderProfile profile = CamcorderProfile.get(mCameraHelper.getCameraId(), CamcorderProfile.QUALITY_LOW);
-            // 设置音频采集方式
-            mRecorder.setAudioSource(MediaRecorder.AudioSource.CAMCORDER);
-            //设置视频的采集方式
-            mRecorder.setVideoSource(MediaRecorder.VideoSource.CAMERA);
-            //设置文件的输出格式
-            mRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);//aac_adif， aac_adts， output_format_rtp_avp， output_format_mpeg2ts ，webm
-            //设置video的编码格式
-            mRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.H264);
-            //设置录制的视频编码比特率
-            mRecorder.setVideoEncodingBitRate(2 * mCameraHelper.getSize().getWidth() * mCameraHelper.getSize().getHeight());// 比特率
-            //设置录制的视频帧率,注意文档的说明:
-//            mRecorder.setVideoFrameRate(30);
-            //设置要捕获的视频的宽度和高度
-            mRecorder.setAudioChannels(1);
-            mRecorder.setAudioSamplingRate(profile.audioSampleRate / 8);
-            mRecorder.setAudioEncodingBitRate(profile.audioBitRate / 8);
-            mRecorder.setAudioEncoder(profile.audioCodec);
-//            mSurfaceHolder.setFixedSize(320, 240);//最高只能设置640x480
-//            mRecorder.setVideoSize(320, 240);//最高只能设置640x480
-            //设置记录会话的最大持续时间（毫秒）
-            mRecorder.setVideoSize(mCameraHelper.getSize().getWidth(), mCameraHelper.getSize().getHeight());
-            mRecorder.setMaxDuration(20 * 1000);
-            mRecorder.setPreviewDisplay(mCameraHelper.getSurface());
-            mRecorder.setOrientationHint(mCameraHelper.getOrientation());
-
-            //设置输出文件的路径
-            mRecorder.setOutputFile(file);
-            //准备录制
-            mRecorder.prepare();
-            //开始录制
-            mRecorder.start();
+            long start = System.nanoTime();
+            if (!mWarmStart.claim(engine, config)) {
+                engine.prepare(config);
+                start = metrics.endPhase(RecorderMetrics.PHASE_RECORDER_PREPARE, start);
+            }
+            phase = RecorderMetrics.PHASE_RECORDER_START;
+            engine.start();
+            metrics.endPhase(RecorderMetrics.PHASE_RECORDER_START, start);
         } catch (Throwable e) {
             e.printStackTrace();
+            metrics.onError(RecorderMetrics.phaseName(phase), e);
+            mWarmStart.discard();
             return false;
         }
-        isRecording = true;
-        return isRecording;
+        return true;
     }
 
     /**
-     * Stop record
+     * @return the settings for a recording into {@code file}, {@code null} if the camera is not
+     * open
+     */
+    private RecordingConfig buildConfig(String file, boolean preRoll) {
+        CameraHelper.Size size = mCameraBackend.getSize();
+        if (!mCameraBackend.isCameraOpened() || size == null) {
+            return null;
+        }
+        RecordingConfig config = new RecordingConfig(mRecordingConfig);
+        config.setOutputFile(file);
+        if (!AudioFormatResolver.resolve(config, AudioRecordInput.PROBE)) {
+            Log.w(TAG, "audio " + mRecordingConfig.getAudioSampleRate() + " Hz, " + mRecordingConfig.getAudioChannels()
+                    + " channels not supported, recording " + (config.isAudioEnabled()
+                    ? config.getAudioSampleRate() + " Hz, " + config.getAudioChannels() + " channels" : "no audio"));
+        }
+        if (!preRoll) {
+            config.setPreRollDurationMs(0);
+        }
+        if (mRenderer != null) {
+            // the renderer records what the preview shows, already rotated
+            int rotation = mCameraBackend.getDisplayOrientation();
+            if (rotation == 90 || rotation == 270) {
+                config.setVideoSize(size.getHeight(), size.getWidth());
+            } else {
+                config.setVideoSize(size.getWidth(), size.getHeight());
+            }
+            config.setOrientationHint(0);
+            mRenderer.setEncoderMirrored(mCameraBackend.isFrontFacing());
+        } else {
+            config.setVideoSize(size.getWidth(), size.getHeight());
+            config.setOrientationHint(mCameraBackend.getOrientation());
+            // MediaRecorder records one regular file
+            config.setProxy(null);
+            config.setFragmentDurationMs(0);
+        }
+        QualityController controller = mQualityController;
+        if (controller != null) {
+            // MediaRecorder only records sizes the camera supports
+            controller.begin(config, mRenderer != null);
+        }
+        return config;
+    }
+
+    /**
+     * Stop record. The file is finalized on the camera thread and reported to
+     * {@link Callback#onRecordStopped(VideoRecorderView, String)}. A start that has not begun
+     * yet is cancelled without callbacks.
      */
     public void stopRecord() {
+        mStateMachine.requestStop();
+    }
+
+    private void stopRecordInternal(String file) {
+        if (mEngine != null) {
+            long start = System.nanoTime();
+            mEngine.stop();
+            getMetrics().endPhase(RecorderMetrics.PHASE_RECORDER_STOP, start);
+        }
+        getMetrics().onOutputStopped();
+        mFirstFramePending = false;
+        if (mWarmStart.isRecording() && !mWarmStart.finish()) {
+            Log.e(TAG, "can not move the warm recording to " + file);
+        }
+        finishThumbnails(file);
+    }
+
+    /**
+     * Store what {@link ThumbnailSampler} collected next to the file and hand it to the callbacks
+     * ahead of {@link Callback#onRecordStopped(VideoRecorderView, String)}.
+     */
+    private void finishThumbnails(final String file) {
+        final ThumbnailIndex index = mThumbnailSampler.end();
+        if (index == null) {
+            return;
+        }
         try {
-            //停止录制
-            mRecorder.stop();
-            //重置
-            mRecorder.reset();
-        } catch (Exception e) {
-            e.printStackTrace();
+            index.write(ThumbnailIndex.fileFor(file));
+        } catch (IOException e) {
+            Log.e(TAG, "can not write the thumbnails of " + file, e);
         }
-        if (mCameraHelper.getCamera() != null)
-            try {
-                mCameraHelper.getCamera().reconnect();
-            } catch (IOException e) {
-                e.printStackTrace();
+        mThumbnails = index;
+        post(new Runnable() {
+            @Override
+            public void run() {
+                for (Callback callback : new ArrayList<>(mCallbacks)) {
+                    callback.onThumbnailsReady(VideoRecorderView.this, file, index);
+                }
             }
-        isRecording = false;
+        });
+    }
+
+    /**
+     * Hands the transitions of the state machine to the callbacks on the main thread.
+     */
+    private class StateListener extends RecordingStateMachine.Listener {
+        @Override
+        void onStateChanged(final int from, final int to, final long nanos) {
+            if (to == STATE_PREVIEWING) {
+                // 空闲时准备下一次录制
+                mCameraWorker.post(mPrewarm);
+                MotionAnalyzer analyzer = mMotionAnalyzer;
+                if (analyzer != null) {
+                    // 录制结束后还在动就开始下一个文件
+                    analyzer.requestRestart();
+                }
+            }
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    if (to == STATE_PREVIEWING) {
+                        mMotionRecording = false;
+                    }
+                    for (Callback callback : new ArrayList<>(mCallbacks)) {
+                        callback.onRecordStateChanged(VideoRecorderView.this, from, to, nanos / 1000000);
+                    }
+                }
+            });
+        }
+
+        @Override
+        void onRecordingStarted(final String file) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Callback callback : new ArrayList<>(mCallbacks)) {
+                        callback.onRecordStarted(VideoRecorderView.this, file);
+                    }
+                }
+            });
+        }
+
+        @Override
+        void onRecordingFailed(final String file) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Callback callback : new ArrayList<>(mCallbacks)) {
+                        callback.onRecordFailed(VideoRecorderView.this, file);
+                    }
+                }
+            });
+        }
+
+        @Override
+        void onRecordingStopped(final String file) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Callback callback : new ArrayList<>(mCallbacks)) {
+                        callback.onRecordStopped(VideoRecorderView.this, file);
+                    }
+                }
+            });
+        }
     }
 
+    /**
+     * Runs {@link MotionDetector} and {@link MotionTrigger} on the analysis thread and hands the
+     * decisions to the main thread.
+     */
+    private class MotionAnalyzer implements FrameAnalyzer {
+        private final File mDirectory;
+        private final MotionTrigger mTrigger;
+        private final MotionDetector mDetector = new MotionDetector();
+        private final SimpleDateFormat mFormat = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS", Locale.US);
+        private volatile boolean mRestartRequested;
+
+        MotionAnalyzer(File directory, MotionTrigger trigger) {
+            mDirectory = directory;
+            mTrigger = trigger;
+        }
+
+        /**
+         * Start the next file on the next frame if the motion is still going on, the motion
+         * itself did not change.
+         */
+        void requestRestart() {
+            mRestartRequested = true;
+        }
+
+        String nextFile() {
+            return new File(mDirectory, "motion_" + mFormat.format(new Date()) + ".mp4").getPath();
+        }
+
+        @Override
+        public void analyze(PreviewFrame frame) {
+            if (mRestartRequested) {
+                mRestartRequested = false;
+                if (mTrigger.isActive()) {
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            startMotionRecording(MotionAnalyzer.this);
+                        }
+                    });
+                }
+            }
+            // 直接读NV21的亮度部分
+            float activity = mDetector.update(frame.getData(), frame.getWidth(), frame.getHeight());
+            int decision = mTrigger.onActivity(activity, frame.getTimestampNanos());
+            if (decision == MotionTrigger.NONE) {
+                return;
+            }
+            final boolean moving = decision == MotionTrigger.START;
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    onMotionChanged(MotionAnalyzer.this, moving);
+                }
+            });
+        }
+    }
 }
@@ -0,0 +1,239 @@
+package cn.appdream.recorder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a {@link RecordingEngine} prepared while the preview is idle, so that a recording only
+ * has to {@link RecordingEngine#start()}.
+ * <p>
+ * The output file is not known before the tap, so the engine is prepared against a temp file in
+ * a given directory and the file is moved to the requested path once the recording is stopped.
+ * That is a rename when both are on the same storage and a copy otherwise. Segmented, proxy
+ * and pre-roll recordings are not warmed up, their files depend on the output path or are
+ * opened later anyway; neither are fragmented ones, their fragments are reported by path while
+ * recording, nor recoverable ones, whose interrupted temp file would be deleted as stale.
+ * <p>
+ * Used on the camera thread; {@link #resolvePath(String)} also from engine callbacks while the
+ * camera thread waits in {@link RecordingEngine#stop()}. The temp files of all instances are
+ * tracked process wide, so views sharing a directory only delete the files of a dead process.
+ *
+ * @author An Zewei (anzewei88[at]gmail[dot]com)
+ * @since ${VERSION}
+ */
+
+class WarmStart {
+    static final String FILE_PREFIX = ".warm_";
+
+    /**
+     * Temp files of this process that are still prepared or recording, guarded by itself.
+     */
+    private static final Set<String> sLiveFiles = new HashSet<>();
+    private static final AtomicInteger sFileCount = new AtomicInteger();
+
+    private RecordingEngine mEngine;
+    private RecordingConfig mConfig;
+    private File mTempFile;
+    private String mTarget;
+
+    /**
+     * @return an engine is prepared and not claimed yet
+     */
+    boolean isPrepared() {
+        return mEngine != null && mTarget == null;
+    }
+
+    /**
+     * @return a claimed recording is running into the temp file
+     */
+    boolean isRecording() {
+        return mTarget != null;
+    }
+
+    static boolean canWarm(RecordingConfig config) {
+        return !config.isSegmented() && !config.isFragmented() && config.getPreRollDurationMs() <= 0
+                && config.getProxy() == null && !config.isCrashRecoveryEnabled();
+    }
+
+    /**
+     * Prepare {@code engine} for recordings with the settings of {@code config}. Whatever was
+     * prepared before is discarded.
+     *
+     * @param directory where the temp file goes, best the directory of the recordings
+     * @return {@code false} if the settings can not be warmed up or preparing failed
+     */
+    boolean prepare(RecordingEngine engine, RecordingConfig config, File directory) {
+        discard();
+        if (!canWarm(config) || directory == null || !(directory.isDirectory() || directory.mkdirs())) {
+            return false;
+        }
+        deleteStaleFiles(directory);
+        File temp = new File(directory, FILE_PREFIX + System.currentTimeMillis() + "_"
+                + sFileCount.incrementAndGet() + ".mp4");
+        setLive(temp, true);
+        RecordingConfig warm = new RecordingConfig(config);
+        warm.setOutputFile(temp.getPath());
+        try {
+            engine.prepare(warm);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            temp.delete();
+            setLive(temp, false);
+            return false;
+        }
+        mEngine = engine;
+        mConfig = warm;
+        mTempFile = temp;
+        return true;
+    }
+
+    /**
+     * Take the prepared engine for a recording into {@code config.getOutputFile()}. On success
+     * the caller only starts the engine; otherwise the warm state is discarded and the caller
+     * prepares as usual.
+     */
+    boolean claim(RecordingEngine engine, RecordingConfig config) {
+        if (!isPrepared() || mEngine != engine || config.getOutputFile() == null
+                || !mConfig.hasSameSettings(config)) {
+            discard();
+            return false;
+        }
+        mTarget = config.getOutputFile();
+        return true;
+    }
+
+    /**
+     * @return {@code path} as the caller knows it, the requested file instead of the temp file
+     */
+    String resolvePath(String path) {
+        if (mTarget != null && mTempFile != null && mTempFile.getPath().equals(path)) {
+            return mTarget;
+        }
+        return path;
+    }
+
+    /**
+     * After the claimed recording was stopped, move its file to the requested path.
+     *
+     * @return {@code false} if the file could not be moved, it is left at the temp path then
+     */
+    boolean finish() {
+        if (mTarget == null) {
+            return false;
+        }
+        File temp = mTempFile;
+        File target = new File(mTarget);
+        mEngine = null;
+        mConfig = null;
+        mTempFile = null;
+        mTarget = null;
+        try {
+            moveFile(temp, target);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            setLive(temp, false);
+        }
+    }
+
+    /**
+     * Undo the preparation, or forget a claimed recording that failed to start.
+     */
+    void discard() {
+        if (mEngine != null && mTarget == null) {
+            // 只准备过，stop 会撤销准备
+            mEngine.stop();
+        }
+        if (mTempFile != null) {
+            mTempFile.delete();
+            setLive(mTempFile, false);
+        }
+        mEngine = null;
+        mConfig = null;
+        mTempFile = null;
+        mTarget = null;
+    }
+
+    /**
+     * Move {@code from} next to {@code to} first and only then replace {@code to}, so an existing
+     * file is kept when the move fails.
+     */
+    static void moveFile(File from, File to) throws IOException {
+        File tmp = new File(to.getPath() + ".tmp");
+        tmp.delete();
+        boolean renamed = from.renameTo(tmp);
+        if (!renamed) {
+            // 不同的存储，只能复制
+            try {
+                copyFile(from, tmp);
+            } catch (IOException e) {
+                tmp.delete();
+                throw e;
+            }
+        }
+        if (!tmp.renameTo(to) && !(to.delete() && tmp.renameTo(to))) {
+            if (renamed) {
+                tmp.renameTo(from);
+            } else {
+                tmp.delete();
+            }
+            throw new IOException("can not replace " + to);
+        }
+        if (!renamed && !from.delete()) {
+            from.deleteOnExit();
+        }
+    }
+
+    private static void copyFile(File from, File to) throws IOException {
+        FileChannel in = new FileInputStream(from).getChannel();
+        try {
+            FileChannel out = new FileOutputStream(to).getChannel();
+            try {
+                long position = 0;
+                long size = in.size();
+                while (position < size) {
+                    position += in.transferTo(position, size - position, out);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void setLive(File file, boolean live) {
+        synchronized (sLiveFiles) {
+            if (live) {
+                sLiveFiles.add(file.getPath());
+            } else {
+                sLiveFiles.remove(file.getPath());
+            }
+        }
+    }
+
+    /**
+     * Temp files of a process that died while warm, not those another instance still uses.
+     */
+    private static void deleteStaleFiles(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        synchronized (sLiveFiles) {
+            for (File file : files) {
+                if (file.getName().startsWith(FILE_PREFIX) && !sLiveFiles.contains(file.getPath())) {
+                    file.delete();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package cn.appdream.recorder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class AudioInputSplitterTest {
+    private CountingInput mSource;
+    private AudioInputSplitter mSplitter;
+
+    @Before
+    public void setUp() throws Exception {
+        mSource = new CountingInput();
+        mSplitter = new AudioInputSplitter(mSource, 2);
+    }
+
+    @Test
+    public void branchesReadTheSameBytes() throws Exception {
+        AudioInput first = mSplitter.getBranch(0);
+        AudioInput second = mSplitter.getBranch(1);
+        first.start(44100, 1);
+        second.start(44100, 1);
+        assertEquals(1, mSource.starts);
+        mSource.open = true;
+
+        byte[] a = readFully(first, 5000);
+        byte[] b = readFully(second, 5000);
+        assertArrayEquals(a, b);
+        assertEquals(0, a[0]);
+        assertEquals(2, a[4999]);
+
+        first.stop();
+        assertFalse(mSource.stopped);
+        second.stop();
+        assertTrue(mSource.stopped);
+    }
+
+    @Test
+    public void partialReads() throws Exception {
+        AudioInput branch = mSplitter.getBranch(0);
+        branch.start(8000, 2);
+        mSource.open = true;
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        int read = 0;
+        while (read == 0) {
+            read = branch.read(buffer, 100);
+        }
+        assertEquals(100, read);
+        assertEquals(100, buffer.position());
+        branch.stop();
+    }
+
+    @Test(expected = IOException.class)
+    public void formatsHaveToMatch() throws Exception {
+        mSplitter.getBranch(0).start(44100, 1);
+        try {
+            mSplitter.getBranch(1).start(48000, 1);
+        } finally {
+            mSplitter.getBranch(0).stop();
+        }
+    }
+
+    @Test
+    public void slowBranchLosesOldestChunks() throws Exception {
+        AudioInput fast = mSplitter.getBranch(0);
+        AudioInput slow = mSplitter.getBranch(1);
+        fast.start(44100, 1);
+        slow.start(44100, 1);
+        mSource.open = true;
+        // far more chunks than the queue holds
+        readFully(fast, (AudioInputSplitter.QUEUE_CHUNKS * 3) * 2048);
+        ByteBuffer buffer = ByteBuffer.allocate(2048);
+        int read = 0;
+        while (read == 0) {
+            read = slow.read(buffer, 2048);
+        }
+        // the first chunk of the source starts with 0
+        assertTrue(mSource.chunks > AudioInputSplitter.QUEUE_CHUNKS);
+        assertTrue(buffer.get(0) != 0);
+        fast.stop();
+        slow.stop();
+    }
+
+    private static byte[] readFully(AudioInput input, int size) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            input.read(buffer, buffer.remaining());
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Every chunk is filled with its number, so readers can tell where they are. Nothing comes
+     * before the test opens it.
+     */
+    static class CountingInput implements AudioInput {
+        volatile int starts;
+        volatile boolean stopped;
+        volatile int chunks;
+        volatile boolean open;
+
+        @Override
+        public void start(int sampleRate, int channels) {
+            starts++;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer, int size) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ignored) {
+            }
+            if (!open) {
+                return 0;
+            }
+            byte value = (byte) chunks++;
+            for (int i = 0; i < size; i++) {
+                buffer.put(value);
+            }
+            return size;
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
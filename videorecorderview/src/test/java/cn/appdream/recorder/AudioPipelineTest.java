@@ -0,0 +1,250 @@
+package cn.appdream.recorder;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class AudioPipelineTest {
+    private AudioPipeline mPipeline;
+
+    @After
+    public void tearDown() throws Exception {
+        if (mPipeline != null) {
+            mPipeline.release();
+        }
+    }
+
+    @Test
+    public void meter_levelsInDbfs() throws Exception {
+        AudioMeter meter = new AudioMeter(-50, 0);
+        meter.measure(pcm(16384, 1024), 1000);
+        assertEquals(-6.02f, meter.getRmsDb(), 0.01f);
+        assertEquals(-6.02f, meter.getPeakDb(), 0.01f);
+        meter.measure(pcm(0, 1024), 1000);
+        assertEquals(AudioMeter.MIN_DB, meter.getRmsDb(), 0);
+        assertEquals(AudioMeter.MIN_DB, meter.getPeakDb(), 0);
+        // without a hold time never silent
+        assertFalse(meter.isSilent());
+    }
+
+    @Test
+    public void meter_silentAfterHoldTime() throws Exception {
+        AudioMeter meter = new AudioMeter(-50, 100000);
+        assertFalse(meter.measure(pcm(10, 1024), 60000));
+        assertTrue(meter.measure(pcm(10, 1024), 60000));
+        // one loud chunk starts over
+        assertFalse(meter.measure(pcm(8000, 1024), 1000));
+        assertFalse(meter.measure(pcm(10, 1024), 60000));
+    }
+
+    @Test
+    public void resolver_fallsBackToSupportedFormat() throws Exception {
+        RecordingConfig config = new RecordingConfig();
+        config.setAudioSampleRate(48000);
+        config.setAudioChannels(2);
+        config.setAudioBitRate(128000);
+        assertFalse(AudioFormatResolver.resolve(config, new AudioFormatResolver.Probe() {
+            @Override
+            public boolean supports(int sampleRate, int channels) {
+                return channels == 1 && (sampleRate == 44100 || sampleRate == 16000);
+            }
+        }));
+        assertEquals(44100, config.getAudioSampleRate());
+        assertEquals(1, config.getAudioChannels());
+        assertEquals(128000, config.getAudioBitRate());
+        assertTrue(config.isAudioEnabled());
+
+        assertFalse(AudioFormatResolver.resolve(config, new AudioFormatResolver.Probe() {
+            @Override
+            public boolean supports(int sampleRate, int channels) {
+                return false;
+            }
+        }));
+        assertFalse(config.isAudioEnabled());
+    }
+
+    @Test
+    public void resolver_clampsBitRate() throws Exception {
+        assertEquals(48000, AudioFormatResolver.clampBitRate(128000, 8000, 1));
+        assertEquals(16000, AudioFormatResolver.clampBitRate(1000, 44100, 2));
+        assertEquals(AudioFormatResolver.MAX_BIT_RATE, AudioFormatResolver.clampBitRate(1000000, 48000, 2));
+        assertEquals(64000, AudioFormatResolver.clampBitRate(64000, 44100, 1));
+    }
+
+    @Test
+    public void passesSamplesThroughInOrder() throws Exception {
+        CountingInput source = new CountingInput(0);
+        // two chunks, far less than the pool holds, so nothing can be overwritten
+        source.mLimit = 1500;
+        mPipeline = new AudioPipeline(source);
+        mPipeline.start(44100, 1);
+        ByteBuffer buffer = ByteBuffer.allocate(3000).order(ByteOrder.nativeOrder());
+        while (buffer.hasRemaining()) {
+            mPipeline.read(buffer, buffer.remaining());
+        }
+        for (int i = 0; i < 1500; i++) {
+            assertEquals((short) i, buffer.getShort(i * 2));
+        }
+        assertEquals(0, mPipeline.getOverrunCount());
+        mPipeline.stop();
+        assertTrue(source.mStopped);
+    }
+
+    @Test
+    public void sourceErrorEndsCaptureAfterQueuedChunks() throws Exception {
+        CountingInput source = new CountingInput(0);
+        source.mLimit = 1500;
+        source.mError = -6;
+        mPipeline = new AudioPipeline(source);
+        mPipeline.start(44100, 1);
+        ByteBuffer buffer = ByteBuffer.allocate(3000);
+        int read;
+        do {
+            read = mPipeline.read(buffer, buffer.remaining());
+        } while (read >= 0);
+        assertEquals(-6, read);
+        assertFalse(buffer.hasRemaining());
+        // the source is not read again
+        long reads = source.mReads.get();
+        Thread.sleep(20);
+        assertEquals(reads, source.mReads.get());
+        assertEquals(-6, mPipeline.read(buffer, 0));
+    }
+
+    @Test
+    public void overwritesOldestChunksWhenReaderFallsBehind() throws Exception {
+        CountingInput source = new CountingInput(0);
+        mPipeline = new AudioPipeline(source);
+        mPipeline.start(44100, 1);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mPipeline.getOverrunCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(mPipeline.getOverrunCount() > 0);
+        // the reader still gets whole chunks, the newest ones
+        ByteBuffer buffer = ByteBuffer.allocate(AudioPipeline.CHUNK_FRAMES * 2);
+        int read = 0;
+        while (read == 0) {
+            read = mPipeline.read(buffer, buffer.remaining());
+        }
+        assertEquals(AudioPipeline.CHUNK_FRAMES * 2, read);
+    }
+
+    @Test
+    public void reportsSilenceAndDrift() throws Exception {
+        // 1024 frames a millisecond, delivered every two: half the samples get lost
+        CountingInput source = new CountingInput(2);
+        source.mSilent = true;
+        mPipeline = new AudioPipeline(source);
+        final CountDownLatch silent = new CountDownLatch(1);
+        final CountDownLatch drift = new CountDownLatch(2);
+        final AtomicLong driftUs = new AtomicLong();
+        mPipeline.setSilenceDetection(-50, 5);
+        mPipeline.setListener(new AudioPipeline.Listener() {
+            @Override
+            void onSilenceChanged(boolean isSilent) {
+                if (isSilent) {
+                    silent.countDown();
+                }
+            }
+
+            @Override
+            void onDrift(long us) {
+                driftUs.set(us);
+                drift.countDown();
+            }
+        });
+        mPipeline.start(1024000, 1);
+        // keep the reader going so nothing is overwritten
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (drift.getCount() > 0 && System.currentTimeMillis() < deadline) {
+            buffer.clear();
+            mPipeline.read(buffer, buffer.remaining());
+        }
+        assertTrue(silent.await(0, TimeUnit.MILLISECONDS));
+        assertTrue(drift.await(0, TimeUnit.MILLISECONDS));
+        // a millisecond more per chunk, over the whole first window
+        assertTrue(driftUs.get() > AudioPipeline.DRIFT_WINDOW_CHUNKS / 2 * 1000);
+        assertEquals(driftUs.get(), mPipeline.getDriftUs());
+    }
+
+    private static ByteBuffer pcm(int sample, int frames) {
+        ByteBuffer buffer = ByteBuffer.allocate(frames * 2).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < frames; i++) {
+            buffer.putShort((short) (i % 2 == 0 ? sample : -sample));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Counts up sample by sample, or zeros when silent; sleeps before each read if asked to.
+     * Once {@code mLimit} samples are out it has nothing more to read, or fails with
+     * {@code mError}.
+     */
+    private static class CountingInput implements AudioInput {
+        final AtomicLong mSamples = new AtomicLong();
+        final long mSleepMs;
+        volatile long mLimit = Integer.MAX_VALUE;
+        volatile int mError;
+        final AtomicLong mReads = new AtomicLong();
+        volatile boolean mSilent;
+        volatile boolean mStopped;
+
+        CountingInput(long sleepMs) {
+            mSleepMs = sleepMs;
+        }
+
+        @Override
+        public void start(int sampleRate, int channels) {
+        }
+
+        @Override
+        public int read(ByteBuffer buffer, int size) {
+            mReads.incrementAndGet();
+            if (mSleepMs > 0) {
+                try {
+                    Thread.sleep(mSleepMs);
+                } catch (InterruptedException e) {
+                    return -1;
+                }
+            }
+            int count = (int) Math.min(Math.min(size, buffer.remaining()), (mLimit - mSamples.get()) * 2) & ~1;
+            if (count == 0 && mError < 0) {
+                return mError;
+            }
+            if (count == 0) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return -1;
+                }
+                return 0;
+            }
+            ByteBuffer out = buffer.duplicate().order(ByteOrder.nativeOrder());
+            for (int i = 0; i < count; i += 2) {
+                long sample = mSamples.getAndIncrement();
+                out.putShort(mSilent ? 0 : (short) sample);
+            }
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public void stop() {
+            mStopped = true;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package cn.appdream.recorder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CameraBackendsTest {
+    private static final int LIMITED = 0;
+    private static final int FULL = 1;
+    private static final int LEVEL_3 = 3;
+
+    @Test
+    public void camera2ForCodecEngineOnCapableDevices() {
+        assertTrue(CameraBackends.shouldUseCamera2(21, true, new int[]{FULL, LIMITED}));
+        assertTrue(CameraBackends.shouldUseCamera2(24, true, new int[]{LEVEL_3}));
+    }
+
+    @Test
+    public void legacyBelowLollipop() {
+        assertFalse(CameraBackends.shouldUseCamera2(19, true, new int[]{FULL}));
+    }
+
+    @Test
+    public void legacyForMediaRecorder() {
+        assertFalse(CameraBackends.shouldUseCamera2(26, false, new int[]{FULL}));
+    }
+
+    @Test
+    public void legacyWhenAnyCameraIsLegacyLevel() {
+        assertFalse(CameraBackends.shouldUseCamera2(23, true,
+                new int[]{FULL, CameraBackends.HARDWARE_LEVEL_LEGACY}));
+    }
+
+    @Test
+    public void legacyWhenLevelsUnknown() {
+        assertFalse(CameraBackends.shouldUseCamera2(23, true, null));
+        assertFalse(CameraBackends.shouldUseCamera2(23, true, new int[0]));
+    }
+}
@@ -0,0 +1,88 @@
+package cn.appdream.recorder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class CameraCapabilityCacheTest {
+    private static final String FINGERPRINT = "test/build:1/25";
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("capabilities", ".bin");
+        assertTrue(mFile.delete());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    private static CameraCapabilityCache.Capabilities capabilities(int cameraId) {
+        return new CameraCapabilityCache.Capabilities(cameraId, 1, 270,
+                new int[]{SizeResolver.pack(1280, 720), SizeResolver.pack(640, 480)},
+                null, 0x5, 0x3);
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        CameraCapabilityCache cache = new CameraCapabilityCache(mFile, FINGERPRINT);
+        CameraCapabilityCache.Capabilities written = capabilities(1);
+        cache.put(written);
+        int target = SizeResolver.pack(1280, 720);
+        cache.putResolvedSize(written, target, SizeResolver.pack(1280, 720));
+        // a new result for the same target replaces the old one
+        cache.putResolvedSize(written, target, SizeResolver.pack(640, 480));
+
+        CameraCapabilityCache.Capabilities read = new CameraCapabilityCache(mFile, FINGERPRINT).peek(1);
+        assertNotNull(read);
+        assertEquals(1, read.facing);
+        assertEquals(270, read.orientation);
+        assertArrayEquals(written.previewSizes, read.previewSizes);
+        assertNull(read.videoSizes);
+        assertEquals(0x5, read.focusModes);
+        assertEquals(0x3, read.flashModes);
+        assertEquals(SizeResolver.pack(640, 480), read.getResolvedSize(target));
+        assertEquals(SizeResolver.NONE, read.getResolvedSize(SizeResolver.pack(320, 240)));
+    }
+
+    @Test
+    public void otherFingerprintDropsFile() throws Exception {
+        new CameraCapabilityCache(mFile, FINGERPRINT).put(capabilities(0));
+        assertNull(new CameraCapabilityCache(mFile, "test/build:2/25").peek(0));
+        assertNotNull(new CameraCapabilityCache(mFile, FINGERPRINT).peek(0));
+    }
+
+    @Test
+    public void corruptLengthDropsFile() throws Exception {
+        new CameraCapabilityCache(mFile, FINGERPRINT).put(capabilities(0));
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            // magic, version, fingerprint, count, id, facing, orientation, then the preview sizes
+            file.seek(4 + 4 + 2 + FINGERPRINT.length() + 4 + 12);
+            file.writeInt(Integer.MAX_VALUE);
+        } finally {
+            file.close();
+        }
+        assertNull(new CameraCapabilityCache(mFile, FINGERPRINT).peek(0));
+    }
+
+    @Test
+    public void truncatedFileDropsFile() throws Exception {
+        new CameraCapabilityCache(mFile, FINGERPRINT).put(capabilities(0));
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(file.length() - 6);
+        } finally {
+            file.close();
+        }
+        assertNull(new CameraCapabilityCache(mFile, FINGERPRINT).peek(0));
+    }
+}
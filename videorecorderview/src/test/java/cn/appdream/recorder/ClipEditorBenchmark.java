@@ -0,0 +1,163 @@
+package cn.appdream.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Remux throughput of {@link ClipEditor}: joins in-memory clips of 720p sized samples into a
+ * muxer that only touches the bytes, so what is measured is the editor itself.
+ * Run the {@link #main(String[])} method on the JVM; not part of the unit tests.
+ */
+public class ClipEditorBenchmark {
+    private static final int WARMUP = 5;
+    private static final int ITERATIONS = 20;
+    private static final int FRAMES = 30 * 60;
+    private static final int VIDEO_SIZE = 20000;
+    private static final int KEY_SIZE = 80000;
+    private static final int AUDIO_SIZE = 400;
+
+    private static long sSink;
+
+    public static void main(String[] args) throws IOException {
+        File output = File.createTempFile("bench", ".mp4");
+        ClipEditor editor = new ClipEditor(new Factory());
+        editor.setExactCuts(false);
+        for (int i = 0; i < WARMUP; i++) {
+            join(editor, output);
+        }
+        long bytes = sSink;
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            join(editor, output);
+        }
+        long elapsed = System.nanoTime() - start;
+        bytes = sSink - bytes;
+        double seconds = elapsed / 1e9;
+        System.out.println(String.format(Locale.US, "remux: %8.1f MB/s", bytes / seconds / (1 << 20)));
+        System.out.println(String.format(Locale.US, "remux: %8.0f samples/s", ITERATIONS * FRAMES * 2 * 3 / seconds));
+        output.delete();
+    }
+
+    private static void join(ClipEditor editor, File output) throws IOException {
+        editor.join(Arrays.asList(new ClipEditor.Clip("a"), new ClipEditor.Clip("b"), new ClipEditor.Clip("c")),
+                output.getPath(), null);
+    }
+
+    private static class Factory implements ClipBackendFactory {
+        @Override
+        public SampleSource openSource(String path) {
+            return new Source();
+        }
+
+        @Override
+        public MuxerBackend createMuxer(String path, int orientationHint) {
+            return new Muxer();
+        }
+
+        @Override
+        public TrackFormat.Converter getFormatConverter() {
+            return new TrackFormat.Converter() {
+                @Override
+                public TrackFormat convert(Object format) {
+                    return format == Boolean.TRUE
+                            ? TrackFormat.avc(1280, 720, new byte[]{0x67, 0x42, 0, 0x1f}, new byte[]{0x68, 1})
+                            : TrackFormat.aac(44100, 1, new byte[]{0x12, 0x08});
+                }
+            };
+        }
+
+        @Override
+        public GopTranscoder createTranscoder(Object format) {
+            return null;
+        }
+    }
+
+    /**
+     * A minute at 30 fps, a key frame a second, one audio frame per video frame.
+     */
+    private static class Source implements SampleSource {
+        private final ByteBuffer mKey = ByteBuffer.allocateDirect(KEY_SIZE);
+        private final ByteBuffer mVideo = ByteBuffer.allocateDirect(VIDEO_SIZE);
+        private final ByteBuffer mAudio = ByteBuffer.allocateDirect(AUDIO_SIZE);
+        private int mPosition;
+
+        @Override
+        public int getTrackCount() {
+            return 2;
+        }
+
+        @Override
+        public Object getTrackFormat(int track) {
+            return track == 0;
+        }
+
+        @Override
+        public boolean isVideoTrack(int track) {
+            return track == 0;
+        }
+
+        @Override
+        public int getOrientationHint() {
+            return 0;
+        }
+
+        @Override
+        public long getDurationUs() {
+            return FRAMES * 1000000L / 30;
+        }
+
+        @Override
+        public void seekTo(long timeUs) {
+            mPosition = (int) (timeUs * 30 / 1000000) / 30 * 30 * 2;
+        }
+
+        @Override
+        public int readSample(EncodedSample sample) {
+            if (mPosition >= FRAMES * 2) {
+                return -1;
+            }
+            int frame = mPosition / 2;
+            int track = mPosition++ % 2;
+            boolean key = track == 0 && frame % 30 == 0;
+            ByteBuffer data = track == 1 ? mAudio : key ? mKey : mVideo;
+            data.clear();
+            sample.data = data;
+            sample.presentationTimeUs = frame * 1000000L / 30;
+            sample.flags = key ? EncodedSample.FLAG_KEY_FRAME : 0;
+            return track;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    private static class Muxer implements MuxerBackend {
+        private int mTracks;
+
+        @Override
+        public int addTrack(Object format) {
+            return mTracks++;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void writeSample(int track, EncodedSample sample) {
+            sSink += sample.size() + sample.data.get(sample.data.position()) + sample.presentationTimeUs % 2;
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package cn.appdream.recorder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ClipEditorTest {
+    private static final String VIDEO = "avc";
+    private static final String SMALL_VIDEO = "avc 320x240";
+    private static final String AUDIO = "aac";
+    private static final long FRAME_US = 40000;
+    private static final TrackFormat.Converter CONVERTER = new TrackFormat.Converter() {
+        @Override
+        public TrackFormat convert(Object format) {
+            if (AUDIO.equals(format)) {
+                return TrackFormat.aac(44100, 1, new byte[]{0x12, 0x08});
+            }
+            int width = SMALL_VIDEO.equals(format) ? 320 : 640;
+            return TrackFormat.avc(width, width * 3 / 4, new byte[]{0x67, 0x42, 0, 0x1e}, new byte[]{0x68, 1});
+        }
+    };
+
+    private final Map<String, FakeSource> mSources = new HashMap<>();
+    private final FakeMuxer mMuxer = new FakeMuxer();
+    private final FakeTranscoder mTranscoder = new FakeTranscoder();
+    private boolean mTranscoderAvailable = true;
+    private ClipEditor mEditor;
+    private File mOutput;
+
+    @Before
+    public void setUp() throws Exception {
+        // 1秒, 每10帧一个关键帧, 每帧后面一个音频帧
+        mSources.put("a", new FakeSource(VIDEO, 25));
+        mSources.put("b", new FakeSource(VIDEO, 25));
+        mSources.put("small", new FakeSource(SMALL_VIDEO, 25));
+        mOutput = File.createTempFile("clip", ".mp4");
+        mEditor = new ClipEditor(new ClipBackendFactory() {
+            @Override
+            public SampleSource openSource(String path) throws IOException {
+                FakeSource source = mSources.get(path);
+                if (source == null) {
+                    throw new IOException("no " + path);
+                }
+                source.mPosition = 0;
+                return source;
+            }
+
+            @Override
+            public MuxerBackend createMuxer(String path, int orientationHint) {
+                mMuxer.mOrientation = orientationHint;
+                return mMuxer;
+            }
+
+            @Override
+            public TrackFormat.Converter getFormatConverter() {
+                return CONVERTER;
+            }
+
+            @Override
+            public GopTranscoder createTranscoder(Object format) {
+                return mTranscoderAvailable ? mTranscoder : null;
+            }
+        });
+    }
+
+    @Test
+    public void join_appendsClipsBackToBack() throws Exception {
+        mEditor.join(Arrays.asList(new ClipEditor.Clip("a"), new ClipEditor.Clip("b")), mOutput.getPath(), null);
+        assertTrue(mMuxer.mStopped);
+        assertTrue(mMuxer.mReleased);
+        assertEquals(90, mMuxer.mOrientation);
+        List<Long> video = mMuxer.times(0);
+        assertEquals(50, video.size());
+        assertEquals(Long.valueOf(960000), video.get(24));
+        assertEquals(Long.valueOf(1000000), video.get(25));
+        assertEquals(Long.valueOf(1960000), video.get(49));
+        assertEquals(50, mMuxer.times(1).size());
+        assertEquals(Long.valueOf(1000000), mMuxer.times(1).get(25));
+        // 参数集没有变, 不用重复
+        assertEquals(2, mMuxer.written(0, 25).length);
+        assertEquals(0, mTranscoder.mCalls);
+    }
+
+    @Test
+    public void trim_withoutExactCuts_startsAtKeyFrameBefore() throws Exception {
+        mEditor.setExactCuts(false);
+        mEditor.trim("a", 500000, 800000, mOutput.getPath(), null);
+        List<Long> video = mMuxer.times(0);
+        assertEquals(10, video.size());
+        assertEquals(Long.valueOf(0), video.get(0));
+        assertEquals(Long.valueOf(360000), video.get(9));
+        assertTrue(mMuxer.sample(0, 0).isKeyFrame());
+        assertEquals(10, mMuxer.times(1).size());
+        assertEquals(0, mTranscoder.mCalls);
+    }
+
+    @Test
+    public void trim_withoutTranscoder_startsAtKeyFrameBefore() throws Exception {
+        mTranscoderAvailable = false;
+        mEditor.trim("a", 500000, 800000, mOutput.getPath(), null);
+        assertEquals(10, mMuxer.times(0).size());
+    }
+
+    @Test
+    public void trim_exactCut_reEncodesPartialGop() throws Exception {
+        mEditor.trim("a", 520000, 900000, mOutput.getPath(), null);
+        assertEquals(1, mTranscoder.mCalls);
+        assertEquals(520000, mTranscoder.mFromUs);
+        // the whole group of pictures up to the next key frame went to the transcoder
+        assertEquals(10, mTranscoder.mGopSize);
+        List<Long> video = mMuxer.times(0);
+        assertEquals(Arrays.asList(0L, 40000L, 80000L, 120000L, 160000L, 200000L, 240000L,
+                280000L, 320000L, 360000L), video);
+        assertEquals('T', mMuxer.written(0, 0)[0]);
+        assertTrue(mMuxer.sample(0, 0).isKeyFrame());
+        // the first copied key frame brings back the parameter sets of the file
+        byte[] parameters = ClipEditor.parameterSets(CONVERTER.convert(VIDEO));
+        byte[] key = mMuxer.written(0, 7);
+        assertEquals(parameters.length + 2, key.length);
+        assertArrayEquals(parameters, Arrays.copyOf(key, parameters.length));
+        assertEquals(2, mMuxer.written(0, 8).length);
+        List<Long> audio = mMuxer.times(1);
+        assertEquals(10, audio.size());
+        assertEquals(Long.valueOf(0), audio.get(0));
+    }
+
+    @Test
+    public void join_reportsProgressInOrder() throws Exception {
+        final List<Float> progress = new ArrayList<>();
+        mEditor.join(Arrays.asList(new ClipEditor.Clip("a"), new ClipEditor.Clip("b", 0, 500000)),
+                mOutput.getPath(), new ClipEditor.Listener() {
+                    @Override
+                    public void onProgress(float fraction) {
+                        progress.add(fraction);
+                    }
+                });
+        assertTrue(progress.size() > 10);
+        assertEquals(1f, progress.get(progress.size() - 1), 0);
+        for (int i = 1; i < progress.size(); i++) {
+            assertTrue(progress.get(i) > progress.get(i - 1));
+        }
+    }
+
+    @Test
+    public void join_mismatchingClipFailsAndDeletesOutput() throws Exception {
+        try {
+            mEditor.join(Arrays.asList(new ClipEditor.Clip("a"), new ClipEditor.Clip("small")),
+                    mOutput.getPath(), null);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("small"));
+        }
+        assertFalse(mOutput.exists());
+        assertTrue(mMuxer.mReleased);
+        assertFalse(mMuxer.mStopped);
+    }
+
+    @Test
+    public void cancel_stopsJoin() throws Exception {
+        try {
+            mEditor.join(Arrays.asList(new ClipEditor.Clip("a"), new ClipEditor.Clip("b")), mOutput.getPath(),
+                    new ClipEditor.Listener() {
+                        @Override
+                        public void onProgress(float fraction) {
+                            if (fraction > 0.2f) {
+                                mEditor.cancel();
+                            }
+                        }
+                    });
+            fail();
+        } catch (InterruptedIOException expected) {
+        }
+        assertFalse(mOutput.exists());
+        assertTrue(mMuxer.times(0).size() < 30);
+    }
+
+    /**
+     * Video frames every 40 ms with a key frame every tenth, each followed by an audio frame of
+     * the same time.
+     */
+    private static class FakeSource implements SampleSource {
+        final String mVideoFormat;
+        final int mFrames;
+        int mPosition;
+
+        FakeSource(String videoFormat, int frames) {
+            mVideoFormat = videoFormat;
+            mFrames = frames;
+        }
+
+        @Override
+        public int getTrackCount() {
+            return 2;
+        }
+
+        @Override
+        public Object getTrackFormat(int track) {
+            return track == 0 ? mVideoFormat : AUDIO;
+        }
+
+        @Override
+        public boolean isVideoTrack(int track) {
+            return track == 0;
+        }
+
+        @Override
+        public int getOrientationHint() {
+            return 90;
+        }
+
+        @Override
+        public long getDurationUs() {
+            return mFrames * FRAME_US;
+        }
+
+        @Override
+        public void seekTo(long timeUs) {
+            int frame = (int) Math.min(mFrames - 1, timeUs / FRAME_US);
+            mPosition = frame / 10 * 10 * 2;
+        }
+
+        @Override
+        public int readSample(EncodedSample sample) {
+            if (mPosition >= mFrames * 2) {
+                return -1;
+            }
+            int frame = mPosition / 2;
+            int track = mPosition % 2;
+            mPosition++;
+            sample.data = ByteBuffer.wrap(new byte[]{(byte) track, (byte) frame});
+            sample.presentationTimeUs = frame * FRAME_US;
+            sample.flags = track == 0 && frame % 10 == 0 ? EncodedSample.FLAG_KEY_FRAME : 0;
+            return track;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    private static class FakeMuxer implements MuxerBackend {
+        final List<Integer> mTracks = new ArrayList<>();
+        final List<EncodedSample> mSamples = new ArrayList<>();
+        int mTrackCount;
+        int mOrientation;
+        boolean mStopped;
+        boolean mReleased;
+
+        @Override
+        public int addTrack(Object format) {
+            return mTrackCount++;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void writeSample(int track, EncodedSample sample) {
+            mTracks.add(track);
+            mSamples.add(sample.copy());
+        }
+
+        @Override
+        public void stop() {
+            mStopped = true;
+        }
+
+        @Override
+        public void release() {
+            mReleased = true;
+        }
+
+        List<Long> times(int track) {
+            List<Long> times = new ArrayList<>();
+            for (int i = 0; i < mSamples.size(); i++) {
+                if (mTracks.get(i) == track) {
+                    times.add(mSamples.get(i).presentationTimeUs);
+                }
+            }
+            return times;
+        }
+
+        EncodedSample sample(int track, int index) {
+            for (int i = 0; i < mSamples.size(); i++) {
+                if (mTracks.get(i) == track && index-- == 0) {
+                    return mSamples.get(i);
+                }
+            }
+            throw new IndexOutOfBoundsException();
+        }
+
+        byte[] written(int track, int index) {
+            ByteBuffer data = sample(track, index).data.duplicate();
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            return bytes;
+        }
+    }
+
+    /**
+     * Emits one frame marked {@code 'T'} for each input frame from the cut on.
+     */
+    private static class FakeTranscoder implements GopTranscoder {
+        int mCalls;
+        int mGopSize;
+        long mFromUs;
+
+        @Override
+        public void transcode(List<EncodedSample> gop, long fromUs, Output output) throws IOException {
+            mCalls++;
+            mGopSize = gop.size();
+            mFromUs = fromUs;
+            boolean first = true;
+            for (EncodedSample in : gop) {
+                if (in.presentationTimeUs < fromUs) {
+                    continue;
+                }
+                EncodedSample sample = new EncodedSample();
+                sample.data = ByteBuffer.wrap(new byte[]{'T'});
+                sample.presentationTimeUs = in.presentationTimeUs;
+                sample.flags = first ? EncodedSample.FLAG_KEY_FRAME : 0;
+                first = false;
+                output.onSample(sample);
+            }
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
@@ -0,0 +1,871 @@
+package cn.appdream.recorder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CodecRecordingEngineTest {
+    private FakeFactory mFactory;
+    private FakeVideoInput mVideoInput;
+    private FakeAudioInput mAudioInput;
+    private RecordingConfig mConfig;
+
+    @Before
+    public void setUp() throws Exception {
+        mFactory = new FakeFactory();
+        mVideoInput = new FakeVideoInput();
+        mAudioInput = new FakeAudioInput();
+        mConfig = new RecordingConfig();
+        mConfig.setOutputFile("out.mp4");
+        mConfig.setVideoSize(640, 480);
+        mConfig.setOrientationHint(90);
+        mConfig.setMaxDurationMs(0);
+    }
+
+    @Test
+    public void videoOnly_writesFramesAndSkipsCodecConfig() throws Exception {
+        mConfig.setAudioEnabled(false);
+        CodecRecordingEngine engine = new CodecRecordingEngine(mFactory, mVideoInput, mAudioInput);
+        engine.prepare(mConfig);
+        assertEquals("out.mp4", mFactory.muxer.path);
+        assertEquals(90, mFactory.muxer.orientation);
+        assertNull(mFactory.audio);
+
+        engine.start();
+        assertSame(mFactory.video.getInputSurface(), mVideoInput.attached);
+        assertEquals(640, mVideoInput.width);
+        FakeEncoder video = mFactory.video;
+        video.emitFormat("avc");
+        video.emit(0, EncodedSample.FLAG_CODEC_CONFIG);
+        video.emit(0, EncodedSample.FLAG_KEY_FRAME);
+        video.emit(33000, 0);
+        engine.stop();
+
+        FakeMuxer muxer = mFactory.muxer;
+        assertEquals(Collections.<Object>singletonList("avc"), muxer.formats);
+        assertTrue(muxer.started);
+        assertEquals(2, muxer.writes.size());
+        assertEquals(0, muxer.writes.get(0).presentationTimeUs);
+        assertTrue(muxer.writes.get(0).isKeyFrame());
+        assertEquals(33000, muxer.writes.get(1).presentationTimeUs);
+        assertTrue(muxer.stopped);
+        assertTrue(muxer.released);
+        assertTrue(video.released);
+        assertSame(video.getInputSurface(), mVideoInput.detached);
+    }
+
+    @Test
+    public void audio_heldUntilVideoFormatIsKnown() throws Exception {
+        CodecRecordingEngine engine = new CodecRecordingEngine(mFactory, mVideoInput, mAudioInput);
+        engine.prepare(mConfig);
+        engine.start();
+        assertTrue(mAudioInput.awaitReads(5));
+        assertFalse(mFactory.muxer.started);
+
+        FakeEncoder video = mFactory.video;
+        video.emitFormat("avc");
+        video.emit(0, EncodedSample.FLAG_KEY_FRAME);
+        engine.stop();
+
+        FakeMuxer muxer = mFactory.muxer;
+        assertEquals(2, muxer.formats.size());
+        assertTrue(muxer.formats.contains("aac"));
+        int audio = 0;
+        int videoSamples = 0;
+        for (int i = 0; i < muxer.writes.size(); i++) {
+            if (muxer.tracks.get(i) == muxer.formats.indexOf("aac")) {
+                audio++;
+            } else {
+                videoSamples++;
+            }
+        }
+        assertTrue(audio >= 5);
+        assertEquals(1, videoSamples);
+        assertEquals(44100, mAudioInput.sampleRate);
+        assertTrue(mAudioInput.stopped);
+        assertTrue(mFactory.audio.inputEnded);
+        assertTrue(mFactory.audio.released);
+    }
+
+    @Test
+    public void audio_timestampsFollowSampleCount() throws Exception {
+        mConfig.setAudioSampleRate(48000);
+        CodecRecordingEngine engine = new CodecRecordingEngine(mFactory, mVideoInput, mAudioInput);
+        engine.prepare(mConfig);
+        engine.start();
+        assertTrue(mAudioInput.awaitReads(3));
+        mFactory.video.emitFormat("avc");
+        engine.stop();
+
+        List<Long> pts = mFactory.audio.inputTimestamps;
+        assertTrue(pts.size() >= 3);
+        // 1024 frames per chunk at 48 kHz
+        assertEquals(21333, pts.get(1) - pts.get(0));
+        assertEquals(42666, pts.get(2) - pts.get(0));
+    }
+
+    @Test
+    public void audio_silencePausesEncoding() throws Exception {
+        // the fake input only reads zeros
+        mConfig.setAudioSampleRate(48000);
+        mConfig.setSilencePause(-50, 40);
+        CodecRecordingEngine engine = new CodecRecordingEngine(mFactory, mVideoInput, mAudioInput);
+        engine.prepare(mConfig);
+        engine.start();
+        assertTrue(mAudioInput.awaitReads(5));
+        mFactory.video.emitFormat("avc");
+        engine.stop();
+
+        // silent from the second chunk on, 42.6 ms below the threshold
+        assertEquals(1, mFactory.audio.inputTimestamps.size());
+        assertTrue(mFactory.audio.inputEnded);
+    }
+
+    @Test
+    public void audio_readErrorEndsAudioTrack() throws Exception {
+        mAudioInput.error = -6;
+        CodecRecordingEngine engine = new CodecRecordingEngine(mFactory, mVideoInput, mAudioInput);
+        RecordingListener listener = new RecordingListener();
+        engine.setListener(listener);
+        engine.prepare(mConfig);
+        engine.start();
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!mFactory.audio.inputEnded && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        // no busy loop on the broken input: one read, then the end of the audio stream
+        assertTrue(mFactory.audio.inputEnded);
+        assertTrue(mAudioInput.awaitReads(1));
+        assertFalse(mAudioInput.awaitReads(2));
+        assertTrue(listener.error instanceof IOException);
+        engine.stop();
+    }
+
+    @Test
+    public void video_lowerFrameRateReachesVideoInput() throws Exception {
+        QualityController controller = new QualityController(new QualityPolicy() {
+            @Override
+            public void adjust(QualitySample sample, QualityDecision decision) {
+                decision.setFrameRate(decision.getFrameRate() * 3 / 4);
+            }
+        });
+        mConfig.setFrameRate(30);
+        controller.begin(new RecordingConfig(mConfig), true);
+        for (int i = 0; i <= 31; i++) {
+            controller.onSampleWritten(CodecRecordingEngine.TRACK_VIDEO, i * 33333L, 1000, 0);
+        }
+        controller.begin(mConfig, true);
+        CodecRecordingEngine engine = new CodecRecordingEngine(mFactory, mVideoInput, mAudioInput);
+        engine.prepare(mConfig);
+        engine.start();
+        engine.stop();
+
+        // the renderer paces the camera frames into the encoder at this rate, see FramePacerTest
+        assertEquals(22, mVideoInput.frameRate);
+    }
+
+    @Test
+    public void maxDuration_stopsWriting() throws Exception {
+        mConfig.setAudioEnabled(false);
+        mConfig.setMaxDurationMs(1000);
+        CodecRecordingEngine engine = new CodecRecordingEngine(mFactory, mVideoInput, mAudioInput);
+        RecordingListener listener = new RecordingListener();
+        engine.setListener(listener);
+        engine.prepare(mConfig);
+        engine.start();
+        FakeEncoder video = mFactory.video;
+        video.emitFormat("avc");
+        video.emit(100000, EncodedSample.FLAG_KEY_FRAME);
+        video.emit(600000, 0);
+        video.emit(1100000, 0);
+        video.emit(1600000, 0);
+        engine.stop();
+
+        assertEquals(2, mFactory.muxer.writes.size());
+        assertEquals(1, listener.maxDurationReached);
+        assertEquals(2, listener.written.size());
+        assertEquals(Long.valueOf(600000), listener.written.get(1));
+    }
+
+    @Test
+    public void segments_switchMuxerAtKeyFrame() throws Exception {
+        mConfig.setAudioEnabled(false);
+        mConfig.setSegmentDurationMs(1000);
+        CodecRecordingEngine engine = new CodecRecordingEngine(mFactory, mVideoInput, mAudioInput);
+        RecordingListener listener = new RecordingListener();
+        engine.setListener(listener);
+        engine.prepare(mConfig);
+        assertEquals("out_000.mp4", mFactory.muxer.path);
+        engine.start();
+        FakeEncoder video = mFactory.video;
+        video.emitFormat("avc");
+        video.emit(0, EncodedSample.FLAG_KEY_FRAME);
+        video.emit(500000, 0);
+        video.emit(1000000, 0);
+        // limit reached, but this is no key frame yet
+        video.emit(1100000, 0);
+        video.emit(1200000, EncodedSample.FLAG_KEY_FRAME);
+        video.emit(1300000, 0);
+        engine.stop();
+
+        assertEquals(1, video.keyFrameRequests);
+        assertEquals(2, mFactory.muxers.size());
+        FakeMuxer first = mFactory.muxers.get(0);
+        FakeMuxer second = mFactory.muxers.get(1);
+        assertTrue(first.stopped);
+        assertTrue(first.released);
+        assertEquals(4, first.writes.size());
+        assertEquals("out_001.mp4", second.path);
+        assertEquals(90, second.orientation);
+        assertEquals(Collections.<Object>singletonList("avc"), second.formats);
+        assertEquals(2, second.writes.size());
+        assertTrue(second.writes.get(0).isKeyFrame());
+        assertTrue(second.stopped);
+
+        assertEquals(Arrays.asList("out_000.mp4", "out_001.mp4"), listener.segments);
+        assertEquals(Arrays.asList(1100000L, 100000L), listener.segmentDurations);
+        assertEquals(Arrays.asList(64L, 32L), listener.segmentSizes);
+        // nothing lost at the switch
+        assertEquals(6, listener.written.size());
+    }
+
+    @Test
+    public void segments_bySize() throws Exception {
+        mConfig.setAudioEnabled(false);
+        mConfig.setSegmentSizeBytes(32);
+        CodecRecordingEngine engine = new CodecRecordingEngine(mFactory, mVideoInput, mAudioInput);
+        RecordingListener listener = new RecordingListener();
+        engine.setListener(listener);
+        engine.prepare(mConfig);
+        engine.start();
+        FakeEncoder video = mFactory.video;
+        video.emitFormat("avc");
+        video.emit(0, EncodedSample.FLAG_KEY_FRAME);
+        video.emit(33000, 0);
+        video.emit(66000, EncodedSample.FLAG_KEY_FRAME);
+        engine.stop();
+
+        assertEquals(2, mFactory.muxers.size());
+        assertEquals(2, mFactory.muxers.get(0).writes.size());
+        assertEquals(1, mFactory.muxers.get(1).writes.size());
+        assertEquals(Arrays.asList(32L, 16L), listener.segmentSizes);
+    }
+
+    @Test
+    public void segmentPath() throws Exception {
+        assertEquals("out.mp4", mConfig.getSegmentPath(3));
+        mConfig.setSegmentDurationMs(1000);
+        assertEquals("out_003.mp4", mConfig.getSegmentPath(3));
+        mConfig.setOutputFile("/sdcard/v.1/clip");
+        assertEquals("/sdcard/v.1/clip_012", mConfig.getSegmentPath(12));
+    }
+
+    @Test
+    public void proxy_recordsSecondFileFromSameInputs() throws Exception {
+        RecordingConfig proxy = new RecordingConfig();
+        proxy.setVideoSize(320, 0);
+        proxy.setVideoBitRate(200000);
+        mConfig.setProxy(proxy);
+        CodecRecordingEngine engine = new CodecRecordingEngine(mFactory, mVideoInput, mAudioInput);
+        RecordingListener listener = new RecordingListener();
+        RecordingListener proxyListener = new RecordingListener();
+        engine.setListener(listener);
+        engine.setProxyListener(proxyListener);
+        engine.prepare(mConfig);
+        assertEquals(2, mFactory.muxers.size());
+        assertEquals("out_proxy.mp4", mFactory.muxers.get(0).path);
+        assertEquals(90, mFactory.muxers.get(0).orientation);
+        FakeMuxer primaryMuxer = mFactory.muxer;
+        assertEquals("out.mp4", primaryMuxer.path);
+
+        engine.start();
+        assertEquals(Arrays.asList(640, 320), mVideoInput.widths);
+        assertTrue(mAudioInput.awaitReads(5));
+        FakeEncoder proxyVideo = mFactory.videos.get(0);
+        FakeEncoder video = mFactory.videos.get(1);
+        for (FakeEncoder encoder : mFactory.videos) {
+            encoder.emitFormat("avc");
+            encoder.emit(0, EncodedSample.FLAG_KEY_FRAME);
+            encoder.emit(33000, 0);
+        }
+        engine.stop();
+
+        assertTrue(proxyVideo.released);
+        assertTrue(video.released);
+        assertTrue(mAudioInput.stopped);
+        // both audio encoders got the microphone
+        assertFalse(mFactory.audios.get(0).inputTimestamps.isEmpty());
+        assertFalse(mFactory.audios.get(1).inputTimestamps.isEmpty());
+        assertEquals(Collections.singletonList("out.mp4"), listener.segments);
+        assertEquals(Collections.singletonList("out_proxy.mp4"), proxyListener.segments);
+        assertTrue(mFactory.muxers.get(0).stopped);
+        assertTrue(primaryMuxer.stopped);
+    }
+
+    @Test
+    public void proxy_failingPrepareFailsRecording() throws Exception {
+        mConfig.setAudioEnabled(false);
+        mConfig.setProxy(new RecordingConfig());
+        mFactory.failMuxer = true;
+        CodecRecordingEngine engine = new CodecRecordingEngine(mFactory, mVideoInput, mAudioInput);
+        try {
+            engine.prepare(mConfig);
+            fail();
+        } catch (IOException expected) {
+        }
+        // the proxy failed first, the primary encoder was not even created
+        assertEquals(1, mFactory.videos.size());
+        assertTrue(mFactory.video.released);
+    }
+
+    @Test
+    public void proxyConfig() throws Exception {
+        assertEquals("/sdcard/v.1/clip_proxy.mp4", RecordingConfig.getProxyPath("/sdcard/v.1/clip.mp4"));
+        assertEquals("/sdcard/v.1/clip_proxy", RecordingConfig.getProxyPath("/sdcard/v.1/clip"));
+        assertNull(RecordingConfig.getProxyPath(null));
+        // half by default
+        assertEquals(SizeResolver.pack(640, 360), RecordingConfig.fitProxySize(1280, 720, 0, 0));
+        // the bounds turn with the frames
+        assertEquals(SizeResolver.pack(360, 640), RecordingConfig.fitProxySize(720, 1280, 640, 640));
+        assertEquals(SizeResolver.pack(270, 480), RecordingConfig.fitProxySize(720, 1280, 480, 0));
+        // never larger, sides even
+        assertEquals(SizeResolver.pack(640, 480), RecordingConfig.fitProxySize(640, 480, 1920, 1080));
+        assertEquals(SizeResolver.pack(426, 240), RecordingConfig.fitProxySize(1280, 720, 0, 240));
+
+        RecordingConfig proxy = new RecordingConfig();
+        proxy.setVideoSize(320, 0);
+        proxy.setAudioEnabled(false);
+        proxy.setSegmentDurationMs(5000);
+        mConfig.setFrameRate(24);
+        mConfig.setProxy(proxy);
+        RecordingConfig resolved = mConfig.resolveProxy();
+        assertEquals("out_proxy.mp4", resolved.getOutputFile());
+        assertEquals(320, resolved.getVideoWidth());
+        assertEquals(240, resolved.getVideoHeight());
+        assertEquals(24, resolved.getFrameRate());
+        assertEquals(90, resolved.getOrientationHint());
+        assertFalse(resolved.isAudioEnabled());
+        assertEquals("out_proxy_002.mp4", resolved.getSegmentPath(2));
+        assertNull(resolved.getProxy());
+
+        RecordingConfig copy = new RecordingConfig(mConfig);
+        assertTrue(copy.hasSameSettings(mConfig));
+        copy.getProxy().setVideoBitRate(1);
+        assertFalse(copy.hasSameSettings(mConfig));
+    }
+
+    @Test
+    public void fragmented_reportsRangesOfTheFile() throws Exception {
+        File file = File.createTempFile("fragmented", ".mp4");
+        try {
+            mConfig.setAudioEnabled(false);
+            mConfig.setOutputFile(file.getPath());
+            mConfig.setFragmentDurationMs(1000);
+            CodecRecordingEngine engine = new CodecRecordingEngine(mFactory, mVideoInput, mAudioInput);
+            final List<Long> offsets = Collections.synchronizedList(new ArrayList<Long>());
+            final List<Long> ends = Collections.synchronizedList(new ArrayList<Long>());
+            final List<String> paths = Collections.synchronizedList(new ArrayList<String>());
+            engine.setListener(new RecordingEngine.Listener() {
+                @Override
+                public void onFragmentWritten(String path, long offset, ByteBuffer data, long durationUs) {
+                    paths.add(path);
+                    offsets.add(offset);
+                    ends.add(offset + data.remaining());
+                }
+            });
+            engine.prepare(mConfig);
+            assertTrue(mFactory.muxers.isEmpty());
+            engine.start();
+            FakeEncoder video = mFactory.video;
+            video.emitFormat("avc");
+            for (int i = 0; i < 6; i++) {
+                video.emit(i * 500000L, i % 2 == 0 ? EncodedSample.FLAG_KEY_FRAME : 0);
+            }
+            engine.stop();
+
+            // header and three fragments of two frames
+            assertEquals(4, offsets.size());
+            assertEquals(0L, (long) offsets.get(0));
+            for (int i = 1; i < offsets.size(); i++) {
+                assertEquals(ends.get(i - 1), offsets.get(i));
+            }
+            assertEquals(file.length(), (long) ends.get(3));
+            assertEquals(Collections.nCopies(4, file.getPath()), paths);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void crashRecovery_keepsIndexUntilMuxerStopped() throws Exception {
+        File file = File.createTempFile("recoverable", ".mp4");
+        File index = RecordingIndex.fileFor(file);
+        try {
+            mConfig.setAudioEnabled(false);
+            mConfig.setOutputFile(file.getPath());
+            mConfig.setCrashRecoveryEnabled(true);
+            CodecRecordingEngine engine = new CodecRecordingEngine(mFactory, mVideoInput, mAudioInput);
+            engine.prepare(mConfig);
+            engine.start();
+            FakeEncoder video = mFactory.video;
+            video.emitFormat("avc");
+            for (int i = 0; i < 3; i++) {
+                video.emit(i * 33000L, i == 0 ? EncodedSample.FLAG_KEY_FRAME : 0);
+            }
+            video.awaitOutputsReleased(3);
+            assertTrue(index.isFile());
+            engine.stop();
+
+            assertEquals(3, mFactory.muxer.writes.size());
+            assertTrue(mFactory.muxer.stopped);
+            assertFalse(index.exists());
+        } finally {
+            file.delete();
+            index.delete();
+        }
+    }
+
+    @Test
+    public void preRoll_writesBufferedGopsAtStartOutput() throws Exception {
+        mConfig.setAudioEnabled(false);
+        mConfig.setOutputFile(null);
+        mConfig.setPreRollDurationMs(1000);
+        CodecRecordingEngine engine = new CodecRecordingEngine(mFactory, mVideoInput, mAudioInput);
+        engine.prepare(mConfig);
+        assertNull(mFactory.muxer);
+        assertTrue(engine.getPreRollCapacityBytes() > 0);
+        engine.start();
+        FakeEncoder video = mFactory.video;
+        video.emitFormat("avc");
+        for (int i = 0; i <= 8; i++) {
+            video.emit(i * 250000L, i % 2 == 0 ? EncodedSample.FLAG_KEY_FRAME : 0);
+        }
+        video.awaitOutputsReleased(9);
+        assertEquals(1000000, engine.getPreRollBufferedDurationUs());
+        assertEquals(5 * 16, engine.getPreRollBufferedBytes());
+
+        engine.startOutput("clip.mp4");
+        video.emit(2250000, 0);
+        video.emit(2500000, EncodedSample.FLAG_KEY_FRAME);
+        engine.stop();
+
+        assertEquals(1, mFactory.muxers.size());
+        FakeMuxer muxer = mFactory.muxer;
+        assertEquals("clip.mp4", muxer.path);
+        assertEquals(7, muxer.writes.size());
+        assertEquals(1000000, muxer.writes.get(0).presentationTimeUs);
+        assertTrue(muxer.writes.get(0).isKeyFrame());
+        assertEquals(2500000, muxer.writes.get(6).presentationTimeUs);
+        assertEquals(0, engine.getPreRollBufferedBytes());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void startOutput_withoutPreRoll() throws Exception {
+        mConfig.setAudioEnabled(false);
+        CodecRecordingEngine engine = new CodecRecordingEngine(mFactory, mVideoInput, mAudioInput);
+        engine.prepare(mConfig);
+        engine.startOutput("clip.mp4");
+    }
+
+    @Test
+    public void qualityController_changesBitRateLive() throws Exception {
+        mConfig.setAudioEnabled(false);
+        mConfig.setVideoBitRate(1000000);
+        QualityController controller = new QualityController(new QualityPolicy() {
+            @Override
+            public void adjust(QualitySample sample, QualityDecision decision) {
+                decision.setVideoBitRate(decision.getVideoBitRate() / 2);
+            }
+        });
+        controller.begin(mConfig, true);
+        CodecRecordingEngine engine = new CodecRecordingEngine(mFactory, mVideoInput, mAudioInput);
+        engine.setQualityController(controller);
+        engine.prepare(mConfig);
+        engine.start();
+        FakeEncoder video = mFactory.video;
+        video.emitFormat("avc");
+        video.emit(0, EncodedSample.FLAG_KEY_FRAME);
+        video.emit(500000, 0);
+        video.emit(1000000, 0);
+        engine.stop();
+
+        assertEquals(Collections.singletonList(500000), video.bitRates);
+    }
+
+    @Test
+    public void stop_withoutOutputDoesNotStartMuxer() throws Exception {
+        mConfig.setAudioEnabled(false);
+        CodecRecordingEngine engine = new CodecRecordingEngine(mFactory, mVideoInput, mAudioInput);
+        engine.prepare(mConfig);
+        engine.start();
+        engine.stop();
+        assertFalse(mFactory.muxer.started);
+        assertFalse(mFactory.muxer.stopped);
+        assertTrue(mFactory.muxer.released);
+    }
+
+    @Test
+    public void stop_withoutStartUndoesPrepare() throws Exception {
+        CodecRecordingEngine engine = new CodecRecordingEngine(mFactory, mVideoInput, mAudioInput);
+        engine.prepare(mConfig);
+        engine.stop();
+        assertFalse(mFactory.muxer.started);
+        assertTrue(mFactory.muxer.released);
+        assertTrue(mFactory.video.released);
+        assertTrue(mFactory.audio.released);
+    }
+
+    @Test
+    public void prepare_failureReleasesEverything() throws Exception {
+        mFactory.failMuxer = true;
+        CodecRecordingEngine engine = new CodecRecordingEngine(mFactory, mVideoInput, mAudioInput);
+        try {
+            engine.prepare(mConfig);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertTrue(mFactory.video.released);
+        assertTrue(mFactory.audio.released);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void start_withoutPrepare() throws Exception {
+        new CodecRecordingEngine(mFactory, mVideoInput, mAudioInput).start();
+    }
+
+    static class RecordingListener extends RecordingEngine.Listener {
+        final List<Long> written = Collections.synchronizedList(new ArrayList<Long>());
+        final List<String> segments = Collections.synchronizedList(new ArrayList<String>());
+        final List<Long> segmentDurations = Collections.synchronizedList(new ArrayList<Long>());
+        final List<Long> segmentSizes = Collections.synchronizedList(new ArrayList<Long>());
+        volatile int maxDurationReached;
+        volatile Throwable error;
+
+        @Override
+        public void onSampleWritten(int track, long presentationTimeUs, int size, int flags) {
+            written.add(presentationTimeUs);
+        }
+
+        @Override
+        public void onSegmentFinished(String path, long durationUs, long size) {
+            segments.add(path);
+            segmentDurations.add(durationUs);
+            segmentSizes.add(size);
+        }
+
+        @Override
+        public void onMaxDurationReached() {
+            maxDurationReached++;
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error = error;
+        }
+    }
+
+    static class FakeFactory implements CodecBackendFactory {
+        FakeEncoder video;
+        FakeEncoder audio;
+        FakeMuxer muxer;
+        final List<FakeEncoder> videos = new ArrayList<>();
+        final List<FakeEncoder> audios = new ArrayList<>();
+        final List<FakeMuxer> muxers = new ArrayList<>();
+        boolean failMuxer;
+
+        @Override
+        public EncoderBackend createVideoEncoder(RecordingConfig config) {
+            video = new FakeEncoder(new Object(), null);
+            videos.add(video);
+            return video;
+        }
+
+        @Override
+        public EncoderBackend createAudioEncoder(RecordingConfig config) {
+            audio = new FakeEncoder(null, "aac");
+            audios.add(audio);
+            return audio;
+        }
+
+        @Override
+        public MuxerBackend createMuxer(String path, int orientationHint) throws IOException {
+            if (failMuxer) {
+                throw new IOException("no space");
+            }
+            muxer = new FakeMuxer(path, orientationHint);
+            muxers.add(muxer);
+            return muxer;
+        }
+
+        @Override
+        public MuxerBackend createFragmentedMuxer(String path, RecordingConfig config,
+                                                  FragmentedMp4Writer.Listener listener) throws IOException {
+            return new FragmentedMp4Writer(RecordingSink.open(new File(path), config.getFsyncPolicy()),
+                    config.getOrientationHint(), config.getFragmentDurationMs(), getFormatConverter(), listener);
+        }
+
+        @Override
+        public TrackFormat.Converter getFormatConverter() {
+            return new TrackFormat.Converter() {
+                @Override
+                public TrackFormat convert(Object format) {
+                    return "aac".equals(format)
+                            ? TrackFormat.aac(44100, 1, new byte[]{0x12, 0x08})
+                            : TrackFormat.avc(640, 480, new byte[]{0, 0, 0, 1, 0x67, 0x42, 0, 0x1e}, new byte[]{0x68, 1});
+                }
+            };
+        }
+    }
+
+    /**
+     * Emits what the test queues; buffer input encoders turn every input into one output.
+     */
+    static class FakeEncoder implements EncoderBackend {
+        private static final Object FORMAT = new Object();
+
+        private final LinkedBlockingQueue<Object> mOutputs = new LinkedBlockingQueue<>();
+        private final Object mSurface;
+        private final String mFormat;
+        private boolean mFormatSent;
+        private Object mCurrentFormat = FORMAT;
+        final List<Long> inputTimestamps = Collections.synchronizedList(new ArrayList<Long>());
+        volatile boolean inputEnded;
+        volatile boolean released;
+        volatile int keyFrameRequests;
+        final List<Integer> bitRates = Collections.synchronizedList(new ArrayList<Integer>());
+        private int mOutputsReleased;
+
+        FakeEncoder(Object surface, String format) {
+            mSurface = surface;
+            mFormat = format;
+        }
+
+        void emitFormat(String format) {
+            mOutputs.add(format);
+        }
+
+        void emit(long presentationTimeUs, int flags) {
+            EncodedSample sample = new EncodedSample();
+            sample.data = ByteBuffer.wrap(new byte[(flags & EncodedSample.FLAG_END_OF_STREAM) != 0 ? 0 : 16]);
+            sample.presentationTimeUs = presentationTimeUs;
+            sample.flags = flags;
+            mOutputs.add(sample);
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public Object getInputSurface() {
+            return mSurface;
+        }
+
+        @Override
+        public boolean queueInput(ByteBuffer data, long presentationTimeUs, boolean endOfStream, long timeoutUs) {
+            if (!mFormatSent) {
+                mFormatSent = true;
+                mOutputs.add(mFormat);
+            }
+            if (endOfStream) {
+                inputEnded = true;
+                emit(presentationTimeUs, EncodedSample.FLAG_END_OF_STREAM);
+            } else {
+                inputTimestamps.add(presentationTimeUs);
+                emit(presentationTimeUs, 0);
+            }
+            return true;
+        }
+
+        @Override
+        public void signalEndOfInput() {
+            inputEnded = true;
+            emit(0, EncodedSample.FLAG_END_OF_STREAM);
+        }
+
+        @Override
+        public void setBitRate(int bitsPerSecond) {
+            bitRates.add(bitsPerSecond);
+        }
+
+        @Override
+        public void requestKeyFrame() {
+            keyFrameRequests++;
+        }
+
+        @Override
+        public int dequeueOutput(EncodedSample sample, long timeoutUs) {
+            Object output;
+            try {
+                output = mOutputs.poll(timeoutUs, TimeUnit.MICROSECONDS);
+            } catch (InterruptedException e) {
+                return STATUS_TRY_AGAIN;
+            }
+            if (output == null) {
+                return STATUS_TRY_AGAIN;
+            }
+            if (output instanceof String) {
+                mCurrentFormat = output;
+                return STATUS_FORMAT_CHANGED;
+            }
+            EncodedSample emitted = (EncodedSample) output;
+            sample.data = emitted.data;
+            sample.presentationTimeUs = emitted.presentationTimeUs;
+            sample.flags = emitted.flags;
+            return STATUS_OK;
+        }
+
+        @Override
+        public Object getOutputFormat() {
+            return mCurrentFormat;
+        }
+
+        @Override
+        public void releaseOutput(EncodedSample sample) {
+            sample.data = null;
+            synchronized (this) {
+                mOutputsReleased++;
+                notifyAll();
+            }
+        }
+
+        synchronized void awaitOutputsReleased(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while (mOutputsReleased < count && System.currentTimeMillis() < end) {
+                wait(100);
+            }
+            assertEquals(count, mOutputsReleased);
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+    }
+
+    static class FakeMuxer implements MuxerBackend {
+        final String path;
+        final int orientation;
+        final List<Object> formats = new ArrayList<>();
+        final List<EncodedSample> writes = new ArrayList<>();
+        final List<Integer> tracks = new ArrayList<>();
+        boolean started;
+        boolean stopped;
+        boolean released;
+
+        FakeMuxer(String path, int orientation) {
+            this.path = path;
+            this.orientation = orientation;
+        }
+
+        @Override
+        public int addTrack(Object format) {
+            assertFalse(started);
+            formats.add(format);
+            return formats.size() - 1;
+        }
+
+        @Override
+        public void start() {
+            started = true;
+        }
+
+        @Override
+        public void writeSample(int track, EncodedSample sample) {
+            assertTrue(started);
+            writes.add(sample.copy());
+            tracks.add(track);
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+    }
+
+    static class FakeVideoInput implements VideoInput {
+        Object attached;
+        Object detached;
+        int width;
+        int frameRate;
+        final List<Integer> widths = Collections.synchronizedList(new ArrayList<Integer>());
+
+        @Override
+        public void attachEncoderSurface(Object surface, int width, int height, int frameRate) {
+            attached = surface;
+            this.width = width;
+            this.frameRate = frameRate;
+            widths.add(width);
+        }
+
+        @Override
+        public void detachEncoderSurface(Object surface) {
+            detached = surface;
+        }
+    }
+
+    static class FakeAudioInput implements AudioInput {
+        private final Object mLock = new Object();
+        private int mReads;
+        volatile int sampleRate;
+        volatile boolean stopped;
+        volatile int error;
+
+        boolean awaitReads(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 2000;
+            synchronized (mLock) {
+                while (mReads < count && System.currentTimeMillis() < deadline) {
+                    mLock.wait(50);
+                }
+                return mReads >= count;
+            }
+        }
+
+        @Override
+        public void start(int sampleRate, int channels) {
+            this.sampleRate = sampleRate;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer, int size) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ignored) {
+            }
+            synchronized (mLock) {
+                mReads++;
+                mLock.notifyAll();
+            }
+            if (error < 0) {
+                return error;
+            }
+            buffer.put(new byte[size]);
+            return size;
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
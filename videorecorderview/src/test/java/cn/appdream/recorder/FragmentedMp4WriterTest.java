@@ -0,0 +1,196 @@
+package cn.appdream.recorder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FragmentedMp4WriterTest {
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x1e, 0x11};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    private static final byte[] AAC_CONFIG = {0x12, 0x08};
+
+    private File mFile;
+    private final List<Long> mOffsets = new ArrayList<>();
+    private final List<Integer> mSizes = new ArrayList<>();
+    private final List<Long> mDurations = new ArrayList<>();
+    private FragmentedMp4Writer mWriter;
+    private int mVideo;
+    private int mAudio;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("fragments", ".mp4");
+        mWriter = new FragmentedMp4Writer(RecordingSink.open(mFile, FsyncPolicy.NEVER), 90, 1000, null,
+                new FragmentedMp4Writer.Listener() {
+                    @Override
+                    public void onFragmentWritten(long offset, ByteBuffer data, long durationUs) {
+                        mOffsets.add(offset);
+                        mSizes.add(data.remaining());
+                        mDurations.add(durationUs);
+                    }
+                });
+        mVideo = mWriter.addTrack(TrackFormat.avc(1280, 720, SPS, PPS));
+        mAudio = mWriter.addTrack(TrackFormat.aac(44100, 2, AAC_CONFIG));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mWriter.release();
+        mFile.delete();
+    }
+
+    @Test
+    public void headerHasMovieWithoutSamples() throws Exception {
+        mWriter.start();
+        assertEquals(1, mOffsets.size());
+        assertEquals(0L, (long) mOffsets.get(0));
+        assertEquals(mFile.length(), (long) mSizes.get(0));
+
+        byte[] file = read();
+        assertEquals(Arrays.asList("ftyp", "moov"), topLevel(file));
+        int moov = find(file, "moov", 0);
+        assertTrue(find(file, "mvex", moov) > 0);
+        assertTrue(find(file, "trex", moov) > 0);
+        int avcc = find(file, "avcC", moov);
+        // profile, compatibility and level from the sps, without start code
+        assertEquals(0x42, file[avcc + 9] & 0xff);
+        assertEquals(0xc0, file[avcc + 10] & 0xff);
+        assertEquals(0x1e, file[avcc + 11] & 0xff);
+        assertEquals(5, readShort(file, avcc + 14));
+        assertEquals(0x67, file[avcc + 16]);
+        int esds = find(file, "esds", moov);
+        assertTrue(esds > 0);
+        // rotation 90 in the video track header
+        int tkhd = find(file, "tkhd", moov);
+        assertEquals(0, readInt(file, tkhd + 48));
+        assertEquals(0x10000, readInt(file, tkhd + 52));
+        assertEquals(1280 << 16, readInt(file, tkhd + 84));
+    }
+
+    @Test
+    public void fragmentsStartAtKeyFramesAfterDuration() throws Exception {
+        mWriter.start();
+        for (int i = 0; i < 60; i++) {
+            long pts = i * 50000L;
+            mWriter.writeSample(mVideo, sample(pts, i % 10 == 0, 100));
+            mWriter.writeSample(mAudio, sample(pts + 10000, false, 20));
+        }
+        assertEquals(3, mOffsets.size());
+        mWriter.stop();
+
+        // key frames every 0.5 s, fragments of 1 s
+        assertEquals(4, mOffsets.size());
+        assertEquals(Arrays.asList(1000000L, 1000000L, 1000000L), mDurations.subList(1, 4));
+        for (int i = 1; i < mOffsets.size(); i++) {
+            assertEquals(mOffsets.get(i - 1) + mSizes.get(i - 1), (long) mOffsets.get(i));
+        }
+        byte[] file = read();
+        assertEquals(mFile.length(), mOffsets.get(3) + mSizes.get(3));
+        assertEquals(Arrays.asList("ftyp", "moov", "moof", "mdat", "moof", "mdat", "moof", "mdat"),
+                topLevel(file));
+
+        int moof = (int) (long) mOffsets.get(2);
+        assertEquals(2, readInt(file, find(file, "mfhd", moof) + 12));
+        int tfdt = find(file, "tfdt", moof);
+        // video at 90 kHz from 1 s on
+        assertEquals(90000, readInt(file, tfdt + 16));
+        int trun = find(file, "trun", moof);
+        assertEquals(20, readInt(file, trun + 12));
+        int dataOffset = readInt(file, trun + 16);
+        // first sample: 50 ms, 100 bytes, sync
+        assertEquals(4500, readInt(file, trun + 20));
+        assertEquals(100, readInt(file, trun + 24));
+        assertEquals(0x02000000, readInt(file, trun + 28));
+        assertEquals(0x01010000, readInt(file, trun + 40));
+        assertEquals((byte) 0xab, file[moof + dataOffset]);
+    }
+
+    @Test
+    public void annexBSamplesGetLengthPrefixes() throws Exception {
+        byte[] annexB = {0, 0, 0, 1, 0x09, (byte) 0xf0, 0, 0, 1, 0x65, 1, 2, 3, 0};
+        byte[] converted = FragmentedMp4Writer.toLengthPrefixed(ByteBuffer.wrap(annexB));
+        assertArrayEquals(new byte[]{0, 0, 0, 2, 0x09, (byte) 0xf0, 0, 0, 0, 5, 0x65, 1, 2, 3, 0}, converted);
+        byte[] prefixed = {0, 0, 0, 2, 0x09, (byte) 0xf0};
+        assertArrayEquals(prefixed, FragmentedMp4Writer.toLengthPrefixed(ByteBuffer.wrap(prefixed)));
+    }
+
+    @Test
+    public void framesBeforeFirstKeyFrameAreDropped() throws Exception {
+        mWriter.start();
+        mWriter.writeSample(mVideo, sample(0, false, 10));
+        mWriter.writeSample(mVideo, sample(33000, true, 10));
+        mWriter.stop();
+        byte[] file = read();
+        int trun = find(file, "trun", (int) (long) mOffsets.get(1));
+        assertEquals(1, readInt(file, trun + 12));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void noTracksAfterStart() throws Exception {
+        mWriter.start();
+        mWriter.addTrack(TrackFormat.aac(48000, 1, AAC_CONFIG));
+    }
+
+    private static EncodedSample sample(long pts, boolean key, int size) {
+        EncodedSample sample = new EncodedSample();
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) 0xab);
+        sample.data = ByteBuffer.wrap(data);
+        sample.presentationTimeUs = pts;
+        sample.flags = key ? EncodedSample.FLAG_KEY_FRAME : 0;
+        return sample;
+    }
+
+    private byte[] read() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            byte[] content = new byte[(int) raf.length()];
+            raf.readFully(content);
+            return content;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static List<String> topLevel(byte[] file) {
+        List<String> types = new ArrayList<>();
+        int position = 0;
+        while (position + 8 <= file.length) {
+            types.add(new String(file, position + 4, 4));
+            position += readInt(file, position);
+        }
+        assertEquals(file.length, position);
+        return types;
+    }
+
+    /**
+     * @return the offset of the first box of {@code type} at or after {@code from}, {@code -1}
+     */
+    private static int find(byte[] file, String type, int from) {
+        byte[] name = type.getBytes();
+        for (int i = from + 4; i + 4 <= file.length; i++) {
+            if (file[i] == name[0] && file[i + 1] == name[1] && file[i + 2] == name[2] && file[i + 3] == name[3]) {
+                return i - 4;
+            }
+        }
+        return -1;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16
+                | (data[offset + 2] & 0xff) << 8 | data[offset + 3] & 0xff;
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return (data[offset] & 0xff) << 8 | data[offset + 1] & 0xff;
+    }
+}
@@ -0,0 +1,173 @@
+package cn.appdream.recorder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FrameAnalysisPipelineTest {
+    private static final int WIDTH = 4;
+    private static final int HEIGHT = 2;
+
+    private final List<byte[]> mQueued = Collections.synchronizedList(new ArrayList<byte[]>());
+    private FrameBufferPool mPool;
+    private FrameAnalysisPipeline mPipeline;
+
+    @Before
+    public void setUp() throws Exception {
+        mPool = new FrameBufferPool(4, FrameBufferPool.nv21Size(WIDTH, HEIGHT), new FrameBufferPool.Recycler() {
+            @Override
+            public void recycle(byte[] buffer) {
+                mQueued.add(buffer);
+            }
+        });
+        mPool.queueAll();
+        mPipeline = new FrameAnalysisPipeline(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mPipeline.release();
+    }
+
+    @Test
+    public void slowAnalyzer_keepsOnlyLatestFrame() throws Exception {
+        BlockingAnalyzer slow = new BlockingAnalyzer();
+        mPipeline.addAnalyzer(slow);
+        deliver(1);
+        assertTrue(slow.mStarted.await(5, TimeUnit.SECONDS));
+        deliver(2);
+        deliver(3);
+        deliver(4);
+        // one buffer analyzed, one waiting, the replaced ones went back
+        assertEquals(2, mQueued.size());
+        slow.mProceed.countDown();
+        waitForQueued(4);
+        assertEquals(Long.valueOf(1), slow.mSeen.get(0));
+        assertEquals(Long.valueOf(4), slow.mSeen.get(1));
+        FrameAnalysisPipeline.Stats stats = mPipeline.getStats(slow);
+        assertEquals(2, stats.getAnalyzedCount());
+        assertEquals(2, stats.getDroppedCount());
+        assertEquals(2, stats.getLatency().getCount());
+        assertEquals(2, stats.getProcessingTime().getCount());
+    }
+
+    @Test
+    public void fastAnalyzer_isNotHeldUpBySlowOne() throws Exception {
+        BlockingAnalyzer slow = new BlockingAnalyzer();
+        final CountDownLatch fastDone = new CountDownLatch(3);
+        FrameAnalyzer fast = new FrameAnalyzer() {
+            @Override
+            public void analyze(PreviewFrame frame) {
+                fastDone.countDown();
+            }
+        };
+        mPipeline.addAnalyzer(slow);
+        mPipeline.addAnalyzer(fast);
+        deliver(1);
+        assertTrue(slow.mStarted.await(5, TimeUnit.SECONDS));
+        waitForAnalyzed(fast, 1);
+        for (int i = 2; i <= 3; i++) {
+            deliver(i);
+            waitForAnalyzed(fast, i);
+        }
+        assertTrue(fastDone.await(5, TimeUnit.SECONDS));
+        assertEquals(0, mPipeline.getStats(fast).getDroppedCount());
+        slow.mProceed.countDown();
+        waitForQueued(4);
+    }
+
+    @Test
+    public void throwingAnalyzer_isCountedAndReleasesFrame() throws Exception {
+        FrameAnalyzer broken = new FrameAnalyzer() {
+            @Override
+            public void analyze(PreviewFrame frame) {
+                throw new IllegalStateException("expected");
+            }
+        };
+        mPipeline.addAnalyzer(broken);
+        deliver(1);
+        waitForQueued(4);
+        assertEquals(1, mPipeline.getStats(broken).getErrorCount());
+        assertEquals(0, mPipeline.getStats(broken).getAnalyzedCount());
+    }
+
+    @Test
+    public void removeAndRelease_returnWaitingFrames() throws Exception {
+        BlockingAnalyzer slow = new BlockingAnalyzer();
+        mPipeline.addAnalyzer(slow);
+        deliver(1);
+        assertTrue(slow.mStarted.await(5, TimeUnit.SECONDS));
+        deliver(2);
+        mPipeline.removeAnalyzer(slow);
+        assertNull(mPipeline.getStats(slow));
+        assertEquals(3, mQueued.size());
+        slow.mProceed.countDown();
+        waitForQueued(4);
+        assertEquals(1, slow.mSeen.size());
+
+        mPipeline.release();
+        deliver(3);
+        assertEquals(4, mQueued.size());
+    }
+
+    @Test
+    public void yPlane_isTheLuminanceWithoutCopy() throws Exception {
+        byte[] data = mQueued.get(0);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        PreviewFrame frame = mPool.obtain(mQueued.remove(0), WIDTH, HEIGHT, 0, 1);
+        ByteBuffer y = frame.getYPlane();
+        assertEquals(WIDTH * HEIGHT, y.remaining());
+        assertEquals(7, y.get(7));
+        data[7] = 42;
+        assertEquals(42, y.get(7));
+        assertTrue(y.isReadOnly());
+        frame.release();
+    }
+
+    private void deliver(long timestampNanos) {
+        mPipeline.onFrame(mPool.obtain(mQueued.remove(0), WIDTH, HEIGHT, timestampNanos, 1));
+    }
+
+    private void waitForQueued(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mQueued.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, mQueued.size());
+    }
+
+    private void waitForAnalyzed(FrameAnalyzer analyzer, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mPipeline.getStats(analyzer).getAnalyzedCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    private static class BlockingAnalyzer implements FrameAnalyzer {
+        final CountDownLatch mStarted = new CountDownLatch(1);
+        final CountDownLatch mProceed = new CountDownLatch(1);
+        final List<Long> mSeen = Collections.synchronizedList(new ArrayList<Long>());
+
+        @Override
+        public void analyze(PreviewFrame frame) {
+            mSeen.add(frame.getTimestampNanos());
+            mStarted.countDown();
+            try {
+                mProceed.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
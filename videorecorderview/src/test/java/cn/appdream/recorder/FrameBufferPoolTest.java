@@ -0,0 +1,95 @@
+package cn.appdream.recorder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameBufferPoolTest {
+    private static final long INTERVAL = 33000000L;
+
+    private final List<byte[]> mQueued = new ArrayList<>();
+    private FrameBufferPool mPool;
+
+    @Before
+    public void setUp() throws Exception {
+        mPool = new FrameBufferPool(2, FrameBufferPool.nv21Size(4, 2), new FrameBufferPool.Recycler() {
+            @Override
+            public void recycle(byte[] buffer) {
+                mQueued.add(buffer);
+            }
+        });
+        mPool.queueAll();
+    }
+
+    private PreviewFrame deliver(long timestamp) {
+        byte[] data = mQueued.remove(0);
+        return mPool.obtain(data, 4, 2, timestamp, 1);
+    }
+
+    @Test
+    public void queueAll_queuesEveryBuffer() throws Exception {
+        assertEquals(2, mQueued.size());
+        assertEquals(12, mQueued.get(0).length);
+        assertEquals(2, mPool.getQueuedCount());
+    }
+
+    @Test
+    public void release_requeuesBuffer() throws Exception {
+        PreviewFrame frame = deliver(0);
+        assertEquals(4, frame.getWidth());
+        assertEquals(1, mPool.getQueuedCount());
+        frame.release();
+        assertEquals(2, mPool.getQueuedCount());
+        assertEquals(2, mQueued.size());
+        assertEquals(0, mPool.getExhaustedCount());
+    }
+
+    @Test
+    public void retain_needsSecondRelease() throws Exception {
+        PreviewFrame frame = deliver(0);
+        frame.retain();
+        frame.release();
+        assertEquals(1, mPool.getQueuedCount());
+        frame.release();
+        assertEquals(2, mPool.getQueuedCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void release_twiceThrows() throws Exception {
+        PreviewFrame frame = deliver(0);
+        frame.release();
+        frame.release();
+    }
+
+    @Test
+    public void obtain_foreignBuffer() throws Exception {
+        assertNull(mPool.obtain(new byte[12], 4, 2, 0, 1));
+    }
+
+    @Test
+    public void exhaustion_countsDroppedFrames() throws Exception {
+        deliver(0).release();
+        deliver(INTERVAL).release();
+        PreviewFrame first = deliver(2 * INTERVAL);
+        PreviewFrame second = deliver(3 * INTERVAL);
+        assertEquals(1, mPool.getExhaustedCount());
+        // empty for a bit over three frame intervals
+        mPool.recycle(first, 6 * INTERVAL + 1000);
+        assertEquals(3, mPool.getDroppedCount());
+        mPool.recycle(second, 7 * INTERVAL);
+        assertEquals(3, mPool.getDroppedCount());
+        assertEquals(4, mPool.getDeliveredCount());
+    }
+
+    @Test
+    public void detach_stopsRecycling() throws Exception {
+        PreviewFrame frame = deliver(0);
+        mPool.detach();
+        frame.release();
+        assertEquals(1, mQueued.size());
+    }
+}
@@ -0,0 +1,49 @@
+package cn.appdream.recorder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FramePacerTest {
+    private static final long SECOND = 1000000000L;
+
+    private static int kept(FramePacer pacer, int cameraFps, long jitterNanos) {
+        int kept = 0;
+        for (int i = 0; i < cameraFps * 10; i++) {
+            long jitter = i % 2 == 0 ? jitterNanos : -jitterNanos;
+            if (pacer.accept(i * SECOND / cameraFps + jitter)) {
+                kept++;
+            }
+        }
+        return kept;
+    }
+
+    @Test
+    public void lowerRateThinsFramesOut() throws Exception {
+        // a quality decision lowered 30 fps to 22: ten seconds of camera frames
+        int kept = kept(new FramePacer(22), 30, 0);
+        assertTrue("kept " + kept, kept >= 219 && kept <= 221);
+    }
+
+    @Test
+    public void sameRateWithJitterKeepsEveryFrame() throws Exception {
+        assertEquals(300, kept(new FramePacer(30), 30, 3000000));
+    }
+
+    @Test
+    public void zeroKeepsEveryFrame() throws Exception {
+        assertEquals(600, kept(new FramePacer(0), 60, 0));
+    }
+
+    @Test
+    public void gapRestartsPacing() throws Exception {
+        FramePacer pacer = new FramePacer(10);
+        assertTrue(pacer.accept(0));
+        assertFalse(pacer.accept(50000000L));
+        // the camera stalled for a second, no burst of frames to catch up
+        assertTrue(pacer.accept(SECOND));
+        assertFalse(pacer.accept(SECOND + 33000000L));
+        assertFalse(pacer.accept(SECOND + 66000000L));
+        assertTrue(pacer.accept(SECOND + 100000000L));
+    }
+}
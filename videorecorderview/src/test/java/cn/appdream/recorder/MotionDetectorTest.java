@@ -0,0 +1,152 @@
+package cn.appdream.recorder;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MotionDetectorTest {
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 96;
+    private static final long FRAME_NANOS = 33000000L;
+
+    @Test
+    public void staticScene_hasNoActivity() throws Exception {
+        MotionDetector detector = new MotionDetector();
+        byte[] frame = noise(1);
+        assertEquals(0, detector.update(frame, WIDTH, HEIGHT), 0);
+        assertEquals(0, detector.update(frame, WIDTH, HEIGHT), 0);
+        // 传感器噪声
+        byte[] noisy = frame.clone();
+        Random random = new Random(2);
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            noisy[i] = (byte) clamp((frame[i] & 0xff) + random.nextInt(9) - 4);
+        }
+        assertEquals(0, detector.update(noisy, WIDTH, HEIGHT), 0);
+    }
+
+    @Test
+    public void movingSquare_changesItsBlocks() throws Exception {
+        MotionDetector detector = new MotionDetector();
+        // 60 blocks, the square covers 2x2 of them
+        detector.update(square(0), WIDTH, HEIGHT);
+        float activity = detector.update(square(64), WIDTH, HEIGHT);
+        // left the old blocks, entered new ones
+        assertEquals(8f / 60, activity, 0.001);
+        assertEquals(0, detector.update(square(64), WIDTH, HEIGHT), 0);
+    }
+
+    @Test
+    public void brightnessChange_isNotMotion() throws Exception {
+        MotionDetector detector = new MotionDetector();
+        byte[] frame = noise(3);
+        detector.update(frame, WIDTH, HEIGHT);
+        byte[] brighter = frame.clone();
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            brighter[i] = (byte) ((frame[i] & 0xff) + 40);
+        }
+        assertEquals(0, detector.update(brighter, WIDTH, HEIGHT), 0);
+    }
+
+    @Test
+    public void newSizeOrReset_startsOver() throws Exception {
+        MotionDetector detector = new MotionDetector();
+        detector.update(square(0), WIDTH, HEIGHT);
+        assertEquals(0, detector.update(square(64), WIDTH / 2, HEIGHT), 0);
+        detector.reset();
+        assertEquals(0, detector.update(square(0), WIDTH / 2, HEIGHT), 0);
+        assertEquals(0, detector.update(new byte[16], 8, 2), 0);
+    }
+
+    @Test
+    public void trigger_startsAfterConsecutiveFramesAndStopsAfterQuiet() throws Exception {
+        MotionTrigger trigger = new MotionTrigger(0.1f, 0.05f, 2, 10 * FRAME_NANOS);
+        long now = 0;
+        assertEquals(MotionTrigger.NONE, trigger.onActivity(0.2f, now += FRAME_NANOS));
+        // 一帧的闪动不算
+        assertEquals(MotionTrigger.NONE, trigger.onActivity(0f, now += FRAME_NANOS));
+        assertEquals(MotionTrigger.NONE, trigger.onActivity(0.2f, now += FRAME_NANOS));
+        assertEquals(MotionTrigger.START, trigger.onActivity(0.2f, now += FRAME_NANOS));
+        assertTrue(trigger.isActive());
+        // between the thresholds keeps it going
+        for (int i = 0; i < 20; i++) {
+            assertEquals(MotionTrigger.NONE, trigger.onActivity(0.07f, now += FRAME_NANOS));
+        }
+        for (int i = 0; i < 9; i++) {
+            assertEquals(MotionTrigger.NONE, trigger.onActivity(0.01f, now += FRAME_NANOS));
+        }
+        assertEquals(MotionTrigger.STOP, trigger.onActivity(0.01f, now += FRAME_NANOS));
+        assertFalse(trigger.isActive());
+        assertEquals(MotionTrigger.NONE, trigger.onActivity(0.01f, now += FRAME_NANOS));
+    }
+
+    @Test
+    public void trigger_resetRearms() throws Exception {
+        MotionTrigger trigger = new MotionTrigger(0.1f, 0.05f, 1, 0);
+        assertEquals(MotionTrigger.START, trigger.onActivity(0.5f, 0));
+        trigger.reset();
+        assertFalse(trigger.isActive());
+        assertEquals(MotionTrigger.START, trigger.onActivity(0.5f, FRAME_NANOS));
+        try {
+            new MotionTrigger(0.1f, 0.2f, 1, 0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void syntheticSequence_recordsOnlyTheMovingPart() throws Exception {
+        MotionDetector detector = new MotionDetector();
+        MotionTrigger trigger = new MotionTrigger(0.05f, 0.025f, 2, 15 * FRAME_NANOS);
+        int[] events = new int[120];
+        for (int i = 0; i < events.length; i++) {
+            // 30到60帧之间方块在移动
+            int x = i < 30 ? 0 : i < 60 ? (i - 30) * 4 : 120;
+            events[i] = trigger.onActivity(detector.update(square(x), WIDTH, HEIGHT), i * FRAME_NANOS);
+        }
+        int start = indexOf(events, MotionTrigger.START);
+        int stop = indexOf(events, MotionTrigger.STOP);
+        assertTrue(start > 30 && start < 40);
+        assertTrue(stop >= 60 + 15 && stop < 90);
+        int[] rest = Arrays.copyOfRange(events, stop + 1, events.length);
+        assertEquals(-1, indexOf(rest, MotionTrigger.START));
+    }
+
+    private static int indexOf(int[] events, int event) {
+        for (int i = 0; i < events.length; i++) {
+            if (events[i] == event) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A bright 32x32 square at {@code x}, 16 rows down, on gray.
+     */
+    private static byte[] square(int x) {
+        byte[] frame = new byte[Nv21.size(WIDTH, HEIGHT)];
+        Arrays.fill(frame, (byte) 60);
+        for (int y = 16; y < 48; y++) {
+            for (int i = x; i < Math.min(WIDTH, x + 32); i++) {
+                frame[y * WIDTH + i] = (byte) 200;
+            }
+        }
+        return frame;
+    }
+
+    private static byte[] noise(long seed) {
+        byte[] frame = new byte[Nv21.size(WIDTH, HEIGHT)];
+        Random random = new Random(seed);
+        for (int i = 0; i < frame.length; i++) {
+            frame[i] = (byte) (40 + random.nextInt(160));
+        }
+        return frame;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+}
@@ -0,0 +1,170 @@
+package cn.appdream.recorder;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Nv21Test {
+    private static final int WIDTH = 6;
+    private static final int HEIGHT = 4;
+
+    @Test
+    public void toI420_andNv12_moveChromaOnly() throws Exception {
+        byte[] nv21 = frame(WIDTH, HEIGHT, 1);
+        byte[] i420 = new byte[Nv21.size(WIDTH, HEIGHT)];
+        Nv21.toI420(nv21, WIDTH, HEIGHT, i420);
+        int frame = WIDTH * HEIGHT;
+        assertArrayEquals(Arrays.copyOf(nv21, frame), Arrays.copyOf(i420, frame));
+        for (int i = 0; i < frame / 4; i++) {
+            assertEquals(nv21[frame + 2 * i + 1], i420[frame + i]);
+            assertEquals(nv21[frame + 2 * i], i420[frame + frame / 4 + i]);
+        }
+        byte[] nv12 = new byte[Nv21.size(WIDTH, HEIGHT)];
+        Nv21.toNv12(nv21, WIDTH, HEIGHT, nv12);
+        for (int i = frame; i < nv21.length; i += 2) {
+            assertEquals(nv21[i], nv12[i + 1]);
+            assertEquals(nv21[i + 1], nv12[i]);
+        }
+    }
+
+    @Test
+    public void byteBufferOutputs_matchArrays() throws Exception {
+        byte[] nv21 = frame(WIDTH, HEIGHT, 2);
+        int size = Nv21.size(WIDTH, HEIGHT);
+        byte[] expected = new byte[size];
+        Nv21.toI420(nv21, WIDTH, HEIGHT, expected);
+        for (ByteBuffer buffer : new ByteBuffer[]{ByteBuffer.allocate(size + 3), ByteBuffer.allocateDirect(size + 3)}) {
+            buffer.position(3);
+            Nv21.toI420(nv21, WIDTH, HEIGHT, buffer);
+            assertEquals(3, buffer.position());
+            byte[] actual = new byte[size];
+            buffer.get(actual);
+            assertArrayEquals(expected, actual);
+        }
+        Nv21.toNv12(nv21, WIDTH, HEIGHT, expected);
+        ByteBuffer direct = ByteBuffer.allocateDirect(size);
+        Nv21.toNv12(nv21, WIDTH, HEIGHT, direct);
+        byte[] actual = new byte[size];
+        direct.get(actual);
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void toArgb_convertsVideoRange() throws Exception {
+        byte[] nv21 = {16, (byte) 235, 16, (byte) 235, (byte) 128, (byte) 128};
+        int[] argb = new int[4];
+        Nv21.toArgb(nv21, 2, 2, argb);
+        assertEquals(0xff000000, argb[0]);
+        assertEquals(0xffffffff, argb[1]);
+
+        // 红色
+        nv21 = new byte[]{81, 81, 81, 81, (byte) 240, 90};
+        Nv21.toArgb(nv21, 2, 2, argb);
+        assertEquals(0xff, argb[3] >>> 24);
+        assertEquals(255, argb[3] >> 16 & 0xff, 2);
+        assertEquals(0, argb[3] >> 8 & 0xff, 2);
+        assertEquals(0, argb[3] & 0xff, 2);
+    }
+
+    @Test
+    public void rotate_turnsClockwise() throws Exception {
+        byte[] nv21 = frame(WIDTH, HEIGHT, 3);
+        byte[] out = new byte[nv21.length];
+        Nv21.rotate(nv21, WIDTH, HEIGHT, 90, out);
+        // 左下角到左上角
+        assertEquals(nv21[(HEIGHT - 1) * WIDTH], out[0]);
+        assertEquals(nv21[0], out[HEIGHT - 1]);
+        int frame = WIDTH * HEIGHT;
+        // 色度左下角到左上角
+        assertEquals(nv21[frame + (HEIGHT / 2 - 1) * WIDTH], out[frame]);
+        assertEquals(nv21[frame + (HEIGHT / 2 - 1) * WIDTH + 1], out[frame + 1]);
+
+        byte[] back = new byte[nv21.length];
+        Nv21.rotate(out, HEIGHT, WIDTH, 270, back);
+        assertArrayEquals(nv21, back);
+        Nv21.rotate(nv21, WIDTH, HEIGHT, 180, out);
+        Nv21.rotate(out, WIDTH, HEIGHT, 180, back);
+        assertArrayEquals(nv21, back);
+        Nv21.rotate(nv21, WIDTH, HEIGHT, 0, out);
+        assertArrayEquals(nv21, out);
+    }
+
+    @Test
+    public void downscale_averagesBlocks() throws Exception {
+        byte[] nv21 = new byte[Nv21.size(4, 4)];
+        for (int i = 0; i < 16; i++) {
+            nv21[i] = (byte) (i % 4 < 2 ? 10 : 200);
+        }
+        nv21[16] = 100;
+        nv21[17] = 50;
+        nv21[18] = 110;
+        nv21[19] = 60;
+        nv21[20] = (byte) 140;
+        nv21[21] = 70;
+        nv21[22] = (byte) 150;
+        nv21[23] = 80;
+        assertEquals(2, Nv21.scaledSize(4, 2));
+        assertEquals(0, Nv21.scaledSize(3, 2));
+        byte[] out = new byte[Nv21.size(2, 2)];
+        Nv21.downscale(nv21, 4, 4, 2, out);
+        assertArrayEquals(new byte[]{10, (byte) 200, 10, (byte) 200, 125, 65}, out);
+    }
+
+    @Test
+    public void rejectsOddSizesAndShortBuffers() throws Exception {
+        try {
+            Nv21.toArgb(new byte[100], 5, 4, new int[20]);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            Nv21.toI420(new byte[Nv21.size(4, 4)], 4, 4, new byte[10]);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            Nv21.rotate(new byte[Nv21.size(4, 4)], 4, 4, 45, new byte[Nv21.size(4, 4)]);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void parallel_matchesSerial() throws Exception {
+        int width = 64;
+        int height = 38;
+        byte[] nv21 = frame(width, height, 4);
+        Nv21Parallel parallel = new Nv21Parallel(3, 0);
+        try {
+            int[] argb = new int[width * height];
+            int[] serialArgb = new int[width * height];
+            parallel.toArgb(nv21, width, height, argb);
+            Nv21.toArgb(nv21, width, height, serialArgb);
+            assertArrayEquals(serialArgb, argb);
+            for (int degrees = 0; degrees < 360; degrees += 90) {
+                byte[] out = new byte[nv21.length];
+                byte[] serial = new byte[nv21.length];
+                parallel.rotate(nv21, width, height, degrees, out);
+                Nv21.rotate(nv21, width, height, degrees, serial);
+                assertArrayEquals(serial, out);
+            }
+            byte[] out = new byte[Nv21.size(Nv21.scaledSize(width, 3), Nv21.scaledSize(height, 3))];
+            byte[] serial = new byte[out.length];
+            parallel.downscale(nv21, width, height, 3, out);
+            Nv21.downscale(nv21, width, height, 3, serial);
+            assertArrayEquals(serial, out);
+        } finally {
+            parallel.release();
+        }
+    }
+
+    private static byte[] frame(int width, int height, long seed) {
+        byte[] nv21 = new byte[Nv21.size(width, height)];
+        new Random(seed).nextBytes(nv21);
+        return nv21;
+    }
+}
@@ -0,0 +1,120 @@
+package cn.appdream.recorder;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PreRollBufferTest {
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+
+    @Test
+    public void dropsUntilFirstKeyFrame() {
+        PreRollBuffer buffer = new PreRollBuffer(1000000, 1024, 16, VIDEO);
+        assertFalse(buffer.write(VIDEO, sample(0, 10, 0)));
+        assertFalse(buffer.write(AUDIO, sample(0, 10, 0)));
+        assertTrue(buffer.write(VIDEO, sample(33000, 10, EncodedSample.FLAG_KEY_FRAME)));
+        assertTrue(buffer.write(AUDIO, sample(40000, 10, 0)));
+        assertEquals(2, buffer.getSampleCount());
+        assertEquals(2, buffer.getDroppedSampleCount());
+    }
+
+    @Test
+    public void evictsWholeGopsOutsideTheWindow() {
+        PreRollBuffer buffer = new PreRollBuffer(1000000, 4096, 64, VIDEO);
+        for (int i = 0; i <= 30; i++) {
+            // a key frame every 500 ms, a frame every 100 ms
+            buffer.write(VIDEO, sample(i * 100000L, 10, i % 5 == 0 ? EncodedSample.FLAG_KEY_FRAME : 0));
+        }
+        List<Long> drained = drain(buffer);
+        // the newest is at 3.0 s, 2.0 s is the latest key frame at least 1 s before it
+        assertEquals(Long.valueOf(2000000), drained.get(0));
+        assertEquals(Long.valueOf(3000000), drained.get(drained.size() - 1));
+        assertEquals(11, drained.size());
+        assertEquals(0, buffer.getSampleCount());
+        assertEquals(0, buffer.getBufferedBytes());
+    }
+
+    @Test
+    public void evictsWhenOutOfMemory() {
+        PreRollBuffer buffer = new PreRollBuffer(60000000, 100, 64, VIDEO);
+        for (int i = 0; i < 12; i++) {
+            buffer.write(VIDEO, sample(i * 100000L, 10, i % 3 == 0 ? EncodedSample.FLAG_KEY_FRAME : 0));
+        }
+        assertTrue(buffer.getBufferedBytes() <= 100);
+        List<Long> drained = drain(buffer);
+        // whole GOPs of 30 bytes, the oldest ones gone
+        assertEquals(9, drained.size());
+        assertEquals(Long.valueOf(300000), drained.get(0));
+    }
+
+    @Test
+    public void evictsWhenOutOfSlots() {
+        PreRollBuffer buffer = new PreRollBuffer(60000000, 1024, 4, VIDEO);
+        for (int i = 0; i < 6; i++) {
+            buffer.write(VIDEO, sample(i * 100000L, 1, i % 2 == 0 ? EncodedSample.FLAG_KEY_FRAME : 0));
+        }
+        List<Long> drained = drain(buffer);
+        assertEquals(4, drained.size());
+        assertEquals(Long.valueOf(200000), drained.get(0));
+    }
+
+    @Test
+    public void wrapsAroundKeepingData() {
+        PreRollBuffer buffer = new PreRollBuffer(250000, 64, 64, VIDEO);
+        final List<Byte> firstBytes = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            buffer.write(VIDEO, sample(i * 100000L, 7, i % 2 == 0 ? EncodedSample.FLAG_KEY_FRAME : 0));
+        }
+        assertTrue(buffer.getBufferedDurationUs() >= 250000);
+        buffer.drainTo(new PreRollBuffer.Consumer() {
+            @Override
+            public void onSample(int track, EncodedSample sample) {
+                assertEquals(7, sample.size());
+                firstBytes.add(sample.data.get(sample.data.position()));
+            }
+        });
+        // every sample is filled with its timestamp in 100 ms
+        assertEquals(Byte.valueOf((byte) 16), firstBytes.get(0));
+        assertEquals(Byte.valueOf((byte) 19), firstBytes.get(firstBytes.size() - 1));
+    }
+
+    @Test
+    public void gopLargerThanMemoryIsDropped() {
+        PreRollBuffer buffer = new PreRollBuffer(1000000, 20, 16, VIDEO);
+        assertTrue(buffer.write(VIDEO, sample(0, 10, EncodedSample.FLAG_KEY_FRAME)));
+        assertTrue(buffer.write(VIDEO, sample(100000, 10, 0)));
+        // does not fit with its key frame, evicting the GOP leaves nothing to depend on
+        assertFalse(buffer.write(VIDEO, sample(200000, 10, 0)));
+        assertFalse(buffer.write(VIDEO, sample(300000, 10, 0)));
+        assertFalse(buffer.write(VIDEO, sample(400000, 30, EncodedSample.FLAG_KEY_FRAME)));
+        assertTrue(buffer.write(VIDEO, sample(500000, 10, EncodedSample.FLAG_KEY_FRAME)));
+        assertEquals(1, buffer.getSampleCount());
+    }
+
+    private static EncodedSample sample(long presentationTimeUs, int size, int flags) {
+        EncodedSample sample = new EncodedSample();
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) (presentationTimeUs / 100000));
+        sample.data = ByteBuffer.wrap(data);
+        sample.presentationTimeUs = presentationTimeUs;
+        sample.flags = flags;
+        return sample;
+    }
+
+    private static List<Long> drain(PreRollBuffer buffer) {
+        final List<Long> timestamps = new ArrayList<>();
+        buffer.drainTo(new PreRollBuffer.Consumer() {
+            @Override
+            public void onSample(int track, EncodedSample sample) {
+                timestamps.add(sample.presentationTimeUs);
+            }
+        });
+        return timestamps;
+    }
+}
@@ -0,0 +1,91 @@
+package cn.appdream.recorder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PreviewFrameTapTest {
+    private final BlockingQueue<byte[]> mQueued = new LinkedBlockingQueue<>();
+    private final AtomicInteger mFrames = new AtomicInteger();
+    private PreviewFrameTap mTap;
+
+    @Before
+    public void setUp() throws Exception {
+        mTap = new PreviewFrameTap();
+        mTap.setBufferCount(2);
+        attach();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mTap.shutdown();
+    }
+
+    private void attach() {
+        mTap.attach(4, 2, new FrameBufferPool.Recycler() {
+            @Override
+            public void recycle(byte[] buffer) {
+                mQueued.add(buffer);
+            }
+        });
+    }
+
+    private FrameConsumer counting() {
+        return new FrameConsumer() {
+            @Override
+            public void onFrame(PreviewFrame frame) {
+                mFrames.incrementAndGet();
+                frame.release();
+            }
+        };
+    }
+
+    /**
+     * Wait for both buffers to be queued to the source again.
+     */
+    private void awaitQueued() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (mQueued.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(2, mQueued.size());
+    }
+
+    @Test
+    public void throwingConsumer_doesNotKeepBuffer() throws Exception {
+        mTap.addConsumer(new FrameConsumer() {
+            @Override
+            public void onFrame(PreviewFrame frame) {
+                throw new IllegalStateException("broken consumer");
+            }
+        });
+        mTap.addConsumer(counting());
+        mTap.deliver(mQueued.poll(1, TimeUnit.SECONDS));
+        awaitQueued();
+        assertEquals(1, mFrames.get());
+        assertEquals(0, mTap.getExhaustedCount());
+    }
+
+    @Test
+    public void deliver_afterShutdownReturnsBuffer() throws Exception {
+        mTap.addConsumer(counting());
+        mTap.shutdown();
+        mTap.deliver(mQueued.poll(1, TimeUnit.SECONDS));
+        assertEquals(2, mQueued.size());
+        assertEquals(0, mFrames.get());
+
+        // the next camera open dispatches again
+        mQueued.clear();
+        attach();
+        mTap.deliver(mQueued.poll(1, TimeUnit.SECONDS));
+        awaitQueued();
+        assertEquals(1, mFrames.get());
+    }
+}
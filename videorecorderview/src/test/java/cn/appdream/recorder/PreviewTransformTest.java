@@ -0,0 +1,76 @@
+package cn.appdream.recorder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PreviewTransformTest {
+    private static final float EPSILON = 1e-5f;
+
+    private final float[] mMatrix = new float[16];
+
+    @Test
+    public void sameAspectIsIdentity() {
+        PreviewTransform.centerCrop(1280, 720, 0, false, 1920, 1080, mMatrix);
+        assertPoint(-1f, 1f, -1f, 1f);
+        assertPoint(1f, -1f, 1f, -1f);
+        assertEquals(1f, mMatrix[15], EPSILON);
+    }
+
+    @Test
+    public void rotatesClockwise() {
+        PreviewTransform.centerCrop(1280, 720, 90, false, 720, 1280, mMatrix);
+        // the top left corner of the frame goes to the top right
+        assertPoint(-1f, 1f, 1f, 1f);
+        assertPoint(1f, 1f, 1f, -1f);
+
+        PreviewTransform.centerCrop(1280, 720, 180, false, 1280, 720, mMatrix);
+        assertPoint(-1f, 1f, 1f, -1f);
+
+        PreviewTransform.centerCrop(1280, 720, 270, false, 720, 1280, mMatrix);
+        assertPoint(-1f, 1f, -1f, -1f);
+    }
+
+    @Test
+    public void cropsWiderFrameLeftAndRight() {
+        // 16:9 into 4:3, a third more width than fits
+        PreviewTransform.centerCrop(1920, 1080, 0, false, 640, 480, mMatrix);
+        assertPoint(1f, 1f, 4f / 3f, 1f);
+    }
+
+    @Test
+    public void cropsTallerFrameTopAndBottom() {
+        // 1280x720 rotated is 9:16, into a square view
+        PreviewTransform.centerCrop(1280, 720, 90, false, 1080, 1080, mMatrix);
+        assertPoint(-1f, 1f, 1f, 16f / 9f);
+        assertPoint(1f, -1f, -1f, -16f / 9f);
+    }
+
+    @Test
+    public void mirrorsAfterRotation() {
+        PreviewTransform.centerCrop(1280, 720, 90, true, 720, 1280, mMatrix);
+        assertPoint(-1f, 1f, -1f, 1f);
+    }
+
+    @Test
+    public void unknownSizeOnlyRotates() {
+        PreviewTransform.centerCrop(0, 0, 90, false, 1080, 1080, mMatrix);
+        assertPoint(-1f, 1f, 1f, 1f);
+        PreviewTransform.centerCrop(1280, 720, -90, false, 0, 0, mMatrix);
+        assertPoint(-1f, 1f, -1f, -1f);
+    }
+
+    @Test
+    public void remainingRotation() {
+        assertEquals(90, PreviewTransform.remainingRotation(90, 0));
+        assertEquals(270, PreviewTransform.remainingRotation(0, 90));
+        assertEquals(0, PreviewTransform.remainingRotation(270, 270));
+        assertEquals(180, PreviewTransform.remainingRotation(90, 270));
+    }
+
+    private void assertPoint(float x, float y, float expectedX, float expectedY) {
+        float[] m = mMatrix;
+        assertEquals(expectedX, m[0] * x + m[4] * y + m[12], EPSILON);
+        assertEquals(expectedY, m[1] * x + m[5] * y + m[13], EPSILON);
+    }
+}
@@ -0,0 +1,206 @@
+package cn.appdream.recorder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class QualityControllerTest {
+    private static final int VIDEO = CodecRecordingEngine.TRACK_VIDEO;
+    private static final int AUDIO = CodecRecordingEngine.TRACK_AUDIO;
+
+    /**
+     * A slow card in trace form: write load climbs, the bitrate cut brings it down,
+     * then the card keeps up again.
+     */
+    private static final String[] SLOW_STORAGE_TRACE = {
+            "1000000,1000000,4000000,3950000,30,30.00,0.350",
+            "2000000,1000000,4000000,4020000,30,30.00,0.820",
+            "3000000,1000000,3000000,3100000,30,30.00,0.910",
+            "4000000,1000000,2250000,2200000,30,30.00,0.640",
+            "5000000,1000000,2250000,2230000,30,30.00,0.400",
+            "6000000,1000000,2250000,2240000,30,30.00,0.380",
+            "7000000,1000000,2250000,2260000,30,30.00,0.360",
+    };
+
+    private RecordingConfig mConfig;
+    private List<Integer> mBitRates;
+
+    @Before
+    public void setUp() throws Exception {
+        mConfig = new RecordingConfig();
+        mConfig.setVideoSize(1280, 720);
+        mConfig.setVideoBitRate(4000000);
+        mConfig.setFrameRate(30);
+        mBitRates = new ArrayList<>();
+    }
+
+    @Test
+    public void measuresIntervals() {
+        final List<QualitySample> samples = new ArrayList<>();
+        QualityController controller = new QualityController(new QualityPolicy() {
+            @Override
+            public void adjust(QualitySample sample, QualityDecision decision) {
+                samples.add(new QualitySample(sample));
+            }
+        });
+        controller.begin(mConfig, true);
+        // 1 s of 25 fps with 20 kB frames, writing each frame and audio chunk takes 2 ms
+        for (int i = 0; i <= 25; i++) {
+            controller.onSampleWritten(VIDEO, i * 40000L, 20000, 2000000);
+            controller.onSampleWritten(AUDIO, i * 40000L, 200, 2000000);
+        }
+        assertEquals(1, samples.size());
+        QualitySample sample = samples.get(0);
+        assertEquals(1000000, sample.timeUs);
+        assertEquals(1000000, sample.durationUs);
+        assertEquals(4000000, sample.targetBitRate);
+        assertEquals(25 * 20000 * 8, sample.encodedBitRate);
+        assertEquals(25f, sample.encodedFrameRate, 0.01f);
+        assertEquals(30, sample.targetFrameRate);
+        assertEquals(0.1f, sample.writeLoad, 0.001f);
+    }
+
+    @Test
+    public void appliesBitRateLiveAndClamps() {
+        QualityController controller = new QualityController(new QualityPolicy() {
+            @Override
+            public void adjust(QualitySample sample, QualityDecision decision) {
+                decision.setVideoBitRate(decision.getVideoBitRate() / 4);
+            }
+        });
+        controller.setBitRateRange(1500000, 0);
+        controller.setBitRateTarget(new QualityController.BitRateTarget() {
+            @Override
+            public void setVideoBitRate(int bitsPerSecond) {
+                mBitRates.add(bitsPerSecond);
+            }
+        });
+        controller.begin(mConfig, true);
+        for (int i = 0; i <= 100; i++) {
+            controller.onSampleWritten(VIDEO, i * 33333L, 1000, 0);
+        }
+        // once to the minimum, then no more changes
+        assertEquals(1, mBitRates.size());
+        assertEquals(Integer.valueOf(1500000), mBitRates.get(0));
+        assertEquals(1500000, controller.getDecision().getVideoBitRate());
+    }
+
+    @Test
+    public void nextRecordingGetsFrameRateAndSize() {
+        QualityController controller = new QualityController(new QualityPolicy() {
+            @Override
+            public void adjust(QualitySample sample, QualityDecision decision) {
+                decision.setFrameRate(10);
+                decision.setVideoScale(0.5f);
+            }
+        });
+        controller.setMinFrameRate(20);
+        controller.begin(new RecordingConfig(mConfig), true);
+        for (int i = 0; i <= 31; i++) {
+            controller.onSampleWritten(VIDEO, i * 33333L, 1000, 0);
+        }
+        RecordingConfig next = new RecordingConfig(mConfig);
+        controller.begin(next, true);
+        assertEquals(20, next.getFrameRate());
+        assertEquals(640, next.getVideoWidth());
+        assertEquals(368, next.getVideoHeight());
+
+        RecordingConfig fixedSize = new RecordingConfig(mConfig);
+        controller.begin(fixedSize, false);
+        assertEquals(1280, fixedSize.getVideoWidth());
+
+        controller.resetDecision();
+        RecordingConfig reset = new RecordingConfig(mConfig);
+        controller.begin(reset, true);
+        assertEquals(30, reset.getFrameRate());
+        assertEquals(1280, reset.getVideoWidth());
+    }
+
+    @Test
+    public void traceLineRoundTrip() {
+        QualitySample sample = QualitySample.parse(SLOW_STORAGE_TRACE[2]);
+        assertEquals(3000000, sample.timeUs);
+        assertEquals(3100000, sample.encodedBitRate);
+        assertEquals(0.91f, sample.writeLoad, 0.0001f);
+        assertEquals(SLOW_STORAGE_TRACE[2], sample.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void traceLineInvalid() {
+        QualitySample.parse("1,2,3");
+    }
+
+    @Test
+    public void aimd_slowStorageTrace() {
+        AimdQualityPolicy policy = new AimdQualityPolicy();
+        QualityDecision decision = decision(4000000, 1000000, 30);
+        List<Integer> bitRates = replay(policy, decision, SLOW_STORAGE_TRACE);
+        assertEquals(4000000, (int) bitRates.get(1));
+        // two congested intervals, a quarter off each time
+        assertEquals(3000000, (int) bitRates.get(2));
+        assertEquals(2250000, (int) bitRates.get(3));
+        assertEquals(2250000, (int) bitRates.get(5));
+        // three healthy intervals, then a step of a tenth of the maximum
+        assertEquals(2650000, (int) bitRates.get(6));
+        assertEquals(30, decision.getFrameRate());
+        assertEquals(1f, decision.getVideoScale(), 0f);
+    }
+
+    @Test
+    public void aimd_slowEncoderLowersFrameRate() {
+        AimdQualityPolicy policy = new AimdQualityPolicy();
+        QualityDecision decision = decision(4000000, 1000000, 30);
+        String[] trace = {
+                "1000000,1000000,4000000,4000000,30,21.00,0.100",
+                "2000000,1000000,3000000,3000000,30,22.00,0.100",
+                "3000000,1000000,2250000,2250000,30,22.00,0.100",
+        };
+        replay(policy, decision, trace);
+        assertEquals(1687500, decision.getVideoBitRate());
+        assertEquals(22, decision.getFrameRate());
+        assertEquals(1f, decision.getVideoScale(), 0f);
+    }
+
+    @Test
+    public void aimd_recoversFrameRateAtMaxBitRate() {
+        AimdQualityPolicy policy = new AimdQualityPolicy();
+        policy.setIncreaseAfter(1);
+        QualityDecision decision = decision(4000000, 1000000, 30);
+        decision.setFrameRate(20);
+        String[] trace = {
+                "1000000,1000000,4000000,4000000,20,20.00,0.100",
+                "2000000,1000000,4000000,4000000,25,25.00,0.100",
+        };
+        replay(policy, decision, trace);
+        assertEquals(30, decision.getFrameRate());
+    }
+
+    private static QualityDecision decision(int maxBitRate, int minBitRate, int frameRate) {
+        QualityDecision decision = new QualityDecision();
+        decision.mMaxVideoBitRate = maxBitRate;
+        decision.mMinVideoBitRate = minBitRate;
+        decision.mMaxFrameRate = frameRate;
+        decision.mMinFrameRate = 10;
+        decision.mMinVideoScale = 0.5f;
+        decision.setVideoBitRate(maxBitRate);
+        decision.setFrameRate(frameRate);
+        return decision;
+    }
+
+    /**
+     * @return the bitrate in use during each trace line
+     */
+    private static List<Integer> replay(QualityPolicy policy, QualityDecision decision, String[] trace) {
+        List<Integer> bitRates = new ArrayList<>();
+        for (String line : trace) {
+            bitRates.add(decision.getVideoBitRate());
+            policy.adjust(QualitySample.parse(line), decision);
+            decision.clamp();
+        }
+        return bitRates;
+    }
+}
@@ -0,0 +1,88 @@
+package cn.appdream.recorder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RecorderMetricsTest {
+    private static final long MS = 1000000L;
+
+    private RecorderMetrics mMetrics;
+
+    @Before
+    public void setUp() throws Exception {
+        mMetrics = new RecorderMetrics();
+    }
+
+    @Test
+    public void phasesGoToHistogramAndListener() {
+        final List<String> events = new ArrayList<>();
+        mMetrics.setListener(new RecorderMetrics.Listener() {
+            @Override
+            public void onPhase(int phase, long nanos) {
+                events.add(RecorderMetrics.phaseName(phase));
+            }
+
+            @Override
+            public void onError(String source, Throwable error) {
+                events.add(source + ": " + error.getMessage());
+            }
+        });
+        long start = System.nanoTime() - 5 * MS;
+        long next = mMetrics.endPhase(RecorderMetrics.PHASE_CAMERA_OPEN, start);
+        mMetrics.endPhase(RecorderMetrics.PHASE_GET_PARAMETERS, next);
+        mMetrics.onError("recording", new IllegalStateException("codec died"));
+
+        LatencyHistogram open = mMetrics.getPhaseTime(RecorderMetrics.PHASE_CAMERA_OPEN);
+        assertEquals(1, open.getCount());
+        assertTrue(open.getMaxMicros() >= 5000);
+        assertEquals(1, mMetrics.getPhaseTime(RecorderMetrics.PHASE_GET_PARAMETERS).getCount());
+        assertEquals(1, mMetrics.getErrorCount());
+        assertEquals("[camera_open, get_parameters, recording: codec died]", events.toString());
+
+        // back to the no-op listener
+        mMetrics.setListener(null);
+        mMetrics.endPhase(RecorderMetrics.PHASE_START_PREVIEW, System.nanoTime());
+        assertEquals(3, events.size());
+    }
+
+    @Test
+    public void previewFrameRate() {
+        for (int i = 0; i < 31; i++) {
+            mMetrics.onPreviewFrame(1000 * MS + i * 40 * MS);
+        }
+        assertEquals(31, mMetrics.getPreviewFrameCount());
+        assertEquals(30, mMetrics.getPreviewFrameIntervals().getCount());
+        assertEquals(25f, mMetrics.getPreviewFrameRate(), 0.01f);
+
+        // a pause of the preview is not an interval
+        mMetrics.onPreviewStopped();
+        mMetrics.onPreviewFrame(9000 * MS);
+        assertEquals(30, mMetrics.getPreviewFrameIntervals().getCount());
+    }
+
+    @Test
+    public void encoderOutputAndBytes() {
+        for (int i = 0; i < 11; i++) {
+            mMetrics.onSampleWritten(CodecRecordingEngine.TRACK_VIDEO, 1000, i * 100 * MS);
+            mMetrics.onSampleWritten(CodecRecordingEngine.TRACK_AUDIO, 100, i * 100 * MS);
+        }
+        assertEquals(11, mMetrics.getEncodedSampleCount(CodecRecordingEngine.TRACK_VIDEO));
+        assertEquals(11, mMetrics.getEncodedSampleCount(CodecRecordingEngine.TRACK_AUDIO));
+        assertEquals(10f, mMetrics.getVideoOutputFrameRate(), 0.01f);
+        assertEquals(11 * 1100, mMetrics.getRecordedBytes());
+
+        mMetrics.onOutputStopped();
+        mMetrics.onFileWritten(5000);
+        assertEquals(11 * 1100 + 5000, mMetrics.getRecordedBytes());
+
+        mMetrics.reset();
+        assertEquals(0, mMetrics.getRecordedBytes());
+        assertEquals(0, mMetrics.getVideoOutputIntervals().getCount());
+        assertEquals(0f, mMetrics.getVideoOutputFrameRate(), 0f);
+    }
+}
@@ -0,0 +1,255 @@
+package cn.appdream.recorder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RecordingRecoveryTest {
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x1e, 0x11};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    private static final int VIDEO_SIZE = 100;
+    private static final int AUDIO_SIZE = 20;
+
+    private File mDirectory;
+    private File mFile;
+    private File mIndex;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = File.createTempFile("recovery", "");
+        mDirectory.delete();
+        assertTrue(mDirectory.mkdirs());
+        mFile = new File(mDirectory, "video.mp4");
+        mIndex = RecordingIndex.fileFor(mFile);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void rebuildsMovieFromIndex() throws Exception {
+        // 20 video and 20 audio samples, in chunks of 4, the last audio sample cut off
+        long[] videoOffsets = writeRecording(20, 20, true, 10);
+        writeIndex(20, 20);
+
+        assertEquals(Collections.singletonList(mFile), RecordingRecovery.findInterrupted(mDirectory));
+        assertTrue(RecordingRecovery.recover(mFile));
+        assertFalse(mIndex.exists());
+
+        byte[] file = read();
+        assertEquals(Arrays.asList("ftyp", "mdat", "moov"), topLevel(file));
+        int mdat = find(file, "mdat", 0);
+        int moov = find(file, "moov", 0);
+        // 64 bit size, up to the last whole sample
+        assertEquals(1, readInt(file, mdat));
+        assertEquals(moov - mdat, readInt(file, mdat + 12));
+        assertEquals(mdat + 16 + 20 * VIDEO_SIZE + 19 * AUDIO_SIZE, moov);
+
+        int videoTrak = find(file, "trak", moov);
+        int audioTrak = find(file, "trak", videoTrak + 8);
+        int stsz = find(file, "stsz", videoTrak);
+        assertEquals(20, readInt(file, stsz + 16));
+        assertEquals(VIDEO_SIZE, readInt(file, stsz + 20));
+        int stco = find(file, "stco", videoTrak);
+        assertEquals(20, readInt(file, stco + 12));
+        for (int i = 0; i < 20; i++) {
+            assertEquals(videoOffsets[i], readInt(file, stco + 16 + i * 4));
+        }
+        int stss = find(file, "stss", videoTrak);
+        assertEquals(2, readInt(file, stss + 12));
+        assertEquals(11, readInt(file, stss + 20));
+        // 40 ms at 90 kHz
+        int stts = find(file, "stts", videoTrak);
+        assertEquals(1, readInt(file, stts + 12));
+        assertEquals(20, readInt(file, stts + 16));
+        assertEquals(3600, readInt(file, stts + 20));
+        // audio is one chunk of 4 later in every second chunk
+        stco = find(file, "stco", audioTrak);
+        assertEquals(19, readInt(file, stco + 12));
+        assertEquals(mdat + 16 + 4 * VIDEO_SIZE, readInt(file, stco + 16));
+        assertEquals(-1, find(file, "stss", audioTrak));
+    }
+
+    @Test
+    public void stopsAtTruncatedVideoSample() throws Exception {
+        writeRecording(20, 16, false, VIDEO_SIZE - 30);
+        writeIndex(20, 16);
+
+        assertTrue(RecordingRecovery.recover(mFile));
+        byte[] file = read();
+        int mdat = find(file, "mdat", 0);
+        int moov = find(file, "moov", 0);
+        // 32 bit size
+        assertEquals(moov - mdat, readInt(file, mdat));
+        assertEquals(mdat + 8 + 19 * VIDEO_SIZE + 16 * AUDIO_SIZE, moov);
+        assertEquals(19, readInt(file, find(file, "stsz", moov) + 16));
+    }
+
+    @Test
+    public void truncatedIndexKeepsWholeRecords() throws Exception {
+        writeRecording(20, 20, true, 0);
+        writeIndex(20, 20);
+        RandomAccessFile index = new RandomAccessFile(mIndex, "rw");
+        index.setLength(index.length() - 5);
+        index.close();
+
+        assertTrue(RecordingRecovery.recover(mFile));
+        byte[] file = read();
+        int moov = find(file, "moov", 0);
+        // the last audio sample is not in the index any more
+        int audioTrak = find(file, "trak", find(file, "trak", moov) + 8);
+        assertEquals(19, readInt(file, find(file, "stsz", audioTrak) + 16));
+        assertEquals(find(file, "mdat", 0) + 16 + 20 * VIDEO_SIZE + 19 * AUDIO_SIZE, moov);
+    }
+
+    @Test
+    public void finishedFileIsLeftAlone() throws Exception {
+        writeRecording(4, 0, false, 0);
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        long length = raf.length();
+        raf.seek(length);
+        raf.writeInt(8);
+        raf.writeBytes("moov");
+        raf.seek(24);
+        raf.writeInt((int) (length - 24));
+        raf.close();
+        writeIndex(4, 0);
+
+        assertTrue(RecordingRecovery.recover(mFile));
+        assertFalse(mIndex.exists());
+        assertEquals(length + 8, mFile.length());
+    }
+
+    @Test
+    public void orphanIndexIsDeleted() throws Exception {
+        writeIndex(1, 0);
+        assertTrue(RecordingRecovery.findInterrupted(mDirectory).isEmpty());
+        assertFalse(mIndex.exists());
+        assertTrue(RecordingRecovery.recoverAll(mDirectory).isEmpty());
+    }
+
+    /**
+     * ftyp and an mdat without size like {@code MediaMuxer} leaves it, samples in chunks of 4
+     * per track.
+     *
+     * @param cut bytes missing at the end of the file
+     * @return the offsets of the video samples
+     */
+    private long[] writeRecording(int videoCount, int audioCount, boolean largeSize, int cut) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.writeInt(24);
+            raf.writeBytes("ftypisom");
+            raf.writeInt(0x200);
+            raf.writeBytes("isommp41");
+            if (largeSize) {
+                raf.writeInt(1);
+                raf.writeBytes("mdat");
+                raf.writeLong(0);
+            } else {
+                raf.writeInt(0);
+                raf.writeBytes("mdat");
+            }
+            long[] videoOffsets = new long[videoCount];
+            int video = 0;
+            int audio = 0;
+            while (video < videoCount || audio < audioCount) {
+                for (int i = 0; i < 4 && video < videoCount; i++, video++) {
+                    videoOffsets[video] = raf.getFilePointer();
+                    // 一个SEI和一个slice
+                    raf.writeInt(6);
+                    raf.write(new byte[]{6, 5, 1, 2, 3, (byte) 0x80});
+                    raf.writeInt(VIDEO_SIZE - 14);
+                    raf.write(video % 10 == 0 ? 0x65 : 0x41);
+                    raf.write(new byte[VIDEO_SIZE - 15]);
+                }
+                for (int i = 0; i < 4 && audio < audioCount; i++, audio++) {
+                    byte[] frame = new byte[AUDIO_SIZE];
+                    Arrays.fill(frame, (byte) 0xff);
+                    raf.write(frame);
+                }
+            }
+            raf.setLength(raf.length() - cut);
+            return videoOffsets;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Samples alternating between the tracks, the order they go to the muxer.
+     */
+    private void writeIndex(int videoCount, int audioCount) throws Exception {
+        TrackFormat[] formats = audioCount > 0
+                ? new TrackFormat[]{TrackFormat.avc(640, 480, SPS, PPS), TrackFormat.aac(44100, 1, new byte[]{0x12, 0x08})}
+                : new TrackFormat[]{TrackFormat.avc(640, 480, SPS, PPS)};
+        RecordingIndex.Writer writer = new RecordingIndex.Writer(mIndex, 90, formats);
+        for (int i = 0; i < Math.max(videoCount, audioCount); i++) {
+            if (i < videoCount) {
+                writer.write(0, i % 10 == 0 ? EncodedSample.FLAG_KEY_FRAME : 0, VIDEO_SIZE, 1000000L + i * 40000L);
+            }
+            if (i < audioCount) {
+                writer.write(1, 0, AUDIO_SIZE, 1000000L + i * 23220L);
+            }
+        }
+        writer.close(false);
+    }
+
+    private byte[] read() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            byte[] content = new byte[(int) raf.length()];
+            raf.readFully(content);
+            return content;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static List<String> topLevel(byte[] file) {
+        List<String> types = new ArrayList<>();
+        int position = 0;
+        while (position + 8 <= file.length) {
+            types.add(new String(file, position + 4, 4));
+            int size = readInt(file, position);
+            position += size == 1 ? readInt(file, position + 12) : size;
+        }
+        assertEquals(file.length, position);
+        return types;
+    }
+
+    /**
+     * @return the offset of the first box of {@code type} at or after {@code from}, {@code -1}
+     */
+    private static int find(byte[] file, String type, int from) {
+        byte[] name = type.getBytes();
+        for (int i = from + 4; i + 4 <= file.length; i++) {
+            if (file[i] == name[0] && file[i + 1] == name[1] && file[i + 2] == name[2] && file[i + 3] == name[3]) {
+                return i - 4;
+            }
+        }
+        return -1;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16
+                | (data[offset + 2] & 0xff) << 8 | data[offset + 3] & 0xff;
+    }
+}
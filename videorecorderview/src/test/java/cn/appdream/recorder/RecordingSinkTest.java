@@ -0,0 +1,155 @@
+package cn.appdream.recorder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class RecordingSinkTest {
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("sink", ".mp4");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    @Test
+    public void writesInOrderAcrossBuffers() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        RecordingSink sink = new RecordingSink(raf.getChannel(), raf.getFD(), FsyncPolicy.NEVER, 100, 2);
+        for (int i = 0; i < 50; i++) {
+            sink.write(ByteBuffer.wrap(bytes(i, 37)));
+        }
+        assertEquals(50 * 37, sink.getPosition());
+        sink.flush();
+        assertEquals(50 * 37, sink.getBytesWritten());
+        assertTrue(sink.getWriteLatency().getCount() >= 18);
+        assertTrue(sink.getMaxQueueDepth() >= 1);
+        sink.close();
+
+        byte[] content = read(mFile);
+        assertEquals(50 * 37, content.length);
+        for (int i = 0; i < 50; i++) {
+            assertEquals((byte) i, content[i * 37]);
+            assertEquals((byte) i, content[i * 37 + 36]);
+        }
+        assertEquals(0, sink.getSyncLatency().getCount());
+    }
+
+    @Test
+    public void writeKeepsSourcePositionSemantics() throws Exception {
+        RecordingSink sink = RecordingSink.open(mFile, FsyncPolicy.NEVER);
+        ByteBuffer src = ByteBuffer.wrap(bytes(7, 10));
+        src.position(4);
+        sink.write(src);
+        assertFalse(src.hasRemaining());
+        sink.close();
+        assertEquals(6, read(mFile).length);
+    }
+
+    @Test
+    public void syncsEveryBytesAndOnClose() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        RecordingSink sink = new RecordingSink(raf.getChannel(), raf.getFD(), FsyncPolicy.everyBytes(200), 100, 4);
+        for (int i = 0; i < 5; i++) {
+            sink.write(ByteBuffer.wrap(bytes(i, 100)));
+        }
+        sink.flush();
+        assertEquals(2, sink.getSyncLatency().getCount());
+        sink.endSegment();
+        assertEquals(3, sink.getSyncLatency().getCount());
+        sink.close();
+        assertEquals(4, sink.getSyncLatency().getCount());
+    }
+
+    @Test
+    public void preallocatedSpaceIsCutOnClose() throws Exception {
+        RecordingSink sink = RecordingSink.open(mFile, FsyncPolicy.PER_SEGMENT);
+        sink.preallocate(new RecordingSink.FileAllocator() {
+            @Override
+            public void allocate(FileDescriptor fd, long length) throws IOException {
+                new RandomAccessFile(mFile, "rw").setLength(length);
+            }
+        }, 4096);
+        assertEquals(4096, mFile.length());
+        sink.write(ByteBuffer.wrap(bytes(1, 10)));
+        sink.close();
+        assertEquals(10, mFile.length());
+        assertEquals(1, sink.getSyncLatency().getCount());
+    }
+
+    @Test
+    public void busyTimeCountsFileWritesOnly() throws Exception {
+        RecordingSink sink = RecordingSink.open(mFile, FsyncPolicy.NEVER);
+        // queued, not written yet
+        sink.write(ByteBuffer.wrap(bytes(1, 100)));
+        assertEquals(0, sink.getBusyNanos());
+        sink.flush();
+        long busy = sink.getBusyNanos();
+        assertTrue(busy > 0);
+        assertEquals(1, sink.getWriteLatency().getCount());
+        Thread.sleep(20);
+        assertEquals(busy, sink.getBusyNanos());
+        sink.close();
+    }
+
+    @Test
+    public void writerErrorIsThrownByNextCall() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        FileChannel channel = raf.getChannel();
+        RecordingSink sink = new RecordingSink(channel, null, FsyncPolicy.NEVER, 16, 2);
+        sink.write(ByteBuffer.wrap(bytes(1, 16)));
+        try {
+            sink.flush();
+            fail();
+        } catch (IOException expected) {
+        }
+        try {
+            sink.write(ByteBuffer.wrap(bytes(1, 1)));
+            fail();
+        } catch (IOException expected) {
+        }
+        try {
+            sink.close();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void writeAfterClose() throws Exception {
+        RecordingSink sink = RecordingSink.open(mFile, FsyncPolicy.NEVER);
+        sink.close();
+        sink.write(ByteBuffer.wrap(bytes(1, 1)));
+    }
+
+    private static byte[] bytes(int value, int size) {
+        byte[] bytes = new byte[size];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] content = new byte[(int) raf.length()];
+            raf.readFully(content);
+            return content;
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package cn.appdream.recorder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class RecordingStateMachineTest {
+    private Queue<Runnable> mWorker;
+    private FakeActions mActions;
+    private List<String> mEvents;
+    private RecordingStateMachine mMachine;
+
+    @Before
+    public void setUp() throws Exception {
+        mWorker = new ArrayDeque<>();
+        mActions = new FakeActions();
+        mEvents = new ArrayList<>();
+        mMachine = new RecordingStateMachine(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mWorker.add(command);
+            }
+        }, mActions);
+        mMachine.setListener(new RecordingStateMachine.Listener() {
+            @Override
+            void onStateChanged(int from, int to, long nanos) {
+                mEvents.add(from + "->" + to);
+            }
+
+            @Override
+            void onRecordingStarted(String file) {
+                mEvents.add("started " + file);
+            }
+
+            @Override
+            void onRecordingFailed(String file) {
+                mEvents.add("failed " + file);
+            }
+
+            @Override
+            void onRecordingStopped(String file) {
+                mEvents.add("stopped " + file);
+            }
+        });
+    }
+
+    @Test
+    public void lifecycle() {
+        assertEquals(RecordingStateMachine.IDLE, mMachine.getState());
+        mMachine.setPreviewing(true);
+        assertTrue(mMachine.requestStart("a.mp4"));
+        // nothing happens on the calling thread
+        assertEquals(RecordingStateMachine.PREVIEWING, mMachine.getState());
+        runWorker();
+        assertEquals(RecordingStateMachine.RECORDING, mMachine.getState());
+        mMachine.requestStop();
+        runWorker();
+        assertEquals(RecordingStateMachine.PREVIEWING, mMachine.getState());
+        mMachine.setPreviewing(false);
+        assertEquals(RecordingStateMachine.IDLE, mMachine.getState());
+        assertEquals(list("0->1", "1->2", "2->3", "started a.mp4", "3->4", "4->1", "stopped a.mp4", "1->0"),
+                mEvents);
+        assertEquals(list("start a.mp4", "stop a.mp4"), mActions.calls);
+        assertEquals(1, mMachine.getStateTime(RecordingStateMachine.PREPARING).getCount());
+        assertEquals(1, mMachine.getStateTime(RecordingStateMachine.STOPPING).getCount());
+        assertEquals(2, mMachine.getStateTime(RecordingStateMachine.PREVIEWING).getCount());
+    }
+
+    @Test
+    public void repeatedTapsAreCoalesced() {
+        mMachine.setPreviewing(true);
+        assertTrue(mMachine.requestStart("a.mp4"));
+        assertFalse(mMachine.requestStart("b.mp4"));
+        mMachine.requestStop();
+        assertTrue(mMachine.requestStart("c.mp4"));
+        assertEquals(1, mWorker.size());
+        runWorker();
+        assertEquals(list("start c.mp4"), mActions.calls);
+        assertEquals(RecordingStateMachine.RECORDING, mMachine.getState());
+        mMachine.requestStop();
+        mMachine.requestStop();
+        runWorker();
+        assertEquals(list("start c.mp4", "stop c.mp4"), mActions.calls);
+        assertEquals(4, mMachine.getCoalescedRequestCount());
+    }
+
+    @Test
+    public void startThenStopBeforeWorkerDoesNothing() {
+        mMachine.setPreviewing(true);
+        mEvents.clear();
+        mMachine.requestStart("a.mp4");
+        mMachine.requestStop();
+        runWorker();
+        assertTrue(mActions.calls.isEmpty());
+        assertTrue(mEvents.isEmpty());
+    }
+
+    @Test
+    public void stopWhilePreparingStopsAfterStart() {
+        mMachine.setPreviewing(true);
+        mActions.onStart = new Runnable() {
+            @Override
+            public void run() {
+                assertEquals(RecordingStateMachine.PREPARING, mMachine.getState());
+                mMachine.requestStop();
+            }
+        };
+        mMachine.requestStart("a.mp4");
+        runWorker();
+        assertEquals(list("start a.mp4", "stop a.mp4"), mActions.calls);
+        assertEquals(RecordingStateMachine.PREVIEWING, mMachine.getState());
+    }
+
+    @Test
+    public void startWhileStoppingKeepsStoppedFile() {
+        mMachine.setPreviewing(true);
+        mActions.onStop = new Runnable() {
+            @Override
+            public void run() {
+                assertEquals(RecordingStateMachine.STOPPING, mMachine.getState());
+                assertTrue(mMachine.requestStart("b.mp4"));
+            }
+        };
+        mMachine.requestStart("a.mp4");
+        runWorker();
+        mMachine.requestStop();
+        runWorker();
+        assertEquals(list("start a.mp4", "stop a.mp4", "start b.mp4"), mActions.calls);
+        assertTrue(mEvents.contains("stopped a.mp4"));
+    }
+
+    @Test
+    public void stopThenStartWhileRecordingRecordsNewFile() {
+        mMachine.setPreviewing(true);
+        mMachine.requestStart("a.mp4");
+        runWorker();
+        mEvents.clear();
+        mMachine.requestStop();
+        assertTrue(mMachine.requestStart("b.mp4"));
+        runWorker();
+        assertEquals(list("start a.mp4", "stop a.mp4", "start b.mp4"), mActions.calls);
+        assertEquals(list("3->4", "4->1", "stopped a.mp4", "1->2", "2->3", "started b.mp4"), mEvents);
+        assertEquals(RecordingStateMachine.RECORDING, mMachine.getState());
+    }
+
+    @Test
+    public void startFailures() {
+        // camera not open
+        mMachine.requestStart("a.mp4");
+        runWorker();
+        assertEquals(list("failed a.mp4"), mEvents);
+        assertTrue(mActions.calls.isEmpty());
+
+        mMachine.setPreviewing(true);
+        mActions.fail = true;
+        mMachine.requestStart("b.mp4");
+        runWorker();
+        assertEquals(RecordingStateMachine.PREVIEWING, mMachine.getState());
+        assertTrue(mEvents.contains("failed b.mp4"));
+        // the failed request does not block the next one
+        mActions.fail = false;
+        assertTrue(mMachine.requestStart("c.mp4"));
+        runWorker();
+        assertEquals(RecordingStateMachine.RECORDING, mMachine.getState());
+    }
+
+    @Test
+    public void closingCameraStopsRecording() {
+        mMachine.setPreviewing(true);
+        mMachine.requestStart("a.mp4");
+        runWorker();
+        mMachine.setPreviewing(false);
+        assertEquals(list("start a.mp4", "stop a.mp4"), mActions.calls);
+        assertEquals(RecordingStateMachine.IDLE, mMachine.getState());
+        assertTrue(mEvents.contains("stopped a.mp4"));
+    }
+
+    private void runWorker() {
+        Runnable runnable;
+        while ((runnable = mWorker.poll()) != null) {
+            runnable.run();
+        }
+    }
+
+    private static List<String> list(String... items) {
+        List<String> list = new ArrayList<>();
+        for (String item : items) {
+            list.add(item);
+        }
+        return list;
+    }
+
+    private static class FakeActions implements RecordingStateMachine.Actions {
+        final List<String> calls = new ArrayList<>();
+        boolean fail;
+        Runnable onStart;
+        Runnable onStop;
+
+        @Override
+        public boolean startRecording(String file) {
+            calls.add("start " + file);
+            if (onStart != null) {
+                onStart.run();
+            }
+            return !fail;
+        }
+
+        @Override
+        public void stopRecording(String file) {
+            calls.add("stop " + file);
+            if (onStop != null) {
+                onStop.run();
+            }
+        }
+    }
+}
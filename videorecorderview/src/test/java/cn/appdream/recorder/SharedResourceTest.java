@@ -0,0 +1,85 @@
+package cn.appdream.recorder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SharedResourceTest {
+    private final List<String> mCreated = new ArrayList<>();
+    private final List<String> mDestroyed = new ArrayList<>();
+    private SharedResource<String> mResource;
+
+    @Before
+    public void setUp() throws Exception {
+        mResource = new SharedResource<>(new SharedResource.Factory<String>() {
+            @Override
+            public String create() {
+                String resource = "camera" + mCreated.size();
+                mCreated.add(resource);
+                return resource;
+            }
+
+            @Override
+            public void destroy(String resource) {
+                mDestroyed.add(resource);
+            }
+        });
+    }
+
+    @Test
+    public void clientsShareOneResource() throws Exception {
+        assertNull(mResource.peek());
+        assertEquals("camera0", mResource.acquire());
+        assertEquals("camera0", mResource.acquire());
+        assertEquals(2, mResource.getRefCount());
+        assertEquals(1, mCreated.size());
+
+        assertEquals(SharedResource.HELD, mResource.release());
+        long token = mResource.release();
+        assertTrue(token != SharedResource.HELD);
+        // still there until the linger expires
+        assertEquals("camera0", mResource.peek());
+        assertTrue(mDestroyed.isEmpty());
+
+        assertTrue(mResource.expire(token));
+        assertEquals(1, mDestroyed.size());
+        assertNull(mResource.peek());
+        assertEquals("camera1", mResource.acquire());
+    }
+
+    @Test
+    public void acquireWhileLingeringKeepsResource() throws Exception {
+        mResource.acquire();
+        long token = mResource.release();
+        assertEquals("camera0", mResource.acquire());
+        assertFalse(mResource.expire(token));
+
+        // the next linger has a token of its own
+        long next = mResource.release();
+        assertFalse(mResource.expire(token));
+        assertTrue(mResource.expire(next));
+        assertEquals(1, mCreated.size());
+        assertEquals(1, mDestroyed.size());
+    }
+
+    @Test
+    public void expireNowOnlyWhenIdle() throws Exception {
+        assertFalse(mResource.expire());
+        mResource.acquire();
+        assertFalse(mResource.expire());
+        long token = mResource.release();
+        assertTrue(mResource.expire());
+        // the linger timer firing later finds nothing to do
+        assertFalse(mResource.expire(token));
+        assertEquals(1, mDestroyed.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void releaseWithoutAcquire() throws Exception {
+        mResource.release();
+    }
+}
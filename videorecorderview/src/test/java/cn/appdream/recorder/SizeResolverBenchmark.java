@@ -0,0 +1,92 @@
+package cn.appdream.recorder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compares {@link SizeResolver} with the String keyed intersection CameraHelper used before.
+ * Run the {@link #main(String[])} method on the JVM; not part of the unit tests.
+ */
+public class SizeResolverBenchmark {
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 200000;
+
+    private static final int[][] PREVIEW = {
+            {1920, 1080}, {1440, 1080}, {1280, 960}, {1280, 720}, {1088, 1088}, {1056, 864},
+            {960, 720}, {800, 600}, {800, 480}, {720, 480}, {640, 480}, {640, 360},
+            {480, 360}, {480, 320}, {352, 288}, {320, 240}, {240, 160}, {176, 144}
+    };
+    private static final int[][] VIDEO = {
+            {3840, 2160}, {1920, 1080}, {1280, 720}, {960, 720}, {800, 480}, {720, 480},
+            {640, 480}, {352, 288}, {320, 240}, {176, 144}
+    };
+
+    private static int sSink;
+
+    public static void main(String[] args) {
+        SizeResolver resolver = new SizeResolver();
+        for (int i = 0; i < WARMUP; i++) {
+            sSink += legacy(1080, 1920).width + resolve(resolver, 1080, 1920);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sSink += legacy(1080, 1920).width;
+        }
+        long legacy = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sSink += resolve(resolver, 1080, 1920);
+        }
+        long resolved = System.nanoTime() - start;
+        System.out.println(String.format(Locale.US, "legacy:       %8.1f ns/op", (double) legacy / ITERATIONS));
+        System.out.println(String.format(Locale.US, "SizeResolver: %8.1f ns/op", (double) resolved / ITERATIONS));
+        System.out.println(sSink == 42 ? "" : "done");
+    }
+
+    private static int resolve(SizeResolver resolver, int w, int h) {
+        resolver.reset();
+        for (int[] size : PREVIEW) {
+            resolver.addPreviewSize(size[0], size[1], 30);
+        }
+        for (int[] size : VIDEO) {
+            resolver.addVideoSize(size[0], size[1]);
+        }
+        return resolver.resolve(w, h, 30);
+    }
+
+    /**
+     * The former CameraHelper.chooseOptimalSize/getOptimalPreviewSize path.
+     */
+    private static Size legacy(int w, int h) {
+        Map<String, int[]> mapVideo = new HashMap<>();
+        for (int[] it : VIDEO) {
+            mapVideo.put(String.format("%dx%d", it[0], it[1]), it);
+        }
+        List<Size> listDest = new ArrayList<>();
+        for (int[] it : PREVIEW) {
+            if (null != mapVideo.get(String.format("%dx%d", it[0], it[1]))) {
+                listDest.add(new Size(it[0], it[1]));
+            }
+        }
+        ArrayList<Size> localArrayList = new ArrayList<>();
+        for (Size localSize : listDest) {
+            if (localSize.width <= w && localSize.height <= h) {
+                localArrayList.add(localSize);
+            }
+        }
+        return listDest.get(0);
+    }
+
+    private static class Size {
+        final int width;
+        final int height;
+
+        Size(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package cn.appdream.recorder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SizeResolverTest {
+    private static final int[][] PREVIEW = {
+            {1920, 1080}, {1280, 720}, {960, 720}, {800, 480}, {640, 480}, {352, 288},
+            {320, 240}, {176, 144}
+    };
+
+    private SizeResolver mResolver;
+
+    @Before
+    public void setUp() throws Exception {
+        mResolver = new SizeResolver();
+        for (int[] size : PREVIEW) {
+            mResolver.addPreviewSize(size[0], size[1], 30);
+        }
+    }
+
+    @Test
+    public void pack_roundTrips() throws Exception {
+        int packed = SizeResolver.pack(1920, 1080);
+        assertEquals(1920, SizeResolver.width(packed));
+        assertEquals(1080, SizeResolver.height(packed));
+    }
+
+    @Test
+    public void resolve_exactMatch() throws Exception {
+        assertEquals(SizeResolver.pack(1280, 720), mResolver.resolve(1280, 720, 0));
+    }
+
+    @Test
+    public void resolve_ignoresTargetOrientation() throws Exception {
+        assertEquals(SizeResolver.pack(1280, 720), mResolver.resolve(720, 1280, 0));
+    }
+
+    @Test
+    public void resolve_prefersAspectRatio() throws Exception {
+        // 16:9 view, 960x720 has more similar pixel count but the wrong aspect ratio
+        assertEquals(SizeResolver.pack(1280, 720), mResolver.resolve(1200, 675, 0));
+    }
+
+    @Test
+    public void resolve_prefersSmallerOverLarger() throws Exception {
+        mResolver.addPreviewSize(1024, 768, 30);
+        assertEquals(SizeResolver.pack(960, 720), mResolver.resolve(1000, 750, 0));
+    }
+
+    @Test
+    public void resolve_targetSmallerThanEverySize() throws Exception {
+        assertEquals(SizeResolver.pack(176, 144), mResolver.resolve(100, 100, 0));
+    }
+
+    @Test
+    public void resolve_intersectsVideoSizes() throws Exception {
+        mResolver.addVideoSize(1920, 1080);
+        mResolver.addVideoSize(640, 480);
+        mResolver.addVideoSize(320, 240);
+        mResolver.addVideoSize(4096, 2160);
+        assertEquals(SizeResolver.pack(1920, 1080), mResolver.resolve(1920, 1080, 0));
+        // oversizing costs more than the aspect ratio here
+        assertEquals(SizeResolver.pack(640, 480), mResolver.resolve(1280, 720, 0));
+        assertEquals(SizeResolver.pack(640, 480), mResolver.resolve(960, 720, 0));
+    }
+
+    @Test
+    public void resolve_noCommonSize() throws Exception {
+        mResolver.addVideoSize(4096, 2160);
+        assertEquals(SizeResolver.NONE, mResolver.resolve(1280, 720, 0));
+    }
+
+    @Test
+    public void resolve_penalizesSlowSizes() throws Exception {
+        SizeResolver resolver = new SizeResolver();
+        resolver.addPreviewSize(1920, 1080, 15);
+        resolver.addPreviewSize(1280, 720, 30);
+        assertEquals(SizeResolver.pack(1920, 1080), resolver.resolve(1920, 1080, 0));
+        assertEquals(SizeResolver.pack(1280, 720), resolver.resolve(1920, 1080, 30));
+    }
+
+    @Test
+    public void resolve_duplicateKeepsHighestFps() throws Exception {
+        SizeResolver resolver = new SizeResolver();
+        resolver.addPreviewSize(1920, 1080, 30);
+        resolver.addPreviewSize(1920, 1080, 15);
+        resolver.addPreviewSize(1280, 720, 30);
+        assertEquals(SizeResolver.pack(1920, 1080), resolver.resolve(1920, 1080, 30));
+    }
+
+    @Test
+    public void resolve_empty() throws Exception {
+        assertEquals(SizeResolver.NONE, new SizeResolver().resolve(1280, 720, 0));
+        assertEquals(SizeResolver.NONE, mResolver.resolve(0, 720, 0));
+    }
+
+    @Test
+    public void reset_clearsSizes() throws Exception {
+        mResolver.addVideoSize(4096, 2160);
+        mResolver.reset();
+        mResolver.addPreviewSize(640, 480, 0);
+        assertEquals(SizeResolver.pack(640, 480), mResolver.resolve(1280, 720, 0));
+    }
+
+    @Test
+    public void addPreviewSize_grows() throws Exception {
+        SizeResolver resolver = new SizeResolver();
+        for (int i = 1; i <= 100; i++) {
+            resolver.addPreviewSize(16 * i, 9 * i, 30);
+        }
+        assertEquals(SizeResolver.pack(1280, 720), resolver.resolve(1280, 720, 30));
+    }
+}
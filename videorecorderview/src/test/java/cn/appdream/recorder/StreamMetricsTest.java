@@ -0,0 +1,78 @@
+package cn.appdream.recorder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StreamMetricsTest {
+    private static final int VIDEO = CodecRecordingEngine.TRACK_VIDEO;
+    private static final int AUDIO = CodecRecordingEngine.TRACK_AUDIO;
+
+    private StreamMetrics mStream;
+
+    @Before
+    public void setUp() throws Exception {
+        mStream = new StreamMetrics();
+        mStream.setExpectedFrameRate(25);
+    }
+
+    @Test
+    public void countsSamplesBytesAndRate() {
+        for (int i = 0; i < 26; i++) {
+            mStream.onSampleWritten(VIDEO, i * 40000L, 1000);
+        }
+        mStream.onSampleWritten(AUDIO, 0, 200);
+
+        assertEquals(26, mStream.getSampleCount(VIDEO));
+        assertEquals(1, mStream.getSampleCount(AUDIO));
+        assertEquals(26200, mStream.getBytes());
+        assertEquals(25f, mStream.getFrameRate(), 0.01f);
+        assertEquals(0, mStream.getDroppedFrameCount());
+        // 26200 bytes over one second of video
+        assertEquals(26200 * 8, mStream.getAverageBitRate());
+    }
+
+    @Test
+    public void gapsCountAsDroppedFrames() {
+        mStream.onSampleWritten(VIDEO, 0, 10);
+        // a late frame is no drop
+        mStream.onSampleWritten(VIDEO, 55000, 10);
+        // three frames missing
+        mStream.onSampleWritten(VIDEO, 215000, 10);
+        assertEquals(3, mStream.getDroppedFrameCount());
+    }
+
+    @Test
+    public void stopEndsTheInterval() {
+        mStream.onSampleWritten(VIDEO, 0, 10);
+        mStream.onOutputStopped();
+        mStream.onSampleWritten(VIDEO, 5000000, 10);
+        assertEquals(0, mStream.getDroppedFrameCount());
+        assertEquals(0, mStream.getFrameIntervals().getCount());
+        assertEquals(0, mStream.getAverageBitRate());
+    }
+
+    @Test
+    public void resetClearsEverything() {
+        mStream.onSampleWritten(VIDEO, 0, 10);
+        mStream.onSampleWritten(VIDEO, 200000, 10);
+        mStream.onSegmentFinished();
+        mStream.reset();
+        assertEquals(0, mStream.getSampleCount(VIDEO));
+        assertEquals(0, mStream.getBytes());
+        assertEquals(0, mStream.getDroppedFrameCount());
+        assertEquals(0, mStream.getSegmentCount());
+        assertEquals(0f, mStream.getFrameRate(), 0f);
+    }
+
+    @Test
+    public void recorderMetricsKeepsStreamsApart() {
+        RecorderMetrics metrics = new RecorderMetrics();
+        metrics.getStream(RecorderMetrics.STREAM_PROXY).onSampleWritten(VIDEO, 0, 10);
+        assertEquals(0, metrics.getStream(RecorderMetrics.STREAM_PRIMARY).getSampleCount(VIDEO));
+        assertEquals(1, metrics.getStream(RecorderMetrics.STREAM_PROXY).getSampleCount(VIDEO));
+        metrics.reset();
+        assertEquals(0, metrics.getStream(RecorderMetrics.STREAM_PROXY).getSampleCount(VIDEO));
+    }
+}
@@ -0,0 +1,145 @@
+package cn.appdream.recorder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ThumbnailSamplerTest {
+    private static final int WIDTH = 8;
+    private static final int HEIGHT = 4;
+    private static final long MS = 1000000L;
+
+    private final List<byte[]> mQueued = new ArrayList<>();
+    private FrameBufferPool mPool;
+    private ThumbnailSampler mSampler;
+
+    @Before
+    public void setUp() throws Exception {
+        mPool = new FrameBufferPool(2, FrameBufferPool.nv21Size(WIDTH, HEIGHT), new FrameBufferPool.Recycler() {
+            @Override
+            public void recycle(byte[] buffer) {
+                mQueued.add(buffer);
+            }
+        });
+        mPool.queueAll();
+        mSampler = new ThumbnailSampler();
+        mSampler.setInterval(100, 4);
+    }
+
+    @Test
+    public void scale_averagesBlocksAndConvertsToRgb() throws Exception {
+        // left half black, right half white, no color
+        byte[] nv21 = gray();
+        Thumbnail thumbnail = ThumbnailSampler.scale(nv21, WIDTH, HEIGHT, 0, 4, 7);
+        assertEquals(4, thumbnail.getWidth());
+        assertEquals(2, thumbnail.getHeight());
+        assertEquals(7, thumbnail.getTimeUs());
+        int[] pixels = thumbnail.getPixels();
+        assertEquals(0xff000000, pixels[0]);
+        assertEquals(0xff000000, pixels[1]);
+        assertEquals(0xffffffff, pixels[2]);
+        assertEquals(0xffffffff, pixels[7]);
+    }
+
+    @Test
+    public void scale_rotatesUpright() throws Exception {
+        Thumbnail thumbnail = ThumbnailSampler.scale(gray(), WIDTH, HEIGHT, 90, 4, 0);
+        assertEquals(2, thumbnail.getWidth());
+        assertEquals(4, thumbnail.getHeight());
+        int[] pixels = thumbnail.getPixels();
+        // the black left half ends up on top
+        assertEquals(0xff000000, pixels[0]);
+        assertEquals(0xff000000, pixels[3]);
+        assertEquals(0xffffffff, pixels[4]);
+        assertEquals(0xffffffff, pixels[7]);
+
+        thumbnail = ThumbnailSampler.scale(gray(), WIDTH, HEIGHT, 270, 4, 0);
+        assertEquals(0xffffffff, thumbnail.getPixels()[0]);
+        assertEquals(0xff000000, thumbnail.getPixels()[7]);
+    }
+
+    @Test
+    public void onFrame_takesOneFramePerInterval() throws Exception {
+        assertNull(mSampler.end());
+        deliver(0);
+        mSampler.begin(10 * MS, 0);
+        deliver(5 * MS);
+        deliver(10 * MS);
+        deliver(60 * MS);
+        deliver(120 * MS);
+        deliver(350 * MS);
+        deliver(360 * MS);
+        // every frame went back to the camera
+        assertEquals(2, mPool.getQueuedCount());
+
+        ThumbnailIndex index = mSampler.end();
+        List<Long> times = new ArrayList<>();
+        for (Thumbnail thumbnail : index.getThumbnails()) {
+            times.add(thumbnail.getTimeUs());
+        }
+        assertEquals(Arrays.asList(0L, 110000L, 340000L), times);
+        assertSame(index.getThumbnails().get(1), index.getThumbnailAt(300000));
+        assertNull(mSampler.end());
+    }
+
+    @Test
+    public void onVideoSample_collectsKeyFramesFromFirstSample() throws Exception {
+        mSampler.onVideoSample(0, true);
+        mSampler.begin(0, 0);
+        mSampler.onVideoSample(500000, true);
+        mSampler.onVideoSample(533000, false);
+        mSampler.onVideoSample(1500000, true);
+        ThumbnailIndex index = mSampler.end();
+        assertArrayEquals(new long[]{0, 1000000}, index.getKeyFrameTimesUs());
+        assertEquals(0, index.getKeyFrameBefore(999999));
+        assertEquals(1000000, index.getKeyFrameBefore(1200000));
+    }
+
+    @Test
+    public void index_roundTripsAsRgb565() throws Exception {
+        int[] pixels = {0xff000000, 0xffffffff, 0xff10a0f0, 0xff808080};
+        ThumbnailIndex index = new ThumbnailIndex(Arrays.asList(new Thumbnail(40000, 2, 2, pixels)),
+                new long[]{0, 1000000});
+        File file = File.createTempFile("video", ThumbnailIndex.SUFFIX);
+        try {
+            index.write(file);
+            assertEquals(5 + 4 + 16 + 4 + 12 + 8, file.length());
+            ThumbnailIndex read = ThumbnailIndex.read(file);
+            assertArrayEquals(new long[]{0, 1000000}, read.getKeyFrameTimesUs());
+            Thumbnail thumbnail = read.getThumbnails().get(0);
+            assertEquals(40000, thumbnail.getTimeUs());
+            assertEquals(2, thumbnail.getWidth());
+            int[] back = thumbnail.getPixels();
+            assertEquals(0xff000000, back[0]);
+            assertEquals(0xffffffff, back[1]);
+            for (int shift = 0; shift < 24; shift += 8) {
+                assertEquals(pixels[2] >> shift & 0xff, back[2] >> shift & 0xff, 8);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private void deliver(long timestampNanos) {
+        byte[] data = mQueued.remove(0);
+        System.arraycopy(gray(), 0, data, 0, data.length);
+        mSampler.onFrame(mPool.obtain(data, WIDTH, HEIGHT, timestampNanos, 1));
+    }
+
+    private static byte[] gray() {
+        byte[] nv21 = new byte[FrameBufferPool.nv21Size(WIDTH, HEIGHT)];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                nv21[y * WIDTH + x] = (byte) (x < WIDTH / 2 ? 16 : 235);
+            }
+        }
+        Arrays.fill(nv21, WIDTH * HEIGHT, nv21.length, (byte) 128);
+        return nv21;
+    }
+}
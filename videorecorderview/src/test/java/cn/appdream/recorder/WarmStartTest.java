@@ -0,0 +1,202 @@
+package cn.appdream.recorder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WarmStartTest {
+    private File mDir;
+    private FakeEngine mEngine;
+    private RecordingConfig mConfig;
+    private WarmStart mWarmStart;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("warm", "");
+        assertTrue(mDir.delete());
+        assertTrue(mDir.mkdirs());
+        mEngine = new FakeEngine();
+        mConfig = new RecordingConfig();
+        mConfig.setVideoSize(1280, 720);
+        mConfig.setVideoBitRate(4000000);
+        mWarmStart = new WarmStart();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void claimedRecordingIsMovedToTarget() throws Exception {
+        assertTrue(mWarmStart.prepare(mEngine, mConfig, mDir));
+        assertTrue(mWarmStart.isPrepared());
+        String temp = mEngine.prepared.get(0).getOutputFile();
+        assertTrue(new File(temp).getName().startsWith(WarmStart.FILE_PREFIX));
+
+        String target = new File(mDir, "a.mp4").getPath();
+        RecordingConfig config = new RecordingConfig(mConfig);
+        config.setOutputFile(target);
+        assertTrue(mWarmStart.claim(mEngine, config));
+        assertTrue(mWarmStart.isRecording());
+        assertEquals(target, mWarmStart.resolvePath(temp));
+
+        write(new File(temp), 1000);
+        assertTrue(mWarmStart.finish());
+        assertFalse(new File(temp).exists());
+        assertEquals(1000, new File(target).length());
+        assertFalse(mWarmStart.isRecording());
+        assertEquals(0, mEngine.stops);
+    }
+
+    @Test
+    public void changedSettingsDiscard() throws Exception {
+        assertTrue(mWarmStart.prepare(mEngine, mConfig, mDir));
+        String temp = mEngine.prepared.get(0).getOutputFile();
+        write(new File(temp), 10);
+
+        RecordingConfig config = new RecordingConfig(mConfig);
+        config.setOutputFile(new File(mDir, "a.mp4").getPath());
+        config.setVideoBitRate(2000000);
+        assertFalse(mWarmStart.claim(mEngine, config));
+        assertEquals(1, mEngine.stops);
+        assertFalse(new File(temp).exists());
+        assertFalse(mWarmStart.isPrepared());
+    }
+
+    @Test
+    public void otherEngineDiscards() throws Exception {
+        assertTrue(mWarmStart.prepare(mEngine, mConfig, mDir));
+        RecordingConfig config = new RecordingConfig(mConfig);
+        config.setOutputFile(new File(mDir, "a.mp4").getPath());
+        assertFalse(mWarmStart.claim(new FakeEngine(), config));
+        assertEquals(1, mEngine.stops);
+    }
+
+    @Test
+    public void segmentedAndPreRollStartCold() {
+        RecordingConfig segmented = new RecordingConfig(mConfig);
+        segmented.setSegmentDurationMs(10000);
+        assertFalse(mWarmStart.prepare(mEngine, segmented, mDir));
+        RecordingConfig preRoll = new RecordingConfig(mConfig);
+        preRoll.setPreRollDurationMs(3000);
+        assertFalse(mWarmStart.prepare(mEngine, preRoll, mDir));
+        assertTrue(mEngine.prepared.isEmpty());
+    }
+
+    @Test
+    public void failedPrepare() {
+        mEngine.fail = true;
+        assertFalse(mWarmStart.prepare(mEngine, mConfig, mDir));
+        assertFalse(mWarmStart.isPrepared());
+    }
+
+    @Test
+    public void staleTempFilesAreDeleted() throws Exception {
+        File stale = new File(mDir, WarmStart.FILE_PREFIX + "1.mp4");
+        write(stale, 10);
+        assertTrue(mWarmStart.prepare(mEngine, mConfig, mDir));
+        assertFalse(stale.exists());
+    }
+
+    @Test
+    public void otherInstanceKeepsItsTempFile() throws Exception {
+        assertTrue(mWarmStart.prepare(mEngine, mConfig, mDir));
+        File live = new File(mEngine.prepared.get(0).getOutputFile());
+        write(live, 10);
+
+        // a second view on the same directory
+        WarmStart other = new WarmStart();
+        FakeEngine otherEngine = new FakeEngine();
+        assertTrue(other.prepare(otherEngine, mConfig, mDir));
+        assertTrue(live.exists());
+        assertFalse(live.getPath().equals(otherEngine.prepared.get(0).getOutputFile()));
+        other.discard();
+
+        mWarmStart.discard();
+        File stale = new File(mDir, WarmStart.FILE_PREFIX + "1.mp4");
+        write(stale, 10);
+        assertTrue(other.prepare(otherEngine, mConfig, mDir));
+        assertFalse(stale.exists());
+        other.discard();
+    }
+
+    @Test
+    public void moveFileReplacesTarget() throws Exception {
+        File from = new File(mDir, "from");
+        File to = new File(mDir, "to");
+        write(from, 20);
+        write(to, 5);
+        WarmStart.moveFile(from, to);
+        assertFalse(from.exists());
+        assertEquals(20, to.length());
+        assertFalse(new File(mDir, "to.tmp").exists());
+    }
+
+    @Test
+    public void failedMoveKeepsTarget() throws Exception {
+        File to = new File(mDir, "to");
+        write(to, 5);
+        try {
+            WarmStart.moveFile(new File(mDir, "missing"), to);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(5, to.length());
+        assertFalse(new File(mDir, "to.tmp").exists());
+    }
+
+    private static void write(File file, int size) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static class FakeEngine implements RecordingEngine {
+        final List<RecordingConfig> prepared = new ArrayList<>();
+        int stops;
+        boolean fail;
+
+        @Override
+        public void setListener(Listener listener) {
+        }
+
+        @Override
+        public void prepare(RecordingConfig config) throws IOException {
+            if (fail) {
+                throw new IOException("busy");
+            }
+            prepared.add(new RecordingConfig(config));
+        }
+
+        @Override
+        public void start() throws IOException {
+        }
+
+        @Override
+        public void stop() {
+            stops++;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}